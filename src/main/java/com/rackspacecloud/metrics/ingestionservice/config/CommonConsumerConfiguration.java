@@ -1,16 +1,26 @@
 package com.rackspacecloud.metrics.ingestionservice.config;
 
+import com.rackspacecloud.metrics.ingestionservice.config.ConsumerConfigurationProperties.Quarantine;
+import com.rackspacecloud.metrics.ingestionservice.exceptions.PartialIngestFailedException;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.RejectedRecords;
+import com.rackspacecloud.metrics.ingestionservice.listeners.quarantine.QuarantineFile;
+import com.rackspacecloud.metrics.ingestionservice.listeners.quarantine.RecordQuarantine;
 import io.micrometer.core.aop.TimedAspect;
 import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.KafkaException;
 import org.apache.kafka.common.TopicPartition;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.kafka.listener.ConsumerAwareListenerErrorHandler;
 import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageHeaders;
 
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -21,23 +31,41 @@ import java.util.Map;
 public class CommonConsumerConfiguration {
     /**
      * This error handler is used by kafka listeners to handle any exception in that listener.
+     * Partitions of the batch are consumed again from their first record. When only some of the payloads
+     * failed, records written before the first unwritten one are committed and only partitions with unwritten
+     * records are consumed again.
+     * If the records of the batch can't be told from the message, the failure is rethrown to the container's
+     * error handler.
      * @return
      */
     @Bean
     public ConsumerAwareListenerErrorHandler listenerErrorHandler() {
         return (message, e, consumer) -> {
-            MessageHeaders headers = message.getHeaders();
-            List<String> topics = headers.get(KafkaHeaders.RECEIVED_TOPIC, List.class);
-            List<Integer> partitions = headers.get(KafkaHeaders.RECEIVED_PARTITION_ID, List.class);
-            List<Long> offsets = headers.get(KafkaHeaders.OFFSET, List.class);
-
             Map<TopicPartition, Long> offsetsToReset = new HashMap<>();
+            Map<TopicPartition, Long> nextOffsets = new HashMap<>();
+
+            if(!collectOffsets(message, offsetsToReset, nextOffsets)) throw e;
+
+            PartialIngestFailedException partialFailure = getPartialIngestFailure(e);
+
+            if(partialFailure != null) {
+                Map<TopicPartition, OffsetAndMetadata> offsetsToCommit = new HashMap<>();
 
-            for(int i = 0; i < topics.size(); i++){
-                int index = i;
+                nextOffsets.forEach((topicPartition, nextOffset) -> offsetsToCommit.put(topicPartition,
+                        new OffsetAndMetadata(
+                                partialFailure.getRedeliveryOffsets().getOrDefault(topicPartition, nextOffset))));
 
-                offsetsToReset.compute(new TopicPartition(topics.get(i), partitions.get(i)),
-                        (k, v) -> v == null ? offsets.get(index) : Math.min(v, offsets.get(index)));
+                offsetsToReset.keySet().retainAll(partialFailure.getRedeliveryOffsets().keySet());
+                offsetsToReset.replaceAll((topicPartition, offset) ->
+                        partialFailure.getRedeliveryOffsets().get(topicPartition));
+
+                // Written records are consumed again if the commit fails, that's only extra work
+                try {
+                    consumer.commitSync(offsetsToCommit);
+                }
+                catch (KafkaException commitFailure) {
+                    log.warn("Committing written records [{}] failed", offsetsToCommit, commitFailure);
+                }
             }
 
             List<String> topicPartitions = new ArrayList<>();
@@ -54,6 +82,89 @@ public class CommonConsumerConfiguration {
         };
     }
 
+    /**
+     * Collect the first offset and the offset after the last record of every partition in the batch of given
+     * message. Listeners taking a list of payloads get the topics, partitions and offsets of the records as
+     * list headers. Listeners taking a list of messages get a message with none of them, and every record
+     * message in its payload has its own.
+     * @param message
+     * @param firstOffsets
+     * @param nextOffsets
+     * @return false if the message has neither
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean collectOffsets(Message<?> message,
+                                          Map<TopicPartition, Long> firstOffsets, Map<TopicPartition, Long> nextOffsets) {
+        MessageHeaders headers = message.getHeaders();
+        List<String> topics = headers.get(KafkaHeaders.RECEIVED_TOPIC, List.class);
+        List<Integer> partitions = headers.get(KafkaHeaders.RECEIVED_PARTITION_ID, List.class);
+        List<Long> offsets = headers.get(KafkaHeaders.OFFSET, List.class);
+
+        if(topics != null && partitions != null && offsets != null) {
+            for(int i = 0; i < topics.size(); i++) {
+                collectOffset(topics.get(i), partitions.get(i), offsets.get(i), firstOffsets, nextOffsets);
+            }
+            return true;
+        }
+
+        if(!(message.getPayload() instanceof List)) return false;
+
+        for(Object record : (List<Object>) message.getPayload()) {
+            if(!(record instanceof Message)) return false;
+
+            MessageHeaders recordHeaders = ((Message<?>) record).getHeaders();
+            String topic = recordHeaders.get(KafkaHeaders.RECEIVED_TOPIC, String.class);
+            Integer partition = recordHeaders.get(KafkaHeaders.RECEIVED_PARTITION_ID, Integer.class);
+            Long offset = recordHeaders.get(KafkaHeaders.OFFSET, Long.class);
+
+            if(topic == null || partition == null || offset == null) return false;
+
+            collectOffset(topic, partition, offset, firstOffsets, nextOffsets);
+        }
+
+        return !firstOffsets.isEmpty();
+    }
+
+    private static void collectOffset(String topic, int partition, long offset,
+                                      Map<TopicPartition, Long> firstOffsets, Map<TopicPartition, Long> nextOffsets) {
+        TopicPartition topicPartition = new TopicPartition(topic, partition);
+
+        firstOffsets.merge(topicPartition, offset, Math::min);
+        nextOffsets.merge(topicPartition, offset + 1, Math::max);
+    }
+
+    /**
+     * Find the partial ingest failure the listener failed with, if that's what it failed with
+     * @param e
+     * @return
+     */
+    private static PartialIngestFailedException getPartialIngestFailure(Throwable e) {
+        for(Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if(cause instanceof PartialIngestFailedException) return (PartialIngestFailedException) cause;
+            if(cause.getCause() == cause) break;
+        }
+        return null;
+    }
+
+    /**
+     * Create the quarantine for records that fail to be deserialized, if it's enabled.
+     * Records rejected by the processors are added to it too.
+     * @param properties
+     * @param registry
+     * @return
+     */
+    @Bean(destroyMethod = "close")
+    @ConditionalOnProperty(value = "kafka.quarantine.enabled", matchIfMissing = true)
+    public RecordQuarantine recordQuarantine(ConsumerConfigurationProperties properties, MeterRegistry registry) {
+        Quarantine quarantine = properties.getQuarantine();
+
+        RecordQuarantine recordQuarantine = new RecordQuarantine(new QuarantineFile(Paths.get(quarantine.getFile()),
+                quarantine.getMaxFileBytes(), quarantine.getMaxFiles()), registry, quarantine.getMaxQueuedRecords());
+
+        RejectedRecords.get().setQuarantine(recordQuarantine);
+        return recordQuarantine;
+    }
+
     @Bean
     @Autowired
     public TimedAspect timedAspect(MeterRegistry registry) {
@@ -5,7 +5,9 @@ import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 @Configuration
 @ConfigurationProperties("kafka")
@@ -23,15 +25,120 @@ public class ConsumerConfigurationProperties {
     private Ssl ssl;
     private Consumer consumer;
 
+    // How raw records are turned into line-protocol, see RawTransform
+    private RawTransform rawTransform = RawTransform.AVRO;
+
+    // Consumer threads of each listener by listener name: raw, 5m, 20m, 60m, 240m and 1440m.
+    // Listeners not in here get defaultConcurrency threads, or one per core if that's 0 or less.
+    private Map<String, Integer> concurrency = new HashMap<>();
+    private int defaultConcurrency;
+
+    // Processing batches of the raw listener off the consumer threads, see BatchPipeline
+    private Pipeline pipeline = new Pipeline();
+
+    // Transforming records of a raw batch on several threads, see RawTransformExecutor
+    private ParallelTransform parallelTransform = new ParallelTransform();
+
+    // Series keys rendered by the raw transform, see SeriesKeyCache
+    private SeriesKeyCache seriesKeyCache = new SeriesKeyCache();
+
+    // Records that can't be deserialized, see RecordQuarantine
+    private Quarantine quarantine = new Quarantine();
+
     public void setServers(String servers){
         this.servers = Arrays.asList(servers.split(";"));
     }
 
+    /**
+     * Get the number of consumer threads for given listener. It's used by the concurrency of @KafkaListener.
+     * @param listener
+     * @return
+     */
+    public int getListenerConcurrency(String listener) {
+        Integer listenerConcurrency = concurrency.get(listener);
+        return listenerConcurrency != null && listenerConcurrency > 0
+                ? listenerConcurrency : getDefaultListenerConcurrency();
+    }
+
+    /**
+     * Get the number of consumer threads for listeners without their own concurrency
+     * @return
+     */
+    public int getDefaultListenerConcurrency() {
+        return defaultConcurrency > 0 ? defaultConcurrency : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * AVRO deserializes raw records into ExternalMetric before converting them.
+     * STREAMING parses JSON records straight into line-protocol (see StreamingRawMetricsProcessor).
+     */
+    public enum RawTransform {
+        AVRO,
+        STREAMING
+    }
+
     @Data
     public static class Consumer{
         private String group;
     }
 
+    @Data
+    public static class Pipeline {
+        private boolean enabled = false;
+
+        // Number of batches transformed and written in parallel
+        private int threads = 4;
+
+        // Listener container is paused once this many batches are in flight,
+        // and resumed when no more than resumeInFlightBatches are left
+        private int maxInFlightBatches = 8;
+        private int resumeInFlightBatches = 4;
+
+        // Time to wait before processing a failed batch again, doubled after every failed attempt
+        // up to maxRetryBackoffMs
+        private long retryBackoffMs = 1000;
+        private long maxRetryBackoffMs = 60000;
+
+        // Failed batch is given up on after this many attempts, and consumed again from the last
+        // committed offset once the listener is restarted
+        private int maxAttempts = 10;
+
+        // Time given to the batches of revoked partitions to be written and committed, before they are
+        // discarded and left to the partitions' new owner
+        private long revocationTimeoutMs = 10000;
+    }
+
+    @Data
+    public static class ParallelTransform {
+        // Threads transforming a batch, including the one processing it. 1 or less to transform on that thread.
+        private int threads = 1;
+
+        // Batch is only split into slices of at least this many records
+        private int minRecordsPerSlice = 500;
+    }
+
+    @Data
+    public static class SeriesKeyCache {
+        // Cache is bounded by the approximate memory of its series keys
+        private long maxWeightBytes = 64L * 1024 * 1024;
+    }
+
+    @Data
+    public static class Quarantine {
+        // Records that fail to be deserialized are quarantined instead of failing every poll
+        private boolean enabled = true;
+
+        // File quarantined records are appended to. It's rolled over at maxFileBytes and
+        // only maxFiles rolled over files are kept.
+        private String file = "quarantine/records.json";
+        private long maxFileBytes = 64L * 1024 * 1024;
+        private int maxFiles = 4;
+
+        // Records are appended by a background thread. Records quarantined while this many are waiting
+        // to be appended are dropped, and counted in "ingestion.records.quarantine.dropped".
+        private int maxQueuedRecords = 10000;
+    }
+
     @Data
     public static class Ssl {
         private String truststoreLocation;
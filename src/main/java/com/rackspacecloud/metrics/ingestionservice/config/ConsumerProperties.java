@@ -3,6 +3,7 @@ package com.rackspacecloud.metrics.ingestionservice.config;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.apache.kafka.common.serialization.StringDeserializer;
+import org.springframework.kafka.support.serializer.ErrorHandlingDeserializer2;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -42,6 +43,21 @@ public abstract class ConsumerProperties {
         properties.put("security.protocol", configurationProperties.getProperties().getSecurityProtocol());
     }
 
+    /**
+     * Get the consumer configuration with the value deserializer wrapped in ErrorHandlingDeserializer2, so that
+     * a record that can't be deserialized doesn't stop the consumer. It's handed over with a null value and
+     * the DeserializationException, which has the record's data, in the VALUE_DESERIALIZER_EXCEPTION_HEADER
+     * header. RecordQuarantine takes such records out of the batch.
+     * @return
+     */
+    public Map<String, Object> getErrorHandlingProperties() {
+        Map<String, Object> errorHandlingProperties = new HashMap<>(properties);
+        errorHandlingProperties.put(ErrorHandlingDeserializer2.VALUE_DESERIALIZER_CLASS,
+                properties.get(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG));
+        errorHandlingProperties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ErrorHandlingDeserializer2.class);
+        return errorHandlingProperties;
+    }
+
     private String getHostName() {
         try {
             return InetAddress.getLocalHost().getHostName();
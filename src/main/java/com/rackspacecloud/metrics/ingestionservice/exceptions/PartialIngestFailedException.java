@@ -0,0 +1,27 @@
+package com.rackspacecloud.metrics.ingestionservice.exceptions;
+
+import org.apache.kafka.common.TopicPartition;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * This exception is thrown when only some of the payloads of a batch were written. Records of a partition
+ * before its redelivery offset are all written; partitions without a redelivery offset are written completely.
+ */
+public class PartialIngestFailedException extends IngestFailedException {
+  private final Map<TopicPartition, Long> redeliveryOffsets;
+
+  public PartialIngestFailedException(String s, Map<TopicPartition, Long> redeliveryOffsets, Throwable throwable) {
+    super(s, throwable);
+    this.redeliveryOffsets = Collections.unmodifiableMap(redeliveryOffsets);
+  }
+
+  /**
+   * Get the offset to consume each partition with unwritten records from again
+   * @return
+   */
+  public Map<TopicPartition, Long> getRedeliveryOffsets() {
+    return redeliveryOffsets;
+  }
+}
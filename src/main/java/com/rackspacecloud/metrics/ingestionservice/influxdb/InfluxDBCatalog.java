@@ -0,0 +1,279 @@
+package com.rackspacecloud.metrics.ingestionservice.influxdb;
+
+import com.rackspacecloud.metrics.ingestionservice.exceptions.QueryFailedException;
+import lombok.extern.slf4j.Slf4j;
+import org.influxdb.InfluxDB;
+import org.influxdb.dto.Query;
+import org.influxdb.dto.QueryResult;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Databases and retention policies of each InfluxDB instance, so that checking whether they exist doesn't
+ * query the instance every time. Databases of an instance are loaded the first time the instance is asked
+ * about, and retention policies of a database the first time the database is. Databases and retention
+ * policies created by us are added as they are created, and everything loaded is reloaded by refresh().
+ *
+ * Only positive answers are trusted. Another ingestion instance may have created a database or retention
+ * policy since they were loaded, so a miss loads them again, at most once every minMissReloadIntervalMs.
+ */
+@Slf4j
+public class InfluxDBCatalog {
+    private static final String SHOW_DATABASES = "SHOW DATABASES";
+    private static final long DEFAULT_MIN_MISS_RELOAD_INTERVAL_MS = 1000;
+
+    // key = InfluxDB instance URL
+    private final ConcurrentMap<String, InstanceCatalog> instances = new ConcurrentHashMap<>();
+    private final Function<String, InfluxDB> influxDBClients;
+    private final long minMissReloadIntervalMs;
+
+    /**
+     * @param influxDBClients gives the client of the InfluxDB instance with given URL
+     */
+    public InfluxDBCatalog(Function<String, InfluxDB> influxDBClients) {
+        this(influxDBClients, DEFAULT_MIN_MISS_RELOAD_INTERVAL_MS);
+    }
+
+    /**
+     * @param influxDBClients gives the client of the InfluxDB instance with given URL
+     * @param minMissReloadIntervalMs names missing from what's loaded are loaded again if it's older than this
+     */
+    public InfluxDBCatalog(Function<String, InfluxDB> influxDBClients, long minMissReloadIntervalMs) {
+        this.influxDBClients = influxDBClients;
+        this.minMissReloadIntervalMs = minMissReloadIntervalMs;
+    }
+
+    private static class InstanceCatalog {
+        // null until loaded
+        private volatile Names databases;
+
+        // key = database, value = its retention policies. Databases not in here are not loaded yet
+        private final ConcurrentMap<String, Names> retentionPolicies = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Names loaded from an instance, along with the time they were loaded
+     */
+    private static final class Names {
+        private final Set<String> names;
+        private final long loadedAtMs;
+
+        Names(Set<String> names, long loadedAtMs) {
+            this.names = names;
+            this.loadedAtMs = loadedAtMs;
+        }
+
+        Names expired() {
+            return new Names(names, Long.MIN_VALUE);
+        }
+    }
+
+    /**
+     * Check whether given database exists in given InfluxDB instance
+     * @param databaseName
+     * @param baseUrl
+     * @return
+     */
+    public boolean databaseExists(final String databaseName, final String baseUrl) {
+        InstanceCatalog instance = instances.computeIfAbsent(baseUrl, url -> new InstanceCatalog());
+
+        Names databases = instance.databases;
+        if(databases != null && databases.names.contains(databaseName)) return true;
+
+        if(databases == null || isDueForMissReload(databases)) {
+            databases = loadDatabases(baseUrl);
+            instance.databases = databases;
+        }
+
+        return databases.names.contains(databaseName);
+    }
+
+    /**
+     * Check whether given retention policy exists on given database in given InfluxDB instance
+     * @param rp
+     * @param databaseName
+     * @param baseUrl
+     * @return
+     */
+    public boolean retentionPolicyExists(final String rp, final String databaseName, final String baseUrl) {
+        InstanceCatalog instance = instances.computeIfAbsent(baseUrl, url -> new InstanceCatalog());
+
+        Names retPolicies = instance.retentionPolicies.get(databaseName);
+        if(retPolicies != null && retPolicies.names.contains(rp)) return true;
+
+        if(retPolicies == null || isDueForMissReload(retPolicies)) {
+            retPolicies = loadRetentionPolicies(databaseName, baseUrl);
+
+            // Not remembered when the query failed, so that it's tried again next time
+            if(retPolicies == null) return false;
+
+            instance.retentionPolicies.put(databaseName, retPolicies);
+        }
+
+        return retPolicies.names.contains(rp);
+    }
+
+    private boolean isDueForMissReload(Names names) {
+        return names.loadedAtMs == Long.MIN_VALUE
+                || System.currentTimeMillis() - names.loadedAtMs >= minMissReloadIntervalMs;
+    }
+
+    /**
+     * Let the next miss on given instance load its databases and retention policies again, however recently
+     * they were loaded. It's called when creating one of them failed, maybe because someone else created it.
+     * @param baseUrl
+     */
+    public void expire(final String baseUrl) {
+        InstanceCatalog instance = instances.get(baseUrl);
+        if(instance == null) return;
+
+        Names databases = instance.databases;
+        if(databases != null) instance.databases = databases.expired();
+
+        instance.retentionPolicies.replaceAll((databaseName, retPolicies) -> retPolicies.expired());
+    }
+
+    /**
+     * Record a database created with given retention policy
+     * @param databaseName
+     * @param retPolicyName
+     * @param baseUrl
+     */
+    public void databaseCreated(final String databaseName, final String retPolicyName, final String baseUrl) {
+        InstanceCatalog instance = instances.computeIfAbsent(baseUrl, url -> new InstanceCatalog());
+
+        Names databases = instance.databases;
+        if(databases != null) {
+            databases.names.add(databaseName);
+        }
+        else {
+            // The rest of the databases are loaded on the first miss
+            Set<String> names = ConcurrentHashMap.newKeySet();
+            names.add(databaseName);
+            instance.databases = new Names(names, Long.MIN_VALUE);
+        }
+
+        instance.retentionPolicies.computeIfAbsent(databaseName,
+                db -> new Names(ConcurrentHashMap.newKeySet(), System.currentTimeMillis()))
+                .names.add(retPolicyName);
+    }
+
+    /**
+     * Record a retention policy created on given database
+     * @param retPolicyName
+     * @param databaseName
+     * @param baseUrl
+     */
+    public void retentionPolicyCreated(final String retPolicyName, final String databaseName, final String baseUrl) {
+        InstanceCatalog instance = instances.computeIfAbsent(baseUrl, url -> new InstanceCatalog());
+
+        Names retPolicies = instance.retentionPolicies.get(databaseName);
+        if(retPolicies != null) retPolicies.names.add(retPolicyName);
+    }
+
+    /**
+     * Reload the databases and retention policies loaded so far, to pick up the ones created or dropped
+     * by someone else. What can't be reloaded is kept as it is.
+     */
+    public void refresh() {
+        for(Map.Entry<String, InstanceCatalog> entry : instances.entrySet()) {
+            String baseUrl = entry.getKey();
+            InstanceCatalog instance = entry.getValue();
+
+            try {
+                if(instance.databases != null) instance.databases = loadDatabases(baseUrl);
+            } catch(RuntimeException e) {
+                log.warn("Reloading databases of instance [{}] failed", baseUrl, e);
+            }
+
+            for(String databaseName : instance.retentionPolicies.keySet()) {
+                try {
+                    Names retPolicies = loadRetentionPolicies(databaseName, baseUrl);
+                    if(retPolicies != null) instance.retentionPolicies.put(databaseName, retPolicies);
+                } catch(RuntimeException e) {
+                    log.warn("Reloading retention policies of database [{}] in instance [{}] failed",
+                            databaseName, baseUrl, e);
+                }
+            }
+        }
+    }
+
+    private Names loadDatabases(final String baseUrl) {
+        InfluxDB influxDB = influxDBClients.apply(baseUrl);
+
+        QueryResult queryResult = influxDB.query(new Query(SHOW_DATABASES, ""));
+
+        if(queryResult.hasError()) {
+            log.error("Query result got error for query [{}]", SHOW_DATABASES);
+            throw new QueryFailedException();
+        }
+
+        Set<String> databases = ConcurrentHashMap.newKeySet();
+
+        try {
+            // Database names are every value of the first series
+            for(List<Object> values : getValues(queryResult)) {
+                for(Object database : values) {
+                    databases.add(database.toString());
+                }
+            }
+        } catch(Exception e) {
+            throw new QueryFailedException("Unable to query for database existence", e);
+        }
+
+        return new Names(databases, System.currentTimeMillis());
+    }
+
+    /**
+     * Load retention policies of given database
+     * @param databaseName
+     * @param baseUrl
+     * @return retention policy names, or null if the query failed
+     */
+    private Names loadRetentionPolicies(final String databaseName, final String baseUrl) {
+        String queryString = String.format("SHOW RETENTION POLICIES ON \"%s\"", databaseName);
+
+        InfluxDB influxDB = influxDBClients.apply(baseUrl);
+
+        QueryResult queryResult = influxDB.query(new Query(queryString, databaseName));
+
+        if(queryResult.hasError()) {
+            log.error("Query result got error for query [{}]", queryString);
+            return null;
+        }
+
+        Set<String> retPolicies = ConcurrentHashMap.newKeySet();
+
+        // Retention policy name is the first column
+        for(List<Object> values : getValues(queryResult)) {
+            retPolicies.add(values.get(0).toString());
+        }
+
+        return new Names(retPolicies, System.currentTimeMillis());
+    }
+
+    /**
+     * Get the values of the first series of given query result. As the result is coming from external library,
+     * null checks are made at every level before accepting it.
+     * @param queryResult
+     * @return
+     */
+    private static List<List<Object>> getValues(QueryResult queryResult) {
+        if (queryResult.getResults() != null
+            && queryResult.getResults().size() > 0
+            && queryResult.getResults().get(0).getSeries() != null
+            && queryResult.getResults().get(0).getSeries().size() > 0
+            && queryResult.getResults().get(0).getSeries().get(0).getValues() != null
+        ) {
+            return queryResult.getResults().get(0).getSeries().get(0).getValues();
+        }
+
+        return Collections.emptyList();
+    }
+}
@@ -1,23 +1,29 @@
 package com.rackspacecloud.metrics.ingestionservice.influxdb;
 
-import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.stats.ConcurrentStatsCounter;
+import com.github.benmanes.caffeine.cache.stats.StatsCounter;
 import com.rackspacecloud.metrics.ingestionservice.exceptions.ExternalSystemException;
 import com.rackspacecloud.metrics.ingestionservice.exceptions.IngestFailedException;
 import com.rackspacecloud.metrics.ingestionservice.exceptions.InvalidDataException;
-import com.rackspacecloud.metrics.ingestionservice.exceptions.QueryFailedException;
 import com.rackspacecloud.metrics.ingestionservice.exceptions.RouteNotFoundException;
 import com.rackspacecloud.metrics.ingestionservice.influxdb.providers.LineProtocolBackupService;
 import com.rackspacecloud.metrics.ingestionservice.influxdb.providers.RouteProvider;
 import com.rackspacecloud.metrics.ingestionservice.influxdb.providers.TenantRoutes;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantIdAndMeasurement;
 import com.rackspacecloud.metrics.ingestionservice.utils.InfluxDBFactory;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 import java.io.IOException;
 import java.net.URL;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
@@ -32,9 +38,14 @@ import org.springframework.web.client.RestTemplate;
 
 @Slf4j
 public class InfluxDBHelper {
+    static final String ROUTE_CACHE_NAME = "influxdb.route.cache";
+
+    // Rough memory of a cached route besides its strings
+    private static final int ROUTE_OVERHEAD_BYTES = 128;
+
     /**
-     * This map contains all of the InfluxDB related information for given tenantId and measurement
-     * key = tenantId:measurement. Example: "CORE-123456:MAAS_agent_filesystem"
+     * This cache contains all of the InfluxDB related information for given tenantId and measurement
+     * key = tenantId and measurement. Example: "CORE-123456", "MAAS_agent_filesystem"
      * value = Map of rollupLevel and their path information
      *      Example:
      *          key = rollupLevel. Example: 60m
@@ -43,8 +54,17 @@ public class InfluxDBHelper {
      *              databaseName = "db_6"
      *              retentionPolicyName = "rp_5d"
      *              retentionPolicy = "5d"
+     * Cached routes are refreshed in the background, and the stale route is used until the refresh is done.
+     * Cache hits, misses and load times are published to Micrometer as cache "influxdb.route.cache".
      */
-    private Cache<String, Map<String, InfluxDbInfoForRollupLevel>> influxDbInfoCache;
+    private LoadingCache<TenantIdAndMeasurement, Map<String, InfluxDbInfoForRollupLevel>> influxDbInfoCache;
+
+    // Stats of the cache. Misses are loaded outside of the cache, so their loads are recorded in here by hand.
+    private final StatsCounter routeCacheStats = new ConcurrentStatsCounter();
+
+    // Threads missing the cache for the same tenant and measurement wait for a single load
+    private final SingleFlight<TenantIdAndMeasurement, Map<String, InfluxDbInfoForRollupLevel>> routeLoads =
+            new SingleFlight<>();
     private RestTemplate restTemplate;
     private RouteProvider routeProvider;
     private InfluxDBFactory influxDBFactory;
@@ -52,8 +72,15 @@ public class InfluxDBHelper {
     private int writeFlushDurationMsLimit;
     private int jitterDuration;
     private ConcurrentMap<String, InfluxDB> urlInfluxDBInstanceMap;
+
+    // Databases and retention policies known to exist, so routes are loaded without querying for them every time
+    private final InfluxDBCatalog catalog = new InfluxDBCatalog(this::getInfluxDBClient);
     Timer influxDBWriteTimer;
     private LineProtocolBackupService backupService;
+    private InstanceWriteLimiter writeLimiter = InstanceWriteLimiter.UNLIMITED;
+
+    // Creates missing databases and retention policies in the background, they are created on the spot without it
+    private volatile InfluxDBProvisioner provisioner;
 
     // This timer captures the latency for getting data from routing service if it's trying
     // to get the data first time. Once it has the routing information from routing service,
@@ -65,11 +92,14 @@ public class InfluxDBHelper {
             InfluxDBFactory influxDBFactory,
             LineProtocolBackupService backupService,
             int numberOfPointsInAWriteBatch, int writeFlushDurationMsLimit,
-            int jitterDuration, Cache<String, Map<String, InfluxDbInfoForRollupLevel>> cache){
+            int jitterDuration, Caffeine<Object, Object> routeCacheBuilder){
         this.restTemplate = restTemplate;
         this.routeProvider = routeProvider;
         this.influxDBFactory = influxDBFactory;
-        this.influxDbInfoCache = cache;
+        this.influxDbInfoCache = routeCacheBuilder
+                .weigher(InfluxDBHelper::weigh)
+                .recordStats(() -> routeCacheStats)
+                .build(this::loadInfluxDbInfo);
         this.urlInfluxDBInstanceMap = new ConcurrentHashMap<>();
         this.numberOfPointsInAWriteBatch = numberOfPointsInAWriteBatch;
         this.writeFlushDurationMsLimit = writeFlushDurationMsLimit;
@@ -78,15 +108,41 @@ public class InfluxDBHelper {
 
         this.influxDBWriteTimer = registry.timer("ingestion.influxdb.write");
         this.getInfluxDBInfoTimer = registry.timer("ingestion.routing.info.get");
+
+        CaffeineCacheMetrics.monitor(registry, influxDbInfoCache, ROUTE_CACHE_NAME);
     }
 
     public InfluxDBFactory getInfluxDBFactory() {
         return this.influxDBFactory;
     }
 
+    /**
+     * Reload the databases and retention policies known to exist in the InfluxDB instances written so far
+     */
+    public void refreshCatalog() {
+        catalog.refresh();
+    }
+
+    /**
+     * Set the provisioner creating missing databases and retention policies in the background. Without it,
+     * they are created by the thread loading the route.
+     * @param provisioner
+     */
+    public void setProvisioner(InfluxDBProvisioner provisioner) {
+        this.provisioner = provisioner;
+    }
+
+    /**
+     * Set the limiter for concurrent writes to each InfluxDB instance. Writes are not limited by default.
+     * @param writeLimiter
+     */
+    public void setWriteLimiter(InstanceWriteLimiter writeLimiter) {
+        this.writeLimiter = writeLimiter;
+    }
+
     @Data
     @AllArgsConstructor
-    public class InfluxDbInfoForRollupLevel {
+    public static class InfluxDbInfoForRollupLevel {
         private String path;
         private String databaseName;
         private String retentionPolicyName;
@@ -109,17 +165,104 @@ public class InfluxDBHelper {
     private Map<String, InfluxDbInfoForRollupLevel> getInfluxDbInfo(
             final String tenantId, final String measurement) {
 
-        String tenantIdAndMeasurementKey = String.format("%s:%s", tenantId, measurement);
+        TenantIdAndMeasurement key = new TenantIdAndMeasurement(tenantId, measurement);
 
         // If we already have routing information from earlier calls, we don't need to call
         // routing service to get the same information again
-        Map<String, InfluxDbInfoForRollupLevel> info = influxDbInfoCache.getIfPresent(tenantIdAndMeasurementKey);
+        Map<String, InfluxDbInfoForRollupLevel> info = influxDbInfoCache.getIfPresent(key);
         if(info != null) return info;
 
+        // Loaded on this thread rather than in the cache, which would hold a lock on other keys meanwhile.
+        // Waiters of a load that fails get its exception instead of loading again one after the other.
+        return routeLoads.execute(key, this::loadAndCacheInfluxDbInfo);
+    }
+
+    private Map<String, InfluxDbInfoForRollupLevel> loadAndCacheInfluxDbInfo(TenantIdAndMeasurement key) {
+        // Load that was running when the cache was missed may have finished since
+        Map<String, InfluxDbInfoForRollupLevel> info = influxDbInfoCache.asMap().get(key);
+        if(info != null) return info;
+
+        long startNanos = System.nanoTime();
+        try {
+            info = loadInfluxDbInfo(key);
+        } catch(RuntimeException e) {
+            routeCacheStats.recordLoadFailure(System.nanoTime() - startNanos);
+            throw e;
+        }
+        routeCacheStats.recordLoadSuccess(System.nanoTime() - startNanos);
+
+        influxDbInfoCache.put(key, info);
+        return info;
+    }
+
+    /**
+     * Load the path information of given tenant and measurement from routing service, creating
+     * databases and retention policies that don't exist yet. It's called once per cache miss, however many
+     * threads missed, and by the cache when refreshing a route.
+     * @param key
+     * @return
+     */
+    private Map<String, InfluxDbInfoForRollupLevel> loadInfluxDbInfo(TenantIdAndMeasurement key) {
         // Get tenant routes (each rollup level and their corresponding path, dbname, ret-policy info)
         // from routing service
-        TenantRoutes tenantRoutes = getTenantRoutes(tenantId, measurement);
+        return toInfluxDbInfo(getTenantRoutes(key.getTenantId(), key.getMeasurement()));
+    }
+
+    /**
+     * Resolve the routes of all given tenant and measurement pairs that are not cached yet, with one
+     * lookup for all of them. It's meant to be called before writing the payloads of a batch, so that
+     * its cold routes are not looked up one after the other. Pairs whose route can't be looked up in
+     * bulk are left to be looked up on their own when written.
+     * @param tenantIdAndMeasurements
+     */
+    public void prefetchInfluxDbInfo(Collection<TenantIdAndMeasurement> tenantIdAndMeasurements) {
+        List<TenantIdAndMeasurement> misses = new ArrayList<>();
+
+        for(TenantIdAndMeasurement key : tenantIdAndMeasurements) {
+            if(!influxDbInfoCache.asMap().containsKey(key)) misses.add(key);
+        }
 
+        if(misses.isEmpty()) return;
+
+        Map<TenantIdAndMeasurement, TenantRoutes> routes;
+
+        long startNanos = System.nanoTime();
+        try {
+            routes = routeProvider.getRoutes(misses, restTemplate);
+        } catch(RuntimeException e) {
+            routeCacheStats.recordLoadFailure(System.nanoTime() - startNanos);
+            log.warn("Prefetching [{}] routes failed, looking them up on their own", misses.size(), e);
+            return;
+        }
+
+        // Each route loaded takes its share of the lookup
+        long lookupNanosPerRoute = routes.isEmpty() ? 0 : (System.nanoTime() - startNanos) / routes.size();
+
+        routes.forEach((key, tenantRoutes) -> routeLoads.execute(key, k -> {
+            Map<String, InfluxDbInfoForRollupLevel> info = influxDbInfoCache.asMap().get(k);
+            if(info != null) return info;
+
+            long routeStartNanos = System.nanoTime();
+            try {
+                info = toInfluxDbInfo(tenantRoutes);
+            } catch(RuntimeException e) {
+                routeCacheStats.recordLoadFailure(lookupNanosPerRoute + System.nanoTime() - routeStartNanos);
+                throw e;
+            }
+            routeCacheStats.recordLoadSuccess(lookupNanosPerRoute + System.nanoTime() - routeStartNanos);
+
+            influxDbInfoCache.put(k, info);
+            return info;
+        }));
+    }
+
+    /**
+     * Get the path information of every rollup level of given routes, creating databases and
+     * retention policies that don't exist yet
+     * @param tenantRoutes
+     * @return
+     */
+    private Map<String, InfluxDbInfoForRollupLevel> toInfluxDbInfo(TenantRoutes tenantRoutes) {
         Map<String, InfluxDbInfoForRollupLevel> influxDbInfoForTenant = new HashMap<>();
 
         // Since request for this tenantId and measurement came first time, we need to make sure
@@ -127,156 +270,134 @@ public class InfluxDBHelper {
         for(Map.Entry<String, TenantRoutes.TenantRoute> entry : tenantRoutes.getRoutes().entrySet()) {
             String rollupLevel = entry.getKey();
             TenantRoutes.TenantRoute route = entry.getValue();
-            String databaseName = route.getDatabaseName();
-            String path = route.getPath();
-            String retPolicyName = route.getRetentionPolicyName();
-            String retPolicy = route.getRetentionPolicy();
-
-            if(databaseExists(databaseName, path)) {
-                // Check if retention policy exist
-                if(retentionPolicyExists(retPolicyName, databaseName, path)) {
-                    log.debug("Database {} and retention policy {} already exist", databaseName, retPolicyName);
-                    influxDbInfoForTenant.put(rollupLevel, new InfluxDbInfoForRollupLevel(
-                            path, databaseName, retPolicyName, retPolicy
-                    ));
-                }
-                else { // Create retention policy
-                    boolean isDefault = false;
-                    if(rollupLevel.equalsIgnoreCase("full")) isDefault = true;
-
-                    if(createRetentionPolicy(databaseName, path, retPolicy, retPolicyName, isDefault)) {
-                        log.info("Created new retention policy named [{}] for database [{}] in instance [{}]",
-                                retPolicyName, databaseName, path);
-
-                        influxDbInfoForTenant.put(rollupLevel, new InfluxDbInfoForRollupLevel(
-                                path, databaseName, retPolicyName, retPolicy
-                        ));
-                    }
-                    else {
-                        log.error("Failed to create retention policy {} on database {} in instance [{}]",
-                                retPolicyName, databaseName, path);
-                    }
-                }
-            }
-            else {
-                if(createDatabase(databaseName, path, retPolicy, retPolicyName)) {
-                    log.info("Created new database [{}] with retention policy name [{}] on instance [{}]",
-                            databaseName, retPolicyName, path);
-
-                    influxDbInfoForTenant.put(rollupLevel, new InfluxDbInfoForRollupLevel(
-                            path, databaseName, retPolicyName, retPolicy
-                    ));
-                }
-                else {
-                    log.error("Failed to create database [{}] with retention policy name [{}] on instance [{}]",
-                            databaseName, retPolicyName, path);
-                }
+            InfluxDbInfoForRollupLevel influxDbInfo = new InfluxDbInfoForRollupLevel(
+                    route.getPath(), route.getDatabaseName(), route.getRetentionPolicyName(),
+                    route.getRetentionPolicy());
+            boolean isDefault = rollupLevel.equalsIgnoreCase("full");
+
+            InfluxDBProvisioner provisioner = this.provisioner;
+
+            if(provisioner == null) {
+                if(provision(influxDbInfo, isDefault)) influxDbInfoForTenant.put(rollupLevel, influxDbInfo);
+                continue;
             }
-        }
 
-        influxDbInfoCache.put(tenantIdAndMeasurementKey, influxDbInfoForTenant);
+            // Only the ones missing are created in the background, with payloads held meanwhile. The catalog
+            // queries an instance once for all of its databases, so the rest are written right away.
+            if(!existsInCatalog(influxDbInfo)) provisioner.provision(influxDbInfo, isDefault);
+
+            influxDbInfoForTenant.put(rollupLevel, influxDbInfo);
+        }
 
         return influxDbInfoForTenant;
     }
 
     /**
-     * Get tenant routes for given tenantId and measurement from routing service
-     * @param tenantId
-     * @param measurement
-     * @return
+     * Check whether the database and retention policy of given path information exist
+     * @param influxDbInfo
+     * @return false if they don't, or the instance couldn't be asked
      */
-    private TenantRoutes getTenantRoutes(String tenantId, String measurement) {
-        TenantRoutes tenantRoutes = null;
+    private boolean existsInCatalog(InfluxDbInfoForRollupLevel influxDbInfo) {
+        String databaseName = influxDbInfo.getDatabaseName();
+        String path = influxDbInfo.getPath();
 
         try {
-          tenantRoutes = routeProvider.getRoute(tenantId, measurement, restTemplate);
+            return catalog.databaseExists(databaseName, path)
+                    && catalog.retentionPolicyExists(influxDbInfo.getRetentionPolicyName(), databaseName, path);
         } catch(RuntimeException e) {
-          String errMsg = String.format(
-              "Failed to get routes for tenantId [%s] and measurement [%s]", tenantId, measurement);
-          log.error(errMsg, e);
-          throw new ExternalSystemException(e);
+            log.warn("Checking database [{}] on instance [{}] failed, leaving it to the provisioner",
+                    databaseName, path, e);
+            return false;
         }
-        if(tenantRoutes == null) throw new RouteNotFoundException();
-        return tenantRoutes;
     }
 
-    private boolean databaseExists(final String databaseName, final String baseUrl) {
-        String queryString = "SHOW DATABASES";
+    /**
+     * Create the database and retention policy of given path information, unless they exist already
+     * @param influxDbInfo
+     * @param isDefault whether the retention policy is the default one of the database
+     * @return true if both of them exist
+     */
+    boolean provision(InfluxDbInfoForRollupLevel influxDbInfo, boolean isDefault) {
+        String databaseName = influxDbInfo.getDatabaseName();
+        String path = influxDbInfo.getPath();
+        String retPolicyName = influxDbInfo.getRetentionPolicyName();
+        String retPolicy = influxDbInfo.getRetentionPolicy();
+
+        if(!catalog.databaseExists(databaseName, path)) {
+            if(createDatabase(databaseName, path, retPolicy, retPolicyName)) {
+                log.info("Created new database [{}] with retention policy name [{}] on instance [{}]",
+                        databaseName, retPolicyName, path);
+                return true;
+            }
 
-        InfluxDB influxDB = getInfluxDBClient(baseUrl);
+            // Someone else may have created it meanwhile, with other retention policies
+            catalog.expire(path);
 
-        QueryResult queryResult = influxDB.query(new Query(queryString, ""));
+            if(!catalog.databaseExists(databaseName, path)) {
+                log.error("Failed to create database [{}] with retention policy name [{}] on instance [{}]",
+                        databaseName, retPolicyName, path);
+                return false;
+            }
+        }
 
-        if(queryResult.hasError()) {
-          log.error("Query result got error for query [{}]", queryString);
-          throw new QueryFailedException();
+        // Check if retention policy exist
+        if(catalog.retentionPolicyExists(retPolicyName, databaseName, path)) {
+            log.debug("Database {} and retention policy {} already exist", databaseName, retPolicyName);
+            return true;
         }
 
-        try {
-          // Following "if" statement is quite ugly. We should refactor it sometime. Readability is bad.
-          // So, here is what's going on:
-          // We need to make sure that query result has some value in it's series.
-          // Earlier I was assuming that even if there is no "value" in a series, it will still have that key.
-          // I was wrong. This is coming from external library where we don't have control.
-          // So, to be more defensive on the coding, I added null checks at every level.
-          // For example,
-          //      - before we access any result, we should check that getResults() doesn't return null
-          //      - before we access any series, we should check that getSeries() doesn't return null
-          //      - before we access any value, we should check that getValues() doesn't return null
-          // As this result is coming from external library, it's always a good idea to make these checks before
-          // accepting that in our code.
-          if (queryResult != null
-              && queryResult.getResults() != null
-              && queryResult.getResults().size() > 0
-              && queryResult.getResults().get(0).getSeries() != null
-              && queryResult.getResults().get(0).getSeries().size() > 0
-              && queryResult.getResults().get(0).getSeries().get(0).getValues() != null
-              && queryResult.getResults().get(0).getSeries().get(0).getValues().size() > 0
-          ) {
-            List<String> databases = new ArrayList<>();
-            for (List<Object> strings : queryResult.getResults().get(0).getSeries().get(0)
-                .getValues()) {
-              for (Object database : strings) {
-                databases.add(database.toString());
-              }
-            }
-            return databases.contains(databaseName);
-          }
-        } catch(Exception e) {
-          throw new QueryFailedException("Unable to query for database existence", e);
+        // Create retention policy
+        if(createRetentionPolicy(databaseName, path, retPolicy, retPolicyName, isDefault)) {
+            log.info("Created new retention policy named [{}] for database [{}] in instance [{}]",
+                    retPolicyName, databaseName, path);
+            return true;
         }
 
+        catalog.expire(path);
+
+        if(catalog.retentionPolicyExists(retPolicyName, databaseName, path)) return true;
+
+        log.error("Failed to create retention policy {} on database {} in instance [{}]",
+                retPolicyName, databaseName, path);
         return false;
     }
 
-    private boolean retentionPolicyExists(final String rp, final String databaseName, final String baseUrl) {
-        String queryString = String.format("SHOW RETENTION POLICIES ON \"%s\"", databaseName);
+    private static int weigh(TenantIdAndMeasurement key, Map<String, InfluxDbInfoForRollupLevel> info) {
+        // Strings are counted as 2 bytes a char
+        int chars = key.getTenantId().length() + key.getMeasurement().length();
 
-        InfluxDB influxDB = getInfluxDBClient(baseUrl);
+        for(Map.Entry<String, InfluxDbInfoForRollupLevel> entry : info.entrySet()) {
+            InfluxDbInfoForRollupLevel route = entry.getValue();
+            chars += length(entry.getKey()) + length(route.getPath()) + length(route.getDatabaseName())
+                    + length(route.getRetentionPolicyName()) + length(route.getRetentionPolicy());
+        }
 
-        QueryResult queryResult = influxDB.query(new Query(queryString, databaseName));
+        return ROUTE_OVERHEAD_BYTES * (info.size() + 1) + 2 * chars;
+    }
 
-        if(queryResult.hasError()) {
-            log.error("Query result got error for query [{}]", queryString);
-            return false;
-        }
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
 
-        if (queryResult != null
-            && queryResult.getResults().size() > 0
-            && queryResult.getResults().get(0).getSeries().size() > 0
-            && queryResult.getResults().get(0).getSeries().get(0).getValues().size() > 0
-        ) {
-          List<String> retPolicies = new ArrayList<>();
-          for (List<Object> strings : queryResult.getResults().get(0).getSeries().get(0)
-              .getValues()) {
-            retPolicies.add(strings.get(0).toString());
-          }
-
-          if (retPolicies.contains(rp))
-            return true;
-        }
+    /**
+     * Get tenant routes for given tenantId and measurement from routing service
+     * @param tenantId
+     * @param measurement
+     * @return
+     */
+    private TenantRoutes getTenantRoutes(String tenantId, String measurement) {
+        TenantRoutes tenantRoutes = null;
 
-        return false;
+        try {
+          tenantRoutes = routeProvider.getRoute(tenantId, measurement, restTemplate);
+        } catch(RuntimeException e) {
+          String errMsg = String.format(
+              "Failed to get routes for tenantId [%s] and measurement [%s]", tenantId, measurement);
+          log.error(errMsg, e);
+          throw new ExternalSystemException(e);
+        }
+        if(tenantRoutes == null) throw new RouteNotFoundException();
+        return tenantRoutes;
     }
 
     private boolean createDatabase(final String databaseName, final String baseUrl,
@@ -287,7 +408,10 @@ public class InfluxDBHelper {
         InfluxDB influxDB = getInfluxDBClient(baseUrl);
 
         QueryResult result = influxDB.query(new Query(queryString, ""));
-        return !result.hasError();
+        if(result.hasError()) return false;
+
+        catalog.databaseCreated(databaseName, retPolicyName, baseUrl);
+        return true;
     }
 
     /**
@@ -310,13 +434,23 @@ public class InfluxDBHelper {
 
         InfluxDB influxDB = getInfluxDBClient(baseUrl);
         QueryResult result = influxDB.query(new Query(queryString, databaseName));
+        if(result.hasError()) return false;
 
-        return !result.hasError();
+        catalog.retentionPolicyCreated(retPolicyName, databaseName, baseUrl);
+        return true;
     }
 
-    public void ingestToInfluxDb(
-            String payload, String tenantId, String measurement, String rollupLevel)
-        throws IngestFailedException {
+    /**
+     * Get the InfluxDB instance, database and retention policy that given tenant and measurement is written into
+     * for given rollup level. Databases and retention policies are created the first time a tenant and
+     * measurement is seen.
+     * @param tenantId
+     * @param measurement
+     * @param rollupLevel
+     * @return path information, or null if there is no route for given rollup level
+     */
+    public InfluxDbInfoForRollupLevel getInfluxDbInfoForRollupLevel(
+            String tenantId, String measurement, String rollupLevel) {
 
         long startTimeGetInfluxDBInfo = System.currentTimeMillis();
 
@@ -325,16 +459,83 @@ public class InfluxDBHelper {
 
         getInfluxDBInfoTimer.record(System.currentTimeMillis() - startTimeGetInfluxDBInfo, TimeUnit.MILLISECONDS);
 
-        InfluxDbInfoForRollupLevel influxDbInfoForRollupLevel = influxDbInfoForTenant.get(rollupLevel);
+        return influxDbInfoForTenant.get(rollupLevel);
+    }
+
+    public void ingestToInfluxDb(
+            String payload, String tenantId, String measurement, String rollupLevel)
+        throws IngestFailedException {
+
+        InfluxDbInfoForRollupLevel influxDbInfoForRollupLevel =
+                getInfluxDbInfoForRollupLevel(tenantId, measurement, rollupLevel);
 
         if(influxDbInfoForRollupLevel == null) return;
 
+        ingestToInfluxDb(payload, influxDbInfoForRollupLevel);
+    }
+
+    /**
+     * Write the payload into given InfluxDB instance, database and retention policy. While they are being
+     * created in the background, the payload is held and this waits until it's written.
+     * @param payload line-protocol lines separated by "\n"
+     * @param influxDbInfoForRollupLevel
+     * @throws IngestFailedException
+     */
+    public void ingestToInfluxDb(String payload, InfluxDbInfoForRollupLevel influxDbInfoForRollupLevel)
+        throws IngestFailedException {
+
+        CompletableFuture<Void> held = holdWhileProvisioning(payload, influxDbInfoForRollupLevel);
+
+        if(held != null) awaitHeld(held);
+        else writeToInfluxDb(payload, influxDbInfoForRollupLevel);
+    }
+
+    /**
+     * Hold the payload if the database and retention policy it's going into are being created in the background.
+     * It's written by the provisioner once they are created.
+     * @param payload
+     * @param influxDbInfoForRollupLevel
+     * @return future completed once the payload is written, or null if the payload is not held
+     * @throws IngestFailedException if there is no room left to hold the payload
+     */
+    public CompletableFuture<Void> holdWhileProvisioning(
+            String payload, InfluxDbInfoForRollupLevel influxDbInfoForRollupLevel) throws IngestFailedException {
+
+        InfluxDBProvisioner provisioner = this.provisioner;
+        return provisioner == null ? null : provisioner.hold(payload, influxDbInfoForRollupLevel);
+    }
+
+    /**
+     * Wait until a held payload is written, for as long as the provisioner lets payloads wait
+     * @param held future given by holdWhileProvisioning()
+     * @throws IngestFailedException if it couldn't be written in time
+     */
+    public void awaitHeld(CompletableFuture<Void> held) throws IngestFailedException {
+        provisioner.awaitWritten(held);
+    }
+
+    /**
+     * Write the payload into given InfluxDB instance, database and retention policy, without holding it
+     * @param payload
+     * @param influxDbInfoForRollupLevel
+     * @throws IngestFailedException
+     */
+    void writeToInfluxDb(String payload, InfluxDbInfoForRollupLevel influxDbInfoForRollupLevel)
+        throws IngestFailedException {
+
         String baseUrl = influxDbInfoForRollupLevel.getPath();
         String databaseName = influxDbInfoForRollupLevel.getDatabaseName();
         String retPolicyName = influxDbInfoForRollupLevel.getRetentionPolicyName();
 
         InfluxDB influxDB = getInfluxDBClient(baseUrl);
 
+        try {
+            writeLimiter.acquire(baseUrl);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IngestFailedException("Interrupted while waiting to write into " + baseUrl, e);
+        }
+
         long startTime = System.currentTimeMillis();
         try {
             // Enable or disable using
@@ -348,6 +549,8 @@ public class InfluxDBHelper {
           log.error("Write failed for the payload. baseURL: [{}], databaseName: [{}], ret-policy: [{}]",
               baseUrl, databaseName, retPolicyName);
           throw new IngestFailedException(e);
+        } finally {
+          writeLimiter.release(baseUrl);
         }
 
       influxDBWriteTimer.record(System.currentTimeMillis() - startTime, TimeUnit.MILLISECONDS);
@@ -0,0 +1,254 @@
+package com.rackspacecloud.metrics.ingestionservice.influxdb;
+
+import com.rackspacecloud.metrics.ingestionservice.exceptions.IngestFailedException;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBHelper.InfluxDbInfoForRollupLevel;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.LinePayload;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Creates databases and retention policies in the background, so that a new tenant's route doesn't stall the
+ * listener thread and the rest of its batch while they are created.
+ *
+ * Failed attempts are retried with a backoff doubling from initialBackoffMs up to maxBackoffMs, maxAttempts
+ * times in all. Payloads for a destination being provisioned are held, up to maxHeldBytes for all destinations,
+ * and written once it's provisioned. Whoever holds a payload gets a future that completes once it's written,
+ * and fails if it can't be: when provisioning gives up, the write fails or the provisioner is shut down.
+ * Batches are only committed once their held payloads are written, so failed ones are consumed again.
+ * They wait for them at most maxHoldWaitMs, payloads not written by then are dropped and fail.
+ */
+@Slf4j
+public class InfluxDBProvisioner {
+    private final InfluxDBHelper influxDBHelper;
+    private final ScheduledExecutorService executor;
+    private final int maxAttempts;
+    private final long initialBackoffMs;
+    private final long maxBackoffMs;
+    private final long maxHeldBytes;
+    private final long maxHoldWaitMs;
+
+    // Destinations being provisioned
+    private final ConcurrentMap<InfluxDbInfoForRollupLevel, Provisioning> provisionings = new ConcurrentHashMap<>();
+    private final AtomicLong heldBytes = new AtomicLong();
+    private final Counter failedPayloads;
+
+    public InfluxDBProvisioner(InfluxDBHelper influxDBHelper, MeterRegistry registry, int threads, int maxAttempts,
+                               long initialBackoffMs, long maxBackoffMs, long maxHeldBytes, long maxHoldWaitMs) {
+        this.influxDBHelper = influxDBHelper;
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.initialBackoffMs = initialBackoffMs;
+        this.maxBackoffMs = maxBackoffMs;
+        this.maxHeldBytes = maxHeldBytes;
+        this.maxHoldWaitMs = maxHoldWaitMs;
+        this.executor = Executors.newScheduledThreadPool(
+                Math.max(1, threads), new CustomizableThreadFactory("influxdb-provisioner-"));
+
+        this.failedPayloads = registry.counter("ingestion.provisioning.payloads.failed");
+        registry.gauge("ingestion.provisioning.held.bytes", heldBytes);
+        registry.gaugeMapSize("ingestion.provisioning.pending", Tags.empty(), provisionings);
+    }
+
+    private static final class Provisioning {
+        private final InfluxDbInfoForRollupLevel destination;
+        private final boolean isDefault;
+        private final List<HeldPayload> heldPayloads = new ArrayList<>();
+        private int attempts;
+
+        // Set once provisioning is over, payloads are not held anymore after that
+        private boolean done;
+
+        Provisioning(InfluxDbInfoForRollupLevel destination, boolean isDefault) {
+            this.destination = destination;
+            this.isDefault = isDefault;
+        }
+    }
+
+    private static final class HeldPayload {
+        private final String payload;
+        private final long bytes;
+        private final CompletableFuture<Void> written = new CompletableFuture<>();
+
+        HeldPayload(String payload, long bytes) {
+            this.payload = payload;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Start creating the database and retention policy of given destination, unless it's being done already
+     * @param destination
+     * @param isDefault whether the retention policy is the default one of the database
+     */
+    public void provision(InfluxDbInfoForRollupLevel destination, boolean isDefault) {
+        Provisioning provisioning = new Provisioning(destination, isDefault);
+        if(provisionings.putIfAbsent(destination, provisioning) != null) return;
+
+        try {
+            executor.execute(() -> attempt(provisioning));
+        } catch(RejectedExecutionException e) {
+            provisionings.remove(destination, provisioning);
+        }
+    }
+
+    /**
+     * Check whether given destination is being provisioned
+     * @param destination
+     * @return
+     */
+    public boolean isProvisioning(InfluxDbInfoForRollupLevel destination) {
+        return provisionings.containsKey(destination);
+    }
+
+    /**
+     * Hold given payload until its destination is provisioned
+     * @param payload
+     * @param destination
+     * @return future completed once the payload is written, or null if the destination is not being provisioned
+     * @throws IngestFailedException if there is no room left to hold the payload
+     */
+    public CompletableFuture<Void> hold(String payload, InfluxDbInfoForRollupLevel destination)
+            throws IngestFailedException {
+        Provisioning provisioning = provisionings.get(destination);
+        if(provisioning == null) return null;
+
+        HeldPayload heldPayload = new HeldPayload(payload, LinePayload.utf8Length(payload));
+
+        synchronized(provisioning) {
+            if(provisioning.done) return null;
+
+            if(heldBytes.addAndGet(heldPayload.bytes) > maxHeldBytes) {
+                heldBytes.addAndGet(-heldPayload.bytes);
+                throw new IngestFailedException(String.format(
+                        "No room to hold payload until database [%s] and retention policy [%s] are created",
+                        destination.getDatabaseName(), destination.getRetentionPolicyName()));
+            }
+
+            provisioning.heldPayloads.add(heldPayload);
+            return heldPayload.written;
+        }
+    }
+
+    /**
+     * Wait until a held payload is written, at most maxHoldWaitMs. A payload not written by then is dropped.
+     * @param written future given by hold()
+     * @throws IngestFailedException if it couldn't be written in time
+     */
+    public void awaitWritten(CompletableFuture<Void> written) throws IngestFailedException {
+        try {
+            written.get(maxHoldWaitMs, TimeUnit.MILLISECONDS);
+        } catch(TimeoutException e) {
+            // Its batch is consumed again, so it's not written once provisioned
+            if(written.cancel(false)) failedPayloads.increment();
+            throw new IngestFailedException(String.format(
+                    "Held payload not written within [%d] ms, its database and retention policy are still being created",
+                    maxHoldWaitMs));
+        } catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof IngestFailedException) throw (IngestFailedException) cause;
+            if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new IngestFailedException(cause);
+        } catch(CancellationException e) {
+            throw new IngestFailedException("Held payload was dropped before it was written");
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IngestFailedException("Interrupted while waiting for held payload to be written", e);
+        }
+    }
+
+    private void attempt(Provisioning provisioning) {
+        InfluxDbInfoForRollupLevel destination = provisioning.destination;
+        provisioning.attempts++;
+
+        try {
+            if(influxDBHelper.provision(destination, provisioning.isDefault)) {
+                finish(provisioning, true);
+                return;
+            }
+        } catch(RuntimeException e) {
+            log.warn("Provisioning database [{}] and retention policy [{}] on instance [{}] failed",
+                    destination.getDatabaseName(), destination.getRetentionPolicyName(), destination.getPath(), e);
+        }
+
+        if(provisioning.attempts >= maxAttempts) {
+            log.error("Gave up provisioning database [{}] and retention policy [{}] on instance [{}] after [{}] attempts",
+                    destination.getDatabaseName(), destination.getRetentionPolicyName(), destination.getPath(),
+                    provisioning.attempts);
+            finish(provisioning, false);
+            return;
+        }
+
+        long backoffMs = Math.min(maxBackoffMs, initialBackoffMs << Math.min(provisioning.attempts - 1, 30));
+
+        try {
+            executor.schedule(() -> attempt(provisioning), backoffMs, TimeUnit.MILLISECONDS);
+        } catch(RejectedExecutionException e) {
+            finish(provisioning, false);
+        }
+    }
+
+    private void finish(Provisioning provisioning, boolean provisioned) {
+        InfluxDbInfoForRollupLevel destination = provisioning.destination;
+        List<HeldPayload> heldPayloads;
+
+        synchronized(provisioning) {
+            if(provisioning.done) return;
+
+            provisioning.done = true;
+            heldPayloads = provisioning.heldPayloads;
+        }
+
+        // Payloads arriving from now on are written as they come
+        provisionings.remove(destination, provisioning);
+
+        for(HeldPayload heldPayload : heldPayloads) {
+            heldBytes.addAndGet(-heldPayload.bytes);
+
+            // Dropped by awaitWritten() already
+            if(heldPayload.written.isCancelled()) continue;
+
+            if(!provisioned) {
+                failedPayloads.increment();
+                heldPayload.written.completeExceptionally(new IngestFailedException(String.format(
+                        "Database [%s] and retention policy [%s] on instance [%s] couldn't be created",
+                        destination.getDatabaseName(), destination.getRetentionPolicyName(), destination.getPath())));
+                continue;
+            }
+
+            try {
+                influxDBHelper.writeToInfluxDb(heldPayload.payload, destination);
+                heldPayload.written.complete(null);
+            } catch(Exception e) {
+                failedPayloads.increment();
+                heldPayload.written.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Stop provisioning. Payloads still held fail to be written, so that their batches are not committed.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+
+        for(Provisioning provisioning : provisionings.values()) {
+            finish(provisioning, false);
+        }
+    }
+}
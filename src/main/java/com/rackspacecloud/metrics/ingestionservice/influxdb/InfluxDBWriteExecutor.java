@@ -0,0 +1,315 @@
+package com.rackspacecloud.metrics.ingestionservice.influxdb;
+
+import com.rackspacecloud.metrics.ingestionservice.exceptions.IngestFailedException;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBHelper.InfluxDbInfoForRollupLevel;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.LinePayload;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantIdAndMeasurement;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes the payloads of a batch into InfluxDB in parallel, instead of one after another on the listener
+ * thread, and waits for all of them to finish.
+ *
+ * Routes of all tenants and measurements are resolved first. Payloads going to the same instance, database and
+ * retention policy are then merged into one write, which is only split once it reaches maxPayloadLines lines
+ * or maxPayloadBytes bytes. A batch with thousands of small tenants turns into a handful of HTTP requests.
+ *
+ * Pool and its queue are bounded. Once both are full, the listener thread writes the payload itself, which
+ * slows down consumption until writes catch up. Concurrent writes to each InfluxDB instance are limited by
+ * InfluxDBHelper's InstanceWriteLimiter.
+ *
+ * Payloads going into a database or retention policy that's being created are held by InfluxDBProvisioner,
+ * and waited for once the other payloads are written.
+ */
+@Slf4j
+public class InfluxDBWriteExecutor {
+    private final InfluxDBHelper influxDBHelper;
+    private final ThreadPoolExecutor executor;
+    private final int maxPayloadLines;
+    private final int maxPayloadBytes;
+
+    public InfluxDBWriteExecutor(InfluxDBHelper influxDBHelper, int threads, int queueCapacity,
+                                 int maxPayloadLines, int maxPayloadBytes) {
+        this.influxDBHelper = influxDBHelper;
+        this.maxPayloadLines = maxPayloadLines > 0 ? maxPayloadLines : Integer.MAX_VALUE;
+        this.maxPayloadBytes = maxPayloadBytes > 0 ? maxPayloadBytes : Integer.MAX_VALUE;
+        this.executor = new ThreadPoolExecutor(
+                threads, threads, 60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queueCapacity)),
+                new CustomizableThreadFactory("influxdb-writer-"),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Write every payload into InfluxDB and wait until all of the writes are done
+     * @param payloads payloads by tenant and measurement
+     * @param rollupLevel
+     * @return exception of every failed write by tenant and measurement, empty if all of the writes succeeded
+     */
+    public Map<TenantIdAndMeasurement, Exception> writeAll(
+            Map<TenantIdAndMeasurement, LinePayload> payloads, String rollupLevel) {
+
+        Map<TenantIdAndMeasurement, Exception> failures = new LinkedHashMap<>();
+
+        // Routes that are not cached are looked up together rather than one payload after the other
+        influxDBHelper.prefetchInfluxDbInfo(payloads.keySet());
+
+        List<DestinationPayload> destinationPayloads = coalesce(payloads, rollupLevel, failures);
+
+        try {
+            write(destinationPayloads, failures);
+        }
+        finally {
+            destinationPayloads.forEach(destinationPayload -> destinationPayload.payload.release());
+        }
+
+        log.debug("Wrote [{}] payloads in [{}] requests for rollup level [{}]",
+                payloads.size(), destinationPayloads.size(), rollupLevel);
+
+        return failures;
+    }
+
+    /**
+     * Resolve the route of every payload and merge the payloads with the same route
+     */
+    private List<DestinationPayload> coalesce(
+            Map<TenantIdAndMeasurement, LinePayload> payloads, String rollupLevel,
+            Map<TenantIdAndMeasurement, Exception> failures) {
+
+        List<DestinationPayload> destinationPayloads = new ArrayList<>();
+
+        // Payload of every destination that's still being filled
+        Map<InfluxDbInfoForRollupLevel, DestinationPayload> openPayloads = new HashMap<>();
+
+        for(Map.Entry<TenantIdAndMeasurement, LinePayload> entry : payloads.entrySet()) {
+            TenantIdAndMeasurement tenantIdAndMeasurement = entry.getKey();
+            LinePayload linePayload = entry.getValue();
+
+            InfluxDbInfoForRollupLevel destination;
+            try {
+                destination = influxDBHelper.getInfluxDbInfoForRollupLevel(
+                        tenantIdAndMeasurement.getTenantId(), tenantIdAndMeasurement.getMeasurement(), rollupLevel);
+            }
+            catch (RuntimeException e) {
+                failures.put(tenantIdAndMeasurement, e);
+                continue;
+            }
+
+            // Same as ingestToInfluxDb, nothing is written when there is no route for the rollup level
+            if(destination == null || linePayload.isEmpty()) continue;
+
+            if(linePayload.getLineCount() <= maxPayloadLines && linePayload.getByteLength() <= maxPayloadBytes) {
+                DestinationPayload destinationPayload = openPayloads.get(destination);
+
+                if(destinationPayload == null || !destinationPayload.fits(
+                        linePayload.getLineCount(), linePayload.getByteLength())) {
+                    destinationPayload = newDestinationPayload(destination, destinationPayloads, openPayloads);
+                }
+
+                destinationPayload.add(tenantIdAndMeasurement, linePayload);
+                continue;
+            }
+
+            // Payload alone is over the limits, so its lines are spread over as many writes as needed
+            linePayload.forEachLine(line -> {
+                DestinationPayload destinationPayload = openPayloads.get(destination);
+
+                if(destinationPayload == null || !destinationPayload.fits(1, LinePayload.utf8Length(line))) {
+                    destinationPayload = newDestinationPayload(destination, destinationPayloads, openPayloads);
+                }
+
+                destinationPayload.addLine(tenantIdAndMeasurement, line);
+            });
+        }
+
+        return destinationPayloads;
+    }
+
+    private DestinationPayload newDestinationPayload(
+            InfluxDbInfoForRollupLevel destination, List<DestinationPayload> destinationPayloads,
+            Map<InfluxDbInfoForRollupLevel, DestinationPayload> openPayloads) {
+
+        DestinationPayload destinationPayload = new DestinationPayload(destination, maxPayloadLines, maxPayloadBytes);
+        destinationPayloads.add(destinationPayload);
+        openPayloads.put(destination, destinationPayload);
+        return destinationPayload;
+    }
+
+    private void write(List<DestinationPayload> destinationPayloads,
+                       Map<TenantIdAndMeasurement, Exception> failures) {
+
+        // Payloads going into databases and retention policies that are being created are held until they exist
+        List<DestinationPayload> writablePayloads = new ArrayList<>(destinationPayloads.size());
+        List<DestinationPayload> heldPayloads = new ArrayList<>();
+        List<CompletableFuture<Void>> heldWrites = new ArrayList<>();
+
+        for(DestinationPayload destinationPayload : destinationPayloads) {
+            try {
+                CompletableFuture<Void> held = influxDBHelper.holdWhileProvisioning(
+                        destinationPayload.payload.getPayload(), destinationPayload.destination);
+
+                if(held == null) {
+                    writablePayloads.add(destinationPayload);
+                }
+                else {
+                    heldPayloads.add(destinationPayload);
+                    heldWrites.add(held);
+                }
+            }
+            catch (IngestFailedException e) {
+                destinationPayload.addFailure(failures, e);
+            }
+        }
+
+        writeNow(writablePayloads, failures);
+
+        // Waited for last, so that they don't hold up the other writes. Batch is not committed until they
+        // are written, and consumed again if they can't be.
+        for(int i = 0; i < heldWrites.size(); i++) {
+            try {
+                influxDBHelper.awaitHeld(heldWrites.get(i));
+            }
+            catch (Exception e) {
+                heldPayloads.get(i).addFailure(failures, e);
+            }
+        }
+    }
+
+    private void writeNow(List<DestinationPayload> destinationPayloads,
+                          Map<TenantIdAndMeasurement, Exception> failures) {
+
+        if(destinationPayloads.isEmpty()) return;
+
+        // Nothing to gain from handing a single payload over to another thread
+        if(destinationPayloads.size() == 1) {
+            DestinationPayload destinationPayload = destinationPayloads.get(0);
+            try {
+                influxDBHelper.ingestToInfluxDb(
+                        destinationPayload.payload.getPayload(), destinationPayload.destination);
+            }
+            catch (Exception e) {
+                destinationPayload.addFailure(failures, e);
+            }
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<>(destinationPayloads.size());
+
+        for(DestinationPayload destinationPayload : destinationPayloads) {
+            // LinePayload is not thread-safe, so payload is rendered here
+            String payload = destinationPayload.payload.getPayload();
+            InfluxDbInfoForRollupLevel destination = destinationPayload.destination;
+
+            futures.add(executor.submit(() -> {
+                influxDBHelper.ingestToInfluxDb(payload, destination);
+                return null;
+            }));
+        }
+
+        boolean interrupted = false;
+
+        for(int i = 0; i < futures.size(); i++) {
+            Future<?> future = futures.get(i);
+            DestinationPayload destinationPayload = destinationPayloads.get(i);
+
+            try {
+                if(interrupted) {
+                    future.cancel(true);
+                }
+                future.get();
+            }
+            catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                destinationPayload.addFailure(failures, cause instanceof Exception ? (Exception) cause : e);
+            }
+            catch (CancellationException e) {
+                destinationPayload.addFailure(failures, new IngestFailedException("Write was cancelled", e));
+            }
+            catch (InterruptedException e) {
+                interrupted = true;
+                future.cancel(true);
+                destinationPayload.addFailure(
+                        failures, new IngestFailedException("Interrupted while waiting for write", e));
+            }
+        }
+
+        if(interrupted) Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Stop accepting writes and wait for the queued ones to finish
+     */
+    public void shutdown() {
+        executor.shutdown();
+
+        try {
+            if(!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                log.warn("InfluxDB writes didn't finish in time, [{}] left in the queue", executor.getQueue().size());
+                executor.shutdownNow();
+            }
+        }
+        catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Lines going into one write, along with the tenants and measurements they came from
+     */
+    private static final class DestinationPayload {
+        private final InfluxDbInfoForRollupLevel destination;
+        private final LinePayload payload = LinePayload.acquire();
+        private final Set<TenantIdAndMeasurement> tenantIdAndMeasurements = new LinkedHashSet<>();
+        private final int maxLines;
+        private final int maxBytes;
+
+        DestinationPayload(InfluxDbInfoForRollupLevel destination, int maxLines, int maxBytes) {
+            this.destination = destination;
+            this.maxLines = maxLines;
+            this.maxBytes = maxBytes;
+        }
+
+        /**
+         * Check if lines with given count and size can be added without going over the limits.
+         * An empty payload takes anything, so that a line over the limits is still written.
+         */
+        boolean fits(int lineCount, int byteLength) {
+            if(payload.isEmpty()) return true;
+
+            return (long) payload.getLineCount() + lineCount <= maxLines
+                    && (long) payload.getByteLength() + 1 + byteLength <= maxBytes;
+        }
+
+        void add(TenantIdAndMeasurement tenantIdAndMeasurement, LinePayload linePayload) {
+            payload.appendPayload(linePayload);
+            tenantIdAndMeasurements.add(tenantIdAndMeasurement);
+        }
+
+        void addLine(TenantIdAndMeasurement tenantIdAndMeasurement, CharSequence line) {
+            payload.appendLine(line);
+            tenantIdAndMeasurements.add(tenantIdAndMeasurement);
+        }
+
+        void addFailure(Map<TenantIdAndMeasurement, Exception> failures, Exception e) {
+            tenantIdAndMeasurements.forEach(key -> failures.putIfAbsent(key, e));
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package com.rackspacecloud.metrics.ingestionservice.influxdb;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Limits the number of concurrent writes to each InfluxDB instance, so that writing a batch in parallel
+ * doesn't overload any single instance.
+ * Limit of an instance comes from its URL in instanceLimits, or defaultLimit otherwise. A limit of 0 or less
+ * means writes to that instance are not limited.
+ */
+public class InstanceWriteLimiter {
+    public static final InstanceWriteLimiter UNLIMITED = new InstanceWriteLimiter(0, Collections.emptyMap());
+
+    private final int defaultLimit;
+    private final Map<String, Integer> instanceLimits;
+    private final ConcurrentMap<String, Semaphore> permits = new ConcurrentHashMap<>();
+
+    public InstanceWriteLimiter(int defaultLimit, Map<String, Integer> instanceLimits) {
+        this.defaultLimit = defaultLimit;
+        this.instanceLimits = instanceLimits == null ? Collections.emptyMap() : instanceLimits;
+    }
+
+    /**
+     * Wait until a write to given instance is allowed
+     * @param instanceUrl
+     * @throws InterruptedException
+     */
+    public void acquire(String instanceUrl) throws InterruptedException {
+        Semaphore semaphore = getPermits(instanceUrl);
+        if(semaphore != null) semaphore.acquire();
+    }
+
+    /**
+     * Release the permit taken by {@link #acquire(String)} once the write is done
+     * @param instanceUrl
+     */
+    public void release(String instanceUrl) {
+        Semaphore semaphore = getPermits(instanceUrl);
+        if(semaphore != null) semaphore.release();
+    }
+
+    /**
+     * Get the limit of concurrent writes for given instance
+     * @param instanceUrl
+     * @return limit, or 0 or less if writes are not limited
+     */
+    public int getLimit(String instanceUrl) {
+        return instanceLimits.getOrDefault(instanceUrl, defaultLimit);
+    }
+
+    private Semaphore getPermits(String instanceUrl) {
+        int limit = getLimit(instanceUrl);
+        if(limit <= 0) return null;
+
+        return permits.computeIfAbsent(instanceUrl, key -> new Semaphore(limit));
+    }
+}
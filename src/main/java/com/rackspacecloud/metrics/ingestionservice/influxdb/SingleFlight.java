@@ -0,0 +1,64 @@
+package com.rackspacecloud.metrics.ingestionservice.influxdb;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Function;
+
+/**
+ * Coalesces concurrent calls for the same key into one. The first caller of a key runs the call on its own
+ * thread; callers arriving while it runs wait for it and get its result, or the exception it threw.
+ * Once the call is done, the next caller of the key runs it again, so results are not cached in here.
+ * @param <K>
+ * @param <V>
+ */
+public class SingleFlight<K, V> {
+    private final ConcurrentMap<K, CompletableFuture<V>> flights = new ConcurrentHashMap<>();
+
+    /**
+     * Run given call for given key, unless one is running already, and return its result
+     * @param key
+     * @param call
+     * @return
+     */
+    public V execute(K key, Function<K, V> call) {
+        CompletableFuture<V> flight = new CompletableFuture<>();
+        CompletableFuture<V> running = flights.putIfAbsent(key, flight);
+
+        if(running != null) return await(running);
+
+        try {
+            V value = call.apply(key);
+            flight.complete(value);
+            return value;
+        }
+        catch (RuntimeException | Error e) {
+            flight.completeExceptionally(e);
+            throw e;
+        }
+        finally {
+            flights.remove(key, flight);
+        }
+    }
+
+    /**
+     * Get the number of keys with a call running
+     * @return
+     */
+    public int getInFlightCount() {
+        return flights.size();
+    }
+
+    private static <V> V await(CompletableFuture<V> flight) {
+        try {
+            return flight.join();
+        }
+        catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if(cause instanceof Error) throw (Error) cause;
+            throw e;
+        }
+    }
+}
@@ -1,8 +1,10 @@
 package com.rackspacecloud.metrics.ingestionservice.influxdb.config;
 
-import com.github.benmanes.caffeine.cache.Cache;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBHelper;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBProvisioner;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBWriteExecutor;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.InstanceWriteLimiter;
 import com.rackspacecloud.metrics.ingestionservice.influxdb.providers.DevTestTenantRouteProvider;
 import com.rackspacecloud.metrics.ingestionservice.influxdb.providers.LineProtocolBackupService;
 import com.rackspacecloud.metrics.ingestionservice.influxdb.providers.ProdTenantRouteProvider;
@@ -23,13 +25,21 @@ import org.springframework.context.annotation.Profile;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
 import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
 import org.springframework.web.client.RestTemplate;
 
+import javax.annotation.PreDestroy;
+
 import java.util.Collections;
-import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 @Configuration
-@EnableConfigurationProperties(RestTemplateConfigurationProperties.class)
+@EnableConfigurationProperties({
+        RestTemplateConfigurationProperties.class, InfluxDBWriteProperties.class, InfluxDBRouteCacheProperties.class,
+        InfluxDBProvisioningProperties.class})
 public class InfluxDBHelperConfiguration {
     @Value("${influxdb.number-of-points-in-a-write-batch}")
     private int numberOfPointsInAWriteBatch;
@@ -40,12 +50,24 @@ public class InfluxDBHelperConfiguration {
     @Value("${influxdb.jitter-duration}")
     private int jitterDuration;
 
-    @Value("${lru-cache-size}")
-    private int influxDbInfoLruCacheSize;
-
     @Autowired
     RestTemplateConfigurationProperties config;
 
+    @Autowired
+    InfluxDBWriteProperties writeProperties;
+
+    @Autowired
+    InfluxDBRouteCacheProperties routeCacheProperties;
+
+    @Autowired
+    InfluxDBProvisioningProperties provisioningProperties;
+
+    private ExecutorService routeRefreshExecutor;
+
+    private ScheduledExecutorService catalogRefreshExecutor;
+
+    private InfluxDBProvisioner provisioner;
+
     @Bean
     public PoolingHttpClientConnectionManager poolingHttpClientConnectionManager() {
         PoolingHttpClientConnectionManager poolingConnectionManager = new PoolingHttpClientConnectionManager();
@@ -94,7 +116,7 @@ public class InfluxDBHelperConfiguration {
         return new DevTestTenantRouteProvider();
     }
 
-    @Bean(name = "routeProvider")
+    @Bean(name = "routeProvider", destroyMethod = "shutdown")
     @Profile("production")
     public RouteProvider prodTenantRouteProvider() {
         return new ProdTenantRouteProvider();
@@ -113,7 +135,7 @@ public class InfluxDBHelperConfiguration {
             MeterRegistry registry,
             InfluxDBFactory influxDBFactory,
             LineProtocolBackupService backupService) {
-        return new InfluxDBHelper(
+        InfluxDBHelper influxDBHelper = new InfluxDBHelper(
                 restTemplate,
                 routeProvider,
                 registry,
@@ -122,11 +144,77 @@ public class InfluxDBHelperConfiguration {
                 numberOfPointsInAWriteBatch,
                 writeFlushDurationMsLimit,
                 jitterDuration,
-                cache());
+                routeCacheBuilder());
+
+        influxDBHelper.setWriteLimiter(new InstanceWriteLimiter(
+                writeProperties.getMaxConcurrentWritesPerInstance(),
+                writeProperties.getInstanceMaxConcurrentWrites()));
+
+        scheduleCatalogRefresh(influxDBHelper);
+
+        if(provisioningProperties.isAsync()) {
+            provisioner = new InfluxDBProvisioner(
+                    influxDBHelper, registry, provisioningProperties.getThreads(),
+                    provisioningProperties.getMaxAttempts(), provisioningProperties.getInitialBackoffMs(),
+                    provisioningProperties.getMaxBackoffMs(), provisioningProperties.getMaxHeldBytes(),
+                    provisioningProperties.getMaxHoldWaitMs());
+            influxDBHelper.setProvisioner(provisioner);
+        }
+
+        return influxDBHelper;
     }
 
-    @Bean
-    public Cache<String, Map<String, InfluxDBHelper.InfluxDbInfoForRollupLevel>> cache() {
-        return Caffeine.newBuilder().maximumSize(influxDbInfoLruCacheSize).build();
+    /**
+     * Executor merging the payloads of a batch by destination and writing them in parallel
+     * @param influxDBHelper
+     * @return
+     */
+    @Bean(destroyMethod = "shutdown")
+    @Autowired
+    public InfluxDBWriteExecutor influxDBWriteExecutor(InfluxDBHelper influxDBHelper) {
+        return new InfluxDBWriteExecutor(
+                influxDBHelper, writeProperties.getThreads(), writeProperties.getQueueCapacity(),
+                writeProperties.getMaxPayloadLines(), writeProperties.getMaxPayloadBytes());
+    }
+
+    /**
+     * Create the spec of the tenant route cache. Routes are refreshed on threads of their own, off the threads
+     * writing payloads. They are not a bean, an Executor bean would replace Spring Boot's task executor.
+     * @return
+     */
+    private Caffeine<Object, Object> routeCacheBuilder() {
+        routeRefreshExecutor = Executors.newFixedThreadPool(Math.max(1, routeCacheProperties.getRefreshThreads()),
+                new CustomizableThreadFactory("route-refresh-"));
+
+        return Caffeine.newBuilder()
+                .maximumWeight(routeCacheProperties.getMaxWeightBytes())
+                .refreshAfterWrite(routeCacheProperties.getRefreshAfterWriteMs(), TimeUnit.MILLISECONDS)
+                .expireAfterWrite(routeCacheProperties.getExpireAfterWriteMs(), TimeUnit.MILLISECONDS)
+                .executor(routeRefreshExecutor);
+    }
+
+    /**
+     * Reload the databases and retention policies known to exist in InfluxDB instances periodically, in the
+     * background
+     * @param influxDBHelper
+     */
+    private void scheduleCatalogRefresh(InfluxDBHelper influxDBHelper) {
+        long intervalMs = routeCacheProperties.getCatalogRefreshMs();
+        if(intervalMs <= 0) return;
+
+        catalogRefreshExecutor = Executors.newSingleThreadScheduledExecutor(
+                new CustomizableThreadFactory("catalog-refresh-"));
+        catalogRefreshExecutor.scheduleWithFixedDelay(
+                influxDBHelper::refreshCatalog, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stop the threads refreshing tenant routes and InfluxDB catalog, and provisioning databases
+     */
+    @PreDestroy
+    public void shutdownBackgroundThreads() {
+        if(routeRefreshExecutor != null) routeRefreshExecutor.shutdownNow();
+        if(catalogRefreshExecutor != null) catalogRefreshExecutor.shutdownNow();
+        if(provisioner != null) provisioner.shutdown();
     }
 }
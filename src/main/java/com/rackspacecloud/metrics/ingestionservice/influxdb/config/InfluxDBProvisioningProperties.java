@@ -0,0 +1,27 @@
+package com.rackspacecloud.metrics.ingestionservice.influxdb.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@Data
+@ConfigurationProperties("influxdb.provisioning")
+public class InfluxDBProvisioningProperties {
+    // Missing databases and retention policies are created in the background, instead of by the listener thread
+    private boolean async = true;
+
+    // Threads creating databases and retention policies
+    private int threads = 2;
+
+    // Attempts to create a database or retention policy before giving up on it, until its route is reloaded
+    private int maxAttempts = 5;
+
+    // Wait before retrying, doubled after every failed attempt up to maxBackoffMs
+    private long initialBackoffMs = 1000;
+    private long maxBackoffMs = 30_000;
+
+    // Payloads held for all destinations being created. Once it's full, writes to them fail and are retried.
+    private long maxHeldBytes = 32L * 1024 * 1024;
+
+    // Longest a batch waits for its held payloads. Payloads not written by then fail and are consumed again.
+    private long maxHoldWaitMs = 30_000;
+}
@@ -0,0 +1,23 @@
+package com.rackspacecloud.metrics.ingestionservice.influxdb.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+@Data
+@ConfigurationProperties("influxdb.route-cache")
+public class InfluxDBRouteCacheProperties {
+    // Approximate memory of cached tenant routes, least recently used ones are evicted beyond it
+    private long maxWeightBytes = 16L * 1024 * 1024;
+
+    // Route is loaded again in the background once it's this old, the cached one is used meanwhile
+    private long refreshAfterWriteMs = 5 * 60 * 1000L;
+
+    // Route that couldn't be refreshed is dropped once it's this old, and loaded on the next write
+    private long expireAfterWriteMs = 60 * 60 * 1000L;
+
+    // Threads refreshing routes
+    private int refreshThreads = 2;
+
+    // Databases and retention policies known to exist in each instance are reloaded this often
+    private long catalogRefreshMs = 10 * 60 * 1000L;
+}
@@ -0,0 +1,29 @@
+package com.rackspacecloud.metrics.ingestionservice.influxdb.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.util.HashMap;
+import java.util.Map;
+
+@Data
+@ConfigurationProperties("influxdb.write")
+public class InfluxDBWriteProperties {
+    // Number of threads writing payloads of a batch in parallel
+    private int threads = 8;
+
+    // Writes waiting for a thread. Once it's full, listener thread writes the payload itself.
+    private int queueCapacity = 1000;
+
+    // Payloads going to the same instance, database and retention policy are merged into one write
+    // until it has this many lines or bytes. 0 or less for no limit.
+    private int maxPayloadLines = 10_000;
+    private int maxPayloadBytes = 8 * 1024 * 1024;
+
+    // Max concurrent writes to an InfluxDB instance, 0 or less for no limit
+    private int maxConcurrentWritesPerInstance = 4;
+
+    // Max concurrent writes by instance URL, overriding maxConcurrentWritesPerInstance.
+    // URL keys need brackets in yaml, e.g. "[http://data-influxdb-1:8086]": 8
+    private Map<String, Integer> instanceMaxConcurrentWrites = new HashMap<>();
+}
@@ -1,7 +1,12 @@
 package com.rackspacecloud.metrics.ingestionservice.influxdb.providers;
 
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantIdAndMeasurement;
 import org.springframework.web.client.RestTemplate;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * TenantRouteProvider for Dev/Test related work. This class removes Routing-Service dependency.
  */
@@ -19,6 +24,24 @@ public class DevTestTenantRouteProvider implements RouteProvider {
         return getStubbedRoutes(tenantId, measurement);
     }
 
+    /**
+     * Get stubbed tenant routes of all given pairs, same as the routing service's bulk lookup would
+     * @param tenantIdAndMeasurements
+     * @param restTemplate is used to connect to the routing service to get the routes
+     * @return
+     */
+    @Override
+    public Map<TenantIdAndMeasurement, TenantRoutes> getRoutes(
+            Collection<TenantIdAndMeasurement> tenantIdAndMeasurements, RestTemplate restTemplate) {
+        Map<TenantIdAndMeasurement, TenantRoutes> routes = new HashMap<>();
+
+        for(TenantIdAndMeasurement key : tenantIdAndMeasurements) {
+            routes.put(key, getStubbedRoutes(key.getTenantId(), key.getMeasurement()));
+        }
+
+        return routes;
+    }
+
     /**
      * This method is a stub to generate the routes. Used for dev and test related work to break the dev
      * dependency on routing-service.
@@ -1,17 +1,43 @@
 package com.rackspacecloud.metrics.ingestionservice.influxdb.providers;
 
 import com.rackspacecloud.metrics.ingestionservice.exceptions.ExternalSystemException;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantIdAndMeasurement;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.util.StringUtils;
 import org.springframework.web.client.RestClientException;
 import org.springframework.web.client.RestTemplate;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
 /**
  * This class provides tenant routes for given tenantId and measurement.
  */
+@Slf4j
 public class ProdTenantRouteProvider implements RouteProvider {
     @Value("${tenant-routing-service.url}")
     private String tenantRoutingServiceUrl;
 
+    // Routing service endpoint taking a list of tenantId and measurement pairs, none to look them up one by one
+    @Value("${tenant-routing-service.bulk-url:}")
+    private String tenantRoutingServiceBulkUrl;
+
+    // Routes looked up at the same time when there is no bulk endpoint
+    @Value("${tenant-routing-service.max-parallel-lookups:8}")
+    private int maxParallelLookups;
+
+    private volatile ExecutorService lookupExecutor;
+
     /**
      * This method calls routing-service to get the routes for given tenantId and measurement.
      * @param tenantId
@@ -29,4 +55,139 @@ public class ProdTenantRouteProvider implements RouteProvider {
           throw new ExternalSystemException(e);
         }
     }
+
+    /**
+     * This method calls routing-service's bulk endpoint to get the routes of all given pairs in one request.
+     * Without a bulk endpoint, or if the bulk request fails, routes are looked up one by one, up to
+     * maxParallelLookups at the same time.
+     * @param tenantIdAndMeasurements
+     * @param restTemplate is used to connect to the routing service to get the routes
+     * @return
+     */
+    @Override
+    public Map<TenantIdAndMeasurement, TenantRoutes> getRoutes(
+            Collection<TenantIdAndMeasurement> tenantIdAndMeasurements, RestTemplate restTemplate) {
+
+        if(tenantIdAndMeasurements.size() <= 1) {
+            return RouteProvider.super.getRoutes(tenantIdAndMeasurements, restTemplate);
+        }
+
+        if(StringUtils.hasText(tenantRoutingServiceBulkUrl)) {
+            try {
+                return getRoutesInBulk(tenantIdAndMeasurements, restTemplate);
+            } catch(RestClientException e) {
+                log.warn("Bulk route lookup of [{}] routes failed, looking them up one by one",
+                        tenantIdAndMeasurements.size(), e);
+            }
+        }
+
+        return getRoutesInParallel(tenantIdAndMeasurements, restTemplate);
+    }
+
+    /**
+     * Routes in the bulk response are matched by their "tenantId:measurement" key. Tenant ids and measurements
+     * may have ':' in them, so pairs sharing a key, like "hybrid:1" and "cpu" vs. "hybrid" and "1:cpu", can't
+     * be told apart in the response. They are looked up one by one instead.
+     * @param tenantIdAndMeasurements
+     * @param restTemplate
+     * @return
+     */
+    private Map<TenantIdAndMeasurement, TenantRoutes> getRoutesInBulk(
+            Collection<TenantIdAndMeasurement> tenantIdAndMeasurements, RestTemplate restTemplate) {
+
+        Map<String, List<TenantIdAndMeasurement>> keys = new HashMap<>();
+        for(TenantIdAndMeasurement key : tenantIdAndMeasurements) {
+            keys.computeIfAbsent(getRouteKey(key), routeKey -> new ArrayList<>(1)).add(key);
+        }
+
+        List<Map<String, String>> request = new ArrayList<>(keys.size());
+        List<TenantIdAndMeasurement> ambiguousKeys = new ArrayList<>();
+
+        for(List<TenantIdAndMeasurement> pairs : keys.values()) {
+            if(pairs.size() > 1) {
+                ambiguousKeys.addAll(pairs);
+                continue;
+            }
+
+            Map<String, String> pair = new LinkedHashMap<>();
+            pair.put("tenantId", pairs.get(0).getTenantId());
+            pair.put("measurement", pairs.get(0).getMeasurement());
+            request.add(pair);
+        }
+
+        Map<TenantIdAndMeasurement, TenantRoutes> routes = new HashMap<>();
+
+        if(!request.isEmpty()) {
+            TenantRoutes[] response =
+                    restTemplate.postForObject(tenantRoutingServiceBulkUrl, request, TenantRoutes[].class);
+
+            if(response != null) {
+                for(TenantRoutes tenantRoutes : response) {
+                    List<TenantIdAndMeasurement> pairs =
+                            tenantRoutes == null ? null : keys.get(tenantRoutes.getTenantIdAndMeasurement());
+                    if(pairs != null && pairs.size() == 1) routes.put(pairs.get(0), tenantRoutes);
+                }
+            }
+        }
+
+        if(!ambiguousKeys.isEmpty()) routes.putAll(getRoutesInParallel(ambiguousKeys, restTemplate));
+
+        return routes;
+    }
+
+    private static String getRouteKey(TenantIdAndMeasurement key) {
+        return key.getTenantId() + ":" + key.getMeasurement();
+    }
+
+    private Map<TenantIdAndMeasurement, TenantRoutes> getRoutesInParallel(
+            Collection<TenantIdAndMeasurement> tenantIdAndMeasurements, RestTemplate restTemplate) {
+
+        ExecutorService executor = getLookupExecutor();
+        Map<TenantIdAndMeasurement, Future<TenantRoutes>> lookups = new LinkedHashMap<>();
+
+        for(TenantIdAndMeasurement key : tenantIdAndMeasurements) {
+            lookups.put(key, executor.submit(
+                    () -> getRoute(key.getTenantId(), key.getMeasurement(), restTemplate)));
+        }
+
+        Map<TenantIdAndMeasurement, TenantRoutes> routes = new HashMap<>();
+
+        for(Map.Entry<TenantIdAndMeasurement, Future<TenantRoutes>> lookup : lookups.entrySet()) {
+            try {
+                TenantRoutes tenantRoutes = lookup.getValue().get();
+                if(tenantRoutes != null) routes.put(lookup.getKey(), tenantRoutes);
+            } catch(ExecutionException e) {
+                // Looked up again on its own when its payload is written
+                log.debug("Route lookup for [{}] failed", lookup.getKey(), e.getCause());
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                lookups.values().forEach(future -> future.cancel(true));
+                break;
+            }
+        }
+
+        return routes;
+    }
+
+    private ExecutorService getLookupExecutor() {
+        ExecutorService executor = lookupExecutor;
+        if(executor != null) return executor;
+
+        synchronized(this) {
+            if(lookupExecutor == null) {
+                lookupExecutor = Executors.newFixedThreadPool(
+                        Math.max(1, maxParallelLookups), new CustomizableThreadFactory("route-lookup-"));
+            }
+
+            return lookupExecutor;
+        }
+    }
+
+    /**
+     * Stop the threads looking up routes
+     */
+    public void shutdown() {
+        ExecutorService executor = lookupExecutor;
+        if(executor != null) executor.shutdownNow();
+    }
 }
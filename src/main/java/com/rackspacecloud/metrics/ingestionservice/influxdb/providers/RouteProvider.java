@@ -1,7 +1,12 @@
 package com.rackspacecloud.metrics.ingestionservice.influxdb.providers;
 
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantIdAndMeasurement;
 import org.springframework.web.client.RestTemplate;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
 /**
  * Route provider provides routes for given tenantId and measurement.
  */
@@ -14,4 +19,29 @@ public interface RouteProvider {
      * @return TenantRoutes
      */
     TenantRoutes getRoute(String tenantId, String measurement, RestTemplate restTemplate) ;
+
+    /**
+     * Provide the routes of all given tenantId and measurement pairs at once. A pair whose route can't be
+     * provided is left out, getRoute tells why. By default every route is looked up one after the other.
+     * @param tenantIdAndMeasurements
+     * @param restTemplate is used to connect to the routing service to get the routes
+     * @return routes by tenantId and measurement
+     */
+    default Map<TenantIdAndMeasurement, TenantRoutes> getRoutes(
+            Collection<TenantIdAndMeasurement> tenantIdAndMeasurements, RestTemplate restTemplate) {
+
+        Map<TenantIdAndMeasurement, TenantRoutes> routes = new HashMap<>();
+
+        for(TenantIdAndMeasurement key : tenantIdAndMeasurements) {
+            try {
+                TenantRoutes tenantRoutes = getRoute(key.getTenantId(), key.getMeasurement(), restTemplate);
+                if(tenantRoutes != null) routes.put(key, tenantRoutes);
+            }
+            catch (RuntimeException e) {
+                // Looked up again on its own when its payload is written
+            }
+        }
+
+        return routes;
+    }
 }
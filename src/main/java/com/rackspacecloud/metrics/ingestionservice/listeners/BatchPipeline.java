@@ -0,0 +1,453 @@
+package com.rackspacecloud.metrics.ingestionservice.listeners;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.kafka.listener.ConsumerAwareRebalanceListener;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Processes the batches of a listener on its own threads, so that the Kafka consumer threads can keep polling
+ * while earlier batches are transformed and written into InfluxDB.
+ *
+ * Batches finish out of order, but they are committed in order. A batch is committed once it's written and
+ * every earlier batch of its partitions is committed, so the committed offset of a partition never goes past
+ * a batch that isn't written yet.
+ *
+ * A failed batch is retried with a backoff doubling from retryBackoffMs up to maxRetryBackoffMs; later batches
+ * of its partitions wait for it. After maxAttempts attempts the pipeline gives up on it: the uncommitted batches
+ * of its partitions are discarded and the listener container is restarted, so that they are consumed again
+ * from the last committed offsets.
+ *
+ * When partitions are revoked, their batches are given some time to be written and committed before the
+ * partitions go to another consumer, see getRebalanceListener. The ones that aren't are discarded.
+ *
+ * Once maxInFlightBatches batches are being processed, the listener container is paused. It's resumed when no
+ * more than resumeInFlightBatches are left.
+ */
+@Slf4j
+public class BatchPipeline {
+    private final String name;
+    private final ThreadPoolExecutor executor;
+    private final int maxInFlightBatches;
+    private final int resumeInFlightBatches;
+    private final long retryBackoffMs;
+    private final long maxRetryBackoffMs;
+    private final int maxAttempts;
+    private final Supplier<MessageListenerContainer> containerSupplier;
+    private final AtomicBoolean restarting = new AtomicBoolean();
+
+    // Batches that are not committed yet, in the order they were submitted, by partition
+    private final Map<TopicPartition, Deque<Batch>> pendingBatches = new HashMap<>();
+    private int inFlightBatches;
+    private boolean paused;
+
+    /**
+     * @param name
+     * @param threads number of batches processed in parallel
+     * @param maxInFlightBatches
+     * @param resumeInFlightBatches
+     * @param retryBackoffMs time to wait before processing a failed batch again the first time
+     * @param maxRetryBackoffMs
+     * @param maxAttempts times a batch is processed before giving up on it
+     * @param containerSupplier listener container to pause, resume and restart, it's looked up when it's needed
+     *                          because containers are created after the listeners
+     */
+    public BatchPipeline(String name, int threads, int maxInFlightBatches, int resumeInFlightBatches,
+                         long retryBackoffMs, long maxRetryBackoffMs, int maxAttempts,
+                         Supplier<MessageListenerContainer> containerSupplier) {
+        this.name = name;
+        this.maxInFlightBatches = Math.max(1, maxInFlightBatches);
+        this.resumeInFlightBatches = Math.min(Math.max(0, resumeInFlightBatches), this.maxInFlightBatches - 1);
+        this.retryBackoffMs = retryBackoffMs;
+        this.maxRetryBackoffMs = Math.max(retryBackoffMs, maxRetryBackoffMs);
+        this.maxAttempts = Math.max(1, maxAttempts);
+        this.containerSupplier = containerSupplier;
+
+        // Queue is not bounded; pausing the container is what limits the number of batches in it
+        this.executor = new ThreadPoolExecutor(
+                threads, threads, 60L, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new CustomizableThreadFactory(name + "-pipeline-"));
+    }
+
+    /**
+     * Hand a batch over to the pipeline. It's called by the listener on the consumer thread.
+     * @param partitions partitions of the records in the batch
+     * @param task transforms and writes the batch, throws if it has to be processed again
+     * @param commit commits the batch, e.g. acknowledges it. Called once task succeeded and every earlier
+     *               batch of the same partitions is committed.
+     */
+    public void submit(Collection<TopicPartition> partitions, BatchTask task, Runnable commit) {
+        submit(partitions, task, commit, () -> { });
+    }
+
+    /**
+     * Hand a batch over to the pipeline. It's called by the listener on the consumer thread.
+     * @param partitions partitions of the records in the batch
+     * @param task transforms and writes the batch, throws if it has to be processed again
+     * @param commit commits the batch, e.g. acknowledges it. Called once task succeeded and every earlier
+     *               batch of the same partitions is committed.
+     * @param release frees what the batch holds on to. Called once the batch leaves the pipeline, whether it's
+     *                written, given up on, discarded or left behind at shutdown.
+     */
+    public void submit(Collection<TopicPartition> partitions, BatchTask task, Runnable commit, Runnable release) {
+        Batch batch = new Batch(new LinkedHashSet<>(partitions), task, commit, release);
+
+        synchronized (this) {
+            for(TopicPartition partition : batch.partitions) {
+                pendingBatches.computeIfAbsent(partition, key -> new ArrayDeque<>()).addLast(batch);
+            }
+
+            inFlightBatches++;
+
+            if(!paused && inFlightBatches >= maxInFlightBatches) {
+                log.info("Pausing [{}] listener, [{}] batches in flight", name, inFlightBatches);
+                paused = pauseContainer(true);
+            }
+        }
+
+        try {
+            executor.execute(new BatchRunner(batch));
+        }
+        catch (RejectedExecutionException e) {
+            synchronized (this) {
+                inFlightBatches--;
+                discard(batch.partitions);
+            }
+
+            release(batch);
+            throw e;
+        }
+    }
+
+    private final class BatchRunner implements Runnable {
+        private final Batch batch;
+
+        BatchRunner(Batch batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void run() {
+            try {
+                finish(batch, process(batch));
+            }
+            finally {
+                release(batch);
+            }
+        }
+    }
+
+    /**
+     * Run the task of given batch until it succeeds, the pipeline gives up on it or is shut down
+     * @return whether the batch is written
+     */
+    private boolean process(Batch batch) {
+        for(int attempt = 1; ; attempt++) {
+            if(batch.discarded) {
+                log.info("Batch of [{}] for partitions {} is discarded, it will be consumed again",
+                        name, batch.partitions);
+                return false;
+            }
+
+            try {
+                batch.task.run();
+                return true;
+            }
+            catch (Exception e) {
+                if(attempt >= maxAttempts) {
+                    giveUp(batch, attempt, e);
+                    return false;
+                }
+
+                log.error("Processing a batch of [{}] failed for partitions {}, attempt [{}] of [{}]",
+                        name, batch.partitions, attempt, maxAttempts, e);
+            }
+
+            if(executor.isShutdown()) {
+                log.warn("Pipeline [{}] is shut down, batch for partitions {} is left uncommitted",
+                        name, batch.partitions);
+                return false;
+            }
+
+            try {
+                Thread.sleep(Math.min(maxRetryBackoffMs, retryBackoffMs << Math.min(attempt - 1, 30)));
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Discard every uncommitted batch of the partitions of given batch and restart the listener container, so
+     * that they are consumed again from the last committed offsets
+     */
+    private void giveUp(Batch batch, int attempts, Exception e) {
+        int discarded;
+
+        synchronized (this) {
+            discarded = discard(batch.partitions);
+        }
+
+        log.error("Gave up processing a batch of [{}] for partitions {} after [{}] attempts, discarded [{}] " +
+                "uncommitted batches and restarting the listener", name, batch.partitions, attempts, discarded, e);
+
+        restartContainer();
+    }
+
+    /**
+     * Discard the uncommitted batches of given partitions, they are not committed even if they are written.
+     * Batches spanning other partitions too hold back the later batches of these, so they are discarded as well.
+     * @return number of batches discarded
+     */
+    private int discard(Collection<TopicPartition> partitions) {
+        Deque<TopicPartition> discardedPartitions = new ArrayDeque<>(partitions);
+        int discarded = 0;
+
+        while (!discardedPartitions.isEmpty()) {
+            Deque<Batch> batches = pendingBatches.remove(discardedPartitions.poll());
+            if(batches == null) continue;
+
+            for(Batch batch : batches) {
+                if(batch.discarded) continue;
+
+                batch.discarded = true;
+                discarded++;
+                discardedPartitions.addAll(batch.partitions);
+            }
+        }
+
+        return discarded;
+    }
+
+    private synchronized void finish(Batch batch, boolean written) {
+        inFlightBatches--;
+
+        if(written && !batch.discarded) {
+            batch.written = true;
+
+            // Committing here, under the lock, keeps commits of a partition in order
+            for(Batch committable : getCommittableBatches(batch)) {
+                try {
+                    committable.commit.run();
+                }
+                catch (RuntimeException e) {
+                    log.error("Committing a batch of [{}] failed for partitions {}",
+                            name, committable.partitions, e);
+                }
+            }
+        }
+
+        // Wakes up the consumer thread waiting for the batches of revoked partitions
+        notifyAll();
+
+        if(paused && inFlightBatches <= resumeInFlightBatches) {
+            log.info("Resuming [{}] listener, [{}] batches in flight", name, inFlightBatches);
+            paused = !pauseContainer(false);
+        }
+    }
+
+    /**
+     * Get the rebalance listener to register on the listener container, so that batches of revoked partitions
+     * are not committed once the partitions belong to another consumer.
+     *
+     * Before the offsets of revoked partitions are committed, the consumer thread waits up to
+     * revocationTimeoutMs for their batches to be written, their acknowledgements are committed along with
+     * the rest. Batches still not written by then are discarded and consumed again by the new owner.
+     * @param revocationTimeoutMs
+     * @return
+     */
+    public ConsumerAwareRebalanceListener getRebalanceListener(long revocationTimeoutMs) {
+        return new ConsumerAwareRebalanceListener() {
+            @Override
+            public void onPartitionsRevokedBeforeCommit(Consumer<?, ?> consumer,
+                                                        Collection<TopicPartition> partitions) {
+                settle(partitions, revocationTimeoutMs);
+            }
+        };
+    }
+
+    private synchronized void settle(Collection<TopicPartition> partitions, long timeoutMs) {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+
+        try {
+            for(long remainingMs = timeoutMs; remainingMs > 0 && hasPendingBatches(partitions);
+                remainingMs = deadline - System.currentTimeMillis()) {
+                wait(remainingMs);
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        int discarded = discard(partitions);
+
+        if(discarded > 0) {
+            log.warn("Discarded [{}] batches of [{}] not written within [{}] ms of revoking partitions {}",
+                    discarded, name, timeoutMs, partitions);
+        }
+    }
+
+    private boolean hasPendingBatches(Collection<TopicPartition> partitions) {
+        for(TopicPartition partition : partitions) {
+            if(pendingBatches.containsKey(partition)) return true;
+        }
+        return false;
+    }
+
+    private void release(Batch batch) {
+        try {
+            batch.release.run();
+        }
+        catch (RuntimeException e) {
+            log.error("Releasing a batch of [{}] failed for partitions {}", name, batch.partitions, e);
+        }
+    }
+
+    /**
+     * Remove every batch that can be committed now that given batch is written, in commit order
+     */
+    private List<Batch> getCommittableBatches(Batch written) {
+        List<Batch> committable = new ArrayList<>();
+        Deque<Batch> candidates = new ArrayDeque<>();
+        candidates.add(written);
+
+        while (!candidates.isEmpty()) {
+            Batch batch = candidates.poll();
+            if(!batch.written || !isFirstInAllPartitions(batch)) continue;
+
+            committable.add(batch);
+
+            for(TopicPartition partition : batch.partitions) {
+                Deque<Batch> batches = pendingBatches.get(partition);
+                batches.pollFirst();
+
+                if(batches.isEmpty()) pendingBatches.remove(partition);
+                else candidates.add(batches.peekFirst());
+            }
+        }
+
+        return committable;
+    }
+
+    private boolean isFirstInAllPartitions(Batch batch) {
+        for(TopicPartition partition : batch.partitions) {
+            Deque<Batch> batches = pendingBatches.get(partition);
+            if(batches == null || batches.peekFirst() != batch) return false;
+        }
+        return true;
+    }
+
+    private void restartContainer() {
+        MessageListenerContainer container = containerSupplier.get();
+
+        if(container == null) {
+            log.warn("Listener container for [{}] not found, can't restart it", name);
+            return;
+        }
+
+        // Batches given up on while it's restarting are consumed again already
+        if(!restarting.compareAndSet(false, true)) return;
+
+        container.stop(() -> {
+            restarting.set(false);
+            if(executor.isShutdown()) return;
+
+            container.start();
+
+            synchronized (this) {
+                if(paused) pauseContainer(true);
+            }
+        });
+    }
+
+    private boolean pauseContainer(boolean pause) {
+        MessageListenerContainer container = containerSupplier.get();
+
+        if(container == null) {
+            log.warn("Listener container for [{}] not found, can't {} it", name, pause ? "pause" : "resume");
+            return false;
+        }
+
+        if(pause) container.pause();
+        else container.resume();
+
+        return true;
+    }
+
+    /**
+     * Number of batches submitted but not written yet
+     * @return
+     */
+    public synchronized int getInFlightBatches() {
+        return inFlightBatches;
+    }
+
+    /**
+     * Stop accepting batches and wait for the queued ones to finish. Batches that are not written by then are
+     * not committed, so they are consumed again after restart.
+     */
+    public void shutdown() {
+        executor.shutdown();
+
+        try {
+            if(!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                log.warn("Batches of [{}] didn't finish in time, [{}] left in the queue",
+                        name, executor.getQueue().size());
+                releaseNotStarted(executor.shutdownNow());
+            }
+        }
+        catch (InterruptedException e) {
+            releaseNotStarted(executor.shutdownNow());
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void releaseNotStarted(List<Runnable> runners) {
+        for(Runnable runner : runners) {
+            if(runner instanceof BatchRunner) release(((BatchRunner) runner).batch);
+        }
+    }
+
+    @FunctionalInterface
+    public interface BatchTask {
+        void run() throws Exception;
+    }
+
+    private static final class Batch {
+        private final Set<TopicPartition> partitions;
+        private final BatchTask task;
+        private final Runnable commit;
+        private final Runnable release;
+        private boolean written;
+
+        // Set under the pipeline lock, read without it by the thread processing the batch
+        private volatile boolean discarded;
+
+        Batch(Set<TopicPartition> partitions, BatchTask task, Runnable commit, Runnable release) {
+            this.partitions = partitions;
+            this.task = task;
+            this.commit = commit;
+            this.release = release;
+        }
+    }
+}
@@ -1,18 +1,43 @@
 package com.rackspacecloud.metrics.ingestionservice.listeners;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.rackspacecloud.metrics.ingestionservice.exceptions.IngestFailedException;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.kafka.common.TopicPartition;
 import org.springframework.kafka.listener.ConsumerSeekAware;
 import org.springframework.kafka.support.Acknowledgment;
 
 import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Slf4j
 public class UnifiedMetricsListener implements ConsumerSeekAware {
 
-    protected long batchProcessedCount = 0;
+    // Consumer threads of all of the listener's containers update it
+    protected final AtomicLong batchProcessedCount = new AtomicLong();
+
+    private static final String META_CHARACTERS = "\\:^${}[]().*+?|<>-&% ";
+
+    // Lookup table of META_CHARACTERS, indexed by character. They are all ASCII.
+    private static final boolean[] SPECIAL_CHARACTERS = new boolean[128];
+
+    private static final int MAX_REPLACED_NAMES = 10_000;
+
+    private static final Cache<String, String> REPLACED_NAMES =
+            Caffeine.newBuilder().maximumSize(MAX_REPLACED_NAMES).build();
+
+    static {
+        for(char c : META_CHARACTERS.toCharArray()) SPECIAL_CHARACTERS[c] = true;
+    }
 
     // At the end of every 1000 messages, log this information
     protected static final int MESSAGE_PROCESS_REPORT_COUNT = 1000;
@@ -22,22 +47,65 @@ public class UnifiedMetricsListener implements ConsumerSeekAware {
         log.info("Registering seekCallback at [{}]", Instant.now());
     }
 
+    /**
+     * Count a batch received by the listener, starting over from 1 once the count reaches Long.MAX_VALUE
+     */
+    protected void incrementBatchProcessedCount() {
+        batchProcessedCount.updateAndGet(count -> count == Long.MAX_VALUE ? 1 : count + 1);
+    }
+
     protected void processPostInfluxDbIngestion(final List<?> records, final Acknowledgment ack) {
 
         ack.acknowledge();
 
-        if (batchProcessedCount % MESSAGE_PROCESS_REPORT_COUNT == 0) {
-            log.info("Processed {} batches.", batchProcessedCount);
+        long processedCount = getBatchProcessedCount();
+
+        if (processedCount % MESSAGE_PROCESS_REPORT_COUNT == 0) {
+            log.info("Processed {} batches.", processedCount);
         }
 
         log.debug("Done processing for records:{}", records);
 
-        // Reset the counter
-        if(batchProcessedCount == Long.MAX_VALUE) batchProcessedCount = 0;
+        if(processedCount % MESSAGE_PROCESS_REPORT_COUNT == 0) {
+            log.info("Processed {} batches so far after start or reset...", processedCount);
+        }
+    }
+
+    /**
+     * Throw the first of the given write failures, with the rest of them added as suppressed exceptions
+     * @param failures
+     * @throws IngestFailedException
+     */
+    protected static void throwIfAnyFailed(Collection<Exception> failures) throws IngestFailedException {
+        if(failures.isEmpty()) return;
+
+        Exception first = withSuppressed(failures);
 
-        if(batchProcessedCount % MESSAGE_PROCESS_REPORT_COUNT == 0) {
-            log.info("Processed {} batches so far after start or reset...", getBatchProcessedCount());
+        if(first instanceof IngestFailedException) throw (IngestFailedException) first;
+        if(first instanceof RuntimeException) throw (RuntimeException) first;
+        throw new IngestFailedException(first);
+    }
+
+    /**
+     * Get the first of the given failures, with the rest of them added to it as suppressed exceptions.
+     * Payloads merged into one write, or sharing one in-flight call, fail with the same instance,
+     * so each instance is added once and never to itself.
+     * @param failures
+     * @return
+     */
+    protected static Exception withSuppressed(Collection<Exception> failures) {
+        Iterator<Exception> iterator = failures.iterator();
+        Exception first = iterator.next();
+
+        Set<Throwable> suppressed = Collections.newSetFromMap(new IdentityHashMap<>());
+        suppressed.add(first);
+        suppressed.addAll(Arrays.asList(first.getSuppressed()));
+
+        while (iterator.hasNext()) {
+            Exception e = iterator.next();
+            if(suppressed.add(e)) first.addSuppressed(e);
         }
+        return first;
     }
 
     @Override
@@ -61,18 +129,41 @@ public class UnifiedMetricsListener implements ConsumerSeekAware {
      * @return
      */
     public long getBatchProcessedCount(){
-        return batchProcessedCount;
+        return batchProcessedCount.get();
     }
 
+    /**
+     * Replace every character that is special for InfluxDB queries or regular expressions with "_".
+     * Names that need replacing are memoized; there are only so many distinct metric names, account and
+     * collection names, and they repeat in every record.
+     * @param inputString
+     * @return
+     */
     public static String replaceSpecialCharacters(String inputString){
-        final String[] metaCharacters =
-                {"\\",":","^","$","{","}","[","]","(",")",".","*","+","?","|","<",">","-","&","%"," "};
+        int firstSpecialCharacter = indexOfSpecialCharacter(inputString);
+        if(firstSpecialCharacter < 0) return inputString;
+
+        String replaced = REPLACED_NAMES.getIfPresent(inputString);
+        if(replaced != null) return replaced;
+
+        char[] chars = inputString.toCharArray();
+        for(int i = firstSpecialCharacter; i < chars.length; i++) {
+            if(isSpecialCharacter(chars[i])) chars[i] = '_';
+        }
 
-        for (int i = 0 ; i < metaCharacters.length ; i++){
-            if(inputString.contains(metaCharacters[i])){
-                inputString = inputString.replace(metaCharacters[i],"_");
-            }
+        replaced = new String(chars);
+        REPLACED_NAMES.put(inputString, replaced);
+        return replaced;
+    }
+
+    private static int indexOfSpecialCharacter(String inputString) {
+        for(int i = 0; i < inputString.length(); i++) {
+            if(isSpecialCharacter(inputString.charAt(i))) return i;
         }
-        return inputString;
+        return -1;
+    }
+
+    private static boolean isSpecialCharacter(char c) {
+        return c < SPECIAL_CHARACTERS.length && SPECIAL_CHARACTERS[c];
     }
 }
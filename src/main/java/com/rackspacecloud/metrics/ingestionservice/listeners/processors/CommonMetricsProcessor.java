@@ -2,9 +2,13 @@ package com.rackspacecloud.metrics.ingestionservice.listeners.processors;
 
 import com.rackspace.monplat.protocol.ExternalMetric;
 import com.rackspacecloud.metrics.ingestionservice.listeners.UnifiedMetricsListener;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.util.StringUtils;
 
+import java.util.Objects;
+
 @Slf4j
 public class CommonMetricsProcessor {
     private static final String ACCOUNT_TYPE = "accountType";
@@ -29,8 +33,19 @@ public class CommonMetricsProcessor {
         return dimension;
     }
 
+    // Distinct tenant/measurement pairs are only a few thousand, but they repeat in every batch
+    private static final int MAX_TENANT_ID_AND_MEASUREMENTS = 50_000;
+
+    private static final Cache<RoutingFields, TenantIdAndMeasurement> TENANT_ID_AND_MEASUREMENTS =
+            Caffeine.newBuilder().maximumSize(MAX_TENANT_ID_AND_MEASUREMENTS).build();
+
+    // Looks up the cache without allocating a key
+    private static final ThreadLocal<RoutingFields> ROUTING_FIELDS_PROBES =
+            ThreadLocal.withInitial(RoutingFields::new);
+
     /**
-     * Create TenantId and measurement values from passed parameters
+     * Get TenantId and measurement values for passed parameters. Same parameters give the same
+     * (canonical) instance, so validation, sanitization and formatting are only done the first time.
      * @param accountType
      * @param account
      * @param monitoringSystem
@@ -40,8 +55,32 @@ public class CommonMetricsProcessor {
     public static TenantIdAndMeasurement getTenantIdAndMeasurement(
             String accountType, String account, String monitoringSystem, String collectionName) {
 
+        RoutingFields probe = ROUTING_FIELDS_PROBES.get();
+        probe.set(accountType, account, monitoringSystem, collectionName);
+
+        TenantIdAndMeasurement tenantIdAndMeasurement = TENANT_ID_AND_MEASUREMENTS.getIfPresent(probe);
+        if(tenantIdAndMeasurement != null) return tenantIdAndMeasurement;
+
+        // Invalid values throw here, so they never get cached
+        tenantIdAndMeasurement =
+                createTenantIdAndMeasurement(accountType, account, monitoringSystem, collectionName);
+
+        TENANT_ID_AND_MEASUREMENTS.put(probe.copy(), tenantIdAndMeasurement);
+        return tenantIdAndMeasurement;
+    }
+
+    /**
+     * Create TenantId and measurement values from passed parameters
+     * @param accountType
+     * @param account
+     * @param monitoringSystem
+     * @param collectionName
+     * @return
+     */
+    private static TenantIdAndMeasurement createTenantIdAndMeasurement(
+            String accountType, String account, String monitoringSystem, String collectionName) {
+
         if(!isValid(ACCOUNT_TYPE, accountType)) {
-            log.error("Invalid account type [{}] in the received record", accountType);
             throw new IllegalArgumentException(String.format("Invalid account type: [%s]", accountType));
         }
 
@@ -55,7 +94,6 @@ public class CommonMetricsProcessor {
         String tenantId = String.format("%s-%s", accountType, account);
 
         if(!isValid(MONITORING_SYSTEM, monitoringSystem)) {
-            log.error("Invalid monitoring system [{}] in the received record", monitoringSystem);
             throw new IllegalArgumentException(String.format("Invalid monitoring system: [%s]", monitoringSystem));
         }
 
@@ -72,19 +110,64 @@ public class CommonMetricsProcessor {
     }
 
     /**
-     *  Field value should not contain any whitespace
+     *  Field value should not contain any whitespace. Invalid values are not logged in here, it's up to the
+     *  caller to reject the record (see RejectedRecords).
      * @param fieldName
      * @param fieldValue
      * @return
      */
     public static boolean isValid(String fieldName, CharSequence fieldValue) {
-        if (!StringUtils.containsWhitespace(fieldValue)) return true;
+        return !StringUtils.containsWhitespace(fieldValue);
+    }
+
+    /**
+     * Fields of a record that tenantId and measurement are made of
+     */
+    private static final class RoutingFields {
+        private String accountType;
+        private String account;
+        private String monitoringSystem;
+        private String collectionName;
+        private int hash;
+
+        void set(String accountType, String account, String monitoringSystem, String collectionName) {
+            this.accountType = accountType;
+            this.account = account;
+            this.monitoringSystem = monitoringSystem;
+            this.collectionName = collectionName;
+
+            int result = Objects.hashCode(accountType);
+            result = 31 * result + Objects.hashCode(account);
+            result = 31 * result + Objects.hashCode(monitoringSystem);
+            this.hash = 31 * result + Objects.hashCode(collectionName);
+        }
 
-        log.error(
-                "FieldValue [{}] is either empty or contains a whitespace for the field [{}]",
-                fieldValue, fieldName
-        );
+        RoutingFields copy() {
+            RoutingFields copy = new RoutingFields();
+            copy.accountType = accountType;
+            copy.account = account;
+            copy.monitoringSystem = monitoringSystem;
+            copy.collectionName = collectionName;
+            copy.hash = hash;
+            return copy;
+        }
 
-        return false;
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o) return true;
+            if(!(o instanceof RoutingFields)) return false;
+
+            RoutingFields other = (RoutingFields) o;
+            return hash == other.hash
+                    && Objects.equals(account, other.account)
+                    && Objects.equals(collectionName, other.collectionName)
+                    && Objects.equals(accountType, other.accountType)
+                    && Objects.equals(monitoringSystem, other.monitoringSystem);
+        }
     }
 }
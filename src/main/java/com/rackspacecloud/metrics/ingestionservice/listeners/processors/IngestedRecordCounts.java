@@ -0,0 +1,172 @@
+package com.rackspacecloud.metrics.ingestionservice.listeners.processors;
+
+import com.rackspace.monplat.protocol.MonitoringSystem;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.MessageHeaders;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts of ingested records by topic, partition and monitoring system, shared by all threads transforming
+ * records and drained periodically by a publisher instead of after every batch.
+ *
+ * Every partition of a topic has a LongAdder per monitoring system, indexed by MonitoringSystem ordinal, plus
+ * one for records with a monitoring system that is missing or unknown. Counters are created the first time a
+ * partition is seen; from then on counting a record is a lookup and an increment, without allocating.
+ */
+public class IngestedRecordCounts {
+    static final String UNKNOWN_MONITORING_SYSTEM = "unknown";
+
+    private static final MonitoringSystem[] MONITORING_SYSTEMS = MonitoringSystem.values();
+    private static final int UNKNOWN_INDEX = MONITORING_SYSTEMS.length;
+
+    // Monitoring systems of STREAMING records are strings, looking them up doesn't allocate like valueOf failing
+    private static final Map<String, Integer> INDEXES_BY_NAME = new HashMap<>();
+
+    static {
+        for(MonitoringSystem monitoringSystem : MONITORING_SYSTEMS) {
+            INDEXES_BY_NAME.put(monitoringSystem.name(), monitoringSystem.ordinal());
+        }
+    }
+
+    private final ConcurrentMap<String, TopicCounts> topics = new ConcurrentHashMap<>();
+
+    /**
+     * Count a record of given monitoring system
+     * @param headers headers of the record, for its topic and partition
+     * @param monitoringSystem null if the record has none
+     */
+    public void increment(MessageHeaders headers, MonitoringSystem monitoringSystem) {
+        getCounters(headers)[monitoringSystem == null ? UNKNOWN_INDEX : monitoringSystem.ordinal()].increment();
+    }
+
+    /**
+     * Count a record of given monitoring system
+     * @param headers headers of the record, for its topic and partition
+     * @param monitoringSystem name of the monitoring system, null if the record has none
+     */
+    public void increment(MessageHeaders headers, String monitoringSystem) {
+        Integer index = monitoringSystem == null ? null : INDEXES_BY_NAME.get(monitoringSystem);
+        getCounters(headers)[index == null ? UNKNOWN_INDEX : index].increment();
+    }
+
+    private LongAdder[] getCounters(MessageHeaders headers) {
+        String topic = String.valueOf(headers.get(KafkaHeaders.RECEIVED_TOPIC));
+        Object partition = headers.get(KafkaHeaders.RECEIVED_PARTITION_ID);
+
+        TopicCounts topicCounts = topics.get(topic);
+        if(topicCounts == null) topicCounts = topics.computeIfAbsent(topic, key -> new TopicCounts());
+
+        return topicCounts.getCounters(partition instanceof Integer ? (Integer) partition : 0);
+    }
+
+    /**
+     * Hand the records counted since the previous drain over to given consumer and reset their counts.
+     * Counts that are 0 are skipped. Records counted while draining are either in this drain or in the next one.
+     * @param consumer
+     */
+    public void drainTo(CountConsumer consumer) {
+        snapshot(consumer).remove();
+    }
+
+    /**
+     * Hand the records counted since the previous drain over to given consumer, without resetting their counts.
+     * They are only taken off once the returned snapshot is removed, e.g. after they are published; until then
+     * the next snapshot has them again, along with the records counted since.
+     * Counts that are 0 are skipped.
+     * @param consumer
+     * @return
+     */
+    public Snapshot snapshot(CountConsumer consumer) {
+        Snapshot snapshot = new Snapshot();
+
+        topics.forEach((topic, topicCounts) -> {
+            LongAdder[][] partitions = topicCounts.partitions;
+
+            for(int partition = 0; partition < partitions.length; partition++) {
+                LongAdder[] counters = partitions[partition];
+                if(counters == null) continue;
+
+                for(int i = 0; i < counters.length; i++) {
+                    long count = counters[i].sum();
+                    if(count == 0) continue;
+
+                    snapshot.add(counters[i], count);
+                    consumer.accept(topic, partition,
+                            i == UNKNOWN_INDEX ? UNKNOWN_MONITORING_SYSTEM : MONITORING_SYSTEMS[i].name(), count);
+                }
+            }
+        });
+
+        return snapshot;
+    }
+
+    /**
+     * Counts handed over by snapshot(), to take off the counters once they are dealt with
+     */
+    public static final class Snapshot {
+        private final List<LongAdder> counters = new ArrayList<>();
+        private final List<Long> counts = new ArrayList<>();
+
+        private void add(LongAdder counter, long count) {
+            counters.add(counter);
+            counts.add(count);
+        }
+
+        /**
+         * Take the counts of this snapshot off their counters. Records counted since are kept.
+         */
+        public void remove() {
+            for(int i = 0; i < counters.size(); i++) {
+                counters.get(i).add(-counts.get(i));
+            }
+        }
+    }
+
+    /**
+     * Takes the counts of a drain
+     */
+    @FunctionalInterface
+    public interface CountConsumer {
+        void accept(String topic, int partition, String monitoringSystem, long count);
+    }
+
+    /**
+     * Counters of the partitions of a topic, indexed by partition. Array is replaced when a partition
+     * beyond its end is seen, which only happens as partitions get assigned.
+     */
+    private static final class TopicCounts {
+        private volatile LongAdder[][] partitions = new LongAdder[0][];
+
+        LongAdder[] getCounters(int partition) {
+            LongAdder[][] current = partitions;
+
+            if(partition < current.length && current[partition] != null) return current[partition];
+
+            return addPartition(partition);
+        }
+
+        private synchronized LongAdder[] addPartition(int partition) {
+            LongAdder[][] current = partitions;
+
+            if(partition < current.length && current[partition] != null) return current[partition];
+
+            LongAdder[][] grown = Arrays.copyOf(current, Math.max(current.length, partition + 1));
+
+            LongAdder[] counters = new LongAdder[UNKNOWN_INDEX + 1];
+            for(int i = 0; i < counters.length; i++) counters[i] = new LongAdder();
+
+            grown[partition] = counters;
+            partitions = grown;
+
+            return counters;
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.rackspacecloud.metrics.ingestionservice.listeners.processors;
+
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Growable buffer holding the newline separated line-protocol payload of one tenant and measurement.
+ * It keeps track of its line count and UTF-8 byte length while lines are appended, so neither needs
+ * another pass over the payload.
+ *
+ * Buffers come from a bounded pool shared by all listeners. {@link #acquire()} one, append lines into it and
+ * {@link #release()} it once the payload is written. Instances are not thread-safe.
+ *
+ * Pool holds at most MAX_POOLED_BUFFERS buffers and MAX_POOLED_CHARS chars of capacity in all, so the memory it
+ * pins stays small however large the batches were. Buffers that don't fit are left to the garbage collector.
+ */
+public final class LinePayload {
+    private static final int INITIAL_CAPACITY = 4 * 1024;
+
+    // Buffers that grew past this are left to the garbage collector instead of going back to the pool
+    private static final int MAX_POOLED_CAPACITY = 16 * INITIAL_CAPACITY;
+    private static final int MAX_POOLED_BUFFERS = 256;
+    private static final long MAX_POOLED_CHARS = 2L * 1024 * 1024;
+
+    // Payloads are logged this far at most
+    private static final int MAX_SAMPLE_CHARS = 1024;
+
+    private static final Queue<LinePayload> POOL = new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
+    private static final AtomicLong POOLED_CHARS = new AtomicLong();
+
+    private final StringBuilder lines = new StringBuilder(INITIAL_CAPACITY);
+    private int lineCount;
+    private int byteLength;
+
+    // Payload rendered by getPayload(), until the next line is appended
+    private String payload;
+
+    LinePayload() { }
+
+    /**
+     * Get an empty buffer from the pool, or a new one if pool is empty
+     * @return
+     */
+    public static LinePayload acquire() {
+        LinePayload linePayload = POOL.poll();
+        if(linePayload == null) return new LinePayload();
+
+        POOLED_CHARS.addAndGet(-linePayload.lines.capacity());
+        return linePayload;
+    }
+
+    /**
+     * Clear this buffer, dropping its rendered payload, and give it back to the pool if there is room for it.
+     * It must not be used after this call.
+     */
+    public void release() {
+        clear();
+
+        int capacity = lines.capacity();
+        if(capacity > MAX_POOLED_CAPACITY) return;
+
+        if(POOLED_CHARS.addAndGet(capacity) > MAX_POOLED_CHARS || !POOL.offer(this)) {
+            POOLED_CHARS.addAndGet(-capacity);
+        }
+    }
+
+    /**
+     * Capacity of the buffers in the pool, in chars
+     * @return
+     */
+    public static long getPooledChars() {
+        return POOLED_CHARS.get();
+    }
+
+    /**
+     * Append one line-protocol line to the payload
+     * @param line line without a trailing newline
+     */
+    public void appendLine(CharSequence line) {
+        if(lineCount > 0) {
+            lines.append('\n');
+            byteLength++;
+        }
+
+        lines.append(line);
+        byteLength += utf8Length(line);
+        lineCount++;
+        payload = null;
+    }
+
+    /**
+     * Append all of the lines of another payload to this one
+     * @param other
+     */
+    public void appendPayload(LinePayload other) {
+        if(other.isEmpty()) return;
+
+        if(lineCount > 0) {
+            lines.append('\n');
+            byteLength++;
+        }
+
+        lines.append(other.lines);
+        byteLength += other.byteLength;
+        lineCount += other.lineCount;
+        payload = null;
+    }
+
+    /**
+     * Call consumer with every line of the payload, in order
+     * @param consumer
+     */
+    public void forEachLine(Consumer<CharSequence> consumer) {
+        if(lineCount == 0) return;
+
+        int start = 0;
+        int end;
+
+        while ((end = lines.indexOf("\n", start)) >= 0) {
+            consumer.accept(lines.subSequence(start, end));
+            start = end + 1;
+        }
+
+        consumer.accept(lines.subSequence(start, lines.length()));
+    }
+
+    /**
+     * Number of lines in the payload
+     * @return
+     */
+    public int getLineCount() {
+        return lineCount;
+    }
+
+    /**
+     * Size of the payload once it's UTF-8 encoded, in bytes
+     * @return
+     */
+    public int getByteLength() {
+        return byteLength;
+    }
+
+    public boolean isEmpty() {
+        return lineCount == 0;
+    }
+
+    /**
+     * Lines joined by "\n", same as String.join("\n", lines)
+     * @return
+     */
+    public String getPayload() {
+        if(payload == null) payload = lines.toString();
+        return payload;
+    }
+
+    /**
+     * Beginning of the payload, to log it without rendering all of it
+     * @return first MAX_SAMPLE_CHARS chars of the payload, followed by "..." if it's longer
+     */
+    public String getSample() {
+        if(lines.length() <= MAX_SAMPLE_CHARS) return getPayload();
+        return lines.substring(0, MAX_SAMPLE_CHARS) + "...";
+    }
+
+    public void clear() {
+        lines.setLength(0);
+        lineCount = 0;
+        byteLength = 0;
+        payload = null;
+    }
+
+    @Override
+    public String toString() {
+        return getPayload();
+    }
+
+    /**
+     * Same as s.toString().getBytes(StandardCharsets.UTF_8).length, without encoding anything
+     * @param s
+     * @return
+     */
+    public static int utf8Length(CharSequence s) {
+        int length = s.length();
+        int bytes = length;
+
+        for(int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if(c < 0x80) continue;
+
+            if(c < 0x800) {
+                bytes += 1;
+            }
+            else if(Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                // Pair is 2 chars and 4 bytes
+                bytes += 2;
+                i++;
+            }
+            else if(Character.isSurrogate(c)) {
+                // Unpaired surrogate is encoded as '?'
+            }
+            else {
+                bytes += 2;
+            }
+        }
+
+        return bytes;
+    }
+}
@@ -0,0 +1,477 @@
+package com.rackspacecloud.metrics.ingestionservice.listeners.processors;
+
+import com.rackspace.monplat.protocol.ExternalMetric;
+import com.rackspacecloud.metrics.ingestionservice.listeners.UnifiedMetricsListener;
+import org.springframework.util.StringUtils;
+
+import java.text.FieldPosition;
+import java.text.NumberFormat;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Encodes an ExternalMetric straight into InfluxDB line-protocol.
+ *
+ * This replaces the Dimension -> Point.Builder -> Point.lineProtocol() chain on the raw path. Output is
+ * byte-for-byte the same as what Point produces for the same record, including its quirks:
+ *      - tags and fields are sorted by key, and a later tag/field with the same key replaces an earlier one
+ *      - tags with an empty key or value are dropped
+ *      - a null value for an unquoted tag fails the record (Point throws NullPointerException)
+ *      - a record without any field fails (Point throws IllegalArgumentException)
+ *      - doubles are formatted with the same NumberFormat settings as Point
+ *
+ * Rendered measurement and tags are cached in SeriesKeyCache, so for a tag set that was seen before only the
+ * fields and the timestamp are written.
+ *
+ * Instances are not thread-safe, keep one per thread; all of its scratch arrays and the output buffer are reused
+ * from record to record.
+ */
+public final class LineProtocolEncoder {
+    private static final String TENANT_ID = "tenantId";
+    private static final String ACCOUNT_TYPE = "accountType";
+    private static final String ACCOUNT = "account";
+    private static final String DEVICE = "device";
+    private static final String DEVICE_LABEL = "deviceLabel";
+    private static final String MONITORING_SYSTEM = "monitoringSystem";
+    private static final String COLLECTION_NAME = "collectionName";
+    private static final String COLLECTION_LABEL = "collectionLabel";
+    private static final String COLLECTION_TARGET = "collectionTarget";
+    private static final String UNIT_SUFFIX = "_unit";
+    private static final String UNAVAILABLE = "unavailable";
+
+    // Point keeps the last tag/field added for a key. The rank of a tag/field is its position in the order
+    // Dimension and RawMetricsProcessor used to add them, so callers may add them in any order.
+    private static final int RANK_TENANT_ID = 0;
+    private static final int RANK_ACCOUNT_TYPE = 1;
+    private static final int RANK_ACCOUNT = 2;
+    private static final int RANK_DEVICE = 3;
+    private static final int RANK_DEVICE_LABEL = 4;
+    private static final int RANK_DEVICE_METADATA = 5;
+    private static final int RANK_MONITORING_SYSTEM = 6;
+    private static final int RANK_SYSTEM_METADATA = 7;
+    private static final int RANK_COLLECTION_NAME = 8;
+    private static final int RANK_COLLECTION_LABEL = 9;
+    private static final int RANK_COLLECTION_TARGET = 10;
+    private static final int RANK_INTEGER_METRIC = 11;
+    private static final int RANK_FLOAT_METRIC = 12;
+
+    private static final int INITIAL_CAPACITY = 32;
+    private static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    // Integral doubles below this magnitude print exactly as "<long>.0" with Point's NumberFormat
+    private static final double MAX_FAST_PATH_INTEGRAL = 1e15;
+
+    // Tags: key is tagKeys[i] + (tagKeyHasUnitSuffix[i] ? "_unit" : ""), value is optionally wrapped in quotes
+    private String[] tagKeys = new String[INITIAL_CAPACITY];
+    private boolean[] tagKeyHasUnitSuffix = new boolean[INITIAL_CAPACITY];
+    private String[] tagValues = new String[INITIAL_CAPACITY];
+    private boolean[] tagValueQuoted = new boolean[INITIAL_CAPACITY];
+    private int[] tagRanks = new int[INITIAL_CAPACITY];
+    private int[] tagOrder = new int[INITIAL_CAPACITY];
+    private int tagCount;
+
+    private String[] fieldKeys = new String[INITIAL_CAPACITY];
+    private double[] fieldValues = new double[INITIAL_CAPACITY];
+    private int[] fieldRanks = new int[INITIAL_CAPACITY];
+    private int[] fieldOrder = new int[INITIAL_CAPACITY];
+    private int fieldCount;
+
+    private final StringBuilder buffer = new StringBuilder(DEFAULT_BUFFER_SIZE);
+    private final StringBuilder seriesKeyBuffer = new StringBuilder(DEFAULT_BUFFER_SIZE);
+
+    private final SeriesKeyCache seriesKeyCache;
+
+    // Looks up the collected tags in seriesKeyCache without copying them
+    private final SeriesKey seriesKeyProbe = new SeriesKey();
+
+    // Same settings as org.influxdb.dto.Point uses for floating point fields
+    private final NumberFormat numberFormat;
+    private final StringBuffer numberBuffer = new StringBuffer(32);
+    private final FieldPosition fieldPosition = new FieldPosition(NumberFormat.INTEGER_FIELD);
+
+    public LineProtocolEncoder(SeriesKeyCache seriesKeyCache) {
+        this.seriesKeyCache = seriesKeyCache;
+
+        numberFormat = NumberFormat.getInstance(Locale.ENGLISH);
+        numberFormat.setMaximumFractionDigits(340);
+        numberFormat.setGroupingUsed(false);
+        numberFormat.setMinimumFractionDigits(1);
+    }
+
+    /**
+     * Encode given record into a line-protocol string
+     * @param record
+     * @param tenantIdAndMeasurement
+     * @param epochSecond timestamp of the point in seconds
+     * @return line-protocol string with seconds precision
+     */
+    public String encode(ExternalMetric record, TenantIdAndMeasurement tenantIdAndMeasurement, long epochSecond) {
+        buffer.setLength(0);
+        encode(record, tenantIdAndMeasurement, epochSecond, buffer);
+        return buffer.toString();
+    }
+
+    /**
+     * Encode given record and append the line-protocol to the given buffer. Nothing is appended if the record
+     * can't be encoded.
+     * @param record
+     * @param tenantIdAndMeasurement
+     * @param epochSecond timestamp of the point in seconds
+     * @param out buffer to append the line to
+     */
+    public void encode(ExternalMetric record, TenantIdAndMeasurement tenantIdAndMeasurement,
+                       long epochSecond, StringBuilder out) {
+        Objects.requireNonNull(tenantIdAndMeasurement, "tenantIdAndMeasurement");
+
+        beginPoint();
+
+        addDimensionTags(tenantIdAndMeasurement.getTenantId(), record.getAccountType().name(), record.getAccount(),
+                record.getDevice(), record.getDeviceLabel(), record.getMonitoringSystem().name(),
+                record.getCollectionName(), record.getCollectionLabel(), record.getCollectionTarget());
+
+        Map<String, String> deviceMetadata = record.getDeviceMetadata();
+        if(deviceMetadata != null) deviceMetadata.forEach(this::addDeviceMetadataTag);
+
+        Map<String, String> systemMetadata = record.getSystemMetadata();
+        if(systemMetadata != null) systemMetadata.forEach(this::addSystemMetadataTag);
+
+        Map<String, String> units = record.getUnits();
+
+        for(Map.Entry<String, Long> entry : record.getIvalues().entrySet()) {
+            addIntegerMetric(entry.getKey(), entry.getValue(), units.get(entry.getKey()));
+        }
+
+        for(Map.Entry<String, Double> entry : record.getFvalues().entrySet()) {
+            addFloatMetric(entry.getKey(), entry.getValue(), units.get(entry.getKey()));
+        }
+
+        endPoint(tenantIdAndMeasurement.getMeasurement(), epochSecond, out);
+    }
+
+    /**
+     * Start collecting tags and fields of a new point. Anything collected for a previous point is dropped.
+     */
+    public void beginPoint() {
+        tagCount = 0;
+        fieldCount = 0;
+    }
+
+    /**
+     * Add tags that come from the record's dimensions, the same way Dimension.populateTagsAndFields does.
+     * @param tenantId
+     * @param accountType
+     * @param account
+     * @param device
+     * @param deviceLabel
+     * @param monitoringSystem
+     * @param collectionName
+     * @param collectionLabel
+     * @param collectionTarget
+     */
+    public void addDimensionTags(String tenantId, String accountType, String account, String device,
+                                 String deviceLabel, String monitoringSystem, String collectionName,
+                                 String collectionLabel, String collectionTarget) {
+        addTag(TENANT_ID, false, tenantId, false, RANK_TENANT_ID);
+
+        // Account type and account are mandatory fields as they are part of tenantId
+        addTag(ACCOUNT_TYPE, false, accountType.trim(), false, RANK_ACCOUNT_TYPE);
+        addTag(ACCOUNT, false, account.trim(), false, RANK_ACCOUNT);
+
+        if(!StringUtils.isEmpty(device)) {
+            addTag(DEVICE, false, device.trim(), true, RANK_DEVICE);
+
+            // Same as Dimension: device label is only added when there is a device
+            addTag(DEVICE_LABEL, false, deviceLabel.trim(), true, RANK_DEVICE_LABEL);
+        }
+
+        // Monitoring system and collection name are mandatory fields as they are part of measurement name
+        addTag(MONITORING_SYSTEM, false, monitoringSystem.trim(), true, RANK_MONITORING_SYSTEM);
+        addTag(COLLECTION_NAME, false, collectionName.trim(), true, RANK_COLLECTION_NAME);
+
+        if(!StringUtils.isEmpty(collectionLabel)) {
+            addTag(COLLECTION_LABEL, false, collectionLabel.trim(), true, RANK_COLLECTION_LABEL);
+        }
+
+        if(!StringUtils.isEmpty(collectionTarget)) {
+            addTag(COLLECTION_TARGET, false, collectionTarget.trim(), true, RANK_COLLECTION_TARGET);
+        }
+    }
+
+    /**
+     * Add one deviceMetadata entry as a tag
+     * @param key
+     * @param value
+     */
+    public void addDeviceMetadataTag(String key, String value) {
+        // Dimension wraps these values in quotes without a null check, so a null value ends up as "null"
+        addTag(key, false, String.valueOf(value), true, RANK_DEVICE_METADATA);
+    }
+
+    /**
+     * Add one systemMetadata entry as a tag
+     * @param key
+     * @param value
+     */
+    public void addSystemMetadataTag(String key, String value) {
+        addTag(key, false, String.valueOf(value), true, RANK_SYSTEM_METADATA);
+    }
+
+    /**
+     * Add one ivalues entry as a field along with its unit tag
+     * @param metricName metric name as it is in the record
+     * @param value
+     * @param unit unit of the metric, or null if record has no unit for it
+     */
+    public void addIntegerMetric(String metricName, long value, String unit) {
+        addMetric(metricName, value, unit, RANK_INTEGER_METRIC);
+    }
+
+    /**
+     * Add one fvalues entry as a field along with its unit tag
+     * @param metricName metric name as it is in the record
+     * @param value
+     * @param unit unit of the metric, or null if record has no unit for it
+     */
+    public void addFloatMetric(String metricName, double value, String unit) {
+        addMetric(metricName, value, unit, RANK_FLOAT_METRIC);
+    }
+
+    /**
+     * Append the collected point to the given buffer. Nothing is appended if the point is not valid.
+     * @param measurement
+     * @param epochSecond timestamp of the point in seconds
+     * @param out buffer to append the line to
+     */
+    public void endPoint(String measurement, long epochSecond, StringBuilder out) {
+        Objects.requireNonNull(measurement, "measurement");
+
+        if(measurement.isEmpty()) {
+            throw new IllegalArgumentException("Expecting a non-empty string for measurement");
+        }
+
+        if(fieldCount == 0) {
+            throw new IllegalArgumentException("Expecting a positive number for fields size");
+        }
+
+        out.append(getSeriesKey(measurement));
+        out.append(' ');
+        sortFields();
+        writeFields(out);
+        out.append(' ').append(epochSecond);
+    }
+
+    /**
+     * Get the rendered measurement and tags of the collected point, from SeriesKeyCache when possible
+     */
+    private String getSeriesKey(String measurement) {
+        seriesKeyProbe.set(measurement, tagKeys, tagKeyHasUnitSuffix, tagValues, tagValueQuoted, tagRanks, tagCount);
+
+        String seriesKey = seriesKeyCache.getIfPresent(seriesKeyProbe);
+        if(seriesKey != null) return seriesKey;
+
+        sortTags();
+
+        seriesKeyBuffer.setLength(0);
+        escapeKey(seriesKeyBuffer, measurement);
+        writeTags(seriesKeyBuffer);
+        seriesKey = seriesKeyBuffer.toString();
+
+        seriesKeyCache.put(seriesKeyProbe.copy(), seriesKey);
+        return seriesKey;
+    }
+
+    private void addMetric(String metricName, double value, String unit, int rank) {
+        String metricFieldName = UnifiedMetricsListener.replaceSpecialCharacters(metricName);
+
+        addTag(metricFieldName, true, unit == null ? UNAVAILABLE : unit, false, rank);
+        addField(metricFieldName, value, rank);
+    }
+
+    private void addTag(String key, boolean unitSuffix, String value, boolean quoted, int rank) {
+        Objects.requireNonNull(key, "tagName");
+        Objects.requireNonNull(value, "value");
+
+        // Point drops tags with empty key or value. A quoted value is never empty.
+        if(!unitSuffix && key.isEmpty()) return;
+        if(!quoted && value.isEmpty()) return;
+
+        if(tagCount == tagKeys.length) growTags();
+
+        tagKeys[tagCount] = key;
+        tagKeyHasUnitSuffix[tagCount] = unitSuffix;
+        tagValues[tagCount] = value;
+        tagValueQuoted[tagCount] = quoted;
+        tagRanks[tagCount] = rank;
+        tagOrder[tagCount] = tagCount;
+        tagCount++;
+    }
+
+    private void addField(String key, double value, int rank) {
+        if(fieldCount == fieldKeys.length) growFields();
+
+        fieldKeys[fieldCount] = key;
+        fieldValues[fieldCount] = value;
+        fieldRanks[fieldCount] = rank;
+        fieldOrder[fieldCount] = fieldCount;
+        fieldCount++;
+    }
+
+    private void growTags() {
+        int newLength = tagKeys.length * 2;
+        tagKeys = Arrays.copyOf(tagKeys, newLength);
+        tagKeyHasUnitSuffix = Arrays.copyOf(tagKeyHasUnitSuffix, newLength);
+        tagValues = Arrays.copyOf(tagValues, newLength);
+        tagValueQuoted = Arrays.copyOf(tagValueQuoted, newLength);
+        tagRanks = Arrays.copyOf(tagRanks, newLength);
+        tagOrder = Arrays.copyOf(tagOrder, newLength);
+    }
+
+    private void growFields() {
+        int newLength = fieldKeys.length * 2;
+        fieldKeys = Arrays.copyOf(fieldKeys, newLength);
+        fieldValues = Arrays.copyOf(fieldValues, newLength);
+        fieldRanks = Arrays.copyOf(fieldRanks, newLength);
+        fieldOrder = Arrays.copyOf(fieldOrder, newLength);
+    }
+
+    /**
+     * Stable insertion sort of tag indexes by key and then rank. There are only a couple dozen tags per record,
+     * so this beats any general purpose sort and doesn't allocate.
+     */
+    private void sortTags() {
+        for(int i = 1; i < tagCount; i++) {
+            int current = tagOrder[i];
+            int j = i - 1;
+            while(j >= 0 && compareTags(tagOrder[j], current) > 0) {
+                tagOrder[j + 1] = tagOrder[j];
+                j--;
+            }
+            tagOrder[j + 1] = current;
+        }
+    }
+
+    private void sortFields() {
+        for(int i = 1; i < fieldCount; i++) {
+            int current = fieldOrder[i];
+            int j = i - 1;
+            while(j >= 0 && compareFields(fieldOrder[j], current) > 0) {
+                fieldOrder[j + 1] = fieldOrder[j];
+                j--;
+            }
+            fieldOrder[j + 1] = current;
+        }
+    }
+
+    private int compareTags(int left, int right) {
+        int result = compareTagKeys(left, right);
+        return result != 0 ? result : Integer.compare(tagRanks[left], tagRanks[right]);
+    }
+
+    private int compareFields(int left, int right) {
+        int result = fieldKeys[left].compareTo(fieldKeys[right]);
+        return result != 0 ? result : Integer.compare(fieldRanks[left], fieldRanks[right]);
+    }
+
+    /**
+     * Compare two tag keys the same way String.compareTo would compare the full (suffixed) keys
+     */
+    private int compareTagKeys(int left, int right) {
+        String leftKey = tagKeys[left];
+        String rightKey = tagKeys[right];
+        int leftLength = tagKeyLength(left);
+        int rightLength = tagKeyLength(right);
+        int limit = Math.min(leftLength, rightLength);
+
+        for(int k = 0; k < limit; k++) {
+            char c1 = tagKeyCharAt(leftKey, tagKeyHasUnitSuffix[left], k);
+            char c2 = tagKeyCharAt(rightKey, tagKeyHasUnitSuffix[right], k);
+            if(c1 != c2) return c1 - c2;
+        }
+
+        return leftLength - rightLength;
+    }
+
+    private int tagKeyLength(int index) {
+        return tagKeys[index].length() + (tagKeyHasUnitSuffix[index] ? UNIT_SUFFIX.length() : 0);
+    }
+
+    private static char tagKeyCharAt(String key, boolean unitSuffix, int position) {
+        if(!unitSuffix || position < key.length()) return key.charAt(position);
+        return UNIT_SUFFIX.charAt(position - key.length());
+    }
+
+    private void writeTags(StringBuilder out) {
+        for(int i = 0; i < tagCount; i++) {
+            int index = tagOrder[i];
+
+            // Of equal keys, the last one after sorting is the one that Point would have kept
+            if(i + 1 < tagCount && compareTagKeys(index, tagOrder[i + 1]) == 0) continue;
+
+            out.append(',');
+            escapeKey(out, tagKeys[index]);
+            if(tagKeyHasUnitSuffix[index]) out.append(UNIT_SUFFIX);
+            out.append('=');
+
+            if(tagValueQuoted[index]) {
+                out.append('"');
+                escapeKey(out, tagValues[index]);
+                out.append('"');
+            }
+            else {
+                escapeKey(out, tagValues[index]);
+            }
+        }
+    }
+
+    private void writeFields(StringBuilder out) {
+        boolean first = true;
+
+        for(int i = 0; i < fieldCount; i++) {
+            int index = fieldOrder[i];
+
+            if(i + 1 < fieldCount && fieldKeys[index].equals(fieldKeys[fieldOrder[i + 1]])) continue;
+
+            if(!first) out.append(',');
+            first = false;
+
+            escapeKey(out, fieldKeys[index]);
+            out.append('=');
+            appendDouble(out, fieldValues[index]);
+        }
+    }
+
+    private void appendDouble(StringBuilder out, double value) {
+        // Most metrics are counters, gauges of whole numbers. Those print as "<long>.0".
+        // Negative zero and anything that doesn't fit exactly go through the NumberFormat Point uses.
+        if(value == Math.rint(value) && Math.abs(value) < MAX_FAST_PATH_INTEGRAL
+                && !(value == 0.0 && Double.doubleToRawLongBits(value) != 0L)) {
+            out.append((long) value).append(".0");
+            return;
+        }
+
+        numberBuffer.setLength(0);
+        numberFormat.format(value, numberBuffer, fieldPosition);
+        out.append(numberBuffer);
+    }
+
+    /**
+     * Escape the same characters as Point does for measurement, tag keys, tag values and field keys
+     */
+    static void escapeKey(StringBuilder out, String key) {
+        for(int i = 0; i < key.length(); i++) {
+            char c = key.charAt(i);
+            switch (c) {
+                case ' ':
+                case ',':
+                case '=':
+                    out.append('\\');
+                    break;
+                default:
+                    break;
+            }
+            out.append(c);
+        }
+    }
+}
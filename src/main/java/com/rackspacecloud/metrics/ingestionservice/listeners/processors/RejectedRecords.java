@@ -0,0 +1,129 @@
+package com.rackspacecloud.metrics.ingestionservice.listeners.processors;
+
+import com.rackspacecloud.metrics.ingestionservice.listeners.quarantine.RecordQuarantine;
+import com.rackspacecloud.metrics.ingestionservice.utils.LogSampler;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.MessageHeaders;
+
+import java.nio.charset.StandardCharsets;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Records dropped from a batch because they can't be converted into line-protocol. The rest of the batch is
+ * still written, so a bad record doesn't make the whole batch fail over and over again.
+ *
+ * Rejected records are counted by reason in "ingestion.records.rejected" and added to the quarantine file
+ * when there is one. Only one rejected record per reason is logged every LOG_INTERVAL_MS, along with the number
+ * of records rejected since the previous one; during a bad-data storm logging every record costs more than
+ * processing the batch does.
+ */
+@Slf4j
+public final class RejectedRecords implements MeterBinder {
+    static final String REJECTED_RECORDS = "ingestion.records.rejected";
+
+    private static final long LOG_INTERVAL_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private static final RejectedRecords INSTANCE = new RejectedRecords();
+
+    private final Map<Reason, LongAdder> counts = new EnumMap<>(Reason.class);
+    private final Map<Reason, LogSampler> logSamplers = new EnumMap<>(Reason.class);
+
+    private volatile RecordQuarantine quarantine;
+
+    private RejectedRecords() {
+        for(Reason reason : Reason.values()) {
+            counts.put(reason, new LongAdder());
+            logSamplers.put(reason, new LogSampler(LOG_INTERVAL_MS));
+        }
+    }
+
+    /**
+     * Get the rejected records shared by all processors
+     * @return
+     */
+    public static RejectedRecords get() {
+        return INSTANCE;
+    }
+
+    /**
+     * Add rejected records to given quarantine from now on
+     * @param quarantine null to only count and log them
+     */
+    public void setQuarantine(RecordQuarantine quarantine) {
+        this.quarantine = quarantine;
+    }
+
+    /**
+     * Reject given record. It's rendered into text only when it's logged, or by the quarantine's writer thread.
+     * @param reason
+     * @param headers headers of the record, for its topic, partition and offset
+     * @param record raw value as byte[], or the deserialized record
+     * @param detail what is wrong with the record
+     */
+    public void reject(Reason reason, MessageHeaders headers, Object record, String detail) {
+        counts.get(reason).increment();
+
+        RecordQuarantine currentQuarantine = quarantine;
+        if(currentQuarantine != null) {
+            currentQuarantine.addRejectedRecord(headers, record, reason + ": " + detail);
+        }
+
+        long rejected = logSamplers.get(reason).sample();
+        if(rejected == 0) return;
+
+        log.warn("Rejected [{}] records for [{}] since last reported. Sample of topic [{}], partition [{}] " +
+                        "at offset [{}]: [{}]. Record is: [{}]",
+                rejected, reason,
+                headers.get(KafkaHeaders.RECEIVED_TOPIC), headers.get(KafkaHeaders.RECEIVED_PARTITION_ID),
+                headers.get(KafkaHeaders.OFFSET), detail, truncate(record));
+    }
+
+    /**
+     * Get the number of records rejected for given reason since start
+     * @param reason
+     * @return
+     */
+    public long getCount(Reason reason) {
+        return counts.get(reason).sum();
+    }
+
+    private static String truncate(Object record) {
+        // Longer records are truncated in the logs, the quarantine file has all of it
+        return LogSampler.truncate(record instanceof byte[]
+                ? new String((byte[]) record, StandardCharsets.UTF_8) : String.valueOf(record));
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        counts.forEach((reason, count) ->
+                FunctionCounter.builder(REJECTED_RECORDS, count, LongAdder::sum)
+                        .description("Records dropped from their batch because they can't be converted")
+                        .tag("reason", reason.name().toLowerCase(Locale.ROOT))
+                        .register(registry));
+    }
+
+    /**
+     * Why a record is rejected
+     */
+    public enum Reason {
+        // Timestamp has whitespace or can't be parsed
+        INVALID_TIMESTAMP,
+
+        // Account type or monitoring system is invalid, so the record has no tenant or measurement
+        INVALID_ROUTING,
+
+        // Record is not valid JSON or Avro, or misses mandatory fields
+        UNPARSEABLE,
+
+        // Anything else that went wrong converting the record into line-protocol
+        UNCONVERTIBLE
+    }
+}
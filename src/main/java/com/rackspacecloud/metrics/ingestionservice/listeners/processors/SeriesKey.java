@@ -0,0 +1,99 @@
+package com.rackspacecloud.metrics.ingestionservice.listeners.processors;
+
+import java.util.Arrays;
+
+/**
+ * Identity of a point's tag set as LineProtocolEncoder collected it: measurement plus every tag with its
+ * flags and rank, in the order they were added. Two points with equal SeriesKey render the same series key
+ * (measurement and tags) in line-protocol.
+ *
+ * LineProtocolEncoder keeps one instance that points at its own scratch arrays for lookups, and stores a
+ * {@link #copy()} in SeriesKeyCache on a miss.
+ */
+final class SeriesKey {
+    // Rough per entry overhead of the key, its arrays and the cache node, in bytes
+    private static final int ENTRY_OVERHEAD = 128;
+
+    private String measurement;
+    private String[] keys;
+    private boolean[] unitSuffixes;
+    private String[] values;
+    private boolean[] quoted;
+    private int[] ranks;
+    private int count;
+    private int hash;
+
+    void set(String measurement, String[] keys, boolean[] unitSuffixes, String[] values, boolean[] quoted,
+             int[] ranks, int count) {
+        this.measurement = measurement;
+        this.keys = keys;
+        this.unitSuffixes = unitSuffixes;
+        this.values = values;
+        this.quoted = quoted;
+        this.ranks = ranks;
+        this.count = count;
+
+        int result = measurement.hashCode();
+        for(int i = 0; i < count; i++) {
+            result = 31 * result + keys[i].hashCode();
+            result = 31 * result + values[i].hashCode();
+            result = 31 * result + (ranks[i] << 2 | (unitSuffixes[i] ? 2 : 0) | (quoted[i] ? 1 : 0));
+        }
+        this.hash = result;
+    }
+
+    /**
+     * Copy that doesn't share the scratch arrays, to be used as a cache key
+     * @return
+     */
+    SeriesKey copy() {
+        SeriesKey copy = new SeriesKey();
+        copy.measurement = measurement;
+        copy.keys = Arrays.copyOf(keys, count);
+        copy.unitSuffixes = Arrays.copyOf(unitSuffixes, count);
+        copy.values = Arrays.copyOf(values, count);
+        copy.quoted = Arrays.copyOf(quoted, count);
+        copy.ranks = Arrays.copyOf(ranks, count);
+        copy.count = count;
+        copy.hash = hash;
+        return copy;
+    }
+
+    /**
+     * Approximate memory held by this key, in bytes
+     * @return
+     */
+    int getWeight() {
+        int chars = measurement.length();
+        for(int i = 0; i < count; i++) chars += keys[i].length() + values[i].length();
+
+        // 2 bytes per char, 2 references, 2 booleans and an int per tag
+        return ENTRY_OVERHEAD + 2 * chars + count * 14;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) return true;
+        if(!(o instanceof SeriesKey)) return false;
+
+        SeriesKey other = (SeriesKey) o;
+        if(hash != other.hash || count != other.count || !measurement.equals(other.measurement)) return false;
+
+        for(int i = 0; i < count; i++) {
+            if(ranks[i] != other.ranks[i]
+                    || unitSuffixes[i] != other.unitSuffixes[i]
+                    || quoted[i] != other.quoted[i]
+                    || !keys[i].equals(other.keys[i])
+                    || !values[i].equals(other.values[i])) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,56 @@
+package com.rackspacecloud.metrics.ingestionservice.listeners.processors;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * Bounded cache of rendered series keys (escaped measurement followed by the sorted, escaped tags) shared by
+ * the LineProtocolEncoder instances created with it. A device/collection sends the same tag set every
+ * collection interval, so on a hit encoding a point only has to append its fields and timestamp.
+ *
+ * Cache is bounded by the approximate memory of its entries. Hit rate and size are published to Micrometer
+ * under "series.key.cache", along with the approximate memory in "series.key.cache.weight".
+ */
+public final class SeriesKeyCache implements MeterBinder {
+    static final String CACHE_NAME = "series.key.cache";
+
+    private final Cache<SeriesKey, String> cache;
+
+    public SeriesKeyCache(long maxWeightBytes) {
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxWeightBytes)
+                .weigher((SeriesKey key, String seriesKey) -> key.getWeight() + 2 * seriesKey.length())
+                .recordStats()
+                .build();
+    }
+
+    String getIfPresent(SeriesKey key) {
+        return cache.getIfPresent(key);
+    }
+
+    void put(SeriesKey key, String seriesKey) {
+        cache.put(key, seriesKey);
+    }
+
+    /**
+     * Drop all cached series keys
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        CaffeineCacheMetrics.monitor(registry, cache, CACHE_NAME);
+
+        Gauge.builder(CACHE_NAME + ".weight", cache,
+                c -> c.policy().eviction().map(eviction -> eviction.weightedSize().orElse(0L)).orElse(0L))
+                .description("Approximate memory held by cached series keys")
+                .baseUnit("bytes")
+                .register(registry);
+    }
+}
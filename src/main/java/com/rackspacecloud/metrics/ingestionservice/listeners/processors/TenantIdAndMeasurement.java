@@ -1,11 +1,43 @@
 package com.rackspacecloud.metrics.ingestionservice.listeners.processors;
 
-import lombok.AllArgsConstructor;
-import lombok.Data;
-
-@Data
-@AllArgsConstructor
-public class TenantIdAndMeasurement {
-    String tenantId;
-    String measurement;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.util.Objects;
+
+/**
+ * Immutable tenantId and measurement pair. It's used as the key to group records of a batch, so the hash is
+ * computed once. CommonMetricsProcessor hands out canonical instances, which makes most equals calls
+ * a reference check.
+ */
+@Getter
+@ToString
+public final class TenantIdAndMeasurement {
+    private final String tenantId;
+    private final String measurement;
+
+    @ToString.Exclude
+    private final int hash;
+
+    public TenantIdAndMeasurement(String tenantId, String measurement) {
+        this.tenantId = tenantId;
+        this.measurement = measurement;
+        this.hash = Objects.hash(tenantId, measurement);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if(this == o) return true;
+        if(!(o instanceof TenantIdAndMeasurement)) return false;
+
+        TenantIdAndMeasurement other = (TenantIdAndMeasurement) o;
+        return hash == other.hash
+                && Objects.equals(tenantId, other.tenantId)
+                && Objects.equals(measurement, other.measurement);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
 }
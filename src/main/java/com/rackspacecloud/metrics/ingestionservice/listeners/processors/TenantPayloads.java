@@ -0,0 +1,141 @@
+package com.rackspacecloud.metrics.ingestionservice.listeners.processors;
+
+import org.apache.kafka.common.TopicPartition;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.MessageHeaders;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Line-protocol payloads of one batch, grouped by tenant and measurement. Every group appends its lines into
+ * a pooled {@link LinePayload}, so a payload is ready to be written as soon as the batch is processed.
+ *
+ * Call {@link #release()} once the payloads are written to give the buffers back to the pool.
+ * Instances are not thread-safe.
+ */
+public final class TenantPayloads {
+    private final Map<TenantIdAndMeasurement, LinePayload> payloads = new HashMap<>();
+
+    // Offset of the first record in every payload, by partition, to tell which records a failed write held
+    private final Map<TenantIdAndMeasurement, Map<TopicPartition, Long>> firstOffsets = new HashMap<>();
+
+    // Scratch buffer to encode a line into before it's added
+    private final StringBuilder lineBuffer = new StringBuilder(1024);
+
+    /**
+     * Get the scratch buffer, cleared, to encode the next line into
+     * @return
+     */
+    public StringBuilder getLineBuffer() {
+        lineBuffer.setLength(0);
+        return lineBuffer;
+    }
+
+    /**
+     * Append the line to the payload of given tenant and measurement
+     * @param tenantIdAndMeasurement
+     * @param line line without a trailing newline
+     */
+    public void addLine(TenantIdAndMeasurement tenantIdAndMeasurement, CharSequence line) {
+        LinePayload payload = payloads.get(tenantIdAndMeasurement);
+
+        if(payload == null) {
+            payload = LinePayload.acquire();
+            payloads.put(tenantIdAndMeasurement, payload);
+        }
+
+        payload.appendLine(line);
+    }
+
+    /**
+     * Remember that the record with given headers went into the payload of given tenant and measurement.
+     * Records without topic, partition or offset headers are not tracked.
+     * @param tenantIdAndMeasurement
+     * @param headers
+     */
+    public void addRecordOffset(TenantIdAndMeasurement tenantIdAndMeasurement, MessageHeaders headers) {
+        Object topic = headers.get(KafkaHeaders.RECEIVED_TOPIC);
+        Object partition = headers.get(KafkaHeaders.RECEIVED_PARTITION_ID);
+        Object offset = headers.get(KafkaHeaders.OFFSET);
+
+        if(topic == null || !(partition instanceof Number) || !(offset instanceof Number)) return;
+
+        firstOffsets.computeIfAbsent(tenantIdAndMeasurement, key -> new HashMap<>(4)).merge(
+                new TopicPartition(topic.toString(), ((Number) partition).intValue()),
+                ((Number) offset).longValue(), Math::min);
+    }
+
+    /**
+     * Get the offset of the first record in the payload of given tenant and measurement, by partition
+     * @param tenantIdAndMeasurement
+     * @return offsets, empty if none of its records were tracked
+     */
+    public Map<TopicPartition, Long> getFirstOffsets(TenantIdAndMeasurement tenantIdAndMeasurement) {
+        Map<TopicPartition, Long> offsets = firstOffsets.get(tenantIdAndMeasurement);
+        return offsets == null ? Collections.emptyMap() : Collections.unmodifiableMap(offsets);
+    }
+
+    /**
+     * Append the payloads of other after the lines already in here. Buffers of other are taken over or
+     * released, so other is left empty.
+     * @param other
+     */
+    public void addAll(TenantPayloads other) {
+        for(Map.Entry<TenantIdAndMeasurement, LinePayload> entry : other.payloads.entrySet()) {
+            LinePayload payload = payloads.get(entry.getKey());
+
+            if(payload == null) {
+                payloads.put(entry.getKey(), entry.getValue());
+            }
+            else {
+                payload.appendPayload(entry.getValue());
+                entry.getValue().release();
+            }
+        }
+
+        other.firstOffsets.forEach((tenantIdAndMeasurement, offsets) -> {
+            Map<TopicPartition, Long> merged =
+                    firstOffsets.computeIfAbsent(tenantIdAndMeasurement, key -> new HashMap<>(4));
+            offsets.forEach((partition, offset) -> merged.merge(partition, offset, Math::min));
+        });
+
+        other.payloads.clear();
+        other.firstOffsets.clear();
+    }
+
+    /**
+     * Get the payloads by tenant and measurement
+     * @return unmodifiable view of the payloads
+     */
+    public Map<TenantIdAndMeasurement, LinePayload> getPayloads() {
+        return Collections.unmodifiableMap(payloads);
+    }
+
+    /**
+     * Get the payload of given tenant and measurement
+     * @param tenantIdAndMeasurement
+     * @return payload, or null if batch has no line for it
+     */
+    public LinePayload get(TenantIdAndMeasurement tenantIdAndMeasurement) {
+        return payloads.get(tenantIdAndMeasurement);
+    }
+
+    public int size() {
+        return payloads.size();
+    }
+
+    public boolean isEmpty() {
+        return payloads.isEmpty();
+    }
+
+    /**
+     * Give all of the buffers back to the pool and clear the payloads
+     */
+    public void release() {
+        payloads.values().forEach(LinePayload::release);
+        payloads.clear();
+        firstOffsets.clear();
+    }
+}
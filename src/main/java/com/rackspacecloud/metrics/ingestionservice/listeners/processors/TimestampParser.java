@@ -0,0 +1,173 @@
+package com.rackspacecloud.metrics.ingestionservice.listeners.processors;
+
+import java.time.Instant;
+
+/**
+ * Turns record timestamps into epoch seconds.
+ *
+ * Raw records carry timestamps like 2018-03-27T13:15:06.497Z. That shape is parsed directly from its digits;
+ * anything else goes through Instant.parse, so the result (or the exception) is always the same as
+ * Instant.parse(timestamp).getEpochSecond().
+ *
+ * Records of a batch cluster around the same few seconds, so epoch seconds of recently seen
+ * "yyyy-MM-ddTHH:mm:ss" prefixes are kept in a small direct-mapped cache.
+ *
+ * Instances are not thread-safe. Use {@link #get()} to get the instance bound to the current thread.
+ */
+public final class TimestampParser {
+    // "yyyy-MM-ddTHH:mm:ss"
+    private static final int SECONDS_PREFIX_LENGTH = 19;
+    private static final int MAX_FRACTION_DIGITS = 9;
+
+    private static final int CACHE_SIZE = 64; // power of 2
+    private static final int CACHE_MASK = CACHE_SIZE - 1;
+
+    private static final int SECONDS_PER_DAY = 86_400;
+    private static final int DAYS_0000_TO_1970 = 719_528;
+
+    private static final ThreadLocal<TimestampParser> PARSERS = ThreadLocal.withInitial(TimestampParser::new);
+
+    private final String[] cachedPrefixes = new String[CACHE_SIZE];
+    private final long[] cachedEpochSeconds = new long[CACHE_SIZE];
+
+    TimestampParser() { }
+
+    /**
+     * Get the parser bound to the current thread
+     * @return
+     */
+    public static TimestampParser get() {
+        return PARSERS.get();
+    }
+
+    /**
+     * Same as Instant.parse(timestamp).getEpochSecond()
+     * @param timestamp
+     * @return
+     * @throws java.time.format.DateTimeParseException if timestamp can't be parsed
+     */
+    public long toEpochSecond(String timestamp) {
+        if(!hasFastPathSuffix(timestamp)) return Instant.parse(timestamp).getEpochSecond();
+
+        int index = prefixHash(timestamp) & CACHE_MASK;
+        String cachedPrefix = cachedPrefixes[index];
+
+        if(cachedPrefix != null && timestamp.regionMatches(0, cachedPrefix, 0, SECONDS_PREFIX_LENGTH)) {
+            return cachedEpochSeconds[index];
+        }
+
+        long epochSecond = parseSecondsPrefix(timestamp);
+        if(epochSecond == Long.MIN_VALUE) return Instant.parse(timestamp).getEpochSecond();
+
+        cachedPrefixes[index] = timestamp.substring(0, SECONDS_PREFIX_LENGTH);
+        cachedEpochSeconds[index] = epochSecond;
+
+        return epochSecond;
+    }
+
+    /**
+     * Check that what comes after the seconds is "Z" or a fraction of 1 to 9 digits and "Z"
+     */
+    private static boolean hasFastPathSuffix(String timestamp) {
+        int length = timestamp.length();
+
+        if(length == SECONDS_PREFIX_LENGTH + 1) return timestamp.charAt(SECONDS_PREFIX_LENGTH) == 'Z';
+
+        if(length < SECONDS_PREFIX_LENGTH + 3 || length > SECONDS_PREFIX_LENGTH + MAX_FRACTION_DIGITS + 2) {
+            return false;
+        }
+
+        if(timestamp.charAt(SECONDS_PREFIX_LENGTH) != '.' || timestamp.charAt(length - 1) != 'Z') return false;
+
+        for(int i = SECONDS_PREFIX_LENGTH + 1; i < length - 1; i++) {
+            if(!isDigit(timestamp.charAt(i))) return false;
+        }
+
+        return true;
+    }
+
+    private static int prefixHash(String timestamp) {
+        // Seconds, minutes and hours change the most, so they are enough to spread the entries
+        return (timestamp.charAt(18) - '0')
+                + 10 * (timestamp.charAt(17) - '0')
+                + 60 * (timestamp.charAt(15) - '0')
+                + 600 * (timestamp.charAt(14) - '0')
+                + 3600 * (timestamp.charAt(12) - '0');
+    }
+
+    /**
+     * Parse "yyyy-MM-ddTHH:mm:ss" at the start of timestamp into epoch seconds
+     * @return epoch seconds, or Long.MIN_VALUE if prefix doesn't have the expected shape or range
+     */
+    private static long parseSecondsPrefix(String timestamp) {
+        if(timestamp.charAt(4) != '-' || timestamp.charAt(7) != '-' || timestamp.charAt(10) != 'T'
+                || timestamp.charAt(13) != ':' || timestamp.charAt(16) != ':') {
+            return Long.MIN_VALUE;
+        }
+
+        int year = parseDigits(timestamp, 0, 4);
+        int month = parseDigits(timestamp, 5, 2);
+        int day = parseDigits(timestamp, 8, 2);
+        int hour = parseDigits(timestamp, 11, 2);
+        int minute = parseDigits(timestamp, 14, 2);
+        int second = parseDigits(timestamp, 17, 2);
+
+        // Leap seconds (second 60) and out of range values are left to Instant.parse
+        if(year < 0 || month < 1 || month > 12 || day < 1 || day > lengthOfMonth(year, month)
+                || hour < 0 || hour > 23 || minute < 0 || minute > 59 || second < 0 || second > 59) {
+            return Long.MIN_VALUE;
+        }
+
+        return toEpochDay(year, month, day) * SECONDS_PER_DAY + hour * 3600 + minute * 60 + second;
+    }
+
+    /**
+     * @return parsed number, or -1 if any of the characters is not a digit
+     */
+    private static int parseDigits(String s, int start, int count) {
+        int result = 0;
+        for(int i = start; i < start + count; i++) {
+            char c = s.charAt(i);
+            if(!isDigit(c)) return -1;
+            result = result * 10 + (c - '0');
+        }
+        return result;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static int lengthOfMonth(int year, int month) {
+        switch (month) {
+            case 2: return isLeapYear(year) ? 29 : 28;
+            case 4:
+            case 6:
+            case 9:
+            case 11:
+                return 30;
+            default: return 31;
+        }
+    }
+
+    private static boolean isLeapYear(int year) {
+        return (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0);
+    }
+
+    /**
+     * Same calculation as LocalDate.toEpochDay for non-negative years
+     */
+    private static long toEpochDay(int year, int month, int day) {
+        long total = 365L * year;
+        total += (year + 3) / 4 - (year + 99) / 100 + (year + 399) / 400;
+        total += (367 * month - 362) / 12;
+        total += day - 1;
+
+        if(month > 2) {
+            total--;
+            if(!isLeapYear(year)) total--;
+        }
+
+        return total - DAYS_0000_TO_1970;
+    }
+}
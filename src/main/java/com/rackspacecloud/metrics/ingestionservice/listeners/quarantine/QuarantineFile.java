@@ -0,0 +1,117 @@
+package com.rackspacecloud.metrics.ingestionservice.listeners.quarantine;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Local file that lines are appended to. Once the file would grow beyond maxFileBytes, it's rolled over to
+ * file.1, file.1 to file.2 and so on; only maxFiles rolled files are kept, so the disk used stays bounded.
+ *
+ * File is opened on the first append. Instances are thread-safe.
+ */
+public class QuarantineFile implements Closeable {
+    private final Path file;
+    private final long maxFileBytes;
+    private final int maxFiles;
+
+    private OutputStream out;
+    private long size;
+
+    public QuarantineFile(Path file, long maxFileBytes, int maxFiles) {
+        this.file = file;
+        this.maxFileBytes = maxFileBytes;
+        this.maxFiles = Math.max(0, maxFiles);
+    }
+
+    /**
+     * Append given line to the file
+     * @param line line without a trailing newline
+     * @throws IOException
+     */
+    public void append(String line) throws IOException {
+        append(Collections.singletonList(line));
+    }
+
+    /**
+     * Append given lines to the file, flushing it once they are all written
+     * @param lines lines without a trailing newline
+     * @throws IOException
+     */
+    public synchronized void append(List<String> lines) throws IOException {
+        if(out == null) open();
+
+        for(String line : lines) {
+            byte[] bytes = (line + "\n").getBytes(StandardCharsets.UTF_8);
+
+            // A line longer than maxFileBytes still goes into a file of its own
+            if(size > 0 && size + bytes.length > maxFileBytes) roll();
+
+            out.write(bytes);
+            size += bytes.length;
+        }
+
+        out.flush();
+    }
+
+    private void open() throws IOException {
+        if(file.getParent() != null) Files.createDirectories(file.getParent());
+
+        out = new BufferedOutputStream(
+                Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+        size = Files.size(file);
+    }
+
+    private void roll() throws IOException {
+        close();
+
+        if(maxFiles == 0) {
+            Files.delete(file);
+        }
+        else {
+            for(int i = maxFiles - 1; i >= 1; i--) {
+                Path rolled = getRolledFile(i);
+                if(Files.exists(rolled)) {
+                    Files.move(rolled, getRolledFile(i + 1), StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+
+            Files.move(file, getRolledFile(1), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        open();
+    }
+
+    /**
+     * Get the path of the file rolled over index times
+     * @param index
+     * @return
+     */
+    public Path getRolledFile(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(out == null) return;
+
+        try {
+            out.close();
+        }
+        finally {
+            out = null;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+package com.rackspacecloud.metrics.ingestionservice.listeners.quarantine;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rackspacecloud.metrics.ingestionservice.utils.LogSampler;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.kafka.support.serializer.DeserializationException;
+import org.springframework.kafka.support.serializer.ErrorHandlingDeserializer2;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.ObjectInputFilter;
+import java.io.ObjectInputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes the records ErrorHandlingDeserializer2 couldn't deserialize out of a batch, so that the rest of the batch
+ * is processed and the bad records are committed along with it. Such records have a null value and the
+ * DeserializationException, with the record's data, in the VALUE_DESERIALIZER_EXCEPTION_HEADER header.
+ *
+ * Every quarantined record is appended to the quarantine file as a JSON line with its topic, partition, offset,
+ * the failure and its data in Base64, and counted in "ingestion.records.quarantined" by topic. Records rejected
+ * by the processors (see RejectedRecords) are appended to the same file.
+ *
+ * Only one quarantined record is logged every LOG_INTERVAL_MS, along with the number of records quarantined
+ * since the previous one, the same way RejectedRecords does.
+ *
+ * Records are queued and appended by a background thread, so that a bad-data storm doesn't make the listener
+ * threads wait on the file. Once maxQueuedRecords are waiting, further records are dropped from the file and
+ * counted in "ingestion.records.quarantine.dropped".
+ */
+@Slf4j
+public class RecordQuarantine {
+    private static final String QUARANTINED_RECORDS = "ingestion.records.quarantined";
+    private static final String DROPPED_RECORDS = "ingestion.records.quarantine.dropped";
+
+    private static final int DEFAULT_MAX_QUEUED_RECORDS = 10000;
+
+    // Most records appended to the file before flushing it
+    private static final int MAX_RECORDS_PER_APPEND = 512;
+
+    private static final long LOG_INTERVAL_MS = TimeUnit.SECONDS.toMillis(10);
+
+    private static final long POLL_TIMEOUT_MS = 100;
+    private static final long CLOSE_TIMEOUT_MS = 10_000;
+
+    // ObjectMapper is thread-safe once configured
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+
+    // Failure header is Java-serialized and comes with the record, so only the exceptions the deserializers
+    // throw are read back from it
+    private static final ObjectInputFilter FAILURE_FILTER = ObjectInputFilter.Config.createFilter(
+            "maxdepth=32;maxrefs=4096;" +
+            DeserializationException.class.getName() + ";org.springframework.kafka.KafkaException;" +
+            "org.springframework.core.NestedRuntimeException;java.lang.*;java.util.*;" +
+            "org.apache.kafka.common.**;!*");
+
+    private final QuarantineFile quarantineFile;
+    private final MeterRegistry registry;
+    private final BlockingQueue<Entry> queue;
+    private final Counter droppedRecords;
+    private final Thread writer;
+
+    private final LogSampler logSampler = new LogSampler(LOG_INTERVAL_MS);
+
+    private volatile boolean closed;
+
+    public RecordQuarantine(QuarantineFile quarantineFile, MeterRegistry registry) {
+        this(quarantineFile, registry, DEFAULT_MAX_QUEUED_RECORDS);
+    }
+
+    public RecordQuarantine(QuarantineFile quarantineFile, MeterRegistry registry, int maxQueuedRecords) {
+        this.quarantineFile = quarantineFile;
+        this.registry = registry;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, maxQueuedRecords));
+        this.droppedRecords = registry.counter(DROPPED_RECORDS);
+        registry.gaugeCollectionSize("ingestion.records.quarantine.queued", Tags.empty(), queue);
+
+        CustomizableThreadFactory threadFactory = new CustomizableThreadFactory("record-quarantine-");
+        threadFactory.setDaemon(true);
+        this.writer = threadFactory.newThread(this::appendQueuedRecords);
+        this.writer.start();
+    }
+
+    /**
+     * Record waiting to be appended to the file. Its data and failure are rendered by the writer thread.
+     */
+    private static final class Entry {
+        private final long timeMs = System.currentTimeMillis();
+        private final Object topic;
+        private final Object partition;
+        private final Object offset;
+        private final String failure;
+        private final Object data;
+
+        // Serialized DeserializationException having both the failure and the data, instead of them
+        private final byte[] deserializationFailure;
+
+        Entry(Object topic, Object partition, Object offset, String failure, Object data,
+              byte[] deserializationFailure) {
+            this.topic = topic;
+            this.partition = partition;
+            this.offset = offset;
+            this.failure = failure;
+            this.data = data;
+            this.deserializationFailure = deserializationFailure;
+        }
+    }
+
+    /**
+     * Quarantine the records of a batch listener taking messages that failed to be deserialized
+     * @param records
+     * @return records that were deserialized, the given list itself if all of them were
+     */
+    public List<Message<?>> removeFailedRecords(List<Message<?>> records) {
+        List<Message<?>> deserializedRecords = null;
+
+        for(int i = 0; i < records.size(); i++) {
+            MessageHeaders headers = records.get(i).getHeaders();
+            byte[] failure =
+                    headers.get(ErrorHandlingDeserializer2.VALUE_DESERIALIZER_EXCEPTION_HEADER, byte[].class);
+
+            if(failure == null) {
+                if(deserializedRecords != null) deserializedRecords.add(records.get(i));
+                continue;
+            }
+
+            if(deserializedRecords == null) deserializedRecords = new ArrayList<>(records.subList(0, i));
+
+            quarantine(headers.get(KafkaHeaders.RECEIVED_TOPIC, String.class),
+                    headers.get(KafkaHeaders.RECEIVED_PARTITION_ID, Integer.class),
+                    headers.get(KafkaHeaders.OFFSET, Long.class), failure);
+        }
+
+        return deserializedRecords == null ? records : deserializedRecords;
+    }
+
+    /**
+     * Quarantine the records of a batch listener taking payloads that failed to be deserialized
+     * @param values payloads of the batch
+     * @param batchHeaders headers of the batch, with a list of values per header
+     * @param <T>
+     * @return values that were deserialized, the given list itself if all of them were
+     */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> removeFailedRecords(List<?> values, MessageHeaders batchHeaders) {
+        List<Map<String, Object>> recordHeaders =
+                batchHeaders.get(KafkaHeaders.BATCH_CONVERTED_HEADERS, List.class);
+
+        if(recordHeaders == null) return (List<T>) values;
+
+        List<String> topics = batchHeaders.get(KafkaHeaders.RECEIVED_TOPIC, List.class);
+        List<Integer> partitions = batchHeaders.get(KafkaHeaders.RECEIVED_PARTITION_ID, List.class);
+        List<Long> offsets = batchHeaders.get(KafkaHeaders.OFFSET, List.class);
+
+        List<T> deserializedValues = null;
+
+        for(int i = 0; i < values.size(); i++) {
+            Object failure = recordHeaders.get(i).get(ErrorHandlingDeserializer2.VALUE_DESERIALIZER_EXCEPTION_HEADER);
+
+            if(!(failure instanceof byte[])) {
+                if(deserializedValues != null) deserializedValues.add((T) values.get(i));
+                continue;
+            }
+
+            if(deserializedValues == null) deserializedValues = new ArrayList<>((List<T>) values.subList(0, i));
+
+            quarantine(topics.get(i), partitions.get(i), offsets.get(i), (byte[]) failure);
+        }
+
+        return deserializedValues == null ? (List<T>) values : deserializedValues;
+    }
+
+    /**
+     * Add a record that was deserialized, but rejected by a processor, to the quarantine file.
+     * Rejected records are counted by RejectedRecords, not in here.
+     * @param headers headers of the record
+     * @param record raw value as byte[], or the deserialized record. The latter is rendered into text
+     *               by the writer thread, so it must not be changed afterwards.
+     * @param reason
+     */
+    public void addRejectedRecord(MessageHeaders headers, Object record, String reason) {
+        enqueue(new Entry(headers.get(KafkaHeaders.RECEIVED_TOPIC), headers.get(KafkaHeaders.RECEIVED_PARTITION_ID),
+                headers.get(KafkaHeaders.OFFSET), reason, record, null));
+    }
+
+    private void quarantine(String topic, Integer partition, Long offset, byte[] failure) {
+        registry.counter(QUARANTINED_RECORDS, "topic", String.valueOf(topic)).increment();
+
+        enqueue(new Entry(topic, partition, offset, null, null, failure));
+
+        long quarantined = logSampler.sample();
+        if(quarantined == 0) return;
+
+        log.warn("Quarantined [{}] records since last reported. Sample of topic [{}], partition [{}] at offset [{}]",
+                quarantined, topic, partition, offset);
+    }
+
+    private void enqueue(Entry entry) {
+        if(closed || !queue.offer(entry)) droppedRecords.increment();
+    }
+
+    /**
+     * Append queued records to the file until closed and every record queued until then is appended
+     */
+    private void appendQueuedRecords() {
+        List<Entry> entries = new ArrayList<>(MAX_RECORDS_PER_APPEND);
+        List<String> lines = new ArrayList<>(MAX_RECORDS_PER_APPEND);
+
+        while(true) {
+            try {
+                Entry entry = queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+                if(entry == null) {
+                    if(closed) return;
+                    continue;
+                }
+
+                entries.add(entry);
+                queue.drainTo(entries, MAX_RECORDS_PER_APPEND - 1);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+
+            for(Entry entry : entries) {
+                try {
+                    lines.add(toJson(entry));
+                }
+                catch (RuntimeException | JsonProcessingException e) {
+                    log.error("Couldn't serialize quarantined record of topic [{}], partition [{}] at offset [{}]",
+                            entry.topic, entry.partition, entry.offset, e);
+                }
+            }
+
+            try {
+                quarantineFile.append(lines);
+            }
+            catch (IOException | RuntimeException e) {
+                log.error("Writing [{}] quarantined records to [{}] failed",
+                        lines.size(), quarantineFile.getFile(), e);
+            }
+
+            entries.clear();
+            lines.clear();
+        }
+    }
+
+    private static String toJson(Entry entry) throws JsonProcessingException {
+        String failure = entry.failure;
+        Object data = entry.data;
+
+        if(entry.deserializationFailure != null) {
+            try {
+                DeserializationException exception = readDeserializationFailure(entry.deserializationFailure);
+                Throwable cause = exception.getCause() == null ? exception : exception.getCause();
+
+                failure = String.valueOf(cause.getMessage());
+                data = exception.getData();
+            }
+            catch (IOException | ClassNotFoundException | ClassCastException e) {
+                failure = "Deserialization failure couldn't be read: " + e;
+            }
+        }
+
+        Map<String, Object> json = new LinkedHashMap<>();
+        json.put("time", Instant.ofEpochMilli(entry.timeMs).toString());
+        json.put("topic", entry.topic);
+        json.put("partition", entry.partition);
+        json.put("offset", entry.offset);
+        json.put("failure", failure);
+        json.put("data", data == null ? null : Base64.getEncoder().encodeToString(data instanceof byte[]
+                ? (byte[]) data : String.valueOf(data).getBytes(StandardCharsets.UTF_8)));
+
+        return MAPPER.writeValueAsString(json);
+    }
+
+    private static DeserializationException readDeserializationFailure(byte[] failure)
+            throws IOException, ClassNotFoundException {
+        try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(failure))) {
+            in.setObjectInputFilter(FAILURE_FILTER);
+            return (DeserializationException) in.readObject();
+        }
+    }
+
+    /**
+     * Append the records still queued and close the quarantine file
+     * @throws IOException
+     */
+    public void close() throws IOException {
+        closed = true;
+
+        try {
+            writer.join(CLOSE_TIMEOUT_MS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if(writer.isAlive()) {
+            log.warn("Closing quarantine file [{}] with [{}] records not appended yet",
+                    quarantineFile.getFile(), queue.size());
+        }
+
+        quarantineFile.close();
+    }
+}
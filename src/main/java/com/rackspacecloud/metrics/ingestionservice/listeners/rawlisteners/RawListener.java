@@ -1,147 +1,243 @@
 package com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners;
 
-import com.rackspace.monplat.protocol.ExternalMetric;
 import com.rackspacecloud.metrics.ingestionservice.exceptions.IngestFailedException;
 import com.rackspacecloud.metrics.ingestionservice.exceptions.InvalidDataException;
+import com.rackspacecloud.metrics.ingestionservice.exceptions.PartialIngestFailedException;
 import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBHelper;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBWriteExecutor;
+import com.rackspacecloud.metrics.ingestionservice.listeners.BatchPipeline;
 import com.rackspacecloud.metrics.ingestionservice.listeners.UnifiedMetricsListener;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.IngestedRecordCounts;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.LinePayload;
 import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantIdAndMeasurement;
-import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.processors.RawMetricsProcessor;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantPayloads;
+import com.rackspacecloud.metrics.ingestionservice.listeners.quarantine.RecordQuarantine;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.processors.RawTransformExecutor;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Tag;
 import io.micrometer.core.instrument.Timer;
-import java.io.IOException;
 import lombok.extern.slf4j.Slf4j;
-import org.influxdb.InfluxDB;
+import org.apache.kafka.common.TopicPartition;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.kafka.support.KafkaHeaders;
 import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
 import org.springframework.messaging.handler.annotation.Payload;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 @Slf4j
 public class RawListener extends UnifiedMetricsListener {
-    private ConcurrentMap<String, Map<String, Map<String, Long>>> topicPartitionMonitoringSystemRecordsCount =
-            new ConcurrentHashMap<>();
+    public static final String LISTENER_ID = "raw-listener";
+
     private InfluxDBHelper influxDBHelper;
+    private InfluxDBWriteExecutor writeExecutor;
     private MeterRegistry registry;
     private Timer batchProcessingTimer;
-
-    String localMetricsUrl;
-    String localMetricsDatabase;
-    String localMetricsRetPolicy;
+    private Counter recordsCounter;
+    private DistributionSummary payloadBytesSummary;
+    private DistributionSummary payloadLinesSummary;
 
     private Tag rawListenerTag;
-    private String hostName;
-    private InfluxDB influxDBCeresWriter;
-
-    private Map<String, Integer> payloadMetrics;
-    private static final String PAYLOAD_SIZE = "payloadsize";
-    private static final String PAYLOAD_RECORDS_COUNT = "payloadrecordscount";
+    private RawTransformExecutor transformExecutor;
+    private BatchPipeline pipeline;
+    private RecordQuarantine quarantine;
+    private IngestedRecordCounts recordCounts = new IngestedRecordCounts();
 
     @Value("${tenant-routing-service.url}")
     protected static String tenantRoutingServiceUrl;
 
-    public RawListener(InfluxDBHelper influxDBHelper, MeterRegistry registry,
-                       String localMetricsUrl, String localMetricsDatabase, String localMetricsRetPolicy) {
-        this.localMetricsUrl = localMetricsUrl;
-        this.localMetricsDatabase = localMetricsDatabase;
-        this.localMetricsRetPolicy = localMetricsRetPolicy;
+    public RawListener(InfluxDBHelper influxDBHelper, InfluxDBWriteExecutor writeExecutor, MeterRegistry registry,
+                       RawTransformExecutor transformExecutor) {
+        this.transformExecutor = transformExecutor;
 
         this.rawListenerTag = Tag.of("listener", "raw");
         this.registry = registry;
         this.batchProcessingTimer =
                 this.registry.timer("ingestion.batch.processing", Arrays.asList(rawListenerTag));
+
+        // Published by the registry on its own step, not on the threads processing batches
+        this.recordsCounter = this.registry.counter("ingestion.records", Arrays.asList(rawListenerTag));
+        this.payloadBytesSummary = DistributionSummary.builder("ingestion.payload.size")
+                .description("Size of the line-protocol payload of a tenant and measurement in a batch")
+                .baseUnit("bytes")
+                .tags(Arrays.asList(rawListenerTag))
+                .register(this.registry);
+        this.payloadLinesSummary = DistributionSummary.builder("ingestion.payload.lines")
+                .description("Lines in the line-protocol payload of a tenant and measurement in a batch")
+                .tags(Arrays.asList(rawListenerTag))
+                .register(this.registry);
+
         this.influxDBHelper = influxDBHelper;
-        this.payloadMetrics = new HashMap<>();
-        this.influxDBCeresWriter = influxDBHelper.getInfluxDBFactory().getInfluxDB(localMetricsUrl);
-        try {
-            this.hostName = InetAddress.getLocalHost().getHostName();
-        } catch (UnknownHostException e) {
-            e.printStackTrace();
-        }
+        this.writeExecutor = writeExecutor;
+    }
+
+    /**
+     * Process batches in given pipeline instead of on the consumer threads
+     * @param pipeline
+     */
+    public void setPipeline(BatchPipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * Take records that failed to be deserialized out of the batches and quarantine them
+     * @param quarantine
+     */
+    public void setQuarantine(RecordQuarantine quarantine) {
+        this.quarantine = quarantine;
+    }
+
+    /**
+     * Count records by topic, partition and monitoring system in given counts, which are published
+     * periodically (see RecordCountsPublisher) instead of with the stats of every batch
+     * @param recordCounts
+     */
+    public void setRecordCounts(IngestedRecordCounts recordCounts) {
+        this.recordCounts = recordCounts;
     }
 
     /**
      * This listener listens to unified.metrics.json topic.
+     * Payloads are ExternalMetric with AVRO raw transform and byte[] with STREAMING raw transform.
+     * With a pipeline, the batch is only handed over to it here and acknowledged once it's written.
      * @param records
      */
     @KafkaListener(
+            id = LISTENER_ID,
+            idIsGroup = false,
             topics = "${kafka.topics.in}",
             containerFactory = "batchFactory",
+            concurrency = "#{@consumerConfigurationProperties.getListenerConcurrency('raw')}",
             errorHandler = "listenerErrorHandler"
     )
     public void listenUnifiedMetricsTopic(
-            @Payload final List<Message<ExternalMetric>> records, final Acknowledgment ack)
-        throws InvalidDataException {
+            @Payload final List<Message<?>> records, final Acknowledgment ack)
+        throws IngestFailedException {
 
         long batchProcessingStartTime = System.currentTimeMillis();
-        batchProcessedCount++;
-
-        topicPartitionMonitoringSystemRecordsCount.clear(); // start clean every call
-
-        // Prepare the payloads to ingest
-        Map<TenantIdAndMeasurement, List<String>> tenantPayloadsMap =
-                RawMetricsProcessor.getTenantPayloadsMap(records, topicPartitionMonitoringSystemRecordsCount);
+        incrementBatchProcessedCount();
+
+        // Quarantined records are committed along with the rest of the batch
+        RawBatch batch = new RawBatch(quarantine == null ? records : quarantine.removeFailedRecords(records));
+
+        if(pipeline != null) {
+            pipeline.submit(getTopicPartitions(records),
+                    () -> {
+                        // Only the payloads that failed are written again when the pipeline retries
+                        batch.write();
+
+                        batchProcessingTimer.record(
+                                System.currentTimeMillis() - batchProcessingStartTime, TimeUnit.MILLISECONDS);
+                        recordsCounter.increment(records.size());
+                    },
+                    () -> processPostInfluxDbIngestion(records, ack),
+                    batch::release);
+            return;
+        }
 
-        writeIntoInfluxDb(tenantPayloadsMap);
+        try {
+            batch.write();
+        }
+        finally {
+            batch.release();
+        }
 
         processPostInfluxDbIngestion(records, ack);
 
         batchProcessingTimer.record(System.currentTimeMillis() - batchProcessingStartTime, TimeUnit.MILLISECONDS);
+        recordsCounter.increment(records.size());
+    }
 
-        // Post topic-partition-monitoringSystem metrics to ceres database
-        List<String> lineProtocoledCollection = new ArrayList<>();
+    private static Set<TopicPartition> getTopicPartitions(List<Message<?>> records) {
+        Set<TopicPartition> topicPartitions = new HashSet<>();
 
-        lineProtocoledCollection.add(String.format("ingestion_records_count,listener=raw,hostname=%s count=%d",
-                this.hostName, records.size()));
-        lineProtocoledCollection.add(String.format("ingestion_payload,listener=raw,hostname=%s %s=%d,%s=%d",
-                this.hostName, PAYLOAD_RECORDS_COUNT, payloadMetrics.get(PAYLOAD_RECORDS_COUNT),
-                        PAYLOAD_SIZE, payloadMetrics.get(PAYLOAD_SIZE)));
+        for(Message<?> record : records) {
+            MessageHeaders headers = record.getHeaders();
+            topicPartitions.add(new TopicPartition(
+                    headers.get(KafkaHeaders.RECEIVED_TOPIC, String.class),
+                    headers.get(KafkaHeaders.RECEIVED_PARTITION_ID, Integer.class)));
+        }
 
-        topicPartitionMonitoringSystemRecordsCount.forEach((topic, pMap) -> {
-            pMap.forEach((partition, msMap) -> {
-                msMap.forEach((monitoringSystem, count) -> {
-                    String tags = String.format("topic=%s,partitionid=%s,monitoringsystem=%s",
-                            topic, partition, monitoringSystem);
+        return topicPartitions;
+    }
 
-                    lineProtocoledCollection.add(String.format("ingested_data_count,%s count=%d", tags, count));
-                });
+    /**
+     * Records of one batch and their payloads, which are kept until all of them are written
+     */
+    private final class RawBatch {
+        private final List<Message<?>> records;
+        private TenantPayloads tenantPayloads;
+
+        // Payloads not written yet
+        private Map<TenantIdAndMeasurement, LinePayload> pendingPayloads;
+
+        RawBatch(List<Message<?>> records) {
+            this.records = records;
+        }
+
+        /**
+         * Transform the records, unless it's done already, and write the payloads that are not written yet.
+         * Payloads rejected by InfluxDB as invalid data are only logged, writing them again won't help.
+         * @throws PartialIngestFailedException if any other write failed, with the offsets to consume the
+         * partitions of failed payloads from again
+         * @throws IngestFailedException if the batch can't be transformed, or records of a failed payload
+         * are not known
+         */
+        void write() throws IngestFailedException {
+            if(tenantPayloads == null) {
+                // Prepare the payloads to ingest
+                tenantPayloads = transformExecutor.getTenantPayloads(records, recordCounts);
+                pendingPayloads = new HashMap<>(tenantPayloads.getPayloads());
+
+                for(LinePayload linePayload : pendingPayloads.values()) {
+                    payloadLinesSummary.record(linePayload.getLineCount());
+                    payloadBytesSummary.record(linePayload.getByteLength());
+                }
+            }
+
+            // TODO: make enum for rollup level
+            Map<TenantIdAndMeasurement, Exception> failures = writeExecutor.writeAll(pendingPayloads, "full");
+
+            Map<TenantIdAndMeasurement, Exception> retryableFailures = new LinkedHashMap<>();
+
+            failures.forEach((tenantIdAndMeasurement, e) -> {
+                LinePayload payload = pendingPayloads.get(tenantIdAndMeasurement);
+                log.error("Write to InfluxDB failed for [{}] with [{}] lines and [{}] bytes. Payload starts with [{}]",
+                        tenantIdAndMeasurement, payload.getLineCount(), payload.getByteLength(),
+                        payload.getSample(), e);
+
+                if(!(e instanceof InvalidDataException)) retryableFailures.put(tenantIdAndMeasurement, e);
             });
-        });
 
-        String metricsToPublish = String.join("\n", lineProtocoledCollection);
+            pendingPayloads.keySet().retainAll(retryableFailures.keySet());
 
-        influxDBCeresWriter.write(localMetricsDatabase, localMetricsRetPolicy,
-                InfluxDB.ConsistencyLevel.ONE, TimeUnit.SECONDS, metricsToPublish);
-    }
+            if(retryableFailures.isEmpty()) return;
 
-    private void writeIntoInfluxDb(Map<TenantIdAndMeasurement, List<String>> tenantPayloadsMap) {
+            Map<TopicPartition, Long> redeliveryOffsets = new HashMap<>();
 
-        for(Map.Entry<TenantIdAndMeasurement, List<String>> entry : tenantPayloadsMap.entrySet()) {
-            TenantIdAndMeasurement tenantIdAndMeasurement = entry.getKey();
-            String payload = String.join("\n", entry.getValue());
-            payloadMetrics.put(PAYLOAD_RECORDS_COUNT, entry.getValue().size());
-            payloadMetrics.put(PAYLOAD_SIZE, payload.getBytes().length);
+            for(TenantIdAndMeasurement tenantIdAndMeasurement : retryableFailures.keySet()) {
+                Map<TopicPartition, Long> firstOffsets = tenantPayloads.getFirstOffsets(tenantIdAndMeasurement);
 
-            try {
-                // cleanup tenantIdAndMeasurement by replacing any special character
-                // with "_" before passing it to the function
-                influxDBHelper.ingestToInfluxDb(
-                        payload, tenantIdAndMeasurement.getTenantId(),
-                        tenantIdAndMeasurement.getMeasurement(), "full");
-                // TODO: make enum for rollup level
+                // Without its records, the whole batch has to be consumed again
+                if(firstOffsets.isEmpty()) throwIfAnyFailed(retryableFailures.values());
 
-            } catch (IngestFailedException e) {
-                log.error("Write to InfluxDB failed with Payload [{}] \n [{}]", payload, e);
+                firstOffsets.forEach((partition, offset) -> redeliveryOffsets.merge(partition, offset, Math::min));
             }
+
+            throw new PartialIngestFailedException(
+                    String.format("Writing [%d] payloads failed, consuming again from %s",
+                            retryableFailures.size(), redeliveryOffsets),
+                    redeliveryOffsets, withSuppressed(retryableFailures.values()));
+        }
+
+        void release() {
+            if(tenantPayloads != null) tenantPayloads.release();
         }
     }
 }
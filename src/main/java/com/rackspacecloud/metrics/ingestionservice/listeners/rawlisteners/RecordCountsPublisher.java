@@ -0,0 +1,79 @@
+package com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners;
+
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.IngestedRecordCounts;
+import lombok.extern.slf4j.Slf4j;
+import org.influxdb.InfluxDB;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes the records counted by topic, partition and monitoring system to the local metrics database every
+ * intervalMs, as "ingested_data_count" points with the records counted since the previous point.
+ *
+ * Counts are only taken off once they are written, so that a failed write publishes them with the next point.
+ * Counts left when the publisher is shut down are published one last time.
+ */
+@Slf4j
+public class RecordCountsPublisher {
+    private final IngestedRecordCounts recordCounts;
+    private final InfluxDB influxDBCeresWriter;
+    private final String localMetricsDatabase;
+    private final String localMetricsRetPolicy;
+    private final ScheduledExecutorService scheduler;
+
+    public RecordCountsPublisher(IngestedRecordCounts recordCounts, InfluxDB influxDBCeresWriter,
+                                 String localMetricsDatabase, String localMetricsRetPolicy, long intervalMs) {
+        this.recordCounts = recordCounts;
+        this.influxDBCeresWriter = influxDBCeresWriter;
+        this.localMetricsDatabase = localMetricsDatabase;
+        this.localMetricsRetPolicy = localMetricsRetPolicy;
+
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new CustomizableThreadFactory("record-counts-publisher-"));
+        this.scheduler.scheduleAtFixedRate(this::publishQuietly, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Publish the records counted since the previous call that succeeded
+     */
+    public void publish() {
+        StringBuilder lines = new StringBuilder();
+
+        IngestedRecordCounts.Snapshot snapshot = recordCounts.snapshot((topic, partition, monitoringSystem, count) -> {
+            if(lines.length() > 0) lines.append('\n');
+
+            lines.append("ingested_data_count,topic=").append(topic)
+                    .append(",partitionid=").append(partition)
+                    .append(",monitoringsystem=").append(monitoringSystem)
+                    .append(" count=").append(count);
+        });
+
+        if(lines.length() == 0) return;
+
+        influxDBCeresWriter.write(localMetricsDatabase, localMetricsRetPolicy,
+                InfluxDB.ConsistencyLevel.ONE, TimeUnit.SECONDS, lines.toString());
+
+        snapshot.remove();
+    }
+
+    private void publishQuietly() {
+        // An exception would cancel the schedule
+        try {
+            publish();
+        }
+        catch (RuntimeException e) {
+            log.warn("Publishing ingested record counts failed", e);
+        }
+    }
+
+    /**
+     * Stop publishing, after publishing the counts left
+     */
+    public void shutdown() {
+        scheduler.shutdownNow();
+        publishQuietly();
+    }
+}
@@ -1,25 +1,41 @@
 package com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.config;
 
-import com.rackspace.monplat.protocol.ExternalMetric;
 import com.rackspacecloud.metrics.ingestionservice.config.ConsumerConfigurationProperties;
+import com.rackspacecloud.metrics.ingestionservice.config.ConsumerConfigurationProperties.ParallelTransform;
+import com.rackspacecloud.metrics.ingestionservice.config.ConsumerConfigurationProperties.Pipeline;
+import com.rackspacecloud.metrics.ingestionservice.config.ConsumerConfigurationProperties.RawTransform;
 import com.rackspacecloud.metrics.ingestionservice.config.ConsumerProperties;
 import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBHelper;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBWriteExecutor;
+import com.rackspacecloud.metrics.ingestionservice.listeners.BatchPipeline;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.IngestedRecordCounts;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.RejectedRecords;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.SeriesKeyCache;
+import com.rackspacecloud.metrics.ingestionservice.listeners.quarantine.RecordQuarantine;
 import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.RawListener;
-import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.deserializer.AvroDeserializer;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.RecordCountsPublisher;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.processors.RawTransformExecutor;
 import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.common.serialization.ByteArrayDeserializer;
+import org.apache.kafka.common.serialization.Deserializer;
 import org.apache.kafka.common.serialization.StringDeserializer;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.actuate.autoconfigure.metrics.MeterRegistryCustomizer;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.context.annotation.Profile;
 import org.springframework.kafka.annotation.EnableKafka;
 import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
+import org.springframework.kafka.config.KafkaListenerEndpointRegistry;
 import org.springframework.kafka.core.ConsumerFactory;
 import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
 import org.springframework.kafka.listener.ContainerProperties;
+import org.springframework.kafka.listener.SeekToCurrentBatchErrorHandler;
 
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -41,6 +57,9 @@ public class RawDataConsumerConfiguration {
     @Value("${local-metrics-rp}")
     private String localMetricsRetPolicy;
 
+    @Value("${local-metrics-publish-interval-ms}")
+    private long localMetricsPublishIntervalMs;
+
     @Autowired
     public RawDataConsumerConfiguration(ConsumerConfigurationProperties properties){
         this.properties = properties;
@@ -82,40 +101,151 @@ public class RawDataConsumerConfiguration {
     }
 
     /**
-     * Create ConcurrentKafkaListenerContainerFactory bean to process batched messages
+     * Create ConcurrentKafkaListenerContainerFactory bean to process batched messages.
+     * Values can be JSON, binary or single-object encoded Avro; AvroDeserializer picks the encoding per record.
+     * With STREAMING raw transform values are handed over as bytes and RawListener parses them itself.
+     * With the quarantine enabled, records that can't be deserialized are handed over to be quarantined.
+     * With the pipeline enabled, batches of revoked partitions are settled before their offsets are committed.
      * @param config
+     * @param pipeline
      * @return
      */
     @Bean
     @Autowired
-    ConcurrentKafkaListenerContainerFactory<String, ExternalMetric> batchFactory(ConsumerProperties config){
-        ConcurrentKafkaListenerContainerFactory<String, ExternalMetric> factory =
+    @SuppressWarnings("unchecked")
+    public ConcurrentKafkaListenerContainerFactory<String, Object> batchFactory(
+            ConsumerProperties config, ObjectProvider<BatchPipeline> pipeline){
+        ConcurrentKafkaListenerContainerFactory<String, Object> factory =
                 new ConcurrentKafkaListenerContainerFactory<>();
 
-        ConsumerFactory<String, ExternalMetric> consumerFactory =
-                new DefaultKafkaConsumerFactory<>(config.properties,
-                        new StringDeserializer(),
-                        new AvroDeserializer<>(ExternalMetric.class));
+        ConsumerFactory<String, Object> consumerFactory;
+
+        if(properties.getRawTransform() == RawTransform.STREAMING) {
+            // Bytes are always deserialized, STREAMING records that can't be parsed fail in RawListener
+            consumerFactory = new DefaultKafkaConsumerFactory<>(config.properties,
+                    new StringDeserializer(), (Deserializer<Object>) (Deserializer<?>) new ByteArrayDeserializer());
+        }
+        else {
+            // Value deserializer is created by Kafka from the configuration, see RawDataConsumerProperties
+            consumerFactory = new DefaultKafkaConsumerFactory<>(
+                    properties.getQuarantine().isEnabled() ? config.getErrorHandlingProperties() : config.properties,
+                    new StringDeserializer(), null);
+        }
 
         factory.setConsumerFactory(consumerFactory);
         factory.setBatchListener(true);
 
+        // Listeners can set their own, see ConsumerConfigurationProperties.concurrency
+        factory.setConcurrency(properties.getDefaultListenerConcurrency());
+
         ContainerProperties containerProperties = factory.getContainerProperties();
         containerProperties.setIdleEventInterval(config.configurationProperties.getListenerContainerIdleInterval());
         containerProperties.setAckMode(ContainerProperties.AckMode.MANUAL);
 
+        // Batches failing past listenerErrorHandler, or in it, are consumed again instead of committed past
+        factory.setBatchErrorHandler(new SeekToCurrentBatchErrorHandler());
+
+        BatchPipeline batchPipeline = pipeline.getIfAvailable();
+        if(batchPipeline != null) {
+            containerProperties.setConsumerRebalanceListener(
+                    batchPipeline.getRebalanceListener(properties.getPipeline().getRevocationTimeoutMs()));
+        }
+
         return factory;
     }
 
     /**
      * Create UnifiedMetricsListener
      * @param influxDBHelper
+     * @param writeExecutor
+     * @param transformExecutor
+     * @param pipeline
+     * @param quarantine
+     * @param recordCounts
      * @return
      */
     @Bean
     @Autowired
-    public RawListener unifiedMetricsListener(InfluxDBHelper influxDBHelper, MeterRegistry registry) {
-        return new RawListener(influxDBHelper, registry, localMetricsUrl, localMetricsDatabase, localMetricsRetPolicy);
+    public RawListener unifiedMetricsListener(
+            InfluxDBHelper influxDBHelper, InfluxDBWriteExecutor writeExecutor, MeterRegistry registry,
+            RawTransformExecutor transformExecutor, ObjectProvider<BatchPipeline> pipeline,
+            ObjectProvider<RecordQuarantine> quarantine, IngestedRecordCounts recordCounts) {
+        RawListener rawListener = new RawListener(influxDBHelper, writeExecutor, registry, transformExecutor);
+        rawListener.setPipeline(pipeline.getIfAvailable());
+        rawListener.setQuarantine(quarantine.getIfAvailable());
+        rawListener.setRecordCounts(recordCounts);
+        return rawListener;
+    }
+
+    /**
+     * Create the counts of raw records by topic, partition and monitoring system
+     * @return
+     */
+    @Bean
+    public IngestedRecordCounts rawRecordCounts() {
+        return new IngestedRecordCounts();
+    }
+
+    /**
+     * Create the publisher of raw record counts to the local metrics database
+     * @param recordCounts
+     * @param influxDBHelper
+     * @return
+     */
+    @Bean(destroyMethod = "shutdown")
+    public RecordCountsPublisher rawRecordCountsPublisher(
+            IngestedRecordCounts recordCounts, InfluxDBHelper influxDBHelper) {
+        return new RecordCountsPublisher(recordCounts,
+                influxDBHelper.getInfluxDBFactory().getInfluxDB(localMetricsUrl),
+                localMetricsDatabase, localMetricsRetPolicy, localMetricsPublishIntervalMs);
+    }
+
+    /**
+     * Create the executor transforming records of a raw batch, in parallel if it has more than one thread
+     * @param seriesKeyCache
+     * @return
+     */
+    @Bean(destroyMethod = "shutdown")
+    public RawTransformExecutor rawTransformExecutor(SeriesKeyCache seriesKeyCache) {
+        ParallelTransform parallelTransform = properties.getParallelTransform();
+
+        return new RawTransformExecutor(properties.getRawTransform(),
+                parallelTransform.getThreads(), parallelTransform.getMinRecordsPerSlice(), seriesKeyCache);
+    }
+
+    /**
+     * Create the pipeline processing batches of RawListener while its consumers keep polling
+     * @param registry
+     * @return
+     */
+    @Bean(destroyMethod = "shutdown")
+    @ConditionalOnProperty("kafka.pipeline.enabled")
+    public BatchPipeline rawListenerPipeline(KafkaListenerEndpointRegistry registry) {
+        Pipeline pipeline = properties.getPipeline();
+
+        return new BatchPipeline(RawListener.LISTENER_ID, pipeline.getThreads(),
+                pipeline.getMaxInFlightBatches(), pipeline.getResumeInFlightBatches(),
+                pipeline.getRetryBackoffMs(), pipeline.getMaxRetryBackoffMs(), pipeline.getMaxAttempts(),
+                () -> registry.getListenerContainer(RawListener.LISTENER_ID));
+    }
+
+    /**
+     * Create the cache of series keys rendered by LineProtocolEncoder. It's also the MeterBinder publishing
+     * its hit rate and memory use.
+     * @return
+     */
+    @Bean
+    public SeriesKeyCache seriesKeyCache() {
+        return new SeriesKeyCache(properties.getSeriesKeyCache().getMaxWeightBytes());
+    }
+
+    /**
+     * Publish counts of records rejected by the raw processors by reason
+     * @return
+     */
+    @Bean
+    MeterBinder rejectedRecordsMetrics() {
+        return RejectedRecords.get();
     }
 
     @Bean
@@ -2,7 +2,7 @@ package com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.confi
 
 import com.rackspacecloud.metrics.ingestionservice.config.ConsumerConfigurationProperties;
 import com.rackspacecloud.metrics.ingestionservice.config.ConsumerProperties;
-import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.deserializer.AvroDeserializer;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.deserializer.ExternalMetricDeserializer;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.springframework.context.annotation.Profile;
 
@@ -13,6 +13,6 @@ public class RawDataConsumerProperties extends ConsumerProperties {
     public RawDataConsumerProperties(ConsumerConfigurationProperties configProps) {
         super(configProps);
         properties.put(ConsumerConfig.GROUP_ID_CONFIG, configProps.getConsumer().getGroup() + CONSUMER_GROUP_SUFFIX);
-        properties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, AvroDeserializer.class);
+        properties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, ExternalMetricDeserializer.class);
     }
 }
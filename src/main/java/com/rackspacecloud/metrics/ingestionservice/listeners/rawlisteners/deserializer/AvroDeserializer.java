@@ -1,26 +1,62 @@
 package com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.deserializer;
 
-import java.io.IOException;
+import com.rackspacecloud.metrics.ingestionservice.utils.LogSampler;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.avro.Schema;
-import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.io.DatumReader;
-import org.apache.avro.io.Decoder;
+import org.apache.avro.io.BinaryDecoder;
 import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.JsonDecoder;
+import org.apache.avro.message.BinaryMessageDecoder;
+import org.apache.avro.specific.SpecificData;
 import org.apache.avro.specific.SpecificDatumReader;
 import org.apache.avro.specific.SpecificRecordBase;
 import org.apache.kafka.common.errors.SerializationException;
-import org.apache.kafka.common.serialization.Deserializer;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.serialization.ExtendedDeserializer;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * Deserializes Avro records in JSON, binary or single-object encoding. The encoding is picked per record:
+ *      - from the "avro-encoding" header when producer sets it (see AvroEncoding for the values)
+ *      - single-object encoding when data starts with its 0xC3 0x01 marker
+ *      - JSON when data starts with '{' (optionally after whitespace)
+ *      - binary otherwise
+ * This lets producers move a topic from JSON to binary without coordinating with the consumers.
+ */
 @Slf4j
-public class AvroDeserializer<T extends SpecificRecordBase> implements Deserializer<T> {
+public class AvroDeserializer<T extends SpecificRecordBase> implements ExtendedDeserializer<T> {
+    public static final String ENCODING_HEADER = "avro-encoding";
+
+    private static final byte SINGLE_OBJECT_MARKER_0 = (byte) 0xC3;
+    private static final byte SINGLE_OBJECT_MARKER_1 = (byte) 0x01;
+
+    // Only one failed record is logged every so often, the quarantine has all of them
+    private static final LogSampler FAILURE_LOG_SAMPLER = new LogSampler(TimeUnit.SECONDS.toMillis(10));
+
     protected final Class<T> targetType;
 
+    // Schema of the target type doesn't change, so resolve it only once
+    private final Schema schema;
+
+    // Checks the schema fingerprint of single-object encoded records. It's thread-safe.
+    private final BinaryMessageDecoder<T> singleObjectDecoder;
+
+    // Kafka consumer factory shares one deserializer instance between all of its consumers,
+    // so readers and decoders are kept per thread.
+    private final ThreadLocal<DecoderState> decoderStates;
+
     public AvroDeserializer(Class<T> targetType) {
         this.targetType = targetType;
+        this.schema = SpecificData.get().getSchema(targetType);
+        this.singleObjectDecoder = new BinaryMessageDecoder<>(SpecificData.get(), schema);
+        this.decoderStates = ThreadLocal.withInitial(DecoderState::new);
     }
 
     @Override
@@ -28,28 +64,121 @@ public class AvroDeserializer<T extends SpecificRecordBase> implements Deseriali
 
     @Override
     public T deserialize(String topicName, byte[] data) {
+        return deserialize(topicName, null, data);
+    }
+
+    @Override
+    public T deserialize(String topicName, Headers headers, byte[] data) {
+        if(data == null) return null;
+
+        return deserializeAs(topicName, detectEncoding(headers, data), data);
+    }
+
+    /**
+     * Deserialize given data in the given encoding, for callers that already looked at the data
+     * @param topicName
+     * @param encoding
+     * @param data
+     * @return
+     */
+    public T deserializeAs(String topicName, AvroEncoding encoding, byte[] data) {
         if(data == null) return null;
 
-        log.debug("Data is [{}]", new String(data));
+        if(log.isDebugEnabled()) log.debug("Data in [{}] encoding is [{}]", encoding, toLoggableString(encoding, data));
 
         try {
-            ByteArrayInputStream inputStream = new ByteArrayInputStream(data);
-            Schema schema = targetType.newInstance().getSchema();
-            DatumReader<GenericRecord> datumReader = new SpecificDatumReader<>(schema);
-            Decoder decoder = DecoderFactory.get().jsonDecoder(schema, inputStream);
+            T result;
+
+            switch (encoding) {
+                case SINGLE_OBJECT:
+                    result = singleObjectDecoder.decode(data);
+                    break;
+                case BINARY:
+                    result = decoderStates.get().readBinary(data);
+                    break;
+                default:
+                    result = decoderStates.get().readJson(data);
+                    break;
+            }
 
-            T result = (T) datumReader.read(null, decoder);
             log.debug("Deserialized data: [{}]", result);
 
             return result;
-        } catch (IOException | InstantiationException | IllegalAccessException e) {
-            String errorMessage = String.format("Deserialization failed for topic [%s] with exception message: [%s]",
-                    topicName, e.getMessage());
-            log.error("{} Data in question is [{}]", errorMessage, new String(data));
-            throw new SerializationException(errorMessage, e);
+        } catch (IOException | RuntimeException e) {
+            // Don't reuse a decoder that failed half way through a record
+            decoderStates.remove();
+
+            String errorMessage = String.format(
+                    "Deserialization failed for topic [%s] and encoding [%s] with exception message: [%s]",
+                    topicName, encoding, e.getMessage());
+
+            long failures = FAILURE_LOG_SAMPLER.sample();
+            if(failures > 0) {
+                log.warn("{} Failed [{}] records since last reported, data of this one is [{}]", errorMessage,
+                        failures, LogSampler.truncate(toLoggableString(encoding, data)));
+            }
+
+            // Parser exceptions aren't serializable, and the exception ends up serialized in the record headers
+            throw new SerializationException(errorMessage);
         }
     }
 
+    /**
+     * Find out the encoding of the record. Header set by the producer takes precedence over the content.
+     * @param headers
+     * @param data
+     * @return
+     */
+    public static AvroEncoding detectEncoding(Headers headers, byte[] data) {
+        if(headers != null) {
+            Header header = headers.lastHeader(ENCODING_HEADER);
+            if(header != null && header.value() != null) {
+                AvroEncoding encoding =
+                        AvroEncoding.fromHeaderValue(new String(header.value(), StandardCharsets.UTF_8));
+                if(encoding != null) return encoding;
+            }
+        }
+
+        if(data.length >= 2 && data[0] == SINGLE_OBJECT_MARKER_0 && data[1] == SINGLE_OBJECT_MARKER_1) {
+            return AvroEncoding.SINGLE_OBJECT;
+        }
+
+        for(byte b : data) {
+            if(b == '{') return AvroEncoding.JSON;
+            if(b != ' ' && b != '\t' && b != '\n' && b != '\r') break;
+        }
+
+        return AvroEncoding.BINARY;
+    }
+
+    private static String toLoggableString(AvroEncoding encoding, byte[] data) {
+        return encoding == AvroEncoding.JSON ? new String(data) : Base64.getEncoder().encodeToString(data);
+    }
+
     @Override
     public void close() { }
+
+    /**
+     * Per thread readers and decoders. Decoders are reconfigured with the next record's input
+     * instead of being created again.
+     */
+    private class DecoderState {
+        private final SpecificDatumReader<T> datumReader = new SpecificDatumReader<>(schema);
+        private JsonDecoder jsonDecoder;
+        private BinaryDecoder binaryDecoder;
+
+        T readJson(byte[] data) throws IOException {
+            ByteArrayInputStream inputStream = new ByteArrayInputStream(data);
+
+            if(jsonDecoder == null) jsonDecoder = DecoderFactory.get().jsonDecoder(schema, inputStream);
+            else jsonDecoder.configure(inputStream);
+
+            return datumReader.read(null, jsonDecoder);
+        }
+
+        T readBinary(byte[] data) throws IOException {
+            binaryDecoder = DecoderFactory.get().binaryDecoder(data, binaryDecoder);
+            return datumReader.read(null, binaryDecoder);
+        }
+    }
 }
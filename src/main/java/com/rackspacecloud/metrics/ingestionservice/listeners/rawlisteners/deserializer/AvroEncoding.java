@@ -0,0 +1,39 @@
+package com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.deserializer;
+
+/**
+ * Wire formats AvroDeserializer understands. Producers can name the format of a record in the
+ * "avro-encoding" Kafka header using the header values below.
+ */
+public enum AvroEncoding {
+    // Avro JSON encoding. This is what producers have been sending so far.
+    JSON("json"),
+
+    // Plain Avro binary encoding of the record, written with the same schema as the consumer's
+    BINARY("binary"),
+
+    // Avro single-object encoding: 0xC3 0x01 marker, 8 byte schema fingerprint and then binary encoded record
+    SINGLE_OBJECT("single-object");
+
+    private final String headerValue;
+
+    AvroEncoding(String headerValue) {
+        this.headerValue = headerValue;
+    }
+
+    public String getHeaderValue() {
+        return headerValue;
+    }
+
+    /**
+     * Get the encoding for the given header value
+     * @param headerValue
+     * @return encoding, or null if header value is not a known encoding
+     */
+    public static AvroEncoding fromHeaderValue(String headerValue) {
+        for(AvroEncoding encoding : values()) {
+            if(encoding.headerValue.equalsIgnoreCase(headerValue)) return encoding;
+        }
+
+        return null;
+    }
+}
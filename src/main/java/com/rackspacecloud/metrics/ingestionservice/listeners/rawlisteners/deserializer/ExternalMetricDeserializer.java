@@ -0,0 +1,12 @@
+package com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.deserializer;
+
+import com.rackspace.monplat.protocol.ExternalMetric;
+
+/**
+ * AvroDeserializer of ExternalMetric, so that Kafka can create it from the consumer configuration
+ */
+public class ExternalMetricDeserializer extends AvroDeserializer<ExternalMetric> {
+    public ExternalMetricDeserializer() {
+        super(ExternalMetric.class);
+    }
+}
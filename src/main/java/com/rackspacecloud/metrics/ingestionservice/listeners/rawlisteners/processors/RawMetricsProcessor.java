@@ -1,78 +1,36 @@
 package com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.processors;
 
 import com.rackspace.monplat.protocol.ExternalMetric;
-import com.rackspacecloud.metrics.ingestionservice.exceptions.InvalidDataException;
-import com.rackspacecloud.metrics.ingestionservice.listeners.UnifiedMetricsListener;
 import com.rackspacecloud.metrics.ingestionservice.listeners.processors.CommonMetricsProcessor;
-import com.rackspacecloud.metrics.ingestionservice.listeners.processors.Dimension;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.IngestedRecordCounts;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.LineProtocolEncoder;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.RejectedRecords;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.RejectedRecords.Reason;
 import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantIdAndMeasurement;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantPayloads;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TimestampParser;
 import lombok.extern.slf4j.Slf4j;
-import org.influxdb.dto.Point;
 import org.springframework.kafka.support.KafkaHeaders;
 import org.springframework.messaging.Message;
 import org.springframework.messaging.MessageHeaders;
 
-import java.time.Instant;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentMap;
-import java.util.concurrent.TimeUnit;
 
 @Slf4j
 public class RawMetricsProcessor {
 
     private static final String TIMESTAMP = "timestamp";
-    private static final String UNAVAILABLE = "unavailable";
 
-    public static final Map<TenantIdAndMeasurement, List<String>> getTenantPayloadsMap(
-            List<Message<ExternalMetric>> records,
-            ConcurrentMap<String, Map<String, Map<String, Long>>> topicPartitionRecordsCount)
-        throws InvalidDataException {
+    public static final TenantPayloads getTenantPayloads(List<Message<ExternalMetric>> records,
+            IngestedRecordCounts recordCounts, LineProtocolEncoder encoder) {
 
-        Map<TenantIdAndMeasurement, List<String>> tenantPayloadMap = new HashMap<>();
+        TenantPayloads tenantPayloads = new TenantPayloads();
         int numberOfRecordsNotConvertedIntoInfluxDBPoints = 0;
 
         for(Message<ExternalMetric> message : records) {
-            ExternalMetric record = message.getPayload();
-            MessageHeaders headers = message.getHeaders();
-
-            populateHeaderMetrics(topicPartitionRecordsCount, record, headers);
-
-            if(!CommonMetricsProcessor.isValid(TIMESTAMP, record.getTimestamp()))
-                throw new InvalidDataException("Invalid timestamp [" + record.getTimestamp() + "]");
-
-            // Get all of the tags into Dimension
-            Dimension dimension = CommonMetricsProcessor.getDimensions(record);
-
-            try {
-                String accountType = dimension.getAccountType();
-                String account = dimension.getAccount();
-                String monitoringSystem = dimension.getMonitoringSystem();
-                String collectionName = dimension.getCollectionName();
-
-                TenantIdAndMeasurement tenantIdAndMeasurement =
-                        CommonMetricsProcessor.getTenantIdAndMeasurement(
-                                accountType, account, monitoringSystem, collectionName);
-
-                Point.Builder pointBuilder = Dimension.populateTagsAndFields(dimension, tenantIdAndMeasurement);
-                populatePayload(record, pointBuilder);
-
-                Instant instant = Instant.parse(record.getTimestamp());
-                pointBuilder.time(instant.getEpochSecond(), TimeUnit.SECONDS);
-
-                Point point = pointBuilder.build();
-
-                if (!tenantPayloadMap.containsKey(tenantIdAndMeasurement))
-                    tenantPayloadMap.put(tenantIdAndMeasurement, new ArrayList<>());
-
-                List<String> payloads = tenantPayloadMap.get(tenantIdAndMeasurement);
-                payloads.add(point.lineProtocol(TimeUnit.SECONDS));
-            }
-            catch (Exception ex) {
+            if(!addToTenantPayloads(
+                    tenantPayloads, message.getPayload(), message.getHeaders(), recordCounts, encoder)) {
                 numberOfRecordsNotConvertedIntoInfluxDBPoints++;
-                log.error("Can't convert message into InfluxDB Point. Faulty Message is: [{}]", record);
             }
         }
 
@@ -81,77 +39,81 @@ public class RawMetricsProcessor {
                     records.size(), numberOfRecordsNotConvertedIntoInfluxDBPoints);
         }
 
-        return tenantPayloadMap;
+        return tenantPayloads;
     }
 
-    private static void populateHeaderMetrics(
-            ConcurrentMap<String, Map<String, Map<String, Long>>> topicPartitionRecordsCount,
-            ExternalMetric record, MessageHeaders headers) {
-
-        String topic = headers.get(KafkaHeaders.RECEIVED_TOPIC).toString();
-        String partitionId = headers.get(KafkaHeaders.RECEIVED_PARTITION_ID).toString();
-        String offset = headers.get(KafkaHeaders.OFFSET).toString();
-        String monitoringSystem = record.getMonitoringSystem().name();
-
-        // Initialize if topic doesn't exist in the map
-        topicPartitionRecordsCount.computeIfAbsent(topic, k -> {
-
-            // Initialize for the partitionID map
-            Map<String, Map<String, Long>> partitionMonitoringSystemRecordsCount = new HashMap<>();
-            partitionMonitoringSystemRecordsCount.put(partitionId, new HashMap<>());
-
-            Map<String, Long> monitoringSystemRecordsCount = partitionMonitoringSystemRecordsCount.get(partitionId);
-
-            // Initialize the record count for given monitoring system (i.e. MAAS, UIM, SALUS, etc)
-            monitoringSystemRecordsCount.put(monitoringSystem, 0L);
-            return partitionMonitoringSystemRecordsCount;
-        });
-
-        // Update the record count when "topic" is already present in the map
-        topicPartitionRecordsCount.computeIfPresent(topic, (t, partitionRecordsCountMap) -> {
+    /**
+     * Convert given record into line-protocol and add it to the payloads of its tenant and measurement.
+     * A record that can't be converted is rejected, see RejectedRecords.
+     * @param tenantPayloads
+     * @param record
+     * @param headers
+     * @param recordCounts
+     * @param encoder
+     * @return false if record couldn't be converted
+     */
+    static boolean addToTenantPayloads(
+            TenantPayloads tenantPayloads, ExternalMetric record,
+            MessageHeaders headers, IngestedRecordCounts recordCounts, LineProtocolEncoder encoder) {
+
+        recordCounts.increment(headers, record.getMonitoringSystem());
+        logReceived(record, headers);
+
+        long epochSecond;
+
+        try {
+            epochSecond = toEpochSecond(record.getTimestamp());
+        }
+        catch (RuntimeException e) {
+            RejectedRecords.get().reject(Reason.INVALID_TIMESTAMP, headers, record, String.valueOf(e.getMessage()));
+            return false;
+        }
 
-            // Seeing this particular partitionId first time
-            if(!partitionRecordsCountMap.containsKey(partitionId)) {
-                partitionRecordsCountMap.put(partitionId, new HashMap<>()); // Initialize map for partitionId
+        TenantIdAndMeasurement tenantIdAndMeasurement;
 
-                Map<String, Long> monitoringSystemRecordsCount = partitionRecordsCountMap.get(partitionId);
-                monitoringSystemRecordsCount.put(monitoringSystem, 0L);
-            }
-            else {
-                Map<String, Long> monitoringSystemRecordsCount = partitionRecordsCountMap.get(partitionId);
+        try {
+            tenantIdAndMeasurement = CommonMetricsProcessor.getTenantIdAndMeasurement(
+                    record.getAccountType().name(), record.getAccount(),
+                    record.getMonitoringSystem().name(), record.getCollectionName());
+        }
+        catch (RuntimeException e) {
+            RejectedRecords.get().reject(Reason.INVALID_ROUTING, headers, record, String.valueOf(e.getMessage()));
+            return false;
+        }
 
-                // Topic and partitionId exist, but monitoring system does not exist. So, initialize its map
-                if(!monitoringSystemRecordsCount.containsKey(monitoringSystem)) {
-                    monitoringSystemRecordsCount.put(monitoringSystem, 0L);
-                }
-            }
+        try {
+            StringBuilder line = tenantPayloads.getLineBuffer();
+            encoder.encode(record, tenantIdAndMeasurement, epochSecond, line);
 
-            Map<String, Long> monitoringSystemCountMap = partitionRecordsCountMap.get(partitionId);
-            long count = monitoringSystemCountMap.get(monitoringSystem);
-            monitoringSystemCountMap.put(monitoringSystem, ++count);
-            return partitionRecordsCountMap;
-        });
+            tenantPayloads.addLine(tenantIdAndMeasurement, line);
+            tenantPayloads.addRecordOffset(tenantIdAndMeasurement, headers);
 
-        log.debug("Received topic:{}; partitionId:{}; Offset:{}; record:{}", topic, partitionId, offset, record);
+            return true;
+        }
+        catch (RuntimeException e) {
+            RejectedRecords.get().reject(Reason.UNCONVERTIBLE, headers, record, String.valueOf(e.getMessage()));
+            return false;
+        }
     }
 
-    static void populatePayload(final ExternalMetric record, final Point.Builder pointBuilder) {
-        for(Map.Entry<String, Long> entry : record.getIvalues().entrySet()){
-            String iKey = entry.getKey();
-            String metricFieldName = UnifiedMetricsListener.replaceSpecialCharacters(iKey);
-            String unitValue = record.getUnits().get(iKey);
-
-            pointBuilder.tag(String.format("%s_unit", metricFieldName), unitValue == null ? UNAVAILABLE : unitValue);
-            pointBuilder.addField(metricFieldName, entry.getValue().doubleValue());
-        }
+    /**
+     * Parse given timestamp of a record
+     * @param timestamp
+     * @return
+     * @throws IllegalArgumentException if timestamp is missing, has whitespace or can't be parsed
+     */
+    static long toEpochSecond(String timestamp) {
+        if(timestamp == null || !CommonMetricsProcessor.isValid(TIMESTAMP, timestamp))
+            throw new IllegalArgumentException("Invalid timestamp [" + timestamp + "]");
+
+        return TimestampParser.get().toEpochSecond(timestamp);
+    }
 
-        for(Map.Entry<String, Double> entry : record.getFvalues().entrySet()){
-            String fKey = entry.getKey();
-            String metricFieldName = UnifiedMetricsListener.replaceSpecialCharacters(fKey);
-            String unitValue = record.getUnits().get(fKey);
+    static void logReceived(Object record, MessageHeaders headers) {
+        if(!log.isDebugEnabled()) return;
 
-            pointBuilder.tag(String.format("%s_unit", metricFieldName), unitValue == null ? UNAVAILABLE : unitValue);
-            pointBuilder.addField(metricFieldName, entry.getValue());
-        }
+        log.debug("Received topic:{}; partitionId:{}; Offset:{}; record:{}",
+                headers.get(KafkaHeaders.RECEIVED_TOPIC), headers.get(KafkaHeaders.RECEIVED_PARTITION_ID),
+                headers.get(KafkaHeaders.OFFSET), record);
     }
 }
@@ -0,0 +1,155 @@
+package com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.processors;
+
+import com.rackspacecloud.metrics.ingestionservice.config.ConsumerConfigurationProperties.RawTransform;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.IngestedRecordCounts;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.LineProtocolEncoder;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.SeriesKeyCache;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantPayloads;
+import org.springframework.messaging.Message;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Transforms the records of a raw batch into line-protocol on several threads, so that a batch from a single
+ * hot partition can use more than one core.
+ *
+ * Batch is split into contiguous slices of records and each slice is transformed into its own payloads. Slice
+ * payloads are then merged in slice order, so lines of every tenant and measurement end up in the same order
+ * as their records, same as transforming the batch on one thread. All slices count their records in the same
+ * IngestedRecordCounts, which is safe to count in from several threads.
+ *
+ * Batches smaller than two slices, or all of them when threads is 1 or less, are transformed on the calling
+ * thread. If a slice fails, the payloads of the other slices are released and the failure is rethrown.
+ *
+ * Every thread transforming slices encodes with its own LineProtocolEncoder, all of them sharing the given
+ * SeriesKeyCache.
+ */
+public class RawTransformExecutor {
+    private final RawTransform rawTransform;
+    private final int threads;
+    private final int minRecordsPerSlice;
+    private final ThreadPoolExecutor executor;
+    private final ThreadLocal<LineProtocolEncoder> encoders;
+
+    public RawTransformExecutor(RawTransform rawTransform, int threads, int minRecordsPerSlice,
+                                SeriesKeyCache seriesKeyCache) {
+        this.rawTransform = rawTransform;
+        this.encoders = ThreadLocal.withInitial(() -> new LineProtocolEncoder(seriesKeyCache));
+        this.threads = threads;
+        this.minRecordsPerSlice = Math.max(1, minRecordsPerSlice);
+
+        // Calling thread transforms one of the slices itself
+        this.executor = threads > 1
+                ? new ThreadPoolExecutor(threads - 1, threads - 1, 60L, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<>(threads * 4),
+                        new CustomizableThreadFactory("raw-transform-"),
+                        new ThreadPoolExecutor.CallerRunsPolicy())
+                : null;
+
+        if(this.executor != null) this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Transform the records into line-protocol payloads grouped by tenant and measurement
+     * @param records ExternalMetric records with AVRO raw transform, byte[] with STREAMING
+     * @param recordCounts records are counted by topic, partition and monitoring system in here
+     * @return
+     */
+    public TenantPayloads getTenantPayloads(List<Message<?>> records, IngestedRecordCounts recordCounts) {
+
+        int slices = executor == null ? 1 : Math.min(threads, records.size() / minRecordsPerSlice);
+        if(slices <= 1) return transform(records, recordCounts);
+
+        List<Future<TenantPayloads>> futures = new ArrayList<>(slices - 1);
+        int sliceSize = (records.size() + slices - 1) / slices;
+
+        for(int from = sliceSize; from < records.size(); from += sliceSize) {
+            List<Message<?>> sliceRecords = records.subList(from, Math.min(records.size(), from + sliceSize));
+            futures.add(executor.submit(() -> transform(sliceRecords, recordCounts)));
+        }
+
+        TenantPayloads tenantPayloads = null;
+        RuntimeException failure = null;
+
+        try {
+            tenantPayloads = transform(records.subList(0, sliceSize), recordCounts);
+        }
+        catch (RuntimeException e) {
+            failure = e;
+        }
+
+        // Every slice is waited for, so that the ones transformed are released when another one failed
+        for(Future<TenantPayloads> future : futures) {
+            TenantPayloads slice;
+
+            try {
+                slice = getSlice(future);
+            }
+            catch (RuntimeException e) {
+                if(failure == null) failure = e;
+                continue;
+            }
+
+            if(failure != null) {
+                slice.release();
+                continue;
+            }
+
+            tenantPayloads.addAll(slice);
+        }
+
+        if(failure != null) {
+            if(tenantPayloads != null) tenantPayloads.release();
+            throw failure;
+        }
+
+        return tenantPayloads;
+    }
+
+    private TenantPayloads transform(List<Message<?>> records, IngestedRecordCounts recordCounts) {
+        LineProtocolEncoder encoder = encoders.get();
+
+        return rawTransform == RawTransform.STREAMING
+                ? StreamingRawMetricsProcessor.getTenantPayloads(castPayloads(records), recordCounts, encoder)
+                : RawMetricsProcessor.getTenantPayloads(castPayloads(records), recordCounts, encoder);
+    }
+
+    /**
+     * Payload type is decided by the value deserializer configured for the raw transform
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> List<Message<T>> castPayloads(List<Message<?>> records) {
+        return (List<Message<T>>) (List<?>) records;
+    }
+
+    private static TenantPayloads getSlice(Future<TenantPayloads> future) {
+        try {
+            return future.get();
+        }
+        catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if(cause instanceof Error) throw (Error) cause;
+            throw new IllegalStateException(cause);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            future.cancel(true);
+            throw new IllegalStateException("Interrupted while transforming records", e);
+        }
+    }
+
+    /**
+     * Stop the transform threads
+     */
+    public void shutdown() {
+        if(executor != null) executor.shutdownNow();
+    }
+}
@@ -0,0 +1,466 @@
+package com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.processors;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.rackspace.monplat.protocol.AccountType;
+import com.rackspace.monplat.protocol.ExternalMetric;
+import com.rackspace.monplat.protocol.MonitoringSystem;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.CommonMetricsProcessor;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.IngestedRecordCounts;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.LineProtocolEncoder;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.RejectedRecords;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.RejectedRecords.Reason;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantIdAndMeasurement;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantPayloads;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.deserializer.AvroDeserializer;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.deserializer.AvroEncoding;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Alternative to RawMetricsProcessor that works on the raw Kafka value. JSON encoded records are read with a
+ * pull parser and written straight into line-protocol, without creating ExternalMetric, Dimension or Point
+ * objects in between. Only routing fields (accountType, account, monitoringSystem, collectionName) and the
+ * timestamp are kept aside while parsing; metadata goes into LineProtocolEncoder as it is read.
+ *
+ * Output is the same as RawMetricsProcessor's for the same record. Records in binary or single-object
+ * encoding fall back to AvroDeserializer and the ExternalMetric path.
+ *
+ * Records are read as strictly as the Avro JSON decoder reads them: every field of the schema is required,
+ * and values must have the type the schema gives them. Unknown fields are skipped. Records are counted once
+ * they are read, where RawMetricsProcessor counts the records it is given.
+ *
+ * Differences from RawMetricsProcessor:
+ *      - a record that is not valid JSON or doesn't match the schema is rejected as UNPARSEABLE,
+ *        instead of failing deserialization of the whole poll
+ *      - if two metric names become the same after replacing special characters, the one that comes later
+ *        in the record is kept (ExternalMetric path keeps the later one in HashMap order)
+ */
+@Slf4j
+public class StreamingRawMetricsProcessor {
+
+    private static final String TIMESTAMP = "timestamp";
+    private static final String ACCOUNT_TYPE = "accountType";
+    private static final String ACCOUNT = "account";
+    private static final String DEVICE = "device";
+    private static final String DEVICE_LABEL = "deviceLabel";
+    private static final String DEVICE_METADATA = "deviceMetadata";
+    private static final String MONITORING_SYSTEM = "monitoringSystem";
+    private static final String SYSTEM_METADATA = "systemMetadata";
+    private static final String COLLECTION_NAME = "collectionName";
+    private static final String COLLECTION_LABEL = "collectionLabel";
+    private static final String COLLECTION_TARGET = "collectionTarget";
+    private static final String COLLECTION_METADATA = "collectionMetadata";
+    private static final String IVALUES = "ivalues";
+    private static final String FVALUES = "fvalues";
+    private static final String SVALUES = "svalues";
+    private static final String UNITS = "units";
+
+    // JsonFactory is thread-safe and meant to be shared
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private static final AvroDeserializer<ExternalMetric> AVRO_DESERIALIZER =
+            new AvroDeserializer<>(ExternalMetric.class);
+
+    private static final ThreadLocal<RecordState> RECORD_STATES = ThreadLocal.withInitial(RecordState::new);
+
+    public static final TenantPayloads getTenantPayloads(
+            List<Message<byte[]>> records, IngestedRecordCounts recordCounts, LineProtocolEncoder encoder) {
+
+        TenantPayloads tenantPayloads = new TenantPayloads();
+        int numberOfRecordsNotConvertedIntoInfluxDBPoints = 0;
+
+        RecordState state = RECORD_STATES.get();
+
+        for(Message<byte[]> message : records) {
+            byte[] data = message.getPayload();
+            MessageHeaders headers = message.getHeaders();
+            AvroEncoding encoding = getEncoding(headers, data);
+
+            boolean converted;
+
+            if(encoding == AvroEncoding.JSON) {
+                converted = addToTenantPayloads(tenantPayloads, data, headers, recordCounts, state, encoder);
+            }
+            else {
+                converted = addNonJsonToTenantPayloads(
+                        tenantPayloads, data, encoding, headers, recordCounts, encoder);
+            }
+
+            if(!converted) numberOfRecordsNotConvertedIntoInfluxDBPoints++;
+        }
+
+        if(numberOfRecordsNotConvertedIntoInfluxDBPoints > 0) {
+            log.info("Out of [{}] messages in this batch [{}] couldn't convert into InfluxDB Points.",
+                    records.size(), numberOfRecordsNotConvertedIntoInfluxDBPoints);
+        }
+
+        return tenantPayloads;
+    }
+
+    private static boolean addToTenantPayloads(
+            TenantPayloads tenantPayloads, byte[] data, MessageHeaders headers,
+            IngestedRecordCounts recordCounts, RecordState state, LineProtocolEncoder encoder) {
+
+        encoder.beginPoint();
+
+        try {
+            state.read(data, encoder);
+        }
+        catch (IOException | RuntimeException e) {
+            RejectedRecords.get().reject(Reason.UNPARSEABLE, headers, data, String.valueOf(e.getMessage()));
+            return false;
+        }
+
+        recordCounts.increment(headers, state.monitoringSystem);
+        RawMetricsProcessor.logReceived(state, headers);
+
+        long epochSecond;
+
+        try {
+            epochSecond = RawMetricsProcessor.toEpochSecond(state.timestamp);
+        }
+        catch (RuntimeException e) {
+            RejectedRecords.get().reject(Reason.INVALID_TIMESTAMP, headers, data, String.valueOf(e.getMessage()));
+            return false;
+        }
+
+        TenantIdAndMeasurement tenantIdAndMeasurement;
+
+        try {
+            tenantIdAndMeasurement = CommonMetricsProcessor.getTenantIdAndMeasurement(
+                    state.accountType, state.account, state.monitoringSystem, state.collectionName);
+        }
+        catch (RuntimeException e) {
+            RejectedRecords.get().reject(Reason.INVALID_ROUTING, headers, data, String.valueOf(e.getMessage()));
+            return false;
+        }
+
+        try {
+            encoder.addDimensionTags(tenantIdAndMeasurement.getTenantId(), state.accountType, state.account,
+                    state.device, state.deviceLabel, state.monitoringSystem, state.collectionName,
+                    state.collectionLabel, state.collectionTarget);
+            state.addMetrics(encoder);
+
+            StringBuilder line = tenantPayloads.getLineBuffer();
+            encoder.endPoint(tenantIdAndMeasurement.getMeasurement(), epochSecond, line);
+
+            tenantPayloads.addLine(tenantIdAndMeasurement, line);
+            tenantPayloads.addRecordOffset(tenantIdAndMeasurement, headers);
+
+            return true;
+        }
+        catch (RuntimeException e) {
+            RejectedRecords.get().reject(Reason.UNCONVERTIBLE, headers, data, String.valueOf(e.getMessage()));
+            return false;
+        }
+    }
+
+    private static boolean addNonJsonToTenantPayloads(
+            TenantPayloads tenantPayloads, byte[] data, AvroEncoding encoding,
+            MessageHeaders headers, IngestedRecordCounts recordCounts, LineProtocolEncoder encoder) {
+
+        ExternalMetric record;
+
+        try {
+            record = AVRO_DESERIALIZER.deserializeAs(
+                    String.valueOf(headers.get(KafkaHeaders.RECEIVED_TOPIC)), encoding, data);
+        }
+        catch (RuntimeException e) {
+            RejectedRecords.get().reject(Reason.UNPARSEABLE, headers, data, String.valueOf(e.getMessage()));
+            return false;
+        }
+
+        return RawMetricsProcessor.addToTenantPayloads(tenantPayloads, record, headers, recordCounts, encoder);
+    }
+
+    private static AvroEncoding getEncoding(MessageHeaders headers, byte[] data) {
+        Object header = headers.get(AvroDeserializer.ENCODING_HEADER);
+
+        if(header != null) {
+            String value = header instanceof byte[]
+                    ? new String((byte[]) header, StandardCharsets.UTF_8) : header.toString();
+            AvroEncoding encoding = AvroEncoding.fromHeaderValue(value);
+            if(encoding != null) return encoding;
+        }
+
+        return AvroDeserializer.detectEncoding(null, data);
+    }
+
+    /**
+     * Per thread state of the record being parsed. Metrics and units are kept aside until the whole record
+     * is read because units may come after the values.
+     */
+    private static class RecordState {
+        private static final int INITIAL_CAPACITY = 32;
+
+        private String timestamp;
+        private String accountType;
+        private String account;
+        private String device;
+        private String deviceLabel;
+        private String monitoringSystem;
+        private String collectionName;
+        private String collectionLabel;
+        private String collectionTarget;
+
+        private String[] integerNames = new String[INITIAL_CAPACITY];
+        private long[] integerValues = new long[INITIAL_CAPACITY];
+        private int integerCount;
+
+        private String[] floatNames = new String[INITIAL_CAPACITY];
+        private double[] floatValues = new double[INITIAL_CAPACITY];
+        private int floatCount;
+
+        private String[] unitNames = new String[INITIAL_CAPACITY];
+        private String[] unitValues = new String[INITIAL_CAPACITY];
+        private int unitCount;
+
+        private boolean hasDeviceMetadata;
+        private boolean hasSystemMetadata;
+        private boolean hasCollectionMetadata;
+        private boolean hasIntegerValues;
+        private boolean hasFloatValues;
+        private boolean hasStringValues;
+        private boolean hasUnits;
+
+        void read(byte[] data, LineProtocolEncoder encoder) throws IOException {
+            reset();
+
+            try (JsonParser parser = JSON_FACTORY.createParser(data)) {
+                expect(parser.nextToken(), JsonToken.START_OBJECT, "record");
+
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String fieldName = parser.getCurrentName();
+                    JsonToken token = parser.nextToken();
+
+                    switch (fieldName) {
+                        case TIMESTAMP: timestamp = readString(parser, token, fieldName); break;
+                        case ACCOUNT_TYPE:
+                            accountType = AccountType.valueOf(readString(parser, token, fieldName)).name();
+                            break;
+                        case ACCOUNT: account = readString(parser, token, fieldName); break;
+                        case DEVICE: device = readString(parser, token, fieldName); break;
+                        case DEVICE_LABEL: deviceLabel = readString(parser, token, fieldName); break;
+                        case MONITORING_SYSTEM:
+                            monitoringSystem =
+                                    MonitoringSystem.valueOf(readString(parser, token, fieldName)).name();
+                            break;
+                        case COLLECTION_NAME: collectionName = readString(parser, token, fieldName); break;
+                        case COLLECTION_LABEL: collectionLabel = readString(parser, token, fieldName); break;
+                        case COLLECTION_TARGET: collectionTarget = readString(parser, token, fieldName); break;
+                        case DEVICE_METADATA:
+                            readMetadata(parser, token, fieldName, encoder, true);
+                            hasDeviceMetadata = true;
+                            break;
+                        case SYSTEM_METADATA:
+                            readMetadata(parser, token, fieldName, encoder, false);
+                            hasSystemMetadata = true;
+                            break;
+                        case COLLECTION_METADATA:
+                            // Doesn't end up in line-protocol, but is checked like Avro does
+                            skipStringMap(parser, token, fieldName);
+                            hasCollectionMetadata = true;
+                            break;
+                        case SVALUES:
+                            skipStringMap(parser, token, fieldName);
+                            hasStringValues = true;
+                            break;
+                        case IVALUES: readIntegerValues(parser, token); break;
+                        case FVALUES: readFloatValues(parser, token); break;
+                        case UNITS: readUnits(parser, token); break;
+                        default:
+                            // Avro skips fields that are not in the schema
+                            parser.skipChildren();
+                            break;
+                    }
+                }
+
+                expect(parser.getCurrentToken(), JsonToken.END_OBJECT, "record");
+            }
+
+            require(timestamp, TIMESTAMP);
+            require(accountType, ACCOUNT_TYPE);
+            require(account, ACCOUNT);
+            require(device, DEVICE);
+            require(deviceLabel, DEVICE_LABEL);
+            require(monitoringSystem, MONITORING_SYSTEM);
+            require(collectionName, COLLECTION_NAME);
+            require(collectionLabel, COLLECTION_LABEL);
+            require(collectionTarget, COLLECTION_TARGET);
+            require(hasDeviceMetadata, DEVICE_METADATA);
+            require(hasSystemMetadata, SYSTEM_METADATA);
+            require(hasCollectionMetadata, COLLECTION_METADATA);
+            require(hasIntegerValues, IVALUES);
+            require(hasFloatValues, FVALUES);
+            require(hasStringValues, SVALUES);
+            require(hasUnits, UNITS);
+        }
+
+        /**
+         * Add metrics of the parsed record to the encoder, ivalues first just like the ExternalMetric path
+         * @param encoder
+         */
+        void addMetrics(LineProtocolEncoder encoder) {
+            for(int i = 0; i < integerCount; i++) {
+                encoder.addIntegerMetric(integerNames[i], integerValues[i], getUnit(integerNames[i]));
+            }
+
+            for(int i = 0; i < floatCount; i++) {
+                encoder.addFloatMetric(floatNames[i], floatValues[i], getUnit(floatNames[i]));
+            }
+        }
+
+        private void reset() {
+            timestamp = null;
+            accountType = null;
+            account = null;
+            device = null;
+            deviceLabel = null;
+            monitoringSystem = null;
+            collectionName = null;
+            collectionLabel = null;
+            collectionTarget = null;
+            integerCount = 0;
+            floatCount = 0;
+            unitCount = 0;
+            hasDeviceMetadata = false;
+            hasSystemMetadata = false;
+            hasCollectionMetadata = false;
+            hasIntegerValues = false;
+            hasFloatValues = false;
+            hasStringValues = false;
+            hasUnits = false;
+        }
+
+        private void readMetadata(JsonParser parser, JsonToken token, String fieldName,
+                                  LineProtocolEncoder encoder, boolean deviceMetadata) throws IOException {
+            expect(token, JsonToken.START_OBJECT, fieldName);
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String key = parser.getCurrentName();
+                String value = readString(parser, parser.nextToken(), fieldName);
+
+                if(deviceMetadata) encoder.addDeviceMetadataTag(key, value);
+                else encoder.addSystemMetadataTag(key, value);
+            }
+        }
+
+        private static void skipStringMap(JsonParser parser, JsonToken token, String fieldName) throws IOException {
+            expect(token, JsonToken.START_OBJECT, fieldName);
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                expect(parser.nextToken(), JsonToken.VALUE_STRING, fieldName);
+            }
+        }
+
+        private void readIntegerValues(JsonParser parser, JsonToken token) throws IOException {
+            expect(token, JsonToken.START_OBJECT, IVALUES);
+            hasIntegerValues = true;
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken valueToken = parser.nextToken();
+
+                // Avro reads a long out of any number, dropping the fraction
+                if(valueToken != JsonToken.VALUE_NUMBER_INT && valueToken != JsonToken.VALUE_NUMBER_FLOAT) {
+                    throw new IOException("Expected a number in ivalues but got " + valueToken);
+                }
+
+                if(integerCount == integerNames.length) {
+                    integerNames = Arrays.copyOf(integerNames, integerCount * 2);
+                    integerValues = Arrays.copyOf(integerValues, integerCount * 2);
+                }
+
+                integerNames[integerCount] = name;
+                integerValues[integerCount] = parser.getLongValue();
+                integerCount++;
+            }
+        }
+
+        private void readFloatValues(JsonParser parser, JsonToken token) throws IOException {
+            expect(token, JsonToken.START_OBJECT, FVALUES);
+            hasFloatValues = true;
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                JsonToken valueToken = parser.nextToken();
+
+                if(valueToken != JsonToken.VALUE_NUMBER_FLOAT && valueToken != JsonToken.VALUE_NUMBER_INT) {
+                    throw new IOException("Expected a number in fvalues but got " + valueToken);
+                }
+
+                if(floatCount == floatNames.length) {
+                    floatNames = Arrays.copyOf(floatNames, floatCount * 2);
+                    floatValues = Arrays.copyOf(floatValues, floatCount * 2);
+                }
+
+                floatNames[floatCount] = name;
+                floatValues[floatCount] = parser.getDoubleValue();
+                floatCount++;
+            }
+        }
+
+        private void readUnits(JsonParser parser, JsonToken token) throws IOException {
+            expect(token, JsonToken.START_OBJECT, UNITS);
+            hasUnits = true;
+
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String name = parser.getCurrentName();
+                String value = readString(parser, parser.nextToken(), UNITS);
+
+                if(unitCount == unitNames.length) {
+                    unitNames = Arrays.copyOf(unitNames, unitCount * 2);
+                    unitValues = Arrays.copyOf(unitValues, unitCount * 2);
+                }
+
+                unitNames[unitCount] = name;
+                unitValues[unitCount] = value;
+                unitCount++;
+            }
+        }
+
+        private String getUnit(String metricName) {
+            // Records have a handful of units, so a linear scan beats hashing. Last one wins like in a map.
+            for(int i = unitCount - 1; i >= 0; i--) {
+                if(unitNames[i].equals(metricName)) return unitValues[i];
+            }
+
+            return null;
+        }
+
+        private static String readString(JsonParser parser, JsonToken token, String fieldName) throws IOException {
+            expect(token, JsonToken.VALUE_STRING, fieldName);
+            return parser.getText();
+        }
+
+        private static void expect(JsonToken actual, JsonToken expected, String fieldName) throws IOException {
+            if(actual != expected) {
+                throw new IOException(
+                        String.format("Expected [%s] for [%s] but got [%s]", expected, fieldName, actual));
+            }
+        }
+
+        private static void require(String value, String fieldName) throws IOException {
+            require(value != null, fieldName);
+        }
+
+        private static void require(boolean present, String fieldName) throws IOException {
+            if(!present) throw new IOException(String.format("Record is missing [%s]", fieldName));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("timestamp=%s, accountType=%s, account=%s, monitoringSystem=%s, collectionName=%s",
+                    timestamp, accountType, account, monitoringSystem, collectionName);
+        }
+    }
+}
@@ -1,10 +1,13 @@
 package com.rackspacecloud.metrics.ingestionservice.listeners.rolluplisteners;
 
 import com.rackspacecloud.metrics.ingestionservice.exceptions.IngestFailedException;
-import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBHelper;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBWriteExecutor;
 import com.rackspacecloud.metrics.ingestionservice.listeners.UnifiedMetricsListener;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.LinePayload;
 import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantIdAndMeasurement;
-import com.rackspacecloud.metrics.ingestionservice.listeners.rolluplisteners.models.MetricRollup;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantPayloads;
+import com.rackspacecloud.metrics.ingestionservice.listeners.quarantine.RecordQuarantine;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rolluplisteners.models.CompactMetricRollup;
 import com.rackspacecloud.metrics.ingestionservice.listeners.rolluplisteners.processors.MetricsRollupProcessor;
 import java.io.IOException;
 import lombok.extern.slf4j.Slf4j;
@@ -13,7 +16,8 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.kafka.annotation.KafkaListener;
 import org.springframework.kafka.support.Acknowledgment;
 import org.springframework.kafka.support.KafkaHeaders;
-import org.springframework.messaging.handler.annotation.Header;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.handler.annotation.Headers;
 import org.springframework.messaging.handler.annotation.Payload;
 import org.springframework.web.client.ResourceAccessException;
 
@@ -22,14 +26,23 @@ import java.util.Map;
 
 @Slf4j
 public class RollupListener extends UnifiedMetricsListener {
-    private InfluxDBHelper influxDBHelper;
+    private InfluxDBWriteExecutor writeExecutor;
+    private RecordQuarantine quarantine;
 
     @Value("${tenant-routing-service.url}")
     protected static String tenantRoutingServiceUrl;
 
     @Autowired
-    public RollupListener(InfluxDBHelper influxDBHelper) {
-        this.influxDBHelper = influxDBHelper;
+    public RollupListener(InfluxDBWriteExecutor writeExecutor) {
+        this.writeExecutor = writeExecutor;
+    }
+
+    /**
+     * Take records that failed to be deserialized out of the batches and quarantine them
+     * @param quarantine
+     */
+    public void setQuarantine(RecordQuarantine quarantine) {
+        this.quarantine = quarantine;
     }
 
     /**
@@ -39,122 +52,150 @@ public class RollupListener extends UnifiedMetricsListener {
     @KafkaListener(
             topics = "${kafka.topics.source-5m}",
             containerFactory = "batchFactory",
+            concurrency = "#{@consumerConfigurationProperties.getListenerConcurrency('5m')}",
             errorHandler = "listenerErrorHandler"
     )
     public void listenMetricsRollup5m(
-            @Payload final List<MetricRollup> records,
-            @Header(KafkaHeaders.RECEIVED_PARTITION_ID) final int partitionId,
-            @Header(KafkaHeaders.OFFSET) final long offset,
+            @Payload final List<CompactMetricRollup> records,
+            @Headers final MessageHeaders batchHeaders,
             final Acknowledgment ack) throws IngestFailedException {
 
         String rollupLevel = "5m";
 
-        listenMetricsRollup(records, partitionId, offset, ack, rollupLevel);
+        listenMetricsRollup(records, batchHeaders, ack, rollupLevel);
     }
 
     @KafkaListener(
             topics = "${kafka.topics.source-20m}",
             containerFactory = "batchFactory",
+            concurrency = "#{@consumerConfigurationProperties.getListenerConcurrency('20m')}",
             errorHandler = "listenerErrorHandler"
     )
     public void listenMetricsRollup20m(
-            @Payload final List<MetricRollup> records,
-            @Header(KafkaHeaders.RECEIVED_PARTITION_ID) final int partitionId,
-            @Header(KafkaHeaders.OFFSET) final long offset,
+            @Payload final List<CompactMetricRollup> records,
+            @Headers final MessageHeaders batchHeaders,
             final Acknowledgment ack) throws IngestFailedException {
 
         String rollupLevel = "20m";
 
-        listenMetricsRollup(records, partitionId, offset, ack, rollupLevel);
+        listenMetricsRollup(records, batchHeaders, ack, rollupLevel);
     }
 
     @KafkaListener(
             topics = "${kafka.topics.source-60m}",
             containerFactory = "batchFactory",
+            concurrency = "#{@consumerConfigurationProperties.getListenerConcurrency('60m')}",
             errorHandler = "listenerErrorHandler"
     )
     public void listenMetricsRollup60m(
-            @Payload final List<MetricRollup> records,
-            @Header(KafkaHeaders.RECEIVED_PARTITION_ID) final int partitionId,
-            @Header(KafkaHeaders.OFFSET) final long offset,
+            @Payload final List<CompactMetricRollup> records,
+            @Headers final MessageHeaders batchHeaders,
             final Acknowledgment ack) throws IngestFailedException {
 
         String rollupLevel = "60m";
 
-        listenMetricsRollup(records, partitionId, offset, ack, rollupLevel);
+        listenMetricsRollup(records, batchHeaders, ack, rollupLevel);
     }
 
     @KafkaListener(
             topics = "${kafka.topics.source-240m}",
             containerFactory = "batchFactory",
+            concurrency = "#{@consumerConfigurationProperties.getListenerConcurrency('240m')}",
             errorHandler = "listenerErrorHandler"
     )
     public void listenMetricsRollup240m(
-            @Payload final List<MetricRollup> records,
-            @Header(KafkaHeaders.RECEIVED_PARTITION_ID) final int partitionId,
-            @Header(KafkaHeaders.OFFSET) final long offset,
+            @Payload final List<CompactMetricRollup> records,
+            @Headers final MessageHeaders batchHeaders,
             final Acknowledgment ack) throws IngestFailedException {
 
         String rollupLevel = "240m";
 
-        listenMetricsRollup(records, partitionId, offset, ack, rollupLevel);
+        listenMetricsRollup(records, batchHeaders, ack, rollupLevel);
     }
 
     @KafkaListener(
             topics = "${kafka.topics.source-1440m}",
             containerFactory = "batchFactory",
+            concurrency = "#{@consumerConfigurationProperties.getListenerConcurrency('1440m')}",
             errorHandler = "listenerErrorHandler"
     )
     public void listenMetricsRollup1440m(
-            @Payload final List<MetricRollup> records,
-            @Header(KafkaHeaders.RECEIVED_PARTITION_ID) final int partitionId,
-            @Header(KafkaHeaders.OFFSET) final long offset,
+            @Payload final List<CompactMetricRollup> records,
+            @Headers final MessageHeaders batchHeaders,
             final Acknowledgment ack) throws IngestFailedException {
 
         String rollupLevel = "1440m";
 
-        listenMetricsRollup(records, partitionId, offset, ack, rollupLevel);
+        listenMetricsRollup(records, batchHeaders, ack, rollupLevel);
     }
 
     private void listenMetricsRollup(
-            @Payload List<MetricRollup> records,
-            @Header(KafkaHeaders.RECEIVED_PARTITION_ID) int partitionId,
-            @Header(KafkaHeaders.OFFSET) long offset,
+            List<CompactMetricRollup> records,
+            MessageHeaders batchHeaders,
             Acknowledgment ack,
             String rollupLevel) throws IngestFailedException {
 
-        batchProcessedCount++;
+        incrementBatchProcessedCount();
 
-        Map<TenantIdAndMeasurement, List<String>> tenantPayloadsMap =
-                MetricsRollupProcessor.getTenantRollupPayloadsMap(partitionId, offset, records);
+        // Quarantined records are committed along with the rest of the batch
+        List<CompactMetricRollup> deserializedRecords =
+                quarantine == null ? records : quarantine.removeFailedRecords(records, batchHeaders);
 
-        writeToInfluxDb(tenantPayloadsMap, rollupLevel);
+        int partitionId = getFirst(batchHeaders, KafkaHeaders.RECEIVED_PARTITION_ID, -1);
+        long offset = getFirst(batchHeaders, KafkaHeaders.OFFSET, -1L);
+
+        TenantPayloads tenantPayloads =
+                MetricsRollupProcessor.getTenantRollupPayloads(partitionId, offset, deserializedRecords);
+
+        try {
+            writeToInfluxDb(tenantPayloads, rollupLevel);
+        }
+        finally {
+            tenantPayloads.release();
+        }
 
         processPostInfluxDbIngestion(records, ack);
     }
 
+    /**
+     * Get the value of the first record in the batch for given header
+     * @param batchHeaders
+     * @param headerName
+     * @param defaultValue value if batch has no such header
+     * @param <T>
+     * @return
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T getFirst(MessageHeaders batchHeaders, String headerName, T defaultValue) {
+        List<T> values = batchHeaders.get(headerName, List.class);
+        return values == null || values.isEmpty() ? defaultValue : values.get(0);
+    }
+
+    /**
+     * Write all of the payloads in parallel
+     * @param tenantPayloads
+     * @param rollupLevel
+     * @throws IngestFailedException if any of the writes failed, so that the batch is not acknowledged
+     */
     private void writeToInfluxDb(
-            final Map<TenantIdAndMeasurement, List<String>> tenantPayloadsMap,
+            final TenantPayloads tenantPayloads,
             final String rollupLevel) throws IngestFailedException {
 
-        for(Map.Entry<TenantIdAndMeasurement, List<String>> entry : tenantPayloadsMap.entrySet()) {
-            TenantIdAndMeasurement tenantIdAndMeasurement = entry.getKey();
-            String payload = String.join("\n", entry.getValue());
-            try {
-                // cleanup tenantIdAndMeasurement by replacing any special character with "_" before passing it to the function
-                influxDBHelper.ingestToInfluxDb(
-                        payload, tenantIdAndMeasurement.getTenantId(),
-                        tenantIdAndMeasurement.getMeasurement(), rollupLevel);
-
-            } catch (IngestFailedException e) {
-                String msg = String.format("Write to InfluxDB failed with exception message [%s].", e.getMessage());
-                if(e.getCause().getClass().equals(ResourceAccessException.class)){
-                    log.error(msg, e);
-                } else {
-                    log.error("[{}] Payload [{}]", msg, payload, e);
-                }
-                throw e;
+        Map<TenantIdAndMeasurement, LinePayload> payloads = tenantPayloads.getPayloads();
+        Map<TenantIdAndMeasurement, Exception> failures = writeExecutor.writeAll(payloads, rollupLevel);
+
+        failures.forEach((tenantIdAndMeasurement, e) -> {
+            String msg = String.format("Write to InfluxDB failed with exception message [%s].", e.getMessage());
+            if(e.getCause() != null && e.getCause().getClass().equals(ResourceAccessException.class)){
+                log.error(msg, e);
+            } else {
+                LinePayload payload = payloads.get(tenantIdAndMeasurement);
+                log.error("[{}] Payload of [{}] with [{}] lines and [{}] bytes starts with [{}]", msg,
+                        tenantIdAndMeasurement, payload.getLineCount(), payload.getByteLength(),
+                        payload.getSample(), e);
             }
-        }
+        });
+
+        throwIfAnyFailed(failures.values());
     }
 }
@@ -2,11 +2,14 @@ package com.rackspacecloud.metrics.ingestionservice.listeners.rolluplisteners.co
 
 import com.rackspacecloud.metrics.ingestionservice.config.ConsumerConfigurationProperties;
 import com.rackspacecloud.metrics.ingestionservice.config.ConsumerProperties;
-import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBHelper;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBWriteExecutor;
+import com.rackspacecloud.metrics.ingestionservice.listeners.quarantine.RecordQuarantine;
 import com.rackspacecloud.metrics.ingestionservice.listeners.rolluplisteners.RollupListener;
-import com.rackspacecloud.metrics.ingestionservice.listeners.rolluplisteners.models.MetricRollup;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rolluplisteners.deserializer.MetricRollupDeserializer;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rolluplisteners.models.CompactMetricRollup;
 import io.micrometer.core.instrument.MeterRegistry;
 import org.apache.kafka.common.serialization.StringDeserializer;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -15,7 +18,7 @@ import org.springframework.kafka.config.ConcurrentKafkaListenerContainerFactory;
 import org.springframework.kafka.core.ConsumerFactory;
 import org.springframework.kafka.core.DefaultKafkaConsumerFactory;
 import org.springframework.kafka.listener.ContainerProperties;
-import org.springframework.kafka.support.serializer.JsonDeserializer;
+import org.springframework.kafka.listener.SeekToCurrentBatchErrorHandler;
 
 @Configuration
 @Profile("rollup-data-consumer")
@@ -51,11 +54,25 @@ public class RollupDataConsumerConfiguration {
         return consumerProperties;
     }
 
-    ConsumerFactory<String, MetricRollup> consumerFactory(ConsumerProperties config){
+    /**
+     * Rollup values are deserialized into CompactMetricRollup to avoid boxing every min, mean and max.
+     * With the quarantine enabled, records that can't be deserialized are handed over to be quarantined.
+     * @param config
+     * @return
+     */
+    ConsumerFactory<String, CompactMetricRollup> consumerFactory(ConsumerProperties config){
+        if(properties.getQuarantine().isEnabled()) {
+            // MetricRollupDeserializer is created by Kafka as the delegate of ErrorHandlingDeserializer2
+            return new DefaultKafkaConsumerFactory<>(
+                    config.getErrorHandlingProperties(),
+                    new StringDeserializer(),
+                    null);
+        }
+
         return new DefaultKafkaConsumerFactory<>(
                 config.properties,
                 new StringDeserializer(),
-                new JsonDeserializer<>(MetricRollup.class));
+                new MetricRollupDeserializer());
     }
 
     /**
@@ -66,22 +83,31 @@ public class RollupDataConsumerConfiguration {
      */
     @Bean
     @Autowired
-    ConcurrentKafkaListenerContainerFactory<String, MetricRollup> batchFactory(ConsumerProperties config) {
-        ConcurrentKafkaListenerContainerFactory<String, MetricRollup> factory =
+    ConcurrentKafkaListenerContainerFactory<String, CompactMetricRollup> batchFactory(ConsumerProperties config) {
+        ConcurrentKafkaListenerContainerFactory<String, CompactMetricRollup> factory =
                 new ConcurrentKafkaListenerContainerFactory<>();
         factory.setConsumerFactory(consumerFactory(config));
         factory.setBatchListener(true);
 
+        // Listeners can set their own, see ConsumerConfigurationProperties.concurrency
+        factory.setConcurrency(properties.getDefaultListenerConcurrency());
+
         ContainerProperties containerProperties = factory.getContainerProperties();
         containerProperties.setIdleEventInterval(properties.getListenerContainerIdleInterval());
         containerProperties.setAckMode(ContainerProperties.AckMode.MANUAL);
 
+        // Batches failing past listenerErrorHandler, or in it, are consumed again instead of committed past
+        factory.setBatchErrorHandler(new SeekToCurrentBatchErrorHandler());
+
         return factory;
     }
 
     @Bean
     @Autowired
-    public RollupListener rollupListener(InfluxDBHelper influxDBHelper){
-        return new RollupListener(influxDBHelper);
+    public RollupListener rollupListener(
+            InfluxDBWriteExecutor writeExecutor, ObjectProvider<RecordQuarantine> quarantine){
+        RollupListener rollupListener = new RollupListener(writeExecutor);
+        rollupListener.setQuarantine(quarantine.getIfAvailable());
+        return rollupListener;
     }
 }
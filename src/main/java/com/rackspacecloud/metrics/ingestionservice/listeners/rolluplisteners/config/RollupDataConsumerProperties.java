@@ -2,9 +2,9 @@ package com.rackspacecloud.metrics.ingestionservice.listeners.rolluplisteners.co
 
 import com.rackspacecloud.metrics.ingestionservice.config.ConsumerConfigurationProperties;
 import com.rackspacecloud.metrics.ingestionservice.config.ConsumerProperties;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rolluplisteners.deserializer.MetricRollupDeserializer;
 import org.apache.kafka.clients.consumer.ConsumerConfig;
 import org.springframework.context.annotation.Profile;
-import org.springframework.kafka.support.serializer.JsonDeserializer;
 
 @Profile("rollup-data-consumer")
 public class RollupDataConsumerProperties extends ConsumerProperties {
@@ -13,6 +13,6 @@ public class RollupDataConsumerProperties extends ConsumerProperties {
     public RollupDataConsumerProperties(ConsumerConfigurationProperties configProps) {
         super(configProps);
         properties.put(ConsumerConfig.GROUP_ID_CONFIG, configProps.getConsumer().getGroup() + CONSUMER_GROUP_SUFFIX);
-        properties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, JsonDeserializer.class);
+        properties.put(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG, MetricRollupDeserializer.class);
     }
 }
@@ -0,0 +1,287 @@
+package com.rackspacecloud.metrics.ingestionservice.listeners.rolluplisteners.deserializer;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rolluplisteners.models.CompactMetricRollup;
+import com.rackspacecloud.metrics.ingestionservice.utils.LogSampler;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.serialization.Deserializer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deserializes MetricRollup JSON into CompactMetricRollup with a Jackson streaming parser.
+ * It accepts the same input as JsonDeserializer(MetricRollup.class) does, but keeps min, mean and max of
+ * every metric in primitive arrays instead of boxing them into RollupBucket.
+ *
+ * Field names (metric names, metadata and unit keys) are canonicalized by Jackson's symbol table already.
+ * Values that repeat from record to record (units, account type, monitoring system etc.) go through a
+ * bounded intern pool so that a batch doesn't hold thousands of copies of the same string.
+ */
+@Slf4j
+public class MetricRollupDeserializer implements Deserializer<CompactMetricRollup> {
+    private static final int INITIAL_CAPACITY = 8;
+
+    // Once the pool is full, new values are used as they are
+    private static final int MAX_INTERNED_VALUES = 10_000;
+
+    // Only one failed record is logged every so often, the quarantine has all of them
+    private static final LogSampler FAILURE_LOG_SAMPLER = new LogSampler(TimeUnit.SECONDS.toMillis(10));
+
+    // JsonFactory is thread-safe and meant to be shared
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final ConcurrentMap<String, String> internedValues = new ConcurrentHashMap<>();
+
+    @Override
+    public void configure(Map<String, ?> map, boolean b) { }
+
+    @Override
+    public CompactMetricRollup deserialize(String topicName, byte[] data) {
+        if(data == null) return null;
+
+        try (JsonParser parser = JSON_FACTORY.createParser(data)) {
+            CompactMetricRollup result = read(parser);
+
+            log.debug("Deserialized data: [{}]", result);
+
+            return result;
+        }
+        catch (IOException | RuntimeException e) {
+            String errorMessage = String.format(
+                    "Deserialization failed for topic [%s] with exception message: [%s]",
+                    topicName, e.getMessage());
+
+            long failures = FAILURE_LOG_SAMPLER.sample();
+            if(failures > 0) {
+                log.warn("{} Failed [{}] records since last reported, data of this one is [{}]", errorMessage,
+                        failures, LogSampler.truncate(new String(data, StandardCharsets.UTF_8)));
+            }
+
+            // Parser exceptions aren't serializable, and the exception ends up serialized in the record headers
+            throw new SerializationException(errorMessage);
+        }
+    }
+
+    private CompactMetricRollup read(JsonParser parser) throws IOException {
+        CompactMetricRollup record = new CompactMetricRollup();
+
+        JsonToken token = parser.nextToken();
+        if(token == JsonToken.VALUE_NULL) return null;
+        expect(token, JsonToken.START_OBJECT, "record");
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.getCurrentName();
+            token = parser.nextToken();
+
+            switch (fieldName) {
+                case "key": record.setKey(readString(parser, token, fieldName, false)); break;
+                case "start": record.setStart(readLong(parser, token, fieldName)); break;
+                case "end": record.setEnd(readLong(parser, token, fieldName)); break;
+                case "accountType": record.setAccountType(readString(parser, token, fieldName, true)); break;
+                case "account": record.setAccount(readString(parser, token, fieldName, true)); break;
+                case "device": record.setDevice(readString(parser, token, fieldName, false)); break;
+                case "deviceLabel": record.setDeviceLabel(readString(parser, token, fieldName, false)); break;
+                case "monitoringSystem":
+                    record.setMonitoringSystem(readString(parser, token, fieldName, true));
+                    break;
+                case "collectionLabel":
+                    record.setCollectionLabel(readString(parser, token, fieldName, true));
+                    break;
+                case "collectionTarget":
+                    record.setCollectionTarget(readString(parser, token, fieldName, true));
+                    break;
+                case "collectionName": record.setCollectionName(readString(parser, token, fieldName, true)); break;
+                case "units": record.setUnits(readStringMap(parser, token, fieldName)); break;
+                case "collectionMetadata":
+                    record.setCollectionMetadata(readStringMap(parser, token, fieldName));
+                    break;
+                case "systemMetadata": record.setSystemMetadata(readStringMap(parser, token, fieldName)); break;
+                case "deviceMetadata": record.setDeviceMetadata(readStringMap(parser, token, fieldName)); break;
+                case "ivalues": readIvalues(parser, token, record); break;
+                case "fvalues": readFvalues(parser, token, record); break;
+                default:
+                    // Same as @JsonIgnoreProperties(ignoreUnknown = true) on MetricRollup
+                    parser.skipChildren();
+                    break;
+            }
+        }
+
+        expect(parser.getCurrentToken(), JsonToken.END_OBJECT, "record");
+
+        return record;
+    }
+
+    private void readIvalues(JsonParser parser, JsonToken token, CompactMetricRollup record) throws IOException {
+        if(token == JsonToken.VALUE_NULL) return;
+        expect(token, JsonToken.START_OBJECT, "ivalues");
+
+        String[] names = new String[INITIAL_CAPACITY];
+        long[] buckets = new long[INITIAL_CAPACITY * CompactMetricRollup.BUCKET_SIZE];
+        int count = 0;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            if(count == names.length) {
+                names = Arrays.copyOf(names, count * 2);
+                buckets = Arrays.copyOf(buckets, count * 2 * CompactMetricRollup.BUCKET_SIZE);
+            }
+
+            names[count] = parser.getCurrentName();
+            int offset = count * CompactMetricRollup.BUCKET_SIZE;
+            int found = 0;
+
+            expect(parser.nextToken(), JsonToken.START_OBJECT, "ivalues");
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                int position = getBucketPosition(parser.getCurrentName());
+                JsonToken valueToken = parser.nextToken();
+
+                if(position < 0) {
+                    parser.skipChildren();
+                }
+                else if(valueToken != JsonToken.VALUE_NULL) {
+                    buckets[offset + position] = readLong(parser, valueToken, "ivalues");
+                    found |= 1 << position;
+                }
+            }
+
+            if(found != 0b111) record.setComplete(false);
+            count++;
+        }
+
+        record.setIvalueCount(count);
+        record.setIvalueNames(names);
+        record.setIvalueBuckets(buckets);
+    }
+
+    private void readFvalues(JsonParser parser, JsonToken token, CompactMetricRollup record) throws IOException {
+        if(token == JsonToken.VALUE_NULL) return;
+        expect(token, JsonToken.START_OBJECT, "fvalues");
+
+        String[] names = new String[INITIAL_CAPACITY];
+        double[] buckets = new double[INITIAL_CAPACITY * CompactMetricRollup.BUCKET_SIZE];
+        int count = 0;
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            if(count == names.length) {
+                names = Arrays.copyOf(names, count * 2);
+                buckets = Arrays.copyOf(buckets, count * 2 * CompactMetricRollup.BUCKET_SIZE);
+            }
+
+            names[count] = parser.getCurrentName();
+            int offset = count * CompactMetricRollup.BUCKET_SIZE;
+            int found = 0;
+
+            expect(parser.nextToken(), JsonToken.START_OBJECT, "fvalues");
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                int position = getBucketPosition(parser.getCurrentName());
+                JsonToken valueToken = parser.nextToken();
+
+                if(position < 0) {
+                    parser.skipChildren();
+                }
+                else if(valueToken != JsonToken.VALUE_NULL) {
+                    buckets[offset + position] = readDouble(parser, valueToken, "fvalues");
+                    found |= 1 << position;
+                }
+            }
+
+            if(found != 0b111) record.setComplete(false);
+            count++;
+        }
+
+        record.setFvalueCount(count);
+        record.setFvalueNames(names);
+        record.setFvalueBuckets(buckets);
+    }
+
+    private static int getBucketPosition(String name) {
+        switch (name) {
+            case "min": return CompactMetricRollup.MIN;
+            case "mean": return CompactMetricRollup.MEAN;
+            case "max": return CompactMetricRollup.MAX;
+            default: return -1;
+        }
+    }
+
+    private Map<String, String> readStringMap(JsonParser parser, JsonToken token, String fieldName)
+            throws IOException {
+        if(token == JsonToken.VALUE_NULL) return null;
+        expect(token, JsonToken.START_OBJECT, fieldName);
+
+        Map<String, String> map = new HashMap<>();
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String key = parser.getCurrentName();
+            map.put(key, readString(parser, parser.nextToken(), fieldName, true));
+        }
+
+        return map;
+    }
+
+    private String readString(JsonParser parser, JsonToken token, String fieldName, boolean intern)
+            throws IOException {
+        if(token == JsonToken.VALUE_NULL) return null;
+
+        // Jackson coerces scalars into String fields as well
+        if(!token.isScalarValue()) {
+            throw new IOException(String.format("Expected a string for [%s] but got [%s]", fieldName, token));
+        }
+
+        String value = parser.getText();
+        return intern ? intern(value) : value;
+    }
+
+    private static long readLong(JsonParser parser, JsonToken token, String fieldName) throws IOException {
+        switch (token) {
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getLongValue();
+            case VALUE_STRING:
+                return Long.parseLong(parser.getText().trim());
+            case VALUE_NULL:
+                return 0L;
+            default:
+                throw new IOException(String.format("Expected a number for [%s] but got [%s]", fieldName, token));
+        }
+    }
+
+    private static double readDouble(JsonParser parser, JsonToken token, String fieldName) throws IOException {
+        switch (token) {
+            case VALUE_NUMBER_INT:
+            case VALUE_NUMBER_FLOAT:
+                return parser.getDoubleValue();
+            case VALUE_STRING:
+                return Double.parseDouble(parser.getText().trim());
+            default:
+                throw new IOException(String.format("Expected a number for [%s] but got [%s]", fieldName, token));
+        }
+    }
+
+    private static void expect(JsonToken actual, JsonToken expected, String fieldName) throws IOException {
+        if(actual != expected) {
+            throw new IOException(String.format("Expected [%s] for [%s] but got [%s]", expected, fieldName, actual));
+        }
+    }
+
+    private String intern(String value) {
+        String interned = internedValues.get(value);
+        if(interned != null) return interned;
+
+        if(internedValues.size() >= MAX_INTERNED_VALUES) return value;
+
+        interned = internedValues.putIfAbsent(value, value);
+        return interned == null ? value : interned;
+    }
+
+    @Override
+    public void close() { }
+}
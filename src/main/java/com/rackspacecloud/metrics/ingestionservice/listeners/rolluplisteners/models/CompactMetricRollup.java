@@ -0,0 +1,54 @@
+package com.rackspacecloud.metrics.ingestionservice.listeners.rolluplisteners.models;
+
+import lombok.Data;
+
+import java.util.Map;
+
+/**
+ * Same content as MetricRollup, but rollup buckets are kept in primitive arrays instead of boxed
+ * RollupBucket values. Bucket of i-th metric is at [3 * i] (min), [3 * i + 1] (mean) and [3 * i + 2] (max).
+ * Created by MetricRollupDeserializer.
+ */
+@Data
+public class CompactMetricRollup {
+    public static final int MIN = 0;
+    public static final int MEAN = 1;
+    public static final int MAX = 2;
+    public static final int BUCKET_SIZE = 3;
+
+    String key;
+    long start;
+    long end;
+    String accountType;
+    String account;
+    String device;
+    String deviceLabel;
+    String monitoringSystem;
+    String collectionLabel;
+    String collectionTarget;
+    String collectionName;
+
+    Map<String, String> units;
+    Map<String, String> collectionMetadata;
+    Map<String, String> systemMetadata;
+    Map<String, String> deviceMetadata;
+
+    int ivalueCount;
+    String[] ivalueNames;
+    long[] ivalueBuckets;
+
+    int fvalueCount;
+    String[] fvalueNames;
+    double[] fvalueBuckets;
+
+    // False when a bucket misses one of min, mean or max
+    boolean complete = true;
+
+    public long getIvalue(int index, int position) {
+        return ivalueBuckets[index * BUCKET_SIZE + position];
+    }
+
+    public double getFvalue(int index, int position) {
+        return fvalueBuckets[index * BUCKET_SIZE + position];
+    }
+}
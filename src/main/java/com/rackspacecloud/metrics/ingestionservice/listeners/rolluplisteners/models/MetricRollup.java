@@ -6,6 +6,9 @@ import lombok.Data;
 
 import java.util.Map;
 
+/**
+ * JSON format of the records on rollup topics. Consumer reads them as CompactMetricRollup.
+ */
 @Data
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class MetricRollup {
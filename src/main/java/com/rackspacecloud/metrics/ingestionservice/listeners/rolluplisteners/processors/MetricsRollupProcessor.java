@@ -4,24 +4,21 @@ import com.rackspacecloud.metrics.ingestionservice.listeners.UnifiedMetricsListe
 import com.rackspacecloud.metrics.ingestionservice.listeners.processors.CommonMetricsProcessor;
 import com.rackspacecloud.metrics.ingestionservice.listeners.processors.Dimension;
 import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantIdAndMeasurement;
-import com.rackspacecloud.metrics.ingestionservice.listeners.rolluplisteners.models.MetricRollup;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantPayloads;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rolluplisteners.models.CompactMetricRollup;
 import lombok.extern.slf4j.Slf4j;
 import org.influxdb.dto.Point;
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 /**
- * This class processes MetricsRollup (JSON) message from Kafka into InfluxDB formatted line-protocol string
+ * This class processes MetricsRollup (JSON) message from Kafka into InfluxDB formatted line-protocol string.
+ * Messages come in as CompactMetricRollup (see MetricRollupDeserializer).
  */
 @Slf4j
 public class MetricsRollupProcessor {    
 
-    private static Dimension getDimensions(MetricRollup record) {
+    private static Dimension getDimensions(CompactMetricRollup record) {
         Dimension dimension = new Dimension();
         dimension.setAccountType(record.getAccountType());
         dimension.setAccount(record.getAccount());
@@ -45,13 +42,13 @@ public class MetricsRollupProcessor {
      * @param records
      * @return
      */
-    public static final Map<TenantIdAndMeasurement, List<String>> getTenantRollupPayloadsMap(
-            int partitionId, long offset, List<MetricRollup> records) {
+    public static final TenantPayloads getTenantRollupPayloads(
+            int partitionId, long offset, List<CompactMetricRollup> records) {
 
-        ConcurrentMap<TenantIdAndMeasurement, List<String>> tenantPayloadMap = new ConcurrentHashMap<>();
+        TenantPayloads tenantPayloads = new TenantPayloads();
         int numberOfRecordsNotConvertedIntoInfluxDBPoints = 0;
 
-        for(MetricRollup record : records) {
+        for(CompactMetricRollup record : records) {
             log.debug("Received partitionId:{}; Offset:{}; record:{}", partitionId, offset, record);
 
             String accountType = record.getAccountType();
@@ -70,12 +67,7 @@ public class MetricsRollupProcessor {
                 populatePayload(record, pointBuilder);
                 Point point =  pointBuilder.build();
 
-                List<String> payloads = tenantPayloadMap.computeIfAbsent(tenantIdAndMeasurement,
-                        key -> Collections.synchronizedList(new ArrayList<>()));
-
-                synchronized (payloads) {
-                    payloads.add(point.lineProtocol(TimeUnit.SECONDS));
-                }
+                tenantPayloads.addLine(tenantIdAndMeasurement, point.lineProtocol(TimeUnit.SECONDS));
             }
             catch (Exception ex) {
                 numberOfRecordsNotConvertedIntoInfluxDBPoints++;
@@ -88,48 +80,51 @@ public class MetricsRollupProcessor {
                     records.size(), numberOfRecordsNotConvertedIntoInfluxDBPoints);
         }
 
-        return tenantPayloadMap;
+        return tenantPayloads;
     }
 
-    private static void populatePayload(final MetricRollup record, final Point.Builder pointBuilder) {
+    private static void populatePayload(final CompactMetricRollup record, final Point.Builder pointBuilder) {
+        if(record.getIvalueNames() == null || record.getFvalueNames() == null || !record.isComplete()) {
+            throw new IllegalArgumentException("Rollup record is missing ivalues, fvalues or bucket values");
+        }
+
         pointBuilder.addField("start", record.getStart());
         pointBuilder.addField("end", record.getEnd());
 
-        for(Map.Entry<String, MetricRollup.RollupBucket<Long>> entry : record.getIvalues().entrySet()){
-            String metricFieldName = UnifiedMetricsListener.replaceSpecialCharacters(entry.getKey());
-            pointBuilder.tag(String.format("%s_unit", metricFieldName), record.getUnits().get(entry.getKey()));
+        for(int i = 0; i < record.getIvalueCount(); i++) {
+            String metricName = record.getIvalueNames()[i];
+            String metricFieldName = UnifiedMetricsListener.replaceSpecialCharacters(metricName);
+            pointBuilder.tag(String.format("%s_unit", metricFieldName), record.getUnits().get(metricName));
 
-            MetricRollup.RollupBucket<Long> rollupBucketLong = entry.getValue();
             pointBuilder.addField(
                     String.format("%s_%s", metricFieldName, "min"),
-                    rollupBucketLong.getMin().doubleValue());
+                    (double) record.getIvalue(i, CompactMetricRollup.MIN));
 
             pointBuilder.addField(
                     String.format("%s_%s", metricFieldName, "mean"),
-                    rollupBucketLong.getMean().doubleValue());
+                    (double) record.getIvalue(i, CompactMetricRollup.MEAN));
 
             pointBuilder.addField(
                     String.format("%s_%s", metricFieldName, "max"),
-                    rollupBucketLong.getMax().doubleValue());
+                    (double) record.getIvalue(i, CompactMetricRollup.MAX));
         }
 
-        for(Map.Entry<String, MetricRollup.RollupBucket<Double>> entry : record.getFvalues().entrySet()){
-            String metricFieldName = UnifiedMetricsListener.replaceSpecialCharacters(entry.getKey());
-            pointBuilder.tag(String.format("%s_unit", metricFieldName), record.getUnits().get(entry.getKey()));
-
-            MetricRollup.RollupBucket<Double> rollupBucketDouble = entry.getValue();
+        for(int i = 0; i < record.getFvalueCount(); i++) {
+            String metricName = record.getFvalueNames()[i];
+            String metricFieldName = UnifiedMetricsListener.replaceSpecialCharacters(metricName);
+            pointBuilder.tag(String.format("%s_unit", metricFieldName), record.getUnits().get(metricName));
 
             pointBuilder.addField(
                     String.format("%s_%s", metricFieldName, "min"),
-                    rollupBucketDouble.getMin().doubleValue());
+                    record.getFvalue(i, CompactMetricRollup.MIN));
 
             pointBuilder.addField(
                     String.format("%s_%s", metricFieldName, "mean"),
-                    rollupBucketDouble.getMean().doubleValue());
+                    record.getFvalue(i, CompactMetricRollup.MEAN));
 
             pointBuilder.addField(
                     String.format("%s_%s", metricFieldName, "max"),
-                    rollupBucketDouble.getMax().doubleValue());
+                    record.getFvalue(i, CompactMetricRollup.MAX));
         }
     }
 }
@@ -0,0 +1,47 @@
+package com.rackspacecloud.metrics.ingestionservice.utils;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Picks one event every intervalMs to be logged, and counts the events in between. During a bad-data storm
+ * logging every bad record costs more than processing the batch does.
+ */
+public final class LogSampler {
+    // Longer data is truncated in the logs
+    private static final int MAX_LOGGED_CHARS = 1024;
+
+    private final long intervalMs;
+    private final LongAdder countSinceLog = new LongAdder();
+    private final AtomicLong nextLogTime = new AtomicLong();
+
+    public LogSampler(long intervalMs) {
+        this.intervalMs = intervalMs;
+    }
+
+    /**
+     * Count an event and find out whether it's the one to log
+     * @return number of events since the previous one logged, this one included, or 0 if it's not to be logged
+     */
+    public long sample() {
+        countSinceLog.increment();
+
+        long logTime = nextLogTime.get();
+        long now = System.currentTimeMillis();
+
+        // Only the thread that moves the next log time on logs
+        if(now < logTime || !nextLogTime.compareAndSet(logTime, now + intervalMs)) return 0;
+
+        return countSinceLog.sumThenReset();
+    }
+
+    /**
+     * Cut given text short enough to be logged
+     * @param text
+     * @return
+     */
+    public static String truncate(String text) {
+        return text.length() <= MAX_LOGGED_CHARS
+                ? text : text.substring(0, MAX_LOGGED_CHARS) + "... (" + text.length() + " chars)";
+    }
+}
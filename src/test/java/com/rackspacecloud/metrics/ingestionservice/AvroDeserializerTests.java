@@ -0,0 +1,113 @@
+package com.rackspacecloud.metrics.ingestionservice;
+
+import com.rackspace.monplat.protocol.ExternalMetric;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.deserializer.AvroDeserializer;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.deserializer.AvroEncoding;
+import com.rackspacecloud.metrics.ingestionservice.producer.AvroSerializer;
+import com.rackspacecloud.metrics.ingestionservice.producer.MockMetricHelper;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.kafka.common.errors.SerializationException;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+public class AvroDeserializerTests {
+    private static final String TOPIC = "unified.metrics.json";
+
+    private final AvroSerializer<ExternalMetric> serializer = new AvroSerializer<>();
+    private final AvroDeserializer<ExternalMetric> deserializer = new AvroDeserializer<>(ExternalMetric.class);
+
+    @Test
+    public void deserialize_multipleRecords_shouldReturnNewInstances() {
+        ExternalMetric first = MockMetricHelper.getValidMetric(1, "CORE", "123456", 13, true);
+        ExternalMetric second = MockMetricHelper.getValidMetric(2, "RCN", "654321", 14, true);
+
+        ExternalMetric firstResult = deserializer.deserialize(TOPIC, serializer.serialize(TOPIC, first));
+        ExternalMetric secondResult = deserializer.deserialize(TOPIC, serializer.serialize(TOPIC, second));
+
+        assertEquals(first, firstResult);
+        assertEquals(second, secondResult);
+        assertNotSame(firstResult, secondResult);
+    }
+
+    @Test
+    public void deserialize_afterInvalidData_shouldRecover() {
+        try {
+            deserializer.deserialize(TOPIC, "{\"timestamp\": \"2018-03-27T13:15:06.497Z\", ".getBytes());
+            fail("Expected SerializationException");
+        } catch (SerializationException e) {
+            // expected
+        }
+
+        ExternalMetric metric = MockMetricHelper.getValidMetric(1, "CORE", "123456", 13, true);
+        assertEquals(metric, deserializer.deserialize(TOPIC, serializer.serialize(TOPIC, metric)));
+    }
+
+    @Test
+    public void deserialize_nullData_shouldReturnNull() {
+        assertNull(deserializer.deserialize(TOPIC, null));
+    }
+
+    @Test
+    public void deserialize_binaryWithoutHeader_shouldDetectBinary() throws IOException {
+        ExternalMetric metric = MockMetricHelper.getValidMetric(1, "CORE", "123456", 13, true);
+
+        assertEquals(metric, deserializer.deserialize(TOPIC, new RecordHeaders(), toBinary(metric)));
+    }
+
+    @Test
+    public void deserialize_withEncodingHeader_shouldUseHeader() throws IOException {
+        ExternalMetric metric = MockMetricHelper.getValidMetric(1, "CORE", "123456", 13, true);
+
+        RecordHeaders binaryHeaders = new RecordHeaders();
+        binaryHeaders.add(AvroDeserializer.ENCODING_HEADER,
+                AvroEncoding.BINARY.getHeaderValue().getBytes(StandardCharsets.UTF_8));
+        assertEquals(metric, deserializer.deserialize(TOPIC, binaryHeaders, toBinary(metric)));
+
+        RecordHeaders jsonHeaders = new RecordHeaders();
+        jsonHeaders.add(AvroDeserializer.ENCODING_HEADER,
+                AvroEncoding.JSON.getHeaderValue().getBytes(StandardCharsets.UTF_8));
+        assertEquals(metric, deserializer.deserialize(TOPIC, jsonHeaders, serializer.serialize(TOPIC, metric)));
+    }
+
+    @Test
+    public void deserialize_singleObjectEncoding_shouldDetectMarker() throws IOException {
+        ExternalMetric metric = MockMetricHelper.getValidMetric(1, "CORE", "123456", 13, true);
+
+        assertEquals(metric, deserializer.deserialize(TOPIC, new RecordHeaders(), toBytes(metric.toByteBuffer())));
+    }
+
+    @Test(expected = SerializationException.class)
+    public void deserialize_singleObjectWithUnknownFingerprint_shouldFail() throws IOException {
+        ExternalMetric metric = MockMetricHelper.getValidMetric(1, "CORE", "123456", 13, true);
+        byte[] data = toBytes(metric.toByteBuffer());
+        data[2] ^= 0xFF; // corrupt the schema fingerprint
+
+        deserializer.deserialize(TOPIC, new RecordHeaders(), data);
+    }
+
+    private static byte[] toBinary(ExternalMetric metric) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(outputStream, null);
+        new SpecificDatumWriter<>(ExternalMetric.class).write(metric, encoder);
+        encoder.flush();
+        return outputStream.toByteArray();
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,202 @@
+package com.rackspacecloud.metrics.ingestionservice;
+
+import com.rackspacecloud.metrics.ingestionservice.exceptions.IngestFailedException;
+import com.rackspacecloud.metrics.ingestionservice.listeners.BatchPipeline;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.kafka.listener.MessageListenerContainer;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+
+public class BatchPipelineTests {
+    private static final TopicPartition PARTITION_0 = new TopicPartition("unified.metrics.json", 0);
+    private static final TopicPartition PARTITION_1 = new TopicPartition("unified.metrics.json", 1);
+
+    private final MessageListenerContainer containerMock = mock(MessageListenerContainer.class);
+    private BatchPipeline pipeline = new BatchPipeline("test", 4, 10, 5, 10, 100, 10, () -> containerMock);
+
+    @After
+    public void tearDown() {
+        pipeline.shutdown();
+    }
+
+    @Test
+    public void submit_batchesFinishingOutOfOrder_shouldBeCommittedInOrderPerPartition() throws Exception {
+        List<String> commits = new CopyOnWriteArrayList<>();
+        CountDownLatch firstBatchCanFinish = new CountDownLatch(1);
+        CountDownLatch allCommitted = new CountDownLatch(3);
+
+        pipeline.submit(Collections.singleton(PARTITION_0),
+                () -> firstBatchCanFinish.await(5, TimeUnit.SECONDS),
+                () -> { commits.add("first"); allCommitted.countDown(); });
+        pipeline.submit(Collections.singleton(PARTITION_0),
+                () -> { },
+                () -> { commits.add("second"); allCommitted.countDown(); });
+        pipeline.submit(Collections.singleton(PARTITION_1),
+                () -> { },
+                () -> { commits.add("other partition"); allCommitted.countDown(); });
+
+        // Batch of another partition doesn't wait for the first one
+        long deadline = System.currentTimeMillis() + 5000;
+        while (commits.isEmpty() && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertEquals(Collections.singletonList("other partition"), commits);
+
+        firstBatchCanFinish.countDown();
+
+        assertTrue(allCommitted.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("other partition", "first", "second"), commits);
+    }
+
+    @Test
+    public void submit_batchSpanningPartitions_shouldWaitForEarlierBatchesOfAllOfThem() throws Exception {
+        List<String> commits = new CopyOnWriteArrayList<>();
+        CountDownLatch firstBatchCanFinish = new CountDownLatch(1);
+        CountDownLatch allCommitted = new CountDownLatch(2);
+
+        pipeline.submit(Collections.singleton(PARTITION_1),
+                () -> firstBatchCanFinish.await(5, TimeUnit.SECONDS),
+                () -> { commits.add("partition 1"); allCommitted.countDown(); });
+        pipeline.submit(Arrays.asList(PARTITION_0, PARTITION_1),
+                () -> { },
+                () -> { commits.add("both partitions"); allCommitted.countDown(); });
+
+        Thread.sleep(200);
+        assertTrue(commits.isEmpty());
+
+        firstBatchCanFinish.countDown();
+
+        assertTrue(allCommitted.await(5, TimeUnit.SECONDS));
+        assertEquals(Arrays.asList("partition 1", "both partitions"), commits);
+    }
+
+    @Test
+    public void submit_failedBatch_shouldBeRetriedUntilItSucceeds() throws Exception {
+        AtomicInteger attempts = new AtomicInteger();
+        CountDownLatch committed = new CountDownLatch(1);
+
+        pipeline.submit(Collections.singleton(PARTITION_0),
+                () -> {
+                    if(attempts.incrementAndGet() < 3) throw new IngestFailedException("write failed");
+                },
+                committed::countDown);
+
+        assertTrue(committed.await(5, TimeUnit.SECONDS));
+        assertEquals(3, attempts.get());
+    }
+
+    @Test
+    public void submit_batchFailingMaxAttempts_shouldDiscardItsPartitionsAndRestartContainer() throws Exception {
+        pipeline.shutdown();
+        pipeline = new BatchPipeline("test", 4, 10, 5, 10, 20, 3, () -> containerMock);
+
+        AtomicInteger attempts = new AtomicInteger();
+        List<String> commits = new CopyOnWriteArrayList<>();
+        CountDownLatch released = new CountDownLatch(3);
+
+        pipeline.submit(Collections.singleton(PARTITION_0),
+                () -> {
+                    attempts.incrementAndGet();
+                    throw new IngestFailedException("write failed");
+                },
+                () -> commits.add("failed"), released::countDown);
+        pipeline.submit(Collections.singleton(PARTITION_0),
+                () -> { }, () -> commits.add("later"), released::countDown);
+        pipeline.submit(Collections.singleton(PARTITION_1),
+                () -> { }, () -> commits.add("other partition"), released::countDown);
+
+        // Batches are released whether they are written or not
+        assertTrue(released.await(5, TimeUnit.SECONDS));
+        verify(containerMock, timeout(5000)).stop(any(Runnable.class));
+
+        assertEquals(3, attempts.get());
+        assertEquals(Collections.singletonList("other partition"), commits);
+        assertEquals(0, pipeline.getInFlightBatches());
+    }
+
+    @Test
+    public void onPartitionsRevoked_shouldWaitForBatchesOfRevokedPartitionsToBeCommitted() throws Exception {
+        List<String> commits = new CopyOnWriteArrayList<>();
+        CountDownLatch batchCanFinish = new CountDownLatch(1);
+
+        pipeline.submit(Collections.singleton(PARTITION_0),
+                () -> batchCanFinish.await(5, TimeUnit.SECONDS), () -> commits.add("revoked partition"));
+
+        new Thread(() -> {
+            sleep(200);
+            batchCanFinish.countDown();
+        }).start();
+
+        pipeline.getRebalanceListener(5000)
+                .onPartitionsRevokedBeforeCommit(null, Collections.singleton(PARTITION_0));
+
+        assertEquals(Collections.singletonList("revoked partition"), commits);
+    }
+
+    @Test
+    public void onPartitionsRevoked_withBatchNotWrittenInTime_shouldDiscardIt() throws Exception {
+        List<String> commits = new CopyOnWriteArrayList<>();
+        CountDownLatch batchCanFinish = new CountDownLatch(1);
+        CountDownLatch released = new CountDownLatch(2);
+
+        pipeline.submit(Collections.singleton(PARTITION_0),
+                () -> batchCanFinish.await(5, TimeUnit.SECONDS), () -> commits.add("revoked partition"),
+                released::countDown);
+        pipeline.submit(Collections.singleton(PARTITION_1),
+                () -> batchCanFinish.await(5, TimeUnit.SECONDS), () -> commits.add("other partition"),
+                released::countDown);
+
+        pipeline.getRebalanceListener(100)
+                .onPartitionsRevokedBeforeCommit(null, Collections.singleton(PARTITION_0));
+        batchCanFinish.countDown();
+
+        // Batch is written after all, but not committed for the partition's new owner
+        assertTrue(released.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("other partition"), commits);
+    }
+
+    @Test
+    public void submit_pipelineFull_shouldPauseContainerUntilBatchesAreWritten() throws Exception {
+        pipeline.shutdown();
+        pipeline = new BatchPipeline("test", 4, 2, 0, 10, 100, 10, () -> containerMock);
+
+        CountDownLatch batchesCanFinish = new CountDownLatch(1);
+
+        pipeline.submit(Collections.singleton(PARTITION_0),
+                () -> batchesCanFinish.await(5, TimeUnit.SECONDS), () -> { });
+        verify(containerMock, never()).pause();
+
+        pipeline.submit(Collections.singleton(PARTITION_1),
+                () -> batchesCanFinish.await(5, TimeUnit.SECONDS), () -> { });
+        verify(containerMock).pause();
+        verify(containerMock, never()).resume();
+
+        batchesCanFinish.countDown();
+
+        verify(containerMock, timeout(5000)).resume();
+        assertEquals(0, pipeline.getInFlightBatches());
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.rackspacecloud.metrics.ingestionservice;
+
+import com.rackspacecloud.metrics.ingestionservice.config.CommonConsumerConfiguration;
+import com.rackspacecloud.metrics.ingestionservice.exceptions.IngestFailedException;
+import com.rackspacecloud.metrics.ingestionservice.exceptions.PartialIngestFailedException;
+import org.apache.kafka.clients.consumer.Consumer;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+import org.springframework.kafka.listener.ConsumerAwareListenerErrorHandler;
+import org.springframework.kafka.listener.adapter.BatchMessagingMessageListenerAdapter;
+import org.springframework.kafka.listener.adapter.HandlerAdapter;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.handler.annotation.Headers;
+import org.springframework.messaging.handler.annotation.Payload;
+import org.springframework.messaging.handler.annotation.support.DefaultMessageHandlerMethodFactory;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoMoreInteractions;
+
+public class CommonConsumerConfigurationTests {
+    private static final String TOPIC = "unified.metrics.json";
+
+    private final ConsumerAwareListenerErrorHandler errorHandler =
+            new CommonConsumerConfiguration().listenerErrorHandler();
+
+    /**
+     * Listener failing every batch with given exception, taking the batch the way RawListener does
+     */
+    public static class MessageListListener {
+        private final Exception failure;
+
+        MessageListListener(Exception failure) {
+            this.failure = failure;
+        }
+
+        public void listen(@Payload List<Message<?>> records, Acknowledgment ack) throws Exception {
+            throw failure;
+        }
+    }
+
+    /**
+     * Listener failing every batch with given exception, taking the batch the way RollupListener does
+     */
+    public static class PayloadListListener {
+        private final Exception failure;
+
+        PayloadListListener(Exception failure) {
+            this.failure = failure;
+        }
+
+        public void listen(@Payload List<String> records, @Headers MessageHeaders headers, Acknowledgment ack)
+                throws Exception {
+            throw failure;
+        }
+    }
+
+    @Test
+    public void listenerErrorHandler_withIngestFailure_shouldSeekEveryPartitionToFirstOffset() throws Exception {
+        Consumer<?, ?> consumer = mock(Consumer.class);
+
+        getAdapter(new MessageListListener(new IngestFailedException("write failed")))
+                .onMessage(getRecords(), mock(Acknowledgment.class), consumer);
+
+        verify(consumer).seek(new TopicPartition(TOPIC, 0), 10L);
+        verify(consumer).seek(new TopicPartition(TOPIC, 1), 20L);
+        verify(consumer, never()).commitSync(anyMap());
+    }
+
+    @Test
+    public void listenerErrorHandler_withPartialIngestFailure_shouldCommitWrittenRecordsAndSeekTheRest()
+            throws Exception {
+        Consumer<?, ?> consumer = mock(Consumer.class);
+
+        PartialIngestFailedException partialFailure = new PartialIngestFailedException("write failed",
+                Collections.singletonMap(new TopicPartition(TOPIC, 0), 11L), new RuntimeException());
+
+        getAdapter(new MessageListListener(partialFailure))
+                .onMessage(getRecords(), mock(Acknowledgment.class), consumer);
+
+        verifyPartialFailureHandled(consumer);
+    }
+
+    @Test
+    public void listenerErrorHandler_withPayloadListAndPartialIngestFailure_shouldCommitWrittenRecordsAndSeekTheRest()
+            throws Exception {
+        Consumer<?, ?> consumer = mock(Consumer.class);
+
+        PartialIngestFailedException partialFailure = new PartialIngestFailedException("write failed",
+                Collections.singletonMap(new TopicPartition(TOPIC, 0), 11L), new RuntimeException());
+
+        getAdapter(new PayloadListListener(partialFailure))
+                .onMessage(getRecords(), mock(Acknowledgment.class), consumer);
+
+        verifyPartialFailureHandled(consumer);
+    }
+
+    private static void verifyPartialFailureHandled(Consumer<?, ?> consumer) {
+        Map<TopicPartition, OffsetAndMetadata> expectedCommit = new HashMap<>();
+        expectedCommit.put(new TopicPartition(TOPIC, 0), new OffsetAndMetadata(11L));
+        expectedCommit.put(new TopicPartition(TOPIC, 1), new OffsetAndMetadata(22L));
+
+        verify(consumer).commitSync(expectedCommit);
+        verify(consumer).seek(new TopicPartition(TOPIC, 0), 11L);
+        verifyNoMoreInteractions(consumer);
+    }
+
+    /**
+     * Adapter the container invokes @KafkaListener batch listeners through, with the listener error handler
+     * @param listener
+     * @return
+     */
+    private BatchMessagingMessageListenerAdapter<String, String> getAdapter(Object listener) {
+        Method method = null;
+        for(Method candidate : listener.getClass().getMethods()) {
+            if(candidate.getName().equals("listen")) method = candidate;
+        }
+
+        DefaultMessageHandlerMethodFactory methodFactory = new DefaultMessageHandlerMethodFactory();
+        methodFactory.afterPropertiesSet();
+
+        BatchMessagingMessageListenerAdapter<String, String> adapter =
+                new BatchMessagingMessageListenerAdapter<>(listener, method, errorHandler);
+        adapter.setHandlerMethod(new HandlerAdapter(methodFactory.createInvocableHandlerMethod(listener, method)));
+        return adapter;
+    }
+
+    private static List<ConsumerRecord<String, String>> getRecords() {
+        int[] partitions = {0, 1, 0, 0, 1};
+        long[] offsets = {10L, 20L, 11L, 12L, 21L};
+
+        List<ConsumerRecord<String, String>> records = new ArrayList<>();
+        for(int i = 0; i < partitions.length; i++) {
+            records.add(new ConsumerRecord<>(TOPIC, partitions[i], offsets[i], null, "value-" + i));
+        }
+        return records;
+    }
+}
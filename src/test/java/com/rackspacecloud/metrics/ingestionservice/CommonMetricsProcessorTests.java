@@ -0,0 +1,60 @@
+package com.rackspacecloud.metrics.ingestionservice;
+
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.CommonMetricsProcessor;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantIdAndMeasurement;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class CommonMetricsProcessorTests {
+
+    @Test
+    public void getTenantIdAndMeasurement_sameFields_shouldReturnCanonicalInstance() {
+        TenantIdAndMeasurement first = CommonMetricsProcessor.getTenantIdAndMeasurement(
+                new String("CORE"), new String("hybrid:1667601"), new String("MAAS"), new String("agent.cpu"));
+        TenantIdAndMeasurement second = CommonMetricsProcessor.getTenantIdAndMeasurement(
+                new String("CORE"), new String("hybrid:1667601"), new String("MAAS"), new String("agent.cpu"));
+
+        assertSame(first, second);
+        assertEquals("CORE-hybrid:1667601", first.getTenantId());
+        assertEquals("MAAS_agent.cpu", first.getMeasurement());
+    }
+
+    @Test
+    public void getTenantIdAndMeasurement_withWhitespace_shouldSanitizeAccountAndCollectionName() {
+        for(int i = 0; i < 2; i++) {
+            TenantIdAndMeasurement result = CommonMetricsProcessor.getTenantIdAndMeasurement(
+                    "RCN", "acct 1", "UIM", "disk usage");
+
+            assertEquals("RCN-acct_1", result.getTenantId());
+            assertEquals("UIM_disk_usage", result.getMeasurement());
+        }
+    }
+
+    @Test
+    public void getTenantIdAndMeasurement_withInvalidAccountType_shouldFailEveryTime() {
+        for(int i = 0; i < 2; i++) {
+            try {
+                CommonMetricsProcessor.getTenantIdAndMeasurement("CO RE", "123456", "MAAS", "agent.cpu");
+                fail("Expected IllegalArgumentException");
+            }
+            catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void tenantIdAndMeasurement_shouldCompareByValue() {
+        TenantIdAndMeasurement first = new TenantIdAndMeasurement("CORE-1", "MAAS_cpu");
+        TenantIdAndMeasurement second = new TenantIdAndMeasurement(new String("CORE-1"), new String("MAAS_cpu"));
+
+        assertEquals(first, second);
+        assertEquals(first.hashCode(), second.hashCode());
+        assertNotEquals(first, new TenantIdAndMeasurement("CORE-1", "MAAS_memory"));
+        assertEquals(new TenantIdAndMeasurement(null, null), new TenantIdAndMeasurement(null, null));
+    }
+}
@@ -0,0 +1,29 @@
+package com.rackspacecloud.metrics.ingestionservice;
+
+import com.rackspacecloud.metrics.ingestionservice.config.ConsumerConfigurationProperties;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConsumerConfigurationPropertiesTests {
+
+    @Test
+    public void getListenerConcurrency_withListenerConcurrency_shouldReturnIt() {
+        ConsumerConfigurationProperties properties = new ConsumerConfigurationProperties();
+        properties.setDefaultConcurrency(2);
+        properties.getConcurrency().put("raw", 6);
+        properties.getConcurrency().put("5m", 0);
+
+        assertEquals(6, properties.getListenerConcurrency("raw"));
+        assertEquals(2, properties.getListenerConcurrency("5m"));
+        assertEquals(2, properties.getListenerConcurrency("1440m"));
+    }
+
+    @Test
+    public void getListenerConcurrency_withoutAnyConcurrency_shouldReturnNumberOfCores() {
+        ConsumerConfigurationProperties properties = new ConsumerConfigurationProperties();
+
+        assertEquals(Runtime.getRuntime().availableProcessors(), properties.getListenerConcurrency("raw"));
+        assertEquals(Runtime.getRuntime().availableProcessors(), properties.getDefaultListenerConcurrency());
+    }
+}
@@ -0,0 +1,140 @@
+package com.rackspacecloud.metrics.ingestionservice;
+
+import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBCatalog;
+import org.influxdb.InfluxDB;
+import org.influxdb.dto.Query;
+import org.influxdb.dto.QueryResult;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class InfluxDBCatalogTests {
+    private static final String URL = "http://valid_url:8086";
+    private static final Query SHOW_DATABASES = new Query("SHOW DATABASES", "");
+    private static final Query SHOW_RETENTION_POLICIES = new Query("SHOW RETENTION POLICIES ON \"db_0\"", "db_0");
+
+    private InfluxDB influxDBMock;
+    private InfluxDBCatalog catalog;
+
+    @Before
+    public void setUp() {
+        influxDBMock = mock(InfluxDB.class);
+        catalog = new InfluxDBCatalog(url -> influxDBMock, 60_000);
+
+        when(influxDBMock.query(SHOW_DATABASES)).thenReturn(getQueryResult("_internal", "db_0"));
+        when(influxDBMock.query(SHOW_RETENTION_POLICIES)).thenReturn(getQueryResult("rp_5d", "rp_1460d"));
+    }
+
+    @Test
+    public void exists_shouldQueryEachInstanceAndDatabaseOnce() {
+        for(int i = 0; i < 3; i++) {
+            assertTrue(catalog.databaseExists("db_0", URL));
+            assertFalse(catalog.databaseExists("db_1", URL));
+            assertTrue(catalog.retentionPolicyExists("rp_5d", "db_0", URL));
+            assertFalse(catalog.retentionPolicyExists("rp_20d", "db_0", URL));
+        }
+
+        // Created by us, known without querying again
+        catalog.databaseCreated("db_1", "rp_5d", URL);
+        catalog.retentionPolicyCreated("rp_20d", "db_0", URL);
+
+        assertTrue(catalog.databaseExists("db_1", URL));
+        assertTrue(catalog.retentionPolicyExists("rp_5d", "db_1", URL));
+        assertTrue(catalog.retentionPolicyExists("rp_20d", "db_0", URL));
+
+        verify(influxDBMock, times(1)).query(SHOW_DATABASES);
+        verify(influxDBMock, times(1)).query(SHOW_RETENTION_POLICIES);
+    }
+
+    @Test
+    public void databaseCreated_beforeDatabasesAreLoaded_shouldStillBeKnown() {
+        catalog.databaseCreated("db_1", "rp_5d", URL);
+
+        assertTrue(catalog.databaseExists("db_1", URL));
+        assertTrue(catalog.retentionPolicyExists("rp_5d", "db_1", URL));
+        verify(influxDBMock, times(0)).query(SHOW_DATABASES);
+
+        // Others are loaded on the first miss
+        when(influxDBMock.query(SHOW_DATABASES)).thenReturn(getQueryResult("db_0", "db_1"));
+        assertTrue(catalog.databaseExists("db_0", URL));
+        assertTrue(catalog.databaseExists("db_1", URL));
+        verify(influxDBMock, times(1)).query(SHOW_DATABASES);
+    }
+
+    @Test
+    public void refresh_shouldReloadWhatIsLoadedAndKeepItWhenReloadFails() {
+        assertFalse(catalog.databaseExists("db_1", URL));
+        assertFalse(catalog.retentionPolicyExists("rp_20d", "db_0", URL));
+
+        when(influxDBMock.query(SHOW_DATABASES)).thenReturn(getQueryResult("db_0", "db_1"));
+        when(influxDBMock.query(SHOW_RETENTION_POLICIES)).thenReturn(getQueryResult("rp_5d", "rp_20d"));
+        catalog.refresh();
+
+        assertTrue(catalog.databaseExists("db_1", URL));
+        assertTrue(catalog.retentionPolicyExists("rp_20d", "db_0", URL));
+
+        QueryResult failed = new QueryResult();
+        failed.setError("database not found");
+        when(influxDBMock.query(SHOW_DATABASES)).thenThrow(new RuntimeException("instance is down"));
+        when(influxDBMock.query(SHOW_RETENTION_POLICIES)).thenReturn(failed);
+        catalog.refresh();
+
+        assertTrue(catalog.databaseExists("db_1", URL));
+        assertTrue(catalog.retentionPolicyExists("rp_20d", "db_0", URL));
+    }
+
+    @Test
+    public void exists_withNameCreatedElsewhere_shouldReloadOnMissButNotMoreOftenThanAllowed() {
+        assertFalse(catalog.databaseExists("db_1", URL));
+        assertFalse(catalog.retentionPolicyExists("rp_20d", "db_0", URL));
+
+        when(influxDBMock.query(SHOW_DATABASES)).thenReturn(getQueryResult("db_0", "db_1"));
+        when(influxDBMock.query(SHOW_RETENTION_POLICIES)).thenReturn(getQueryResult("rp_5d", "rp_20d"));
+
+        // Loaded too recently to be loaded again
+        assertFalse(catalog.databaseExists("db_1", URL));
+
+        // Creating it failed, maybe because another instance did it
+        catalog.expire(URL);
+
+        assertTrue(catalog.databaseExists("db_1", URL));
+        assertTrue(catalog.retentionPolicyExists("rp_20d", "db_0", URL));
+        verify(influxDBMock, times(2)).query(SHOW_DATABASES);
+        verify(influxDBMock, times(2)).query(SHOW_RETENTION_POLICIES);
+
+        // Without a minimum interval, every miss loads them again
+        InfluxDBCatalog reloadingCatalog = new InfluxDBCatalog(url -> influxDBMock, 0);
+        assertFalse(reloadingCatalog.databaseExists("db_2", URL));
+        assertFalse(reloadingCatalog.databaseExists("db_2", URL));
+        assertTrue(reloadingCatalog.databaseExists("db_0", URL));
+        verify(influxDBMock, times(4)).query(SHOW_DATABASES);
+    }
+
+    private static QueryResult getQueryResult(String... names) {
+        List<List<Object>> values = new ArrayList<>();
+        for(String name : names) {
+            values.add(Collections.singletonList(name));
+        }
+
+        QueryResult.Series series = new QueryResult.Series();
+        series.setValues(values);
+
+        QueryResult.Result result = new QueryResult.Result();
+        result.setSeries(Arrays.asList(series));
+
+        QueryResult queryResult = new QueryResult();
+        queryResult.setResults(Arrays.asList(result));
+        return queryResult;
+    }
+}
@@ -1,14 +1,16 @@
 package com.rackspacecloud.metrics.ingestionservice;
 
-import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.rackspacecloud.metrics.ingestionservice.exceptions.IngestFailedException;
 import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBHelper;
 import com.rackspacecloud.metrics.ingestionservice.influxdb.GCLineProtocolBackupService;
 import com.rackspacecloud.metrics.ingestionservice.influxdb.providers.RouteProvider;
 import com.rackspacecloud.metrics.ingestionservice.influxdb.providers.TenantRoutes;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantIdAndMeasurement;
 import com.rackspacecloud.metrics.ingestionservice.utils.InfluxDBFactory;
 import io.micrometer.core.instrument.MeterRegistry;
 import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import org.influxdb.InfluxDB;
 import org.influxdb.dto.Query;
 import org.influxdb.dto.QueryResult;
@@ -26,7 +28,9 @@ import org.springframework.web.client.RestTemplate;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.*;
 
 @RunWith(SpringRunner.class)
@@ -43,20 +47,24 @@ public class InfluxDBHelperTests {
     Timer influxDBWriteTimer;
     Timer getInfluxDBInfoTimer;
     GCLineProtocolBackupService backupService;
-    Cache<String, Map<String, InfluxDBHelper.InfluxDbInfoForRollupLevel>> cacheMock;
+    Caffeine<Object, Object> cacheBuilder;
+    AtomicLong ticker;
 
     @Before
     public void setUp() throws IOException {
         restTemplateMock = mock(RestTemplate.class);
         routeProviderMock = mock(RouteProvider.class);
-        meterRegistry = mock(MeterRegistry.class);
+        meterRegistry = new SimpleMeterRegistry();
         influxDBUtilsMock = mock(InfluxDBFactory.class);
         influxDBWriteTimer = mock(Timer.class);
         getInfluxDBInfoTimer = mock(Timer.class);
         backupService = mock(GCLineProtocolBackupService.class);
-        cacheMock = mock(Cache.class);
-        when(meterRegistry.timer("ingestion.influxdb.write")).thenReturn(influxDBWriteTimer);
-        when(meterRegistry.timer("ingestion.routing.info.get")).thenReturn(getInfluxDBInfoTimer);
+        ticker = new AtomicLong();
+        cacheBuilder = Caffeine.newBuilder()
+                .maximumWeight(1024 * 1024)
+                .refreshAfterWrite(1, TimeUnit.MINUTES)
+                .ticker(ticker::get)
+                .executor(Runnable::run);
     }
 
     @Test
@@ -65,7 +73,7 @@ public class InfluxDBHelperTests {
         InfluxDBHelper influxDBHelper = new InfluxDBHelper(
                 restTemplateMock, routeProviderMock, meterRegistry,
                 influxDBUtilsMock, backupService, 100, 100,
-                100, cacheMock);
+                100, cacheBuilder);
         String tenantId = "hybrid:1667601";
         String measurement = "cpu";
         String databaseName = "existing_db";
@@ -87,7 +95,7 @@ public class InfluxDBHelperTests {
         throws IngestFailedException {
         InfluxDBHelper influxDBHelper = new InfluxDBHelper(
                 restTemplateMock, routeProviderMock, meterRegistry, influxDBUtilsMock, backupService,
-                100, 100, 100, cacheMock);
+                100, 100, 100, cacheBuilder);
         String tenantId = "hybrid:1667601";
         String measurement = "cpu";
         String databaseName = "non_existing_database";
@@ -106,7 +114,7 @@ public class InfluxDBHelperTests {
         InfluxDBHelper influxDBHelper = new InfluxDBHelper(
                 restTemplateMock, routeProviderMock, meterRegistry,
                 influxDBUtilsMock, backupService, 100,
-                100, 100, cacheMock);
+                100, 100, cacheBuilder);
         String tenantId = "hybrid:1667601";
         String measurement = "cpu";
         String databaseName = "existing_db";
@@ -124,6 +132,119 @@ public class InfluxDBHelperTests {
                 nonExistingRetentionPolicyName, influxDBWriteTimer, getInfluxDBInfoTimer);
     }
 
+    @Test
+    public void ingestToInfluxDb_withRouteDueForRefresh_shouldUseCachedRouteWhileRefreshing()
+        throws IngestFailedException {
+        InfluxDBHelper influxDBHelper = new InfluxDBHelper(
+                restTemplateMock, routeProviderMock, meterRegistry, influxDBUtilsMock, backupService,
+                100, 100, 100, cacheBuilder);
+        String tenantId = "hybrid:1667601";
+        String measurement = "cpu";
+
+        InfluxDB influxDBMock = mock(InfluxDB.class);
+        when(influxDBUtilsMock.getInfluxDB("http://valid_url:8086", 100, 100, 100)).thenReturn(influxDBMock);
+        when(influxDBMock.query(any())).thenAnswer(invocation -> {
+            String query = ((Query) invocation.getArgument(0)).getCommand();
+            return query.startsWith("SHOW RETENTION")
+                    ? getQueryResultForExistingRetentionPolicy() : getQueryResultForExistingDatabase();
+        });
+
+        doReturn(getTenantRoutes(tenantId, "existing_db", "existing_rp"))
+                .when(routeProviderMock).getRoute(tenantId, measurement, restTemplateMock);
+
+        influxDBHelper.ingestToInfluxDb("first", tenantId, measurement, "full");
+        influxDBHelper.ingestToInfluxDb("cached", tenantId, measurement, "full");
+        verify(routeProviderMock, times(1)).getRoute(tenantId, measurement, restTemplateMock);
+
+        // Route has moved, the write triggering the refresh still goes to the cached route
+        doReturn(getTenantRoutes(tenantId, "new_db", "existing_rp"))
+                .when(routeProviderMock).getRoute(tenantId, measurement, restTemplateMock);
+        ticker.addAndGet(TimeUnit.MINUTES.toNanos(2));
+
+        influxDBHelper.ingestToInfluxDb("stale", tenantId, measurement, "full");
+        influxDBHelper.ingestToInfluxDb("refreshed", tenantId, measurement, "full");
+
+        verify(routeProviderMock, times(2)).getRoute(tenantId, measurement, restTemplateMock);
+        verify(influxDBMock).write(
+                "existing_db", "existing_rp", InfluxDB.ConsistencyLevel.ONE, TimeUnit.SECONDS, "stale");
+        verify(influxDBMock).write(
+                "new_db", "existing_rp", InfluxDB.ConsistencyLevel.ONE, TimeUnit.SECONDS, "refreshed");
+        assertEquals(1.0, meterRegistry.get("cache.gets").tag("cache", "influxdb.route.cache").tag("result", "miss")
+                .functionCounter().count(), 0.0);
+
+        // Load on the miss and the refresh
+        assertEquals(2.0, meterRegistry.get("cache.load").tag("cache", "influxdb.route.cache")
+                .tag("result", "success").functionCounter().count(), 0.0);
+    }
+
+    @Test
+    public void prefetchInfluxDbInfo_shouldLookUpMissingRoutesTogether() throws IngestFailedException {
+        InfluxDBHelper influxDBHelper = new InfluxDBHelper(
+                restTemplateMock, routeProviderMock, meterRegistry, influxDBUtilsMock, backupService,
+                100, 100, 100, cacheBuilder);
+        TenantIdAndMeasurement cpu = new TenantIdAndMeasurement("hybrid:1667601", "cpu");
+        TenantIdAndMeasurement disk = new TenantIdAndMeasurement("hybrid:1667601", "disk");
+
+        InfluxDB influxDBMock = mock(InfluxDB.class);
+        when(influxDBUtilsMock.getInfluxDB("http://valid_url:8086", 100, 100, 100)).thenReturn(influxDBMock);
+        when(influxDBMock.query(any())).thenAnswer(invocation -> {
+            String query = ((Query) invocation.getArgument(0)).getCommand();
+            return query.startsWith("SHOW RETENTION")
+                    ? getQueryResultForExistingRetentionPolicy() : getQueryResultForExistingDatabase();
+        });
+
+        Map<TenantIdAndMeasurement, TenantRoutes> routes = new HashMap<>();
+        routes.put(cpu, getTenantRoutes(cpu.getTenantId(), "existing_db", "existing_rp"));
+        routes.put(disk, getTenantRoutes(disk.getTenantId(), "existing_db", "existing_rp"));
+        doReturn(routes).when(routeProviderMock).getRoutes(anyCollection(), eq(restTemplateMock));
+
+        influxDBHelper.prefetchInfluxDbInfo(Arrays.asList(cpu, disk));
+        influxDBHelper.ingestToInfluxDb("cpu payload", cpu.getTenantId(), cpu.getMeasurement(), "full");
+        influxDBHelper.ingestToInfluxDb("disk payload", disk.getTenantId(), disk.getMeasurement(), "full");
+
+        // Cached routes are not looked up again
+        influxDBHelper.prefetchInfluxDbInfo(Arrays.asList(cpu, disk));
+
+        verify(routeProviderMock, times(1)).getRoutes(anyCollection(), eq(restTemplateMock));
+        verify(routeProviderMock, never()).getRoute(anyString(), anyString(), any());
+        verify(influxDBMock).write(
+                "existing_db", "existing_rp", InfluxDB.ConsistencyLevel.ONE, TimeUnit.SECONDS, "disk payload");
+        assertEquals(2.0, meterRegistry.get("cache.load").tag("cache", "influxdb.route.cache")
+                .tag("result", "success").functionCounter().count(), 0.0);
+    }
+
+    @Test
+    public void ingestToInfluxDb_withDatabaseCreatedElsewhereMeanwhile_shouldWriteIntoIt()
+        throws IngestFailedException {
+        InfluxDBHelper influxDBHelper = new InfluxDBHelper(
+                restTemplateMock, routeProviderMock, meterRegistry, influxDBUtilsMock, backupService,
+                100, 100, 100, cacheBuilder);
+        String tenantId = "hybrid:1667601";
+        String measurement = "cpu";
+
+        InfluxDB influxDBMock = mock(InfluxDB.class);
+        when(influxDBUtilsMock.getInfluxDB("http://valid_url:8086", 100, 100, 100)).thenReturn(influxDBMock);
+
+        // Another ingestion instance creates the database between the two queries, with another retention policy
+        QueryResult createFailed = new QueryResult();
+        createFailed.setError("retention policy conflict");
+        when(influxDBMock.query(new Query("SHOW DATABASES", "")))
+                .thenReturn(getQueryResultForExistingDatabase())
+                .thenReturn(getQueryResult("existing_db", "new_db"));
+        when(influxDBMock.query(new Query(
+                "CREATE DATABASE \"new_db\" WITH DURATION 5d NAME \"existing_rp\"", "")))
+                .thenReturn(createFailed);
+        when(influxDBMock.query(new Query("SHOW RETENTION POLICIES ON \"new_db\"", "new_db")))
+                .thenReturn(getQueryResultForExistingRetentionPolicy());
+
+        doReturn(getTenantRoutes(tenantId, "new_db", "existing_rp"))
+                .when(routeProviderMock).getRoute(tenantId, measurement, restTemplateMock);
+
+        influxDBHelper.ingestToInfluxDb("payload", tenantId, measurement, "full");
+
+        verify(influxDBMock).write("new_db", "existing_rp", InfluxDB.ConsistencyLevel.ONE, TimeUnit.SECONDS, "payload");
+    }
+
     private void successfulIngestionTest(
             InfluxDBHelper influxDBHelper, InfluxDBFactory influxDBUtilsMock,
             String tenantId, String measurement, String databaseName, String rpName,
@@ -183,6 +304,24 @@ public class InfluxDBHelperTests {
         return tenantRoutes;
     }
 
+    private QueryResult getQueryResult(String... names) {
+        List<List<Object>> seriesValuesList = new ArrayList<>();
+        for(String name : names) {
+            seriesValuesList.add(Arrays.asList(name));
+        }
+
+        QueryResult.Series series = new QueryResult.Series();
+        series.setValues(seriesValuesList);
+
+        QueryResult.Result result = new QueryResult.Result();
+        result.setSeries(Arrays.asList(series));
+
+        QueryResult queryResult = new QueryResult();
+        queryResult.setResults(Arrays.asList(result));
+
+        return queryResult;
+    }
+
     private QueryResult getQueryResultForExistingDatabase() {
         QueryResult.Series series = new QueryResult.Series();
         List<Object> seriesValues = new ArrayList<>();
@@ -0,0 +1,262 @@
+package com.rackspacecloud.metrics.ingestionservice;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.rackspacecloud.metrics.ingestionservice.exceptions.IngestFailedException;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBHelper;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBHelper.InfluxDbInfoForRollupLevel;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBProvisioner;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBWriteExecutor;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.providers.LineProtocolBackupService;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.providers.RouteProvider;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.providers.TenantRoutes;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.LinePayload;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantIdAndMeasurement;
+import com.rackspacecloud.metrics.ingestionservice.utils.InfluxDBFactory;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.influxdb.InfluxDB;
+import org.influxdb.dto.Query;
+import org.influxdb.dto.QueryResult;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class InfluxDBProvisionerTests {
+    private static final String URL = "http://valid_url:8086";
+    private static final String TENANT_ID = "hybrid:1667601";
+    private static final String MEASUREMENT = "cpu";
+    private static final InfluxDbInfoForRollupLevel DESTINATION =
+            new InfluxDbInfoForRollupLevel(URL, "new_db", "rp_5d", "5d");
+
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+    private final InfluxDB influxDBMock = mock(InfluxDB.class);
+    private final RouteProvider routeProviderMock = mock(RouteProvider.class);
+    private final RestTemplate restTemplateMock = mock(RestTemplate.class);
+
+    // Released to let CREATE DATABASE queries return
+    private final CountDownLatch createReleased = new CountDownLatch(1);
+    private final AtomicInteger createAttempts = new AtomicInteger();
+    private volatile int failedCreates;
+
+    private InfluxDBHelper influxDBHelper;
+    private InfluxDBProvisioner provisioner;
+
+    @Before
+    public void setUp() {
+        InfluxDBFactory influxDBFactoryMock = mock(InfluxDBFactory.class);
+        when(influxDBFactoryMock.getInfluxDB(URL, 100, 100, 100)).thenReturn(influxDBMock);
+
+        when(influxDBMock.query(any())).thenAnswer(invocation -> {
+            String query = ((Query) invocation.getArgument(0)).getCommand();
+            if(query.equals("SHOW DATABASES")) return getQueryResult("existing_db");
+
+            createReleased.await(5, TimeUnit.SECONDS);
+            QueryResult result = new QueryResult();
+            if(createAttempts.incrementAndGet() <= failedCreates) result.setError("timeout");
+            return result;
+        });
+
+        TenantRoutes tenantRoutes = new TenantRoutes();
+        tenantRoutes.setTenantIdAndMeasurement(TENANT_ID + ":" + MEASUREMENT);
+        tenantRoutes.getRoutes().put("full", new TenantRoutes.TenantRoute(URL, "new_db", "rp_5d", "5d"));
+        doReturn(tenantRoutes).when(routeProviderMock).getRoute(TENANT_ID, MEASUREMENT, restTemplateMock);
+
+        influxDBHelper = new InfluxDBHelper(
+                restTemplateMock, routeProviderMock, registry, influxDBFactoryMock,
+                mock(LineProtocolBackupService.class), 100, 100, 100, Caffeine.newBuilder().maximumWeight(1024 * 1024));
+    }
+
+    @After
+    public void tearDown() {
+        provisioner.shutdown();
+    }
+
+    @Test
+    public void ingestToInfluxDb_withDatabaseBeingCreated_shouldWaitUntilHeldPayloadsAreWritten() throws Exception {
+        failedCreates = 1;
+        provisioner = new InfluxDBProvisioner(influxDBHelper, registry, 1, 3, 10, 10, 1024, 5000);
+        influxDBHelper.setProvisioner(provisioner);
+
+        CompletableFuture<Void> first = ingestInBackground("first");
+        CompletableFuture<Void> second = ingestInBackground("second");
+
+        waitFor(() -> registry.get("ingestion.provisioning.held.bytes").gauge().value() == 11.0);
+        assertTrue(provisioner.isProvisioning(DESTINATION));
+        assertFalse(first.isDone() || second.isDone());
+        verify(influxDBMock, never()).write(anyString(), anyString(), any(), any(), anyString());
+
+        // First attempt fails, the retry creates the database
+        createReleased.countDown();
+
+        first.get(5, TimeUnit.SECONDS);
+        second.get(5, TimeUnit.SECONDS);
+
+        verify(influxDBMock).write("new_db", "rp_5d", InfluxDB.ConsistencyLevel.ONE, TimeUnit.SECONDS, "first");
+        verify(influxDBMock).write("new_db", "rp_5d", InfluxDB.ConsistencyLevel.ONE, TimeUnit.SECONDS, "second");
+        assertEquals(2, createAttempts.get());
+        assertFalse(provisioner.isProvisioning(DESTINATION));
+
+        // Created database is known from now on
+        influxDBHelper.ingestToInfluxDb("third", DESTINATION);
+        verify(influxDBMock).write("new_db", "rp_5d", InfluxDB.ConsistencyLevel.ONE, TimeUnit.SECONDS, "third");
+    }
+
+    @Test
+    public void writeAll_withDatabaseThatCannotBeCreated_shouldFailHeldPayloadsSoTheirBatchIsNotCommitted() {
+        failedCreates = Integer.MAX_VALUE;
+        provisioner = new InfluxDBProvisioner(influxDBHelper, registry, 1, 2, 10, 10, 1024, 5000);
+        influxDBHelper.setProvisioner(provisioner);
+        InfluxDBWriteExecutor writeExecutor = new InfluxDBWriteExecutor(influxDBHelper, 2, 10, 0, 0);
+
+        TenantIdAndMeasurement key = new TenantIdAndMeasurement(TENANT_ID, MEASUREMENT);
+        LinePayload linePayload = LinePayload.acquire();
+        linePayload.appendLine("cpu,system=linux value=1 1562184000");
+
+        createReleased.countDown();
+        Map<TenantIdAndMeasurement, Exception> failures =
+                writeExecutor.writeAll(Collections.singletonMap(key, linePayload), "full");
+        writeExecutor.shutdown();
+
+        // Listener doesn't acknowledge a batch with failures, its records are consumed again
+        assertTrue(failures.get(key) instanceof IngestFailedException);
+        assertTrue(failures.get(key).getMessage().contains("couldn't be created"));
+        assertEquals(2, createAttempts.get());
+        assertEquals(1.0, registry.get("ingestion.provisioning.payloads.failed").counter().count(), 0.0);
+        assertEquals(0.0, registry.get("ingestion.provisioning.held.bytes").gauge().value(), 0.0);
+        verify(influxDBMock, never()).write(anyString(), anyString(), any(), any(), anyString());
+    }
+
+    @Test
+    public void ingestToInfluxDb_withHoldBufferFullOrProvisionerShutDown_shouldFail() throws Exception {
+        provisioner = new InfluxDBProvisioner(influxDBHelper, registry, 1, 2, 10, 10, 10, 5000);
+        influxDBHelper.setProvisioner(provisioner);
+
+        CompletableFuture<Void> held = ingestInBackground("held");
+        waitFor(() -> registry.get("ingestion.provisioning.held.bytes").gauge().value() == 4.0);
+
+        try {
+            influxDBHelper.ingestToInfluxDb("no room for this one", TENANT_ID, MEASUREMENT, "full");
+            fail("Payload over the hold buffer should fail");
+        } catch(IngestFailedException e) {
+            assertTrue(e.getMessage().startsWith("No room to hold payload"));
+        }
+
+        provisioner.shutdown();
+
+        try {
+            held.get(5, TimeUnit.SECONDS);
+            fail("Payload held when the provisioner is shut down should fail");
+        } catch(ExecutionException e) {
+            assertTrue(e.getCause() instanceof IngestFailedException);
+        }
+
+        verify(influxDBMock, never()).write(anyString(), anyString(), any(), any(), anyString());
+    }
+
+    @Test
+    public void getInfluxDbInfoForRollupLevel_withUnreachableInstance_shouldLeaveQueryingItToProvisioner() {
+        provisioner = new InfluxDBProvisioner(influxDBHelper, registry, 1, 1, 10, 10, 1024, 5000);
+        influxDBHelper.setProvisioner(provisioner);
+        when(influxDBMock.query(new Query("SHOW DATABASES", ""))).thenThrow(new RuntimeException("instance is down"));
+
+        // Route lookup doesn't fail, the provisioner tries again in the background
+        assertEquals(DESTINATION, influxDBHelper.getInfluxDbInfoForRollupLevel(TENANT_ID, MEASUREMENT, "full"));
+        verify(influxDBMock, timeout(5000).times(2)).query(new Query("SHOW DATABASES", ""));
+    }
+
+    @Test
+    public void ingestToInfluxDb_withExistingDatabase_shouldWriteWithoutHolding() throws Exception {
+        provisioner = new InfluxDBProvisioner(influxDBHelper, registry, 1, 1, 10, 10, 1024, 5000);
+        influxDBHelper.setProvisioner(provisioner);
+
+        TenantRoutes tenantRoutes = new TenantRoutes();
+        tenantRoutes.setTenantIdAndMeasurement(TENANT_ID + ":" + MEASUREMENT);
+        tenantRoutes.getRoutes().put("full", new TenantRoutes.TenantRoute(URL, "existing_db", "rp_5d", "5d"));
+        doReturn(tenantRoutes).when(routeProviderMock).getRoute(TENANT_ID, MEASUREMENT, restTemplateMock);
+        doReturn(getQueryResult("rp_5d")).when(influxDBMock)
+                .query(new Query("SHOW RETENTION POLICIES ON \"existing_db\"", "existing_db"));
+
+        // Written on this thread, even though nothing was loaded before
+        influxDBHelper.ingestToInfluxDb("existing", TENANT_ID, MEASUREMENT, "full");
+
+        verify(influxDBMock).write("existing_db", "rp_5d", InfluxDB.ConsistencyLevel.ONE, TimeUnit.SECONDS, "existing");
+        assertEquals(0, createAttempts.get());
+    }
+
+    @Test
+    public void ingestToInfluxDb_withDatabaseCreatedTooSlowly_shouldFailAndDropHeldPayload() throws Exception {
+        provisioner = new InfluxDBProvisioner(influxDBHelper, registry, 1, 1, 10, 10, 1024, 50);
+        influxDBHelper.setProvisioner(provisioner);
+
+        try {
+            influxDBHelper.ingestToInfluxDb("slow", TENANT_ID, MEASUREMENT, "full");
+            fail("Payload held past maxHoldWaitMs should fail");
+        } catch(IngestFailedException e) {
+            assertTrue(e.getMessage().startsWith("Held payload not written within [50] ms"));
+        }
+
+        // Its batch is consumed again, so it's not written once the database is created
+        createReleased.countDown();
+        waitFor(() -> !provisioner.isProvisioning(DESTINATION));
+
+        verify(influxDBMock, never()).write(anyString(), anyString(), any(), any(), anyString());
+        assertEquals(1.0, registry.get("ingestion.provisioning.payloads.failed").counter().count(), 0.0);
+        assertEquals(0.0, registry.get("ingestion.provisioning.held.bytes").gauge().value(), 0.0);
+    }
+
+    private CompletableFuture<Void> ingestInBackground(String payload) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                influxDBHelper.ingestToInfluxDb(payload, TENANT_ID, MEASUREMENT, "full");
+            } catch(IngestFailedException e) {
+                throw new CompletionException(e);
+            }
+        }, Executors.newSingleThreadExecutor());
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(!condition.getAsBoolean()) {
+            assertTrue("Timed out waiting", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private static QueryResult getQueryResult(String name) {
+        QueryResult.Series series = new QueryResult.Series();
+        series.setValues(Collections.singletonList(Collections.singletonList(name)));
+
+        QueryResult.Result result = new QueryResult.Result();
+        result.setSeries(Arrays.asList(series));
+
+        QueryResult queryResult = new QueryResult();
+        queryResult.setResults(Arrays.asList(result));
+        return queryResult;
+    }
+}
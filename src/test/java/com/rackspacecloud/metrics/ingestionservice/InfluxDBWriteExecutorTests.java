@@ -0,0 +1,158 @@
+package com.rackspacecloud.metrics.ingestionservice;
+
+import com.rackspacecloud.metrics.ingestionservice.exceptions.IngestFailedException;
+import com.rackspacecloud.metrics.ingestionservice.exceptions.RouteNotFoundException;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBHelper;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBHelper.InfluxDbInfoForRollupLevel;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBWriteExecutor;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.InstanceWriteLimiter;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantIdAndMeasurement;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantPayloads;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class InfluxDBWriteExecutorTests {
+    private static final InfluxDbInfoForRollupLevel DB_1 =
+            new InfluxDbInfoForRollupLevel("http://influxdb-1:8086", "db_1", "rp_5d", "5d");
+    private static final InfluxDbInfoForRollupLevel DB_2 =
+            new InfluxDbInfoForRollupLevel("http://influxdb-1:8086", "db_2", "rp_5d", "5d");
+    private static final InfluxDbInfoForRollupLevel DB_3 =
+            new InfluxDbInfoForRollupLevel("http://influxdb-2:8086", "db_3", "rp_5d", "5d");
+
+    private final InfluxDBHelper influxDBHelperMock = mock(InfluxDBHelper.class);
+    private InfluxDBWriteExecutor writeExecutor = new InfluxDBWriteExecutor(influxDBHelperMock, 4, 10, 0, 0);
+
+    @After
+    public void tearDown() {
+        writeExecutor.shutdown();
+    }
+
+    @Test
+    public void writeAll_shouldMergePayloadsByDestinationAndCollectFailures() throws Exception {
+        route("CORE-1", "MAAS_cpu", DB_1);
+        route("CORE-1", "MAAS_disk", DB_1);
+        route("CORE-2", "MAAS_cpu", DB_2);
+        when(influxDBHelperMock.getInfluxDbInfoForRollupLevel("CORE-3", "MAAS_cpu", "5m"))
+                .thenThrow(new RouteNotFoundException());
+
+        IngestFailedException failure = new IngestFailedException("write failed");
+        doThrow(failure).when(influxDBHelperMock).ingestToInfluxDb(anyString(), eq(DB_2));
+
+        TenantPayloads tenantPayloads = new TenantPayloads();
+        tenantPayloads.addLine(new TenantIdAndMeasurement("CORE-1", "MAAS_cpu"), "cpu usage=1.0 1");
+        tenantPayloads.addLine(new TenantIdAndMeasurement("CORE-2", "MAAS_cpu"), "cpu usage=2.0 1");
+        tenantPayloads.addLine(new TenantIdAndMeasurement("CORE-1", "MAAS_disk"), "disk used=1.0 1");
+        tenantPayloads.addLine(new TenantIdAndMeasurement("CORE-1", "MAAS_disk"), "disk used=2.0 2");
+        tenantPayloads.addLine(new TenantIdAndMeasurement("CORE-3", "MAAS_cpu"), "cpu usage=3.0 1");
+
+        Map<TenantIdAndMeasurement, Exception> failures = writeExecutor.writeAll(tenantPayloads.getPayloads(), "5m");
+
+        assertEquals(2, failures.size());
+        assertSame(failure, failures.get(new TenantIdAndMeasurement("CORE-2", "MAAS_cpu")));
+        assertTrue(failures.get(new TenantIdAndMeasurement("CORE-3", "MAAS_cpu")) instanceof RouteNotFoundException);
+
+        ArgumentCaptor<String> payloadCaptor = ArgumentCaptor.forClass(String.class);
+        verify(influxDBHelperMock, times(1)).ingestToInfluxDb(payloadCaptor.capture(), eq(DB_1));
+        String merged = payloadCaptor.getValue();
+        assertEquals(new HashSet<>(Arrays.asList("cpu usage=1.0 1", "disk used=1.0 1", "disk used=2.0 2")),
+                new HashSet<>(Arrays.asList(merged.split("\n"))));
+        assertTrue(merged.contains("disk used=1.0 1\ndisk used=2.0 2"));
+    }
+
+    @Test
+    public void writeAll_shouldSplitMergedPayloadsAtLineLimit() throws Exception {
+        writeExecutor.shutdown();
+        writeExecutor = new InfluxDBWriteExecutor(influxDBHelperMock, 4, 10, 2, 0);
+
+        route("CORE-1", "MAAS_cpu", DB_1);
+        route("CORE-2", "MAAS_cpu", DB_1);
+
+        TenantPayloads tenantPayloads = new TenantPayloads();
+        TenantIdAndMeasurement small = new TenantIdAndMeasurement("CORE-1", "MAAS_cpu");
+        TenantIdAndMeasurement large = new TenantIdAndMeasurement("CORE-2", "MAAS_cpu");
+        tenantPayloads.addLine(small, "cpu usage=1.0 1");
+        for(int i = 0; i < 3; i++) tenantPayloads.addLine(large, "cpu usage=2.0 " + i);
+
+        assertTrue(writeExecutor.writeAll(tenantPayloads.getPayloads(), "5m").isEmpty());
+
+        // 4 lines in writes of at most 2 lines
+        verify(influxDBHelperMock, times(2)).ingestToInfluxDb(anyString(), eq(DB_1));
+    }
+
+    @Test
+    public void writeAll_shouldWriteDestinationsConcurrently() throws Exception {
+        CountDownLatch allWritesStarted = new CountDownLatch(3);
+
+        // Every write waits for the others, so this only finishes in time if writes run in parallel
+        doAnswer(invocation -> {
+            allWritesStarted.countDown();
+            if(!allWritesStarted.await(5, TimeUnit.SECONDS)) throw new IngestFailedException("writes ran serially");
+            return null;
+        }).when(influxDBHelperMock).ingestToInfluxDb(anyString(), any(InfluxDbInfoForRollupLevel.class));
+
+        InfluxDbInfoForRollupLevel[] destinations = {DB_1, DB_2, DB_3};
+        TenantPayloads tenantPayloads = new TenantPayloads();
+        for(int i = 0; i < 3; i++) {
+            route("CORE-" + i, "MAAS_cpu", destinations[i]);
+            tenantPayloads.addLine(new TenantIdAndMeasurement("CORE-" + i, "MAAS_cpu"), "cpu usage=1.0 1");
+        }
+
+        assertTrue(writeExecutor.writeAll(tenantPayloads.getPayloads(), "5m").isEmpty());
+    }
+
+    @Test
+    public void instanceWriteLimiter_shouldLimitConcurrentWritesPerInstance() throws Exception {
+        InstanceWriteLimiter limiter = new InstanceWriteLimiter(
+                2, Collections.singletonMap("http://unlimited:8086", 0));
+
+        limiter.acquire("http://limited:8086");
+        limiter.acquire("http://limited:8086");
+
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread writer = new Thread(() -> {
+            try {
+                limiter.acquire("http://limited:8086");
+                acquired.countDown();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        writer.start();
+
+        assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+        // Other instances are not affected
+        for(int i = 0; i < 10; i++) limiter.acquire("http://unlimited:8086");
+
+        limiter.release("http://limited:8086");
+        assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        writer.join();
+    }
+
+    private void route(String tenantId, String measurement, InfluxDbInfoForRollupLevel destination) {
+        when(influxDBHelperMock.getInfluxDbInfoForRollupLevel(tenantId, measurement, "5m")).thenReturn(destination);
+    }
+}
@@ -0,0 +1,98 @@
+package com.rackspacecloud.metrics.ingestionservice;
+
+import com.rackspace.monplat.protocol.MonitoringSystem;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.IngestedRecordCounts;
+import org.junit.Test;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.MessageHeaders;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IngestedRecordCountsTests {
+    private static final String TOPIC = "unified.metrics.json";
+
+    @Test
+    public void drainTo_shouldReturnCountsByTopicPartitionAndMonitoringSystemAndResetThem() {
+        IngestedRecordCounts recordCounts = new IngestedRecordCounts();
+
+        recordCounts.increment(getHeaders(TOPIC, 3), MonitoringSystem.MAAS);
+        recordCounts.increment(getHeaders(TOPIC, 3), "MAAS");
+        recordCounts.increment(getHeaders(TOPIC, 0), MonitoringSystem.SALUS);
+        recordCounts.increment(getHeaders(TOPIC, 0), "NOT_A_MONITORING_SYSTEM");
+        recordCounts.increment(getHeaders(TOPIC, 0), (String) null);
+        recordCounts.increment(getHeaders("other", 1), MonitoringSystem.UIM);
+
+        Map<String, Long> expected = new HashMap<>();
+        expected.put(TOPIC + "/3/MAAS", 2L);
+        expected.put(TOPIC + "/0/SALUS", 1L);
+        expected.put(TOPIC + "/0/unknown", 2L);
+        expected.put("other/1/UIM", 1L);
+
+        assertEquals(expected, drain(recordCounts));
+        assertTrue(drain(recordCounts).isEmpty());
+    }
+
+    @Test
+    public void snapshot_shouldKeepCountsUntilRemoved() {
+        IngestedRecordCounts recordCounts = new IngestedRecordCounts();
+        recordCounts.increment(getHeaders(TOPIC, 0), MonitoringSystem.MAAS);
+
+        // Not removed, e.g. because publishing it failed
+        recordCounts.snapshot((topic, partition, monitoringSystem, count) -> { });
+        recordCounts.increment(getHeaders(TOPIC, 0), MonitoringSystem.MAAS);
+
+        List<Long> counts = new ArrayList<>();
+        IngestedRecordCounts.Snapshot snapshot =
+                recordCounts.snapshot((topic, partition, monitoringSystem, count) -> counts.add(count));
+        assertEquals(Collections.singletonList(2L), counts);
+
+        // Counted while the snapshot is published
+        recordCounts.increment(getHeaders(TOPIC, 0), MonitoringSystem.MAAS);
+        snapshot.remove();
+
+        assertEquals(Collections.singletonMap(TOPIC + "/0/MAAS", 1L), drain(recordCounts));
+    }
+
+    @Test
+    public void increment_fromSeveralThreads_shouldCountEveryRecord() throws Exception {
+        IngestedRecordCounts recordCounts = new IngestedRecordCounts();
+        List<Thread> threads = new ArrayList<>();
+
+        for(int t = 0; t < 4; t++) {
+            threads.add(new Thread(() -> {
+                for(int i = 0; i < 10000; i++) {
+                    recordCounts.increment(getHeaders(TOPIC, i % 8), MonitoringSystem.MAAS);
+                }
+            }));
+        }
+
+        threads.forEach(Thread::start);
+        for(Thread thread : threads) thread.join();
+
+        Map<String, Long> counts = drain(recordCounts);
+
+        assertEquals(8, counts.size());
+        assertEquals(40000L, counts.values().stream().mapToLong(Long::longValue).sum());
+    }
+
+    private static MessageHeaders getHeaders(String topic, int partition) {
+        Map<String, Object> headers = new HashMap<>();
+        headers.put(KafkaHeaders.RECEIVED_TOPIC, topic);
+        headers.put(KafkaHeaders.RECEIVED_PARTITION_ID, partition);
+        return new MessageHeaders(headers);
+    }
+
+    private static Map<String, Long> drain(IngestedRecordCounts recordCounts) {
+        Map<String, Long> counts = new HashMap<>();
+        recordCounts.drainTo((topic, partition, monitoringSystem, count) ->
+                counts.put(topic + "/" + partition + "/" + monitoringSystem, count));
+        return counts;
+    }
+}
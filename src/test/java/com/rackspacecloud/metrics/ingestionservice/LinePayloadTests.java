@@ -0,0 +1,176 @@
+package com.rackspacecloud.metrics.ingestionservice;
+
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.LinePayload;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantIdAndMeasurement;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantPayloads;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.MessageHeaders;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class LinePayloadTests {
+
+    @Test
+    public void appendLine_shouldTrackLineCountAndUtf8ByteLength() {
+        List<String> lines = Arrays.asList(
+                "cpu,tenant=CORE-1 usage=1.0 1522156506",
+                "disk,device=dévice,label=測試 used=2i 1522156506",
+                "emoji,tag=😀 value=3.0 1522156506",
+                "broken,tag=\ud83d value=4.0 1522156506");
+
+        LinePayload payload = LinePayload.acquire();
+        lines.forEach(payload::appendLine);
+
+        String expected = String.join("\n", lines);
+        assertEquals(expected, payload.getPayload());
+        assertEquals(lines.size(), payload.getLineCount());
+        assertEquals(expected.getBytes(StandardCharsets.UTF_8).length, payload.getByteLength());
+
+        payload.release();
+    }
+
+    @Test
+    public void acquire_afterRelease_shouldReturnEmptyBuffer() {
+        LinePayload payload = LinePayload.acquire();
+        payload.appendLine("cpu usage=1.0 1522156506");
+        payload.release();
+
+        LinePayload reused = LinePayload.acquire();
+        assertTrue(reused.isEmpty());
+        assertEquals(0, reused.getByteLength());
+        assertEquals("", reused.getPayload());
+
+        reused.release();
+    }
+
+    @Test
+    public void release_withBufferGrownLarge_shouldLeaveItOutOfPool() {
+        LinePayload payload = LinePayload.acquire();
+        long pooledChars = LinePayload.getPooledChars();
+
+        StringBuilder line = new StringBuilder();
+        for(int i = 0; i < 100 * 1024; i++) line.append('x');
+        payload.appendLine(line);
+        payload.release();
+
+        assertEquals(pooledChars, LinePayload.getPooledChars());
+
+        LinePayload small = LinePayload.acquire();
+        pooledChars = LinePayload.getPooledChars();
+        small.appendLine("cpu usage=1.0 1522156506");
+        small.release();
+
+        assertTrue(LinePayload.getPooledChars() > pooledChars);
+    }
+
+    @Test
+    public void getSample_withLongPayload_shouldTruncateIt() {
+        LinePayload payload = LinePayload.acquire();
+        payload.appendLine("cpu usage=1.0 1522156506");
+
+        assertEquals("cpu usage=1.0 1522156506", payload.getSample());
+
+        StringBuilder line = new StringBuilder();
+        for(int i = 0; i < 2 * 1024; i++) line.append('x');
+        payload.appendLine(line);
+
+        assertEquals(1024 + "...".length(), payload.getSample().length());
+        assertTrue(payload.getSample().startsWith("cpu usage=1.0 1522156506\nxxx"));
+        assertTrue(payload.getSample().endsWith("x..."));
+
+        payload.release();
+    }
+
+    @Test
+    public void appendPayload_shouldJoinPayloadsAndKeepTheirLines() {
+        LinePayload first = LinePayload.acquire();
+        first.appendLine("cpu usage=1.0 1");
+        LinePayload second = LinePayload.acquire();
+        second.appendLine("disk,label=測試 used=2.0 1");
+        second.appendLine("disk,label=測試 used=3.0 2");
+
+        first.appendPayload(second);
+
+        String expected = "cpu usage=1.0 1\ndisk,label=測試 used=2.0 1\ndisk,label=測試 used=3.0 2";
+        assertEquals(expected, first.getPayload());
+        assertEquals(3, first.getLineCount());
+        assertEquals(expected.getBytes(StandardCharsets.UTF_8).length, first.getByteLength());
+
+        List<String> lines = new ArrayList<>();
+        first.forEachLine(line -> lines.add(line.toString()));
+        assertEquals(Arrays.asList(expected.split("\n")), lines);
+
+        first.release();
+        second.release();
+    }
+
+    @Test
+    public void addLine_shouldGroupLinesByTenantIdAndMeasurement() {
+        TenantIdAndMeasurement cpu = new TenantIdAndMeasurement("CORE-1", "MAAS_cpu");
+        TenantIdAndMeasurement disk = new TenantIdAndMeasurement("CORE-1", "MAAS_disk");
+
+        TenantPayloads tenantPayloads = new TenantPayloads();
+        tenantPayloads.addLine(cpu, "cpu usage=1.0 1");
+        tenantPayloads.addLine(disk, "disk used=2.0 1");
+        StringBuilder line = tenantPayloads.getLineBuffer().append("cpu usage=3.0 2");
+        tenantPayloads.addLine(new TenantIdAndMeasurement("CORE-1", "MAAS_cpu"), line);
+
+        assertEquals(2, tenantPayloads.size());
+        assertEquals("cpu usage=1.0 1\ncpu usage=3.0 2", tenantPayloads.get(cpu).getPayload());
+        assertEquals(2, tenantPayloads.get(cpu).getLineCount());
+        assertEquals("disk used=2.0 1", tenantPayloads.get(disk).getPayload());
+
+        tenantPayloads.release();
+        assertTrue(tenantPayloads.isEmpty());
+        assertNull(tenantPayloads.get(cpu));
+    }
+
+    @Test
+    public void addRecordOffset_shouldKeepFirstOffsetOfEveryPartition() {
+        TenantIdAndMeasurement cpu = new TenantIdAndMeasurement("CORE-1", "cpu");
+        TopicPartition partition0 = new TopicPartition("unified.metrics.json", 0);
+        TopicPartition partition1 = new TopicPartition("unified.metrics.json", 1);
+
+        TenantPayloads tenantPayloads = new TenantPayloads();
+        tenantPayloads.addRecordOffset(cpu, getHeaders(0, 12L));
+        tenantPayloads.addRecordOffset(cpu, getHeaders(0, 10L));
+        tenantPayloads.addRecordOffset(cpu, getHeaders(1, 7L));
+
+        TenantPayloads other = new TenantPayloads();
+        other.addRecordOffset(cpu, getHeaders(1, 3L));
+        other.addRecordOffset(cpu, getHeaders(0, 15L));
+        other.addRecordOffset(cpu, new MessageHeaders(Collections.emptyMap()));
+
+        tenantPayloads.addAll(other);
+
+        Map<TopicPartition, Long> expected = new HashMap<>();
+        expected.put(partition0, 10L);
+        expected.put(partition1, 3L);
+
+        assertEquals(expected, tenantPayloads.getFirstOffsets(cpu));
+        assertTrue(other.getFirstOffsets(cpu).isEmpty());
+
+        tenantPayloads.release();
+        assertTrue(tenantPayloads.getFirstOffsets(cpu).isEmpty());
+    }
+
+    private static MessageHeaders getHeaders(int partition, long offset) {
+        Map<String, Object> headers = new HashMap<>();
+        headers.put(KafkaHeaders.RECEIVED_TOPIC, "unified.metrics.json");
+        headers.put(KafkaHeaders.RECEIVED_PARTITION_ID, partition);
+        headers.put(KafkaHeaders.OFFSET, offset);
+        return new MessageHeaders(headers);
+    }
+}
@@ -0,0 +1,182 @@
+package com.rackspacecloud.metrics.ingestionservice;
+
+import com.rackspace.monplat.protocol.ExternalMetric;
+import com.rackspacecloud.metrics.ingestionservice.listeners.UnifiedMetricsListener;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.CommonMetricsProcessor;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.Dimension;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.LineProtocolEncoder;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.SeriesKeyCache;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantIdAndMeasurement;
+import com.rackspacecloud.metrics.ingestionservice.producer.MockMetricHelper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.influxdb.dto.Point;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LineProtocolEncoderTests {
+    private final SeriesKeyCache seriesKeyCache = new SeriesKeyCache(1024 * 1024);
+    private final LineProtocolEncoder encoder = new LineProtocolEncoder(seriesKeyCache);
+
+    @Test
+    public void encode_withMockMetrics_shouldMatchPointLineProtocol() {
+        for(int i = 0; i < 100; i++) {
+            assertSameAsPoint(MockMetricHelper.getValidMetric(i, "CORE", "hybrid:1667601", 13, true));
+        }
+    }
+
+    @Test
+    public void encode_withSpecialCharactersAndOverlappingKeys_shouldMatchPointLineProtocol() {
+        ExternalMetric metric = MockMetricHelper.getValidMetric(1, "RCN", "acct 1,2=3", 7, true);
+        metric.setDevice(" device, with=specials ");
+        metric.setDeviceLabel("");
+        metric.getDeviceMetadata().put("account", "overrides account tag");
+        metric.getDeviceMetadata().put("", "empty key is dropped");
+        metric.getDeviceMetadata().put("empty value", "");
+        metric.getSystemMetadata().put("device", "overrides device tag");
+        metric.setCollectionTarget("target=1");
+
+        Map<String, Double> fValues = new HashMap<>();
+        fValues.put("filesystem.total", 0.25); // same field as an ivalue; fvalue wins
+        fValues.put("cpu usage", -0.0);
+        fValues.put("tiny", 1.0E-10);
+        fValues.put("huge", 1.2345678901234567E300);
+        fValues.put("just.above.fast.path", 2.0E15);
+        fValues.put("fraction", 12345.678);
+        fValues.put("no.unit", -42.0);
+        metric.setFvalues(fValues);
+        metric.getUnits().put("cpu usage", "percent, really");
+        metric.getUnits().put("tiny", "");
+
+        assertSameAsPoint(metric);
+    }
+
+    @Test
+    public void encode_withRandomValues_shouldMatchPointLineProtocol() {
+        Random random = new Random(42);
+
+        for(int i = 0; i < 1000; i++) {
+            ExternalMetric metric = MockMetricHelper.getValidMetric(i, "ENCORE", "123456", i, true);
+            Map<String, Double> fValues = new HashMap<>();
+            fValues.put("gaussian", random.nextGaussian() * Math.pow(10, random.nextInt(40) - 20));
+            fValues.put("bits", Double.longBitsToDouble(random.nextLong()));
+            fValues.put("whole", (double) random.nextInt());
+            metric.setFvalues(fValues);
+
+            assertSameAsPoint(metric);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void encode_withoutFields_shouldFail() {
+        ExternalMetric metric = MockMetricHelper.getValidMetric(1, "CORE", "123456", 13, false);
+        encoder.encode(metric, getTenantIdAndMeasurement(metric), 1L);
+    }
+
+    @Test
+    public void encode_intoBuffer_shouldAppendAndLeaveBufferUntouchedOnFailure() {
+        ExternalMetric valid = MockMetricHelper.getValidMetric(1, "CORE", "123456", 13, true);
+        ExternalMetric invalid = MockMetricHelper.getValidMetric(2, "CORE", "123456", 13, false);
+        long epochSecond = Instant.parse(valid.getTimestamp()).getEpochSecond();
+
+        StringBuilder out = new StringBuilder("prefix\n");
+        try {
+            encoder.encode(invalid, getTenantIdAndMeasurement(invalid), epochSecond, out);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        encoder.encode(valid, getTenantIdAndMeasurement(valid), epochSecond, out);
+
+        assertEquals("prefix\n" + getPointLineProtocol(valid), out.toString());
+    }
+
+    @Test
+    public void encode_sameTagSetAgain_shouldUseSeriesKeyCache() throws Exception {
+        MeterRegistry registry = new SimpleMeterRegistry();
+        seriesKeyCache.bindTo(registry);
+
+        ExternalMetric metric = MockMetricHelper.getValidMetric(1, "CORE", "series-key-cache", 13, true);
+        assertSameAsPoint(metric);
+        double hits = getCacheHits(registry);
+
+        // Same tag set with different values and timestamp
+        metric.getIvalues().replaceAll((k, v) -> v + 1);
+        metric.setTimestamp("2019-01-01T00:00:00.000Z");
+        assertSameAsPoint(metric);
+
+        assertTrue(getCacheHits(registry) > hits);
+
+        // Weight is updated by the cache's maintenance, which runs asynchronously after a write
+        long deadline = System.currentTimeMillis() + 5000;
+        while(registry.get("series.key.cache.weight").gauge().value() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(registry.get("series.key.cache.weight").gauge().value() > 0);
+    }
+
+    @Test
+    public void encode_differentTagValue_shouldNotUseCachedSeriesKey() {
+        ExternalMetric metric = MockMetricHelper.getValidMetric(1, "CORE", "series-key-cache", 13, true);
+        assertSameAsPoint(metric);
+
+        metric.getUnits().put(metric.getIvalues().keySet().iterator().next(), "changed unit");
+        assertSameAsPoint(metric);
+
+        metric.getSystemMetadata().put("extra", "tag");
+        assertSameAsPoint(metric);
+    }
+
+    private static double getCacheHits(MeterRegistry registry) {
+        return registry.get("cache.gets").tag("cache", "series.key.cache").tag("result", "hit")
+                .functionCounter().count();
+    }
+
+    private void assertSameAsPoint(ExternalMetric metric) {
+        TenantIdAndMeasurement tenantIdAndMeasurement = getTenantIdAndMeasurement(metric);
+        long epochSecond = Instant.parse(metric.getTimestamp()).getEpochSecond();
+
+        assertEquals(getPointLineProtocol(metric),
+                encoder.encode(metric, tenantIdAndMeasurement, epochSecond));
+    }
+
+    private static TenantIdAndMeasurement getTenantIdAndMeasurement(ExternalMetric metric) {
+        return CommonMetricsProcessor.getTenantIdAndMeasurement(
+                metric.getAccountType().name(), metric.getAccount(),
+                metric.getMonitoringSystem().name(), metric.getCollectionName());
+    }
+
+    /**
+     * This is how raw records were converted before LineProtocolEncoder
+     */
+    private static String getPointLineProtocol(ExternalMetric record) {
+        Dimension dimension = CommonMetricsProcessor.getDimensions(record);
+        Point.Builder pointBuilder =
+                Dimension.populateTagsAndFields(dimension, getTenantIdAndMeasurement(record));
+
+        for(Map.Entry<String, Long> entry : record.getIvalues().entrySet()) {
+            String metricFieldName = UnifiedMetricsListener.replaceSpecialCharacters(entry.getKey());
+            String unitValue = record.getUnits().get(entry.getKey());
+            pointBuilder.tag(String.format("%s_unit", metricFieldName), unitValue == null ? "unavailable" : unitValue);
+            pointBuilder.addField(metricFieldName, entry.getValue().doubleValue());
+        }
+
+        for(Map.Entry<String, Double> entry : record.getFvalues().entrySet()) {
+            String metricFieldName = UnifiedMetricsListener.replaceSpecialCharacters(entry.getKey());
+            String unitValue = record.getUnits().get(entry.getKey());
+            pointBuilder.tag(String.format("%s_unit", metricFieldName), unitValue == null ? "unavailable" : unitValue);
+            pointBuilder.addField(metricFieldName, entry.getValue());
+        }
+
+        pointBuilder.time(Instant.parse(record.getTimestamp()).getEpochSecond(), TimeUnit.SECONDS);
+
+        return pointBuilder.build().lineProtocol(TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,36 @@
+package com.rackspacecloud.metrics.ingestionservice;
+
+import com.rackspacecloud.metrics.ingestionservice.utils.LogSampler;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogSamplerTests {
+
+    @Test
+    public void sample_shouldPickOneEventPerIntervalWithCountSincePrevious() throws Exception {
+        LogSampler sampler = new LogSampler(100);
+
+        assertEquals(1, sampler.sample());
+        for(int i = 0; i < 5; i++) assertEquals(0, sampler.sample());
+
+        Thread.sleep(150);
+
+        // The ones skipped are counted into the next one logged
+        assertEquals(6, sampler.sample());
+        assertEquals(0, sampler.sample());
+    }
+
+    @Test
+    public void truncate_withLongText_shouldCutItShort() {
+        assertEquals("short", LogSampler.truncate("short"));
+
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < 2048; i++) text.append('x');
+
+        String truncated = LogSampler.truncate(text.toString());
+        assertTrue(truncated.endsWith("... (2048 chars)"));
+        assertEquals(1024 + "... (2048 chars)".length(), truncated.length());
+    }
+}
@@ -0,0 +1,189 @@
+package com.rackspacecloud.metrics.ingestionservice;
+
+import com.rackspacecloud.metrics.ingestionservice.listeners.UnifiedMetricsListener;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.CommonMetricsProcessor;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.Dimension;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantIdAndMeasurement;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantPayloads;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rolluplisteners.deserializer.MetricRollupDeserializer;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rolluplisteners.models.CompactMetricRollup;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rolluplisteners.models.MetricRollup;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rolluplisteners.processors.MetricsRollupProcessor;
+import com.rackspacecloud.metrics.ingestionservice.producer.MockMetricRollupHelper;
+import com.rackspacecloud.metrics.ingestionservice.producer.RollupSerializer;
+import org.apache.kafka.common.errors.SerializationException;
+import org.influxdb.dto.Point;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class MetricRollupDeserializerTests {
+    private static final String TOPIC = "unified.metrics.json.5m";
+
+    private final RollupSerializer serializer = new RollupSerializer();
+    private final MetricRollupDeserializer deserializer = new MetricRollupDeserializer();
+
+    @Test
+    public void deserialize_shouldKeepBucketsInPrimitiveArrays() {
+        MetricRollup rollup = MockMetricRollupHelper.getValidMetricRollup(1, "hybrid:1667601", true);
+        rollup.setFvalues(Collections.singletonMap("load.average", getDoubleBucket(0.5, 1.25, 2.0)));
+
+        CompactMetricRollup result = deserializer.deserialize(TOPIC, serializer.serialize(TOPIC, rollup));
+
+        assertEquals(rollup.getKey(), result.getKey());
+        assertEquals(rollup.getStart(), result.getStart());
+        assertEquals(rollup.getEnd(), result.getEnd());
+        assertEquals(rollup.getSystemMetadata(), result.getSystemMetadata());
+        assertEquals(rollup.getCollectionMetadata(), result.getCollectionMetadata());
+        assertEquals(rollup.getUnits(), result.getUnits());
+        assertTrue(result.isComplete());
+
+        assertEquals(rollup.getIvalues().size(), result.getIvalueCount());
+        for(int i = 0; i < result.getIvalueCount(); i++) {
+            MetricRollup.RollupBucket<Long> bucket = rollup.getIvalues().get(result.getIvalueNames()[i]);
+            assertEquals((long) bucket.getMin(), result.getIvalue(i, CompactMetricRollup.MIN));
+            assertEquals((long) bucket.getMean(), result.getIvalue(i, CompactMetricRollup.MEAN));
+            assertEquals((long) bucket.getMax(), result.getIvalue(i, CompactMetricRollup.MAX));
+        }
+
+        assertEquals(1, result.getFvalueCount());
+        assertEquals("load.average", result.getFvalueNames()[0]);
+        assertEquals(0.5, result.getFvalue(0, CompactMetricRollup.MIN), 0.0);
+        assertEquals(1.25, result.getFvalue(0, CompactMetricRollup.MEAN), 0.0);
+        assertEquals(2.0, result.getFvalue(0, CompactMetricRollup.MAX), 0.0);
+    }
+
+    @Test
+    public void deserialize_repeatedValues_shouldBeInterned() {
+        CompactMetricRollup first = deserializer.deserialize(TOPIC,
+                serializer.serialize(TOPIC, MockMetricRollupHelper.getValidMetricRollup(1, "tenant", true)));
+        CompactMetricRollup second = deserializer.deserialize(TOPIC,
+                serializer.serialize(TOPIC, MockMetricRollupHelper.getValidMetricRollup(2, "tenant", true)));
+
+        assertSame(first.getMonitoringSystem(), second.getMonitoringSystem());
+        assertSame(first.getCollectionName(), second.getCollectionName());
+        assertSame(first.getUnits().get("filesystem.total"), second.getUnits().get("filesystem.total"));
+    }
+
+    @Test
+    public void deserialize_withUnknownFieldsAndMissingBucketValue_shouldMarkRecordIncomplete() {
+        String json = "{\"key\":\"k\",\"unknown\":{\"a\":[1,2]},\"start\":1,\"end\":2,"
+                + "\"ivalues\":{\"m\":{\"min\":1,\"max\":3,\"extra\":7}},\"fvalues\":{}}";
+
+        CompactMetricRollup result = deserializer.deserialize(TOPIC, json.getBytes());
+
+        assertEquals("k", result.getKey());
+        assertEquals(1, result.getIvalueCount());
+        assertFalse(result.isComplete());
+    }
+
+    @Test(expected = SerializationException.class)
+    public void deserialize_withInvalidData_shouldThrowSerializationException() {
+        deserializer.deserialize(TOPIC, "{\"key\": \"k\", ".getBytes());
+    }
+
+    @Test
+    public void deserialize_nullData_shouldReturnNull() {
+        assertNull(deserializer.deserialize(TOPIC, null));
+    }
+
+    @Test
+    public void getTenantRollupPayloads_shouldMatchMetricRollupPath() {
+        List<MetricRollup> rollups = new ArrayList<>();
+        List<CompactMetricRollup> compactRollups = new ArrayList<>();
+
+        for(int i = 0; i < 20; i++) {
+            MetricRollup rollup = MockMetricRollupHelper.getValidMetricRollup(i, "hybrid:1667601", i % 4 != 0);
+            Map<String, MetricRollup.RollupBucket<Double>> fValues = new HashMap<>();
+            fValues.put("filesystem.used", getDoubleBucket(0.1 * i, 0.2 * i, 0.3 * i));
+            fValues.put("cpu.usage", getDoubleBucket(-1.5, 1.0E-7, 12345.678));
+            rollup.setFvalues(fValues);
+            rollup.getUnits().put("cpu.usage", "percent");
+            rollups.add(rollup);
+            compactRollups.add(deserializer.deserialize(TOPIC, serializer.serialize(TOPIC, rollup)));
+        }
+
+        // Incomplete bucket fails only its own record
+        MetricRollup incomplete = MockMetricRollupHelper.getValidMetricRollup(99, "hybrid:1667601", true);
+        incomplete.getIvalues().values().iterator().next().setMean(null);
+        compactRollups.add(deserializer.deserialize(TOPIC, serializer.serialize(TOPIC, incomplete)));
+
+        TenantPayloads result = MetricsRollupProcessor.getTenantRollupPayloads(0, 0L, compactRollups);
+
+        Map<TenantIdAndMeasurement, String> payloads = new HashMap<>();
+        result.getPayloads().forEach((key, payload) -> payloads.put(key, payload.getPayload()));
+
+        assertEquals(getExpectedPayloadsMap(rollups), payloads);
+    }
+
+    private static MetricRollup.RollupBucket<Double> getDoubleBucket(double min, double mean, double max) {
+        MetricRollup.RollupBucket<Double> bucket = new MetricRollup.RollupBucket<>();
+        bucket.setMin(min);
+        bucket.setMean(mean);
+        bucket.setMax(max);
+        return bucket;
+    }
+
+    /**
+     * This is how rollup records were converted before CompactMetricRollup
+     */
+    private static Map<TenantIdAndMeasurement, String> getExpectedPayloadsMap(List<MetricRollup> rollups) {
+        Map<TenantIdAndMeasurement, List<String>> expected = new HashMap<>();
+
+        for(MetricRollup record : rollups) {
+            TenantIdAndMeasurement tenantIdAndMeasurement = CommonMetricsProcessor.getTenantIdAndMeasurement(
+                    record.getAccountType(), record.getAccount(),
+                    record.getMonitoringSystem(), record.getCollectionName());
+
+            Dimension dimension = new Dimension();
+            dimension.setAccountType(record.getAccountType());
+            dimension.setAccount(record.getAccount());
+            dimension.setDevice(record.getDevice());
+            dimension.setDeviceLabel(record.getDeviceLabel());
+            dimension.setDeviceMetadata(record.getDeviceMetadata());
+            dimension.setMonitoringSystem(record.getMonitoringSystem());
+            dimension.setSystemMetadata(record.getSystemMetadata());
+            dimension.setCollectionName(record.getCollectionName());
+            dimension.setCollectionLabel(record.getCollectionLabel());
+            dimension.setCollectionTarget(record.getCollectionTarget());
+
+            Point.Builder pointBuilder = Dimension.populateTagsAndFields(dimension, tenantIdAndMeasurement);
+            pointBuilder.addField("start", record.getStart());
+            pointBuilder.addField("end", record.getEnd());
+
+            for(Map.Entry<String, MetricRollup.RollupBucket<Long>> entry : record.getIvalues().entrySet()) {
+                String name = UnifiedMetricsListener.replaceSpecialCharacters(entry.getKey());
+                pointBuilder.tag(name + "_unit", record.getUnits().get(entry.getKey()));
+                pointBuilder.addField(name + "_min", entry.getValue().getMin().doubleValue());
+                pointBuilder.addField(name + "_mean", entry.getValue().getMean().doubleValue());
+                pointBuilder.addField(name + "_max", entry.getValue().getMax().doubleValue());
+            }
+
+            for(Map.Entry<String, MetricRollup.RollupBucket<Double>> entry : record.getFvalues().entrySet()) {
+                String name = UnifiedMetricsListener.replaceSpecialCharacters(entry.getKey());
+                pointBuilder.tag(name + "_unit", record.getUnits().get(entry.getKey()));
+                pointBuilder.addField(name + "_min", entry.getValue().getMin());
+                pointBuilder.addField(name + "_mean", entry.getValue().getMean());
+                pointBuilder.addField(name + "_max", entry.getValue().getMax());
+            }
+
+            expected.computeIfAbsent(tenantIdAndMeasurement, key -> new ArrayList<>())
+                    .add(pointBuilder.build().lineProtocol(TimeUnit.SECONDS));
+        }
+
+        Map<TenantIdAndMeasurement, String> payloads = new HashMap<>();
+        expected.forEach((key, lines) -> payloads.put(key, String.join("\n", lines)));
+        return payloads;
+    }
+}
@@ -0,0 +1,170 @@
+package com.rackspacecloud.metrics.ingestionservice;
+
+import com.rackspace.monplat.protocol.ExternalMetric;
+import com.rackspacecloud.metrics.ingestionservice.config.CommonConsumerConfiguration;
+import com.rackspacecloud.metrics.ingestionservice.config.ConsumerConfigurationProperties;
+import com.rackspacecloud.metrics.ingestionservice.config.ConsumerConfigurationProperties.RawTransform;
+import com.rackspacecloud.metrics.ingestionservice.exceptions.IngestFailedException;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBHelper;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBWriteExecutor;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.IngestedRecordCounts;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.LinePayload;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.SeriesKeyCache;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantIdAndMeasurement;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.RawListener;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.config.RawDataConsumerConfiguration;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.config.RawDataConsumerProperties;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.processors.RawTransformExecutor;
+import com.rackspacecloud.metrics.ingestionservice.producer.AvroSerializer;
+import com.rackspacecloud.metrics.ingestionservice.producer.MockMetricHelper;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.producer.KafkaProducer;
+import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.serialization.StringDeserializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.kafka.config.MethodKafkaListenerEndpoint;
+import org.springframework.kafka.listener.KafkaListenerErrorHandler;
+import org.springframework.kafka.listener.MessageListenerContainer;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.kafka.test.context.EmbeddedKafka;
+import org.springframework.kafka.test.rule.KafkaEmbedded;
+import org.springframework.kafka.test.utils.KafkaTestUtils;
+import org.springframework.messaging.handler.annotation.support.DefaultMessageHandlerMethodFactory;
+import org.springframework.test.annotation.DirtiesContext;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+@RunWith(SpringRunner.class)
+@DirtiesContext
+@EmbeddedKafka(partitions = 1, topics = RawListenerContainerTests.TOPIC)
+public class RawListenerContainerTests {
+    static final String TOPIC = "unified.metrics.json";
+
+    @Configuration
+    static class Config {
+    }
+
+    @Autowired
+    private KafkaEmbedded embeddedKafka;
+
+    private final InfluxDBWriteExecutor writeExecutorMock = mock(InfluxDBWriteExecutor.class);
+    private final RawTransformExecutor transformExecutor =
+            new RawTransformExecutor(RawTransform.AVRO, 1, 1, new SeriesKeyCache(1024 * 1024));
+    private final RawListener listener = new RawListener(
+            mock(InfluxDBHelper.class), writeExecutorMock, new SimpleMeterRegistry(), transformExecutor);
+
+    @Test
+    public void listenUnifiedMetricsTopic_withWriteFailingOnce_shouldConsumeBatchAgain() throws Exception {
+        assertBatchConsumedAgain("raw-listener-tests", new CommonConsumerConfiguration().listenerErrorHandler());
+    }
+
+    @Test
+    public void listenUnifiedMetricsTopic_withListenerErrorHandlerFailing_shouldConsumeBatchAgain()
+            throws Exception {
+        // Left to the container's batch error handler, which must not commit past the batch either
+        assertBatchConsumedAgain("raw-listener-failing-handler-tests", (message, e) -> {
+            throw e;
+        });
+    }
+
+    private void assertBatchConsumedAgain(String group, KafkaListenerErrorHandler errorHandler) throws Exception {
+        // Every payload of the first write fails, the next writes succeed
+        AtomicBoolean failed = new AtomicBoolean();
+        List<Integer> writtenLines = new CopyOnWriteArrayList<>();
+        when(writeExecutorMock.writeAll(any(), anyString())).thenAnswer(invocation -> {
+            Map<TenantIdAndMeasurement, LinePayload> payloads = invocation.getArgument(0);
+            if(failed.compareAndSet(false, true)) {
+                Map<TenantIdAndMeasurement, Exception> failures = new HashMap<>();
+                payloads.keySet().forEach(key -> failures.put(key, new IngestFailedException("write failed")));
+                return failures;
+            }
+
+            payloads.values().forEach(payload -> writtenLines.add(payload.getLineCount()));
+            return Collections.emptyMap();
+        });
+        listener.setRecordCounts(new IngestedRecordCounts());
+
+        ConsumerConfigurationProperties properties = new ConsumerConfigurationProperties();
+        properties.setServers(embeddedKafka.getBrokersAsString());
+        properties.setConsumer(new ConsumerConfigurationProperties.Consumer());
+        properties.getConsumer().setGroup(group);
+        properties.setSessionTimeoutMsConfig(10000);
+        properties.setHeartbeatIntervalMsConfig(3000);
+        properties.setMaxPollRecordsConfig(500);
+        properties.setFetchMinBytesConfig("1");
+        properties.setFetchMaxWaitMsConfig(100);
+        properties.setMaxPartitionFetchBytesConfig("1048576");
+        properties.setListenerContainerIdleInterval(60000);
+        properties.setDefaultConcurrency(1);
+
+        RawDataConsumerProperties consumerProperties = new RawDataConsumerProperties(properties);
+        consumerProperties.properties.put(ConsumerConfig.AUTO_OFFSET_RESET_CONFIG, "earliest");
+
+        DefaultMessageHandlerMethodFactory methodFactory = new DefaultMessageHandlerMethodFactory();
+        methodFactory.afterPropertiesSet();
+
+        MethodKafkaListenerEndpoint<String, Object> endpoint = new MethodKafkaListenerEndpoint<>();
+        endpoint.setId(group);
+        endpoint.setTopics(TOPIC);
+        endpoint.setBean(listener);
+        endpoint.setMethod(RawListener.class.getMethod("listenUnifiedMetricsTopic", List.class, Acknowledgment.class));
+        endpoint.setMessageHandlerMethodFactory(methodFactory);
+        endpoint.setErrorHandler(errorHandler);
+
+        MessageListenerContainer container = new RawDataConsumerConfiguration(properties)
+                .batchFactory(consumerProperties, mock(ObjectProvider.class)).createListenerContainer(endpoint);
+
+        long endOffset = 0;
+        Map<String, Object> producerProperties = KafkaTestUtils.producerProps(embeddedKafka);
+        try (KafkaProducer<String, ExternalMetric> producer =
+                     new KafkaProducer<>(producerProperties, new StringSerializer(), new AvroSerializer<>())) {
+            for(int i = 0; i < 3; i++) {
+                endOffset = producer.send(new ProducerRecord<>(TOPIC, 0, null,
+                        MockMetricHelper.getValidMetric(i, "CORE", "hybrid:1667601", 13, true))).get().offset() + 1;
+            }
+        }
+
+        container.start();
+
+        try (KafkaConsumer<String, String> consumer = new KafkaConsumer<>(consumerProperties.properties,
+                new StringDeserializer(), new StringDeserializer())) {
+            TopicPartition partition = new TopicPartition(TOPIC, 0);
+            long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(30);
+
+            OffsetAndMetadata committed = consumer.committed(partition);
+            while((committed == null || committed.offset() < endOffset) && System.currentTimeMillis() < deadline) {
+                Thread.sleep(100);
+                committed = consumer.committed(partition);
+            }
+
+            // Failed batch is consumed again from its first record, not committed past
+            assertEquals(endOffset, committed.offset());
+            assertEquals(endOffset, writtenLines.stream().mapToInt(Integer::intValue).sum());
+        }
+        finally {
+            container.stop();
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.rackspacecloud.metrics.ingestionservice;
+
+import com.rackspace.monplat.protocol.ExternalMetric;
+import com.rackspacecloud.metrics.ingestionservice.config.ConsumerConfigurationProperties.RawTransform;
+import com.rackspacecloud.metrics.ingestionservice.exceptions.IngestFailedException;
+import com.rackspacecloud.metrics.ingestionservice.exceptions.PartialIngestFailedException;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBHelper;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBHelper.InfluxDbInfoForRollupLevel;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.InfluxDBWriteExecutor;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.IngestedRecordCounts;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.SeriesKeyCache;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.RawListener;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.processors.RawTransformExecutor;
+import com.rackspacecloud.metrics.ingestionservice.producer.MockMetricHelper;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Test;
+import org.springframework.kafka.support.Acknowledgment;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class RawListenerTests {
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+    private final InfluxDBWriteExecutor writeExecutorMock = mock(InfluxDBWriteExecutor.class);
+    private final RawTransformExecutor transformExecutor =
+            new RawTransformExecutor(RawTransform.AVRO, 1, 1, new SeriesKeyCache(1024 * 1024));
+    private final RawListener listener =
+            new RawListener(mock(InfluxDBHelper.class), writeExecutorMock, registry, transformExecutor);
+
+    @Test
+    public void listenUnifiedMetricsTopic_shouldRecordBatchStatsInMeters() throws Exception {
+        when(writeExecutorMock.writeAll(any(), anyString())).thenReturn(Collections.emptyMap());
+        listener.setRecordCounts(new IngestedRecordCounts());
+
+        List<Message<?>> records = new ArrayList<>();
+        for(int i = 0; i < 3; i++) {
+            ExternalMetric metric = MockMetricHelper.getValidMetric(1, "CORE", "hybrid:" + (i % 2), 13, true);
+            records.add(MessageBuilder.withPayload(metric)
+                    .setHeader(KafkaHeaders.RECEIVED_TOPIC, "unified.metrics.json")
+                    .setHeader(KafkaHeaders.RECEIVED_PARTITION_ID, 0)
+                    .setHeader(KafkaHeaders.OFFSET, (long) i)
+                    .build());
+        }
+
+        Acknowledgment ack = mock(Acknowledgment.class);
+        listener.listenUnifiedMetricsTopic(records, ack);
+
+        verify(ack).acknowledge();
+        assertEquals(3.0, registry.get("ingestion.records").tag("listener", "raw").counter().count(), 0.0);
+
+        // One payload per tenant, with the lines of all of its records
+        DistributionSummary lines = registry.get("ingestion.payload.lines").summary();
+        assertEquals(2, lines.count());
+        assertEquals(3.0, lines.totalAmount(), 0.0);
+        assertEquals(2, registry.get("ingestion.payload.size").summary().count());
+    }
+
+    @Test
+    public void listenUnifiedMetricsTopic_withTenantsFailingInOneWrite_shouldThrowTheirFailureOnce() throws Exception {
+        assertFailureThrownOnce(0L, PartialIngestFailedException.class);
+    }
+
+    @Test
+    public void listenUnifiedMetricsTopic_withTenantsFailingInOneWriteWithoutOffsets_shouldThrowTheirFailureOnce()
+            throws Exception {
+        assertFailureThrownOnce(null, IngestFailedException.class);
+    }
+
+    private void assertFailureThrownOnce(Long offset, Class<? extends Exception> expectedType)
+            throws Exception {
+        InfluxDBHelper influxDBHelperMock = mock(InfluxDBHelper.class);
+        InfluxDbInfoForRollupLevel destination =
+                new InfluxDbInfoForRollupLevel("http://influxdb-1:8086", "db_1", "rp_5d", "5d");
+        when(influxDBHelperMock.getInfluxDbInfoForRollupLevel(anyString(), anyString(), eq("full")))
+                .thenReturn(destination);
+
+        // Both tenants are merged into one write to the same destination, so they share its failure
+        IngestFailedException failure = new IngestFailedException("write failed");
+        doThrow(failure).when(influxDBHelperMock).ingestToInfluxDb(anyString(), eq(destination));
+
+        InfluxDBWriteExecutor writeExecutor = new InfluxDBWriteExecutor(influxDBHelperMock, 1, 10, 0, 0);
+        RawListener rawListener =
+                new RawListener(influxDBHelperMock, writeExecutor, new SimpleMeterRegistry(), transformExecutor);
+        rawListener.setRecordCounts(new IngestedRecordCounts());
+
+        List<Message<?>> records = new ArrayList<>();
+        for(int i = 0; i < 2; i++) {
+            ExternalMetric metric = MockMetricHelper.getValidMetric(1, "CORE", "hybrid:" + i, 13, true);
+            MessageBuilder<ExternalMetric> builder = MessageBuilder.withPayload(metric);
+            if(offset != null) {
+                builder.setHeader(KafkaHeaders.RECEIVED_TOPIC, "unified.metrics.json")
+                        .setHeader(KafkaHeaders.RECEIVED_PARTITION_ID, 0)
+                        .setHeader(KafkaHeaders.OFFSET, offset + i);
+            }
+            records.add(builder.build());
+        }
+
+        try {
+            rawListener.listenUnifiedMetricsTopic(records, mock(Acknowledgment.class));
+            fail("Failed write should be thrown");
+        } catch(Exception e) {
+            assertSame(expectedType, e.getClass());
+            assertSame(failure, e instanceof PartialIngestFailedException ? e.getCause() : e);
+            assertEquals(0, failure.getSuppressed().length);
+        }
+        finally {
+            writeExecutor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,135 @@
+package com.rackspacecloud.metrics.ingestionservice;
+
+import com.rackspace.monplat.protocol.ExternalMetric;
+import com.rackspacecloud.metrics.ingestionservice.config.ConsumerConfigurationProperties.RawTransform;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.IngestedRecordCounts;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.LinePayload;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.RejectedRecords;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.RejectedRecords.Reason;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.SeriesKeyCache;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantIdAndMeasurement;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantPayloads;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.processors.RawTransformExecutor;
+import com.rackspacecloud.metrics.ingestionservice.producer.AvroSerializer;
+import com.rackspacecloud.metrics.ingestionservice.producer.MockMetricHelper;
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RawTransformExecutorTests {
+    private static final String TOPIC = "unified.metrics.json";
+
+    private final AvroSerializer<ExternalMetric> serializer = new AvroSerializer<>();
+    private final SeriesKeyCache seriesKeyCache = new SeriesKeyCache(1024 * 1024);
+    private final RawTransformExecutor parallelExecutor =
+            new RawTransformExecutor(RawTransform.STREAMING, 4, 10, seriesKeyCache);
+
+    @After
+    public void tearDown() {
+        parallelExecutor.shutdown();
+    }
+
+    @Test
+    public void getTenantPayloads_inParallel_shouldMatchSingleThread() throws Exception {
+        List<Message<?>> records = new ArrayList<>();
+
+        for(int i = 0; i < 200; i++) {
+            ExternalMetric metric = MockMetricHelper.getValidMetric(
+                    i, i % 2 == 0 ? "CORE" : "RCN", "hybrid:" + (i % 3), i % 20, true);
+            records.add(getMessage(serializer.serialize(TOPIC, metric), i % 4, i));
+        }
+
+        IngestedRecordCounts expectedCounts = new IngestedRecordCounts();
+        IngestedRecordCounts counts = new IngestedRecordCounts();
+
+        TenantPayloads expected =
+                new RawTransformExecutor(RawTransform.STREAMING, 1, 10, seriesKeyCache)
+                        .getTenantPayloads(records, expectedCounts);
+        TenantPayloads result = parallelExecutor.getTenantPayloads(records, counts);
+
+        // Lines of every tenant and measurement have to stay in record order
+        assertEquals(toPayloadsMap(expected), toPayloadsMap(result));
+        assertEquals(drain(expectedCounts), drain(counts));
+
+        expected.release();
+        result.release();
+    }
+
+    @Test
+    public void getTenantPayloads_withInvalidRecordInLaterSlice_shouldRejectOnlyThatRecord() throws Exception {
+        List<Message<?>> records = new ArrayList<>();
+
+        for(int i = 0; i < 100; i++) {
+            ExternalMetric metric = MockMetricHelper.getValidMetric(i, "CORE", "hybrid:1667601", 13, true);
+            if(i == 90) metric.setTimestamp("2018-03-27 13:15:06");
+            records.add(getMessage(serializer.serialize(TOPIC, metric), 0, i));
+        }
+
+        long rejected = RejectedRecords.get().getCount(Reason.INVALID_TIMESTAMP);
+
+        TenantPayloads result = parallelExecutor.getTenantPayloads(records, new IngestedRecordCounts());
+
+        assertEquals(99, result.getPayloads().values().stream().mapToInt(LinePayload::getLineCount).sum());
+        assertEquals(rejected + 1, RejectedRecords.get().getCount(Reason.INVALID_TIMESTAMP));
+
+        result.release();
+    }
+
+    @Test
+    public void getTenantPayloads_withSliceFailing_shouldReleaseOtherSlicesAndRethrow() throws Exception {
+        List<Message<?>> records = new ArrayList<>();
+
+        for(int i = 0; i < 100; i++) {
+            ExternalMetric metric = MockMetricHelper.getValidMetric(i, "CORE", "hybrid:1667601", i % 5, true);
+            records.add(getMessage(serializer.serialize(TOPIC, metric), 0, i));
+        }
+
+        // Payload of the wrong type fails the whole slice instead of being rejected
+        records.set(90, MessageBuilder.withPayload("not bytes").build());
+
+        // Empty the pool, so that buffers of the released slices are the only ones in it
+        List<LinePayload> pooled = new ArrayList<>();
+        while(LinePayload.getPooledChars() > 0) pooled.add(LinePayload.acquire());
+
+        try {
+            parallelExecutor.getTenantPayloads(records, new IngestedRecordCounts());
+            fail("Expected the failing slice to fail the batch");
+        } catch(ClassCastException e) {
+            assertTrue(LinePayload.getPooledChars() > 0);
+        } finally {
+            pooled.forEach(LinePayload::release);
+        }
+    }
+
+    private static Map<TenantIdAndMeasurement, String> toPayloadsMap(TenantPayloads tenantPayloads) {
+        Map<TenantIdAndMeasurement, String> payloads = new HashMap<>();
+        tenantPayloads.getPayloads().forEach((key, payload) -> payloads.put(key, payload.getPayload()));
+        return payloads;
+    }
+
+    private static Message<byte[]> getMessage(byte[] payload, int partition, long offset) {
+        return MessageBuilder.withPayload(payload)
+                .setHeader(KafkaHeaders.RECEIVED_TOPIC, TOPIC)
+                .setHeader(KafkaHeaders.RECEIVED_PARTITION_ID, partition)
+                .setHeader(KafkaHeaders.OFFSET, offset)
+                .build();
+    }
+
+    private static Map<String, Long> drain(IngestedRecordCounts recordCounts) {
+        Map<String, Long> counts = new HashMap<>();
+        recordCounts.drainTo((topic, partition, monitoringSystem, count) ->
+                counts.put(topic + "/" + partition + "/" + monitoringSystem, count));
+        return counts;
+    }
+}
@@ -0,0 +1,288 @@
+package com.rackspacecloud.metrics.ingestionservice;
+
+import com.rackspace.monplat.protocol.ExternalMetric;
+import com.rackspacecloud.metrics.ingestionservice.config.ConsumerConfigurationProperties;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.RejectedRecords;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.RejectedRecords.Reason;
+import com.rackspacecloud.metrics.ingestionservice.listeners.quarantine.QuarantineFile;
+import com.rackspacecloud.metrics.ingestionservice.listeners.quarantine.RecordQuarantine;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.config.RawDataConsumerProperties;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.deserializer.AvroDeserializer;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rolluplisteners.deserializer.MetricRollupDeserializer;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rolluplisteners.models.CompactMetricRollup;
+import com.rackspacecloud.metrics.ingestionservice.producer.AvroSerializer;
+import com.rackspacecloud.metrics.ingestionservice.producer.MockMetricHelper;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.kafka.clients.consumer.ConsumerConfig;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.kafka.support.KafkaNull;
+import org.springframework.kafka.support.serializer.ErrorHandlingDeserializer2;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.MessageHeaders;
+import org.springframework.messaging.support.MessageBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class RecordQuarantineTests {
+    private static final String TOPIC = "unified.metrics.json";
+    private static final byte[] BAD_DATA = "{\"not\": \"a metric".getBytes(StandardCharsets.UTF_8);
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final MeterRegistry registry = new SimpleMeterRegistry();
+
+    @Test
+    public void deserialize_withBadData_shouldReturnNullAndKeepFailureInHeaders() {
+        ErrorHandlingDeserializer2<ExternalMetric> deserializer =
+                new ErrorHandlingDeserializer2<>(new AvroDeserializer<>(ExternalMetric.class));
+        ExternalMetric metric = MockMetricHelper.getValidMetric(1, "CORE", "hybrid:1667601", 13, true);
+
+        Headers headers = new RecordHeaders();
+        ExternalMetric result = deserializer.deserialize(
+                TOPIC, headers, new AvroSerializer<ExternalMetric>().serialize(TOPIC, metric));
+
+        assertEquals(metric.getTimestamp(), result.getTimestamp());
+        assertFalse(headers.iterator().hasNext());
+
+        assertNull(deserializer.deserialize(TOPIC, headers, BAD_DATA));
+        assertNotNull(headers.lastHeader(ErrorHandlingDeserializer2.VALUE_DESERIALIZER_EXCEPTION_HEADER));
+    }
+
+    @Test
+    public void consumerFactory_withErrorHandlingProperties_shouldCreateDelegateFromConfiguration() {
+        ConsumerConfigurationProperties configurationProperties = new ConsumerConfigurationProperties();
+        configurationProperties.setServers("localhost:9092");
+        configurationProperties.setConsumer(new ConsumerConfigurationProperties.Consumer());
+        Map<String, Object> properties =
+                new RawDataConsumerProperties(configurationProperties).getErrorHandlingProperties();
+
+        ErrorHandlingDeserializer2<ExternalMetric> deserializer = new ErrorHandlingDeserializer2<>();
+        deserializer.configure(properties, false);
+
+        Headers headers = new RecordHeaders();
+        assertNull(deserializer.deserialize(TOPIC, headers, BAD_DATA));
+        assertEquals(ErrorHandlingDeserializer2.class, properties.get(ConsumerConfig.VALUE_DESERIALIZER_CLASS_CONFIG));
+        assertNotNull(headers.lastHeader(ErrorHandlingDeserializer2.VALUE_DESERIALIZER_EXCEPTION_HEADER));
+    }
+
+    @Test
+    public void removeFailedRecords_shouldQuarantineOnlyFailedRecords() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("quarantine/records.json");
+        RecordQuarantine quarantine = new RecordQuarantine(new QuarantineFile(file, 1024 * 1024, 2), registry);
+
+        Message<?> valid = getMessage("valid", 0, 10L, null);
+        List<Message<?>> records = Arrays.asList(
+                valid, getMessage(KafkaNull.INSTANCE, 1, 20L, BAD_DATA), getMessage("valid", 0, 11L, null));
+
+        List<Message<?>> result = quarantine.removeFailedRecords(records);
+        quarantine.close();
+
+        assertEquals(Arrays.asList(records.get(0), records.get(2)), result);
+        assertEquals(1.0, registry.counter("ingestion.records.quarantined", "topic", TOPIC).count(), 0.0);
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).contains("\"partition\":1,\"offset\":20"));
+        assertTrue(lines.get(0).contains(Base64.getEncoder().encodeToString(BAD_DATA)));
+
+        List<Message<?>> allValid = Arrays.asList(valid, valid);
+        assertSame(allValid, quarantine.removeFailedRecords(allValid));
+    }
+
+    @Test
+    public void removeFailedRecords_withUnexpectedObjectInFailureHeader_shouldQuarantineRecordWithoutReadingIt()
+            throws Exception {
+        Path file = folder.getRoot().toPath().resolve("records.json");
+        RecordQuarantine quarantine = new RecordQuarantine(new QuarantineFile(file, 1024 * 1024, 2), registry);
+
+        // Header coming with the record rather than from the deserializer
+        ByteArrayOutputStream forged = new ByteArrayOutputStream();
+        try (ObjectOutputStream out = new ObjectOutputStream(forged)) {
+            out.writeObject(new ForgedFailure());
+        }
+
+        Message<?> record = MessageBuilder.withPayload(KafkaNull.INSTANCE)
+                .setHeader(KafkaHeaders.RECEIVED_TOPIC, TOPIC)
+                .setHeader(KafkaHeaders.RECEIVED_PARTITION_ID, 0)
+                .setHeader(KafkaHeaders.OFFSET, 5L)
+                .setHeader(ErrorHandlingDeserializer2.VALUE_DESERIALIZER_EXCEPTION_HEADER, forged.toByteArray())
+                .build();
+
+        assertTrue(quarantine.removeFailedRecords(Arrays.asList(record)).isEmpty());
+        quarantine.close();
+
+        assertFalse(ForgedFailure.read);
+
+        String line = Files.readAllLines(file).get(0);
+        assertTrue(line.contains("\"offset\":5"));
+        assertTrue(line.contains("couldn't be read"));
+        assertTrue(line.contains("\"data\":null"));
+    }
+
+    public static class ForgedFailure implements Serializable {
+        private static volatile boolean read;
+
+        private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+            read = true;
+            in.defaultReadObject();
+        }
+    }
+
+    @Test
+    public void removeFailedRecords_withBatchHeaders_shouldQuarantineFailedRollups() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("records.json");
+        RecordQuarantine quarantine = new RecordQuarantine(new QuarantineFile(file, 1024 * 1024, 2), registry);
+
+        ErrorHandlingDeserializer2<CompactMetricRollup> deserializer =
+                new ErrorHandlingDeserializer2<>(new MetricRollupDeserializer());
+        Headers recordHeaders = new RecordHeaders();
+        assertNull(deserializer.deserialize(TOPIC, recordHeaders, BAD_DATA));
+
+        Map<String, Object> convertedHeaders = new HashMap<>();
+        recordHeaders.forEach(header -> convertedHeaders.put(header.key(), header.value()));
+
+        Map<String, Object> headers = new HashMap<>();
+        headers.put(KafkaHeaders.RECEIVED_TOPIC, Arrays.asList(TOPIC, TOPIC));
+        headers.put(KafkaHeaders.RECEIVED_PARTITION_ID, Arrays.asList(3, 3));
+        headers.put(KafkaHeaders.OFFSET, Arrays.asList(41L, 42L));
+        headers.put(KafkaHeaders.BATCH_CONVERTED_HEADERS, Arrays.asList(new HashMap<>(), convertedHeaders));
+
+        CompactMetricRollup rollup = new CompactMetricRollup();
+        List<CompactMetricRollup> result = quarantine.removeFailedRecords(
+                Arrays.asList(rollup, KafkaNull.INSTANCE), new MessageHeaders(headers));
+        quarantine.close();
+
+        assertEquals(Arrays.asList(rollup), result);
+
+        String line = Files.readAllLines(file).get(0);
+        assertTrue(line.contains("\"partition\":3,\"offset\":42"));
+        assertTrue(line.contains(Base64.getEncoder().encodeToString(BAD_DATA)));
+    }
+
+    @Test
+    public void reject_shouldCountRecordByReasonAndQuarantineIt() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("records.json");
+        RecordQuarantine quarantine = new RecordQuarantine(new QuarantineFile(file, 1024 * 1024, 2), registry);
+        RejectedRecords.get().bindTo(registry);
+        RejectedRecords.get().setQuarantine(quarantine);
+
+        try {
+            RejectedRecords.get().reject(Reason.UNPARSEABLE,
+                    getMessage(BAD_DATA, 2, 30L, null).getHeaders(), BAD_DATA, "Unexpected end-of-input");
+        }
+        finally {
+            RejectedRecords.get().setQuarantine(null);
+            quarantine.close();
+        }
+
+        assertEquals(RejectedRecords.get().getCount(Reason.UNPARSEABLE),
+                registry.get("ingestion.records.rejected").tag("reason", "unparseable").functionCounter().count(),
+                0.0);
+
+        String line = Files.readAllLines(file).get(0);
+        assertTrue(line.contains("\"partition\":2,\"offset\":30"));
+        assertTrue(line.contains("UNPARSEABLE: Unexpected end-of-input"));
+        assertTrue(line.contains(Base64.getEncoder().encodeToString(BAD_DATA)));
+    }
+
+    @Test
+    public void reject_withQueueFull_shouldDropAndCountRecord() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("records.json");
+        CountDownLatch appending = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        // File that blocks the writer thread on its first append, until released
+        QuarantineFile quarantineFile = new QuarantineFile(file, 1024 * 1024, 2) {
+            @Override
+            public synchronized void append(List<String> lines) throws IOException {
+                appending.countDown();
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                super.append(lines);
+            }
+        };
+        RecordQuarantine quarantine = new RecordQuarantine(quarantineFile, registry, 1);
+
+        MessageHeaders headers = getMessage(BAD_DATA, 2, 30L, null).getHeaders();
+        quarantine.addRejectedRecord(headers, BAD_DATA, "first");
+        assertTrue(appending.await(5, TimeUnit.SECONDS));
+
+        // One more fits in the queue, the last one doesn't
+        quarantine.addRejectedRecord(headers, BAD_DATA, "second");
+        quarantine.addRejectedRecord(headers, BAD_DATA, "third");
+
+        release.countDown();
+        quarantine.close();
+
+        assertEquals(1.0, registry.counter("ingestion.records.quarantine.dropped").count(), 0.0);
+
+        List<String> lines = Files.readAllLines(file);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).contains("\"failure\":\"first\""));
+        assertTrue(lines.get(1).contains("\"failure\":\"second\""));
+    }
+
+    @Test
+    public void append_beyondMaxFileBytes_shouldRollFilesOver() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("records.json");
+        QuarantineFile quarantineFile = new QuarantineFile(file, 10, 2);
+
+        for(int i = 0; i < 5; i++) quarantineFile.append("line-" + i);
+        quarantineFile.close();
+
+        assertEquals(Arrays.asList("line-4"), Files.readAllLines(file));
+        assertEquals(Arrays.asList("line-3"), Files.readAllLines(quarantineFile.getRolledFile(1)));
+        assertEquals(Arrays.asList("line-2"), Files.readAllLines(quarantineFile.getRolledFile(2)));
+        assertFalse(Files.exists(quarantineFile.getRolledFile(3)));
+    }
+
+    private static Message<?> getMessage(Object payload, int partition, long offset, byte[] failedData) {
+        MessageBuilder<?> builder = MessageBuilder.withPayload(payload)
+                .setHeader(KafkaHeaders.RECEIVED_TOPIC, TOPIC)
+                .setHeader(KafkaHeaders.RECEIVED_PARTITION_ID, partition)
+                .setHeader(KafkaHeaders.OFFSET, offset);
+
+        if(failedData != null) {
+            Headers headers = new RecordHeaders();
+            new ErrorHandlingDeserializer2<>(new AvroDeserializer<>(ExternalMetric.class))
+                    .deserialize(TOPIC, headers, failedData);
+
+            builder.setHeader(ErrorHandlingDeserializer2.VALUE_DESERIALIZER_EXCEPTION_HEADER,
+                    headers.lastHeader(ErrorHandlingDeserializer2.VALUE_DESERIALIZER_EXCEPTION_HEADER).value());
+        }
+
+        return builder.build();
+    }
+}
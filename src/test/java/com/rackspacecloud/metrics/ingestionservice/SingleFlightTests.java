@@ -0,0 +1,105 @@
+package com.rackspacecloud.metrics.ingestionservice;
+
+import com.rackspacecloud.metrics.ingestionservice.exceptions.RouteNotFoundException;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.SingleFlight;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SingleFlightTests {
+    private final SingleFlight<String, String> singleFlight = new SingleFlight<>();
+    private final ExecutorService executor = Executors.newFixedThreadPool(8);
+
+    @After
+    public void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void execute_concurrentCallsForSameKey_shouldRunOnceAndShareResult() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+
+        List<Future<String>> results = submit(8, "tenant:cpu", key -> {
+            calls.incrementAndGet();
+            await(release);
+            return "route-" + calls.get();
+        });
+
+        waitUntilInFlight();
+        Thread.sleep(100);
+        release.countDown();
+
+        for(Future<String> result : results) assertEquals("route-1", result.get(5, TimeUnit.SECONDS));
+        assertEquals(1, calls.get());
+        assertEquals(0, singleFlight.getInFlightCount());
+
+        // Nothing is cached, next call runs again
+        assertEquals("again", singleFlight.execute("tenant:cpu", key -> "again"));
+    }
+
+    @Test
+    public void execute_failingCall_shouldThrowSameExceptionToEveryWaiter() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        RouteNotFoundException failure = new RouteNotFoundException();
+
+        List<Future<String>> results = submit(4, "tenant:cpu", key -> {
+            calls.incrementAndGet();
+            await(release);
+            throw failure;
+        });
+
+        waitUntilInFlight();
+        Thread.sleep(100);
+        release.countDown();
+
+        for(Future<String> result : results) {
+            try {
+                result.get(5, TimeUnit.SECONDS);
+                fail("Expected the call to fail");
+            }
+            catch (ExecutionException e) {
+                assertSame(failure, e.getCause());
+            }
+        }
+
+        assertEquals(1, calls.get());
+    }
+
+    private List<Future<String>> submit(int callers, String key, Function<String, String> call) {
+        List<Future<String>> results = new ArrayList<>();
+        for(int i = 0; i < callers; i++) results.add(executor.submit(() -> singleFlight.execute(key, call)));
+        return results;
+    }
+
+    private void waitUntilInFlight() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (singleFlight.getInFlightCount() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+        assertTrue(singleFlight.getInFlightCount() > 0);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
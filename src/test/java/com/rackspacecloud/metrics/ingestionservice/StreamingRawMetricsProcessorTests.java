@@ -0,0 +1,251 @@
+package com.rackspacecloud.metrics.ingestionservice;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.rackspace.monplat.protocol.ExternalMetric;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.IngestedRecordCounts;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.LineProtocolEncoder;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.RejectedRecords;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.RejectedRecords.Reason;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.SeriesKeyCache;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantIdAndMeasurement;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantPayloads;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.deserializer.AvroDeserializer;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.processors.RawMetricsProcessor;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.processors.StreamingRawMetricsProcessor;
+import com.rackspacecloud.metrics.ingestionservice.producer.AvroSerializer;
+import com.rackspacecloud.metrics.ingestionservice.producer.MockMetricHelper;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.avro.specific.SpecificDatumWriter;
+import org.apache.kafka.common.errors.SerializationException;
+import org.junit.Test;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class StreamingRawMetricsProcessorTests {
+    private static final String TOPIC = "unified.metrics.json";
+
+    private final AvroSerializer<ExternalMetric> serializer = new AvroSerializer<>();
+    private final LineProtocolEncoder encoder = new LineProtocolEncoder(new SeriesKeyCache(1024 * 1024));
+
+    @Test
+    public void getTenantPayloads_withJsonRecords_shouldMatchRawMetricsProcessor() throws Exception {
+        List<ExternalMetric> metrics = getMetrics();
+        List<byte[]> values = new ArrayList<>();
+        for(ExternalMetric metric : metrics) values.add(serializer.serialize(TOPIC, metric));
+
+        assertSameAsRawMetricsProcessor(metrics, values);
+    }
+
+    @Test
+    public void getTenantPayloads_withBinaryRecords_shouldMatchRawMetricsProcessor() throws Exception {
+        List<ExternalMetric> metrics = getMetrics();
+        List<byte[]> values = new ArrayList<>();
+        for(ExternalMetric metric : metrics) values.add(toBinary(metric));
+
+        assertSameAsRawMetricsProcessor(metrics, values);
+    }
+
+    @Test
+    public void getTenantPayloads_withReorderedAndUnknownFields_shouldMatchRawMetricsProcessor()
+            throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        List<ExternalMetric> metrics = getMetrics();
+        List<byte[]> values = new ArrayList<>();
+
+        for(ExternalMetric metric : metrics) {
+            Map<String, Object> fields = mapper.readValue(serializer.serialize(TOPIC, metric), LinkedHashMap.class);
+            List<String> keys = new ArrayList<>(fields.keySet());
+            Collections.reverse(keys);
+
+            Map<String, Object> reordered = new LinkedHashMap<>();
+            reordered.put("somethingNew", Collections.singletonMap("nested", Collections.singletonList(1)));
+            for(String key : keys) reordered.put(key, fields.get(key));
+
+            values.add(mapper.writeValueAsBytes(reordered));
+        }
+
+        assertSameAsRawMetricsProcessor(metrics, values);
+    }
+
+    @Test
+    public void getTenantPayloads_withMalformedRecords_shouldSkipThem() throws Exception {
+        ExternalMetric valid = MockMetricHelper.getValidMetric(1, "CORE", "123456", 13, true);
+        ExternalMetric unknownAccountType = MockMetricHelper.getValidMetric(2, "CORE", "123456", 13, true);
+
+        String unknownAccountTypeJson = new String(serializer.serialize(TOPIC, unknownAccountType))
+                .replace("\"CORE\"", "\"NOT_AN_ACCOUNT_TYPE\"");
+
+        List<Message<byte[]>> messages = new ArrayList<>();
+        messages.add(getMessage("{\"timestamp\": \"2018-03-27T13:15:06.497Z\", ".getBytes(), 0));
+        messages.add(getMessage("{\"timestamp\": \"2018-03-27T13:15:06.497Z\"}".getBytes(), 1));
+        messages.add(getMessage(unknownAccountTypeJson.getBytes(), 2));
+        messages.add(getMessage(serializer.serialize(TOPIC, valid), 3));
+
+        TenantPayloads result =
+                StreamingRawMetricsProcessor.getTenantPayloads(messages, new IngestedRecordCounts(), encoder);
+
+        List<Message<ExternalMetric>> expectedMessages = new ArrayList<>();
+        expectedMessages.add(getMessage(valid, 3));
+
+        TenantPayloads expected =
+                RawMetricsProcessor.getTenantPayloads(expectedMessages, new IngestedRecordCounts(), encoder);
+
+        assertEquals(toPayloadsMap(expected), toPayloadsMap(result));
+    }
+
+    @Test
+    public void getTenantPayloads_withFieldsMissingOrMistyped_shouldRejectWhatAvroRejects() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        ExternalMetric valid = MockMetricHelper.getValidMetric(1, "CORE", "123456", 13, true);
+        Map<String, Object> fields = mapper.readValue(serializer.serialize(TOPIC, valid), LinkedHashMap.class);
+
+        List<Map<String, Object>> variants = new ArrayList<>();
+        for(String key : fields.keySet()) {
+            Map<String, Object> missing = new LinkedHashMap<>(fields);
+            missing.remove(key);
+            variants.add(missing);
+        }
+        for(String key : Arrays.asList("deviceMetadata", "collectionMetadata", "svalues")) {
+            Map<String, Object> mistyped = new LinkedHashMap<>(fields);
+            mistyped.put(key, Collections.singletonMap("key", 1));
+            variants.add(mistyped);
+        }
+        Map<String, Object> nullMap = new LinkedHashMap<>(fields);
+        nullMap.put("systemMetadata", null);
+        variants.add(nullMap);
+
+        AvroDeserializer<ExternalMetric> avroDeserializer = new AvroDeserializer<>(ExternalMetric.class);
+        List<Message<ExternalMetric>> expectedMessages = new ArrayList<>();
+        List<Message<byte[]>> messages = new ArrayList<>();
+
+        for(int i = 0; i < variants.size(); i++) {
+            byte[] value = mapper.writeValueAsBytes(variants.get(i));
+            messages.add(getMessage(value, i));
+
+            try {
+                expectedMessages.add(getMessage(avroDeserializer.deserialize(TOPIC, value), i));
+            } catch(SerializationException e) {
+                // Rejected by Avro, so never counted by RawMetricsProcessor
+            }
+        }
+
+        long rejected = RejectedRecords.get().getCount(Reason.UNPARSEABLE);
+        IngestedRecordCounts expectedCounts = new IngestedRecordCounts();
+        IngestedRecordCounts counts = new IngestedRecordCounts();
+
+        TenantPayloads expected = RawMetricsProcessor.getTenantPayloads(expectedMessages, expectedCounts, encoder);
+        TenantPayloads result = StreamingRawMetricsProcessor.getTenantPayloads(messages, counts, encoder);
+
+        assertEquals(toPayloadsMap(expected), toPayloadsMap(result));
+        assertEquals(drain(expectedCounts), drain(counts));
+        assertEquals(rejected + messages.size() - expectedMessages.size(),
+                RejectedRecords.get().getCount(Reason.UNPARSEABLE));
+    }
+
+    @Test
+    public void getTenantPayloads_withInvalidTimestamp_shouldRejectOnlyThatRecord() throws Exception {
+        ExternalMetric valid = MockMetricHelper.getValidMetric(1, "CORE", "123456", 13, true);
+        ExternalMetric metric = MockMetricHelper.getValidMetric(2, "CORE", "123456", 13, true);
+        metric.setTimestamp("2018-03-27 13:15:06");
+
+        long rejected = RejectedRecords.get().getCount(Reason.INVALID_TIMESTAMP);
+
+        List<Message<byte[]>> messages = new ArrayList<>();
+        messages.add(getMessage(serializer.serialize(TOPIC, metric), 0));
+        messages.add(getMessage(toBinary(metric), 1));
+        messages.add(getMessage(serializer.serialize(TOPIC, valid), 2));
+
+        TenantPayloads result =
+                StreamingRawMetricsProcessor.getTenantPayloads(messages, new IngestedRecordCounts(), encoder);
+
+        TenantPayloads expected = RawMetricsProcessor.getTenantPayloads(
+                Collections.singletonList(getMessage(valid, 2)), new IngestedRecordCounts(), encoder);
+
+        assertEquals(toPayloadsMap(expected), toPayloadsMap(result));
+        assertEquals(rejected + 2, RejectedRecords.get().getCount(Reason.INVALID_TIMESTAMP));
+    }
+
+    private static List<ExternalMetric> getMetrics() {
+        List<ExternalMetric> metrics = new ArrayList<>();
+
+        for(int i = 0; i < 50; i++) {
+            metrics.add(MockMetricHelper.getValidMetric(i, i % 2 == 0 ? "CORE" : "RCN", "hybrid:1667601", i, true));
+        }
+
+        ExternalMetric special = MockMetricHelper.getValidMetric(50, "ENCORE", "acct 1,2=3", 7, true);
+        special.setDevice(" device, with=specials ");
+        special.getDeviceMetadata().put("account", "overrides account tag");
+        special.getSystemMetadata().put("device", "overrides device tag");
+        Map<String, Double> fValues = new HashMap<>();
+        fValues.put("filesystem.total", 0.25);
+        fValues.put("tiny", 1.0E-10);
+        fValues.put("whole", 42.0);
+        special.setFvalues(fValues);
+        special.getUnits().put("tiny", "");
+        metrics.add(special);
+
+        return metrics;
+    }
+
+    private void assertSameAsRawMetricsProcessor(List<ExternalMetric> metrics, List<byte[]> values) {
+        List<Message<ExternalMetric>> expectedMessages = new ArrayList<>();
+        List<Message<byte[]>> messages = new ArrayList<>();
+
+        for(int i = 0; i < metrics.size(); i++) {
+            expectedMessages.add(getMessage(metrics.get(i), i));
+            messages.add(getMessage(values.get(i), i));
+        }
+
+        IngestedRecordCounts expectedCounts = new IngestedRecordCounts();
+        IngestedRecordCounts counts = new IngestedRecordCounts();
+
+        TenantPayloads expected = RawMetricsProcessor.getTenantPayloads(expectedMessages, expectedCounts, encoder);
+        TenantPayloads result = StreamingRawMetricsProcessor.getTenantPayloads(messages, counts, encoder);
+
+        assertEquals(toPayloadsMap(expected), toPayloadsMap(result));
+        assertEquals(drain(expectedCounts), drain(counts));
+    }
+
+    private static Map<TenantIdAndMeasurement, String> toPayloadsMap(TenantPayloads tenantPayloads) {
+        Map<TenantIdAndMeasurement, String> payloads = new HashMap<>();
+        tenantPayloads.getPayloads().forEach((key, payload) -> payloads.put(key, payload.getPayload()));
+        return payloads;
+    }
+
+    private static <T> Message<T> getMessage(T payload, long offset) {
+        return MessageBuilder.withPayload(payload)
+                .setHeader(KafkaHeaders.RECEIVED_TOPIC, TOPIC)
+                .setHeader(KafkaHeaders.RECEIVED_PARTITION_ID, 0)
+                .setHeader(KafkaHeaders.OFFSET, offset)
+                .build();
+    }
+
+    private static byte[] toBinary(ExternalMetric metric) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(outputStream, null);
+        new SpecificDatumWriter<>(ExternalMetric.class).write(metric, encoder);
+        encoder.flush();
+        return outputStream.toByteArray();
+    }
+
+    private static Map<String, Long> drain(IngestedRecordCounts recordCounts) {
+        Map<String, Long> counts = new HashMap<>();
+        recordCounts.drainTo((topic, partition, monitoringSystem, count) ->
+                counts.put(topic + "/" + partition + "/" + monitoringSystem, count));
+        return counts;
+    }
+}
@@ -0,0 +1,136 @@
+package com.rackspacecloud.metrics.ingestionservice;
+
+import com.rackspacecloud.metrics.ingestionservice.influxdb.providers.DevTestTenantRouteProvider;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.providers.ProdTenantRouteProvider;
+import com.rackspacecloud.metrics.ingestionservice.influxdb.providers.TenantRoutes;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantIdAndMeasurement;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestTemplate;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class TenantRouteProviderTests {
+    private static final String URL = "http://routing-service/routes";
+    private static final String BULK_URL = "http://routing-service/routes/bulk";
+
+    private static final TenantIdAndMeasurement CPU = new TenantIdAndMeasurement("hybrid:1667601", "cpu");
+    private static final TenantIdAndMeasurement DISK = new TenantIdAndMeasurement("hybrid:1667601", "disk");
+    private static final TenantIdAndMeasurement MISSING = new TenantIdAndMeasurement("CORE-1", "memory");
+
+    private final RestTemplate restTemplateMock = mock(RestTemplate.class);
+    private final ProdTenantRouteProvider prodProvider = new ProdTenantRouteProvider();
+
+    @After
+    public void tearDown() {
+        prodProvider.shutdown();
+    }
+
+    @Test
+    public void getRoutes_withDevTestProvider_shouldStubEveryRoute() {
+        Map<TenantIdAndMeasurement, TenantRoutes> routes =
+                new DevTestTenantRouteProvider().getRoutes(Arrays.asList(CPU, DISK), restTemplateMock);
+
+        assertEquals(2, routes.size());
+        assertEquals("hybrid:1667601:disk", routes.get(DISK).getTenantIdAndMeasurement());
+        assertEquals("db_0", routes.get(CPU).getRoutes().get("full").getDatabaseName());
+    }
+
+    @Test
+    public void getRoutes_withBulkEndpoint_shouldLookUpAllRoutesInOneRequest() {
+        ReflectionTestUtils.setField(prodProvider, "tenantRoutingServiceUrl", URL);
+        ReflectionTestUtils.setField(prodProvider, "tenantRoutingServiceBulkUrl", BULK_URL);
+
+        TenantRoutes cpuRoutes = getTenantRoutes(CPU);
+        TenantRoutes diskRoutes = getTenantRoutes(DISK);
+        when(restTemplateMock.postForObject(eq(BULK_URL), any(), eq(TenantRoutes[].class)))
+                .thenReturn(new TenantRoutes[] {diskRoutes, cpuRoutes});
+
+        Map<TenantIdAndMeasurement, TenantRoutes> routes =
+                prodProvider.getRoutes(Arrays.asList(CPU, DISK, MISSING), restTemplateMock);
+
+        assertEquals(2, routes.size());
+        assertSame(cpuRoutes, routes.get(CPU));
+        assertSame(diskRoutes, routes.get(DISK));
+        verify(restTemplateMock, never()).getForObject(any(String.class), eq(TenantRoutes.class));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void getRoutes_withBulkEndpointAndAmbiguousKeys_shouldLookUpOnlyThoseOneByOne() {
+        ReflectionTestUtils.setField(prodProvider, "tenantRoutingServiceUrl", URL);
+        ReflectionTestUtils.setField(prodProvider, "tenantRoutingServiceBulkUrl", BULK_URL);
+
+        // Both are "hybrid:1667601:cpu" in the bulk response
+        TenantIdAndMeasurement ambiguous = new TenantIdAndMeasurement("hybrid", "1667601:cpu");
+        TenantRoutes cpuRoutes = getTenantRoutes(CPU);
+        TenantRoutes ambiguousRoutes = getTenantRoutes(ambiguous);
+        TenantRoutes diskRoutes = getTenantRoutes(DISK);
+
+        when(restTemplateMock.postForObject(eq(BULK_URL), any(), eq(TenantRoutes[].class)))
+                .thenReturn(new TenantRoutes[] {diskRoutes, ambiguousRoutes});
+        when(restTemplateMock.getForObject(URL + "/hybrid:1667601/cpu", TenantRoutes.class)).thenReturn(cpuRoutes);
+        when(restTemplateMock.getForObject(URL + "/hybrid/1667601:cpu", TenantRoutes.class))
+                .thenReturn(ambiguousRoutes);
+
+        Map<TenantIdAndMeasurement, TenantRoutes> routes =
+                prodProvider.getRoutes(Arrays.asList(CPU, ambiguous, DISK), restTemplateMock);
+
+        assertEquals(3, routes.size());
+        assertSame(cpuRoutes, routes.get(CPU));
+        assertSame(ambiguousRoutes, routes.get(ambiguous));
+        assertSame(diskRoutes, routes.get(DISK));
+
+        ArgumentCaptor<List<Map<String, String>>> request = ArgumentCaptor.forClass(List.class);
+        verify(restTemplateMock).postForObject(eq(BULK_URL), request.capture(), eq(TenantRoutes[].class));
+        assertEquals(1, request.getValue().size());
+        assertEquals("disk", request.getValue().get(0).get("measurement"));
+    }
+
+    @Test
+    public void getRoutes_withFailingBulkEndpoint_shouldLookUpRoutesOneByOne() {
+        ReflectionTestUtils.setField(prodProvider, "tenantRoutingServiceUrl", URL);
+        ReflectionTestUtils.setField(prodProvider, "tenantRoutingServiceBulkUrl", BULK_URL);
+        ReflectionTestUtils.setField(prodProvider, "maxParallelLookups", 2);
+
+        when(restTemplateMock.postForObject(eq(BULK_URL), any(), eq(TenantRoutes[].class)))
+                .thenThrow(new ResourceAccessException("bulk endpoint is not there"));
+        when(restTemplateMock.getForObject(URL + "/hybrid:1667601/cpu", TenantRoutes.class))
+                .thenReturn(getTenantRoutes(CPU));
+        when(restTemplateMock.getForObject(URL + "/hybrid:1667601/disk", TenantRoutes.class))
+                .thenReturn(getTenantRoutes(DISK));
+        when(restTemplateMock.getForObject(URL + "/CORE-1/memory", TenantRoutes.class))
+                .thenThrow(new ResourceAccessException("routing service is down"));
+
+        List<TenantIdAndMeasurement> keys = Arrays.asList(CPU, DISK, MISSING);
+        Map<TenantIdAndMeasurement, TenantRoutes> routes = prodProvider.getRoutes(keys, restTemplateMock);
+
+        assertEquals(2, routes.size());
+        assertEquals("hybrid:1667601:cpu", routes.get(CPU).getTenantIdAndMeasurement());
+        assertEquals("hybrid:1667601:disk", routes.get(DISK).getTenantIdAndMeasurement());
+        assertFalse(routes.containsKey(MISSING));
+    }
+
+    private static TenantRoutes getTenantRoutes(TenantIdAndMeasurement key) {
+        TenantRoutes tenantRoutes = new TenantRoutes();
+        tenantRoutes.setTenantIdAndMeasurement(key.getTenantId() + ":" + key.getMeasurement());
+        tenantRoutes.getRoutes().put("full",
+                new TenantRoutes.TenantRoute("http://valid_url:8086", "db_0", "rp_5d", "5d"));
+        return tenantRoutes;
+    }
+}
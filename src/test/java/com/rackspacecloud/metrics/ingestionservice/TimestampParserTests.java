@@ -0,0 +1,89 @@
+package com.rackspacecloud.metrics.ingestionservice;
+
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TimestampParser;
+import org.junit.Test;
+
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class TimestampParserTests {
+
+    @Test
+    public void toEpochSecond_withRandomTimestamps_shouldMatchInstantParse() {
+        Random random = new Random(42);
+
+        for(int i = 0; i < 100_000; i++) {
+            // 1970 to ~2200, with 0 to 9 fraction digits
+            long epochSecond = (long) (random.nextDouble() * 7_300_000_000L);
+            String timestamp = Instant.ofEpochSecond(epochSecond).toString();
+            int fractionDigits = random.nextInt(10);
+
+            if(fractionDigits > 0) {
+                StringBuilder fraction = new StringBuilder(".");
+                for(int j = 0; j < fractionDigits; j++) fraction.append(random.nextInt(10));
+                timestamp = timestamp.replace("Z", fraction + "Z");
+            }
+
+            assertSameAsInstantParse(timestamp);
+        }
+    }
+
+    @Test
+    public void toEpochSecond_withClusteredTimestamps_shouldMatchInstantParse() {
+        // Same seconds again and again hit the cache
+        for(int i = 0; i < 1000; i++) {
+            assertSameAsInstantParse(String.format("2018-03-27T13:15:0%d.%03dZ", i % 3, i));
+            assertSameAsInstantParse(String.format("2018-03-27T14:15:0%d.%03dZ", i % 3, i));
+        }
+    }
+
+    @Test
+    public void toEpochSecond_withEdgeCases_shouldMatchInstantParse() {
+        assertSameAsInstantParse("1970-01-01T00:00:00Z");
+        assertSameAsInstantParse("2016-02-29T23:59:59.999999999Z");
+        assertSameAsInstantParse("2000-02-29T12:00:00.1Z");
+        assertSameAsInstantParse("2100-03-01T00:00:00Z");
+        assertSameAsInstantParse("1969-12-31T23:59:59.5Z");
+        assertSameAsInstantParse("0001-01-01T00:00:00Z");
+        assertSameAsInstantParse("9999-12-31T23:59:59Z");
+        assertSameAsInstantParse("2018-06-30T23:59:60Z");
+        assertSameAsInstantParse("+12018-03-27T13:15:06Z");
+        assertSameAsInstantParse("2018-03-27T13:15:06.Z");
+    }
+
+    @Test
+    public void toEpochSecond_withInvalidTimestamps_shouldFailLikeInstantParse() {
+        String[] invalid = {
+                "", "2018-03-27", "2018-03-27T13:15:06", "2018-03-27 13:15:06Z", "2018-02-29T13:15:06Z",
+                "2018-13-27T13:15:06Z", "2018-03-32T13:15:06Z", "2018-03-27T24:15:06Z", "2018-03-27T13:60:06Z",
+                "2018-03-27T13:15:06.1234567890Z", "2018-03-27T13:15:06.49aZ",
+                "2018-03-27T13:15:06+01:00", "2018-0a-27T13:15:06Z", "2018/03/27T13:15:06Z"
+        };
+
+        for(String timestamp : invalid) {
+            try {
+                TimestampParser.get().toEpochSecond(timestamp);
+                fail("Expected DateTimeParseException for " + timestamp);
+            }
+            catch (DateTimeParseException e) {
+                // expected, as long as Instant.parse fails as well
+                try {
+                    Instant.parse(timestamp);
+                    fail("Instant.parse accepts " + timestamp);
+                }
+                catch (DateTimeParseException expected) {
+                    // expected
+                }
+            }
+        }
+    }
+
+    private static void assertSameAsInstantParse(String timestamp) {
+        assertEquals(timestamp, Instant.parse(timestamp).getEpochSecond(),
+                TimestampParser.get().toEpochSecond(timestamp));
+    }
+}
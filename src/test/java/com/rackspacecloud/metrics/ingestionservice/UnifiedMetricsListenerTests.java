@@ -0,0 +1,56 @@
+package com.rackspacecloud.metrics.ingestionservice;
+
+import com.rackspacecloud.metrics.ingestionservice.listeners.UnifiedMetricsListener;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class UnifiedMetricsListenerTests {
+    private static final String[] META_CHARACTERS =
+            {"\\",":","^","$","{","}","[","]","(",")",".","*","+","?","|","<",">","-","&","%"," "};
+
+    @Test
+    public void replaceSpecialCharacters_withoutSpecialCharacters_shouldReturnSameInstance() {
+        String name = "filesystem_free_files";
+        assertSame(name, UnifiedMetricsListener.replaceSpecialCharacters(name));
+    }
+
+    @Test
+    public void replaceSpecialCharacters_calledAgain_shouldReturnMemoizedInstance() {
+        String first = UnifiedMetricsListener.replaceSpecialCharacters(new String("filesystem.free-files"));
+        String second = UnifiedMetricsListener.replaceSpecialCharacters(new String("filesystem.free-files"));
+
+        assertEquals("filesystem_free_files", first);
+        assertSame(first, second);
+    }
+
+    @Test
+    public void replaceSpecialCharacters_withRandomStrings_shouldMatchOneReplacePerCharacter() {
+        Random random = new Random(42);
+        String alphabet = String.join("", META_CHARACTERS) + "aZ09_/=,\"'\té中";
+
+        for(int i = 0; i < 10_000; i++) {
+            StringBuilder input = new StringBuilder();
+            int length = random.nextInt(30);
+            for(int j = 0; j < length; j++) input.append(alphabet.charAt(random.nextInt(alphabet.length())));
+
+            assertEquals(getExpected(input.toString()),
+                    UnifiedMetricsListener.replaceSpecialCharacters(input.toString()));
+        }
+    }
+
+    /**
+     * This is how replaceSpecialCharacters worked before the lookup table
+     */
+    private static String getExpected(String inputString) {
+        for (String metaCharacter : META_CHARACTERS) {
+            if(inputString.contains(metaCharacter)) {
+                inputString = inputString.replace(metaCharacter, "_");
+            }
+        }
+        return inputString;
+    }
+}
@@ -0,0 +1,85 @@
+package com.rackspacecloud.metrics.ingestionservice.benchmarks;
+
+import com.rackspace.monplat.protocol.ExternalMetric;
+import com.rackspacecloud.metrics.ingestionservice.listeners.UnifiedMetricsListener;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.CommonMetricsProcessor;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.Dimension;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.LineProtocolEncoder;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.SeriesKeyCache;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantIdAndMeasurement;
+import com.rackspacecloud.metrics.ingestionservice.producer.MockMetricHelper;
+import org.influxdb.dto.Point;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the Point.Builder based conversion of a raw record against LineProtocolEncoder.
+ *
+ * Run with: mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java
+ *      -Dexec.args="-cp %classpath org.openjdk.jmh.Main LineProtocolEncoderBenchmark -prof gc"
+ * "-prof gc" reports the allocation rate per operation next to the timings.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LineProtocolEncoderBenchmark {
+    private ExternalMetric record;
+    private TenantIdAndMeasurement tenantIdAndMeasurement;
+    private long epochSecond;
+    private StringBuilder out;
+    private LineProtocolEncoder encoder;
+
+    @Setup
+    public void setUp() {
+        record = MockMetricHelper.getValidMetric(1, "CORE", "hybrid:1667601", 13, true);
+        tenantIdAndMeasurement = CommonMetricsProcessor.getTenantIdAndMeasurement(
+                record.getAccountType().name(), record.getAccount(),
+                record.getMonitoringSystem().name(), record.getCollectionName());
+        epochSecond = Instant.parse(record.getTimestamp()).getEpochSecond();
+        out = new StringBuilder(1024);
+        encoder = new LineProtocolEncoder(new SeriesKeyCache(64L * 1024 * 1024));
+    }
+
+    @Benchmark
+    public String pointLineProtocol() {
+        Dimension dimension = CommonMetricsProcessor.getDimensions(record);
+        Point.Builder pointBuilder = Dimension.populateTagsAndFields(dimension, tenantIdAndMeasurement);
+
+        for(Map.Entry<String, Long> entry : record.getIvalues().entrySet()) {
+            String metricFieldName = UnifiedMetricsListener.replaceSpecialCharacters(entry.getKey());
+            String unitValue = record.getUnits().get(entry.getKey());
+            pointBuilder.tag(String.format("%s_unit", metricFieldName), unitValue == null ? "unavailable" : unitValue);
+            pointBuilder.addField(metricFieldName, entry.getValue().doubleValue());
+        }
+
+        pointBuilder.time(epochSecond, TimeUnit.SECONDS);
+        return pointBuilder.build().lineProtocol(TimeUnit.SECONDS);
+    }
+
+    @Benchmark
+    public String encoderToString() {
+        return encoder.encode(record, tenantIdAndMeasurement, epochSecond);
+    }
+
+    @Benchmark
+    public StringBuilder encoderIntoBuffer() {
+        out.setLength(0);
+        encoder.encode(record, tenantIdAndMeasurement, epochSecond, out);
+        return out;
+    }
+}
@@ -0,0 +1,96 @@
+package com.rackspacecloud.metrics.ingestionservice.benchmarks;
+
+import com.rackspace.monplat.protocol.ExternalMetric;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.IngestedRecordCounts;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.LinePayload;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.LineProtocolEncoder;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.SeriesKeyCache;
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TenantPayloads;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.deserializer.AvroDeserializer;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.processors.RawMetricsProcessor;
+import com.rackspacecloud.metrics.ingestionservice.listeners.rawlisteners.processors.StreamingRawMetricsProcessor;
+import com.rackspacecloud.metrics.ingestionservice.producer.AvroSerializer;
+import com.rackspacecloud.metrics.ingestionservice.producer.MockMetricHelper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.kafka.support.KafkaHeaders;
+import org.springframework.messaging.Message;
+import org.springframework.messaging.support.MessageBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the two raw transforms on a batch of JSON records, from Kafka value bytes to line-protocol:
+ *      - AVRO: AvroDeserializer and then RawMetricsProcessor
+ *      - STREAMING: StreamingRawMetricsProcessor
+ *
+ * Run with: mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java
+ *      -Dexec.args="-cp %classpath org.openjdk.jmh.Main RawTransformBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RawTransformBenchmark {
+    private static final String TOPIC = "unified.metrics.json";
+    private static final int BATCH_SIZE = 500;
+
+    private final AvroDeserializer<ExternalMetric> deserializer = new AvroDeserializer<>(ExternalMetric.class);
+    private final LineProtocolEncoder encoder = new LineProtocolEncoder(new SeriesKeyCache(64L * 1024 * 1024));
+    private List<Message<byte[]>> messages;
+
+    @Setup
+    public void setUp() {
+        AvroSerializer<ExternalMetric> serializer = new AvroSerializer<>();
+        messages = new ArrayList<>();
+
+        for(int i = 0; i < BATCH_SIZE; i++) {
+            ExternalMetric metric = MockMetricHelper.getValidMetric(i, "CORE", "hybrid:" + (i % 20), i, true);
+            messages.add(MessageBuilder.withPayload(serializer.serialize(TOPIC, metric))
+                    .setHeader(KafkaHeaders.RECEIVED_TOPIC, TOPIC)
+                    .setHeader(KafkaHeaders.RECEIVED_PARTITION_ID, 0)
+                    .setHeader(KafkaHeaders.OFFSET, (long) i)
+                    .build());
+        }
+    }
+
+    @Benchmark
+    public int avro() {
+        List<Message<ExternalMetric>> records = new ArrayList<>(messages.size());
+
+        for(Message<byte[]> message : messages) {
+            records.add(MessageBuilder.createMessage(
+                    deserializer.deserialize(TOPIC, message.getPayload()), message.getHeaders()));
+        }
+
+        return release(RawMetricsProcessor.getTenantPayloads(records, new IngestedRecordCounts(), encoder));
+    }
+
+    @Benchmark
+    public int streaming() {
+        return release(StreamingRawMetricsProcessor.getTenantPayloads(messages, new IngestedRecordCounts(), encoder));
+    }
+
+    /**
+     * Release the buffers the way listeners do after writing, so pooled buffers get reused
+     */
+    private static int release(TenantPayloads tenantPayloads) {
+        int lineCount = 0;
+        for(LinePayload payload : tenantPayloads.getPayloads().values()) lineCount += payload.getLineCount();
+
+        tenantPayloads.release();
+        return lineCount;
+    }
+}
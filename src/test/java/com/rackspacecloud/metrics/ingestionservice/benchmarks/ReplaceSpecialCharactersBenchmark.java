@@ -0,0 +1,57 @@
+package com.rackspacecloud.metrics.ingestionservice.benchmarks;
+
+import com.rackspacecloud.metrics.ingestionservice.listeners.UnifiedMetricsListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the contains/replace per metacharacter implementation of replaceSpecialCharacters against the
+ * lookup table with memoization, on a mix of metric, account and collection names.
+ *
+ * Run with: mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java
+ *      -Dexec.args="-cp %classpath org.openjdk.jmh.Main ReplaceSpecialCharactersBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ReplaceSpecialCharactersBenchmark {
+    private static final String[] META_CHARACTERS =
+            {"\\",":","^","$","{","}","[","]","(",")",".","*","+","?","|","<",">","-","&","%"," "};
+
+    private final String[] names = {
+            "filesystem.free_files", "filesystem.total", "filesystem.avail", "cpu_usage", "hybrid:1667601",
+            "agent.filesystem", "memory.actual_used", "network.rx-bytes", "load_average_1m", "disk (sda) reads"
+    };
+
+    @Benchmark
+    public void replaceAndContains(Blackhole blackhole) {
+        for(String name : names) blackhole.consume(legacyReplaceSpecialCharacters(name));
+    }
+
+    @Benchmark
+    public void lookupTable(Blackhole blackhole) {
+        for(String name : names) blackhole.consume(UnifiedMetricsListener.replaceSpecialCharacters(name));
+    }
+
+    private static String legacyReplaceSpecialCharacters(String inputString) {
+        for (int i = 0 ; i < META_CHARACTERS.length ; i++){
+            if(inputString.contains(META_CHARACTERS[i])){
+                inputString = inputString.replace(META_CHARACTERS[i],"_");
+            }
+        }
+        return inputString;
+    }
+}
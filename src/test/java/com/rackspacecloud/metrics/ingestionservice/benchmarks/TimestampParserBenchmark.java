@@ -0,0 +1,62 @@
+package com.rackspacecloud.metrics.ingestionservice.benchmarks;
+
+import com.rackspacecloud.metrics.ingestionservice.listeners.processors.TimestampParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Instant;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares Instant.parse against TimestampParser on a batch of raw record timestamps. Like a real poll,
+ * the batch has 1500 timestamps spread over a few seconds with millisecond fractions.
+ *
+ * Run with: mvn test-compile exec:exec -Dexec.classpathScope=test -Dexec.executable=java
+ *      -Dexec.args="-cp %classpath org.openjdk.jmh.Main TimestampParserBenchmark -prof gc"
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TimestampParserBenchmark {
+    private static final int BATCH_SIZE = 1500;
+    private static final long BATCH_START_EPOCH_MILLI = 1522156506000L;
+
+    private String[] timestamps;
+
+    @Setup
+    public void setUp() {
+        Random random = new Random(42);
+        timestamps = new String[BATCH_SIZE];
+
+        for(int i = 0; i < BATCH_SIZE; i++) {
+            timestamps[i] = Instant.ofEpochMilli(BATCH_START_EPOCH_MILLI + random.nextInt(5000)).toString();
+        }
+    }
+
+    @Benchmark
+    public long instantParse() {
+        long sum = 0;
+        for(String timestamp : timestamps) sum += Instant.parse(timestamp).getEpochSecond();
+        return sum;
+    }
+
+    @Benchmark
+    public long timestampParser() {
+        TimestampParser parser = TimestampParser.get();
+        long sum = 0;
+        for(String timestamp : timestamps) sum += parser.toEpochSecond(timestamp);
+        return sum;
+    }
+}